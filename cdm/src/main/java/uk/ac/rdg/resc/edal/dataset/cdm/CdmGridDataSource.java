@@ -34,12 +34,14 @@ import java.util.Set;
 
 import ucar.ma2.Array;
 import ucar.ma2.Index;
+import ucar.ma2.IndexIterator;
 import ucar.ma2.InvalidRangeException;
 import ucar.nc2.Variable;
 import ucar.nc2.dataset.NetcdfDataset.Enhance;
 import ucar.nc2.dataset.VariableDS;
 import ucar.nc2.dt.GridDataset;
 import ucar.nc2.dt.GridDatatype;
+import uk.ac.rdg.resc.edal.dataset.AbstractGridDataSource;
 import uk.ac.rdg.resc.edal.dataset.GridDataSource;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.util.Array4D;
@@ -51,7 +53,7 @@ import uk.ac.rdg.resc.edal.util.Array4D;
  * @author Jon
  * @author Guy
  */
-final class CdmGridDataSource implements GridDataSource {
+final class CdmGridDataSource extends AbstractGridDataSource {
     /*
      * Note that this is the CDM GridDataset, not the EDAL one
      */
@@ -64,13 +66,80 @@ final class CdmGridDataSource implements GridDataSource {
     @Override
     public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
             int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
-
         /*
          * Get hold of the variable from which we want to read data
          */
         GridDatatype gridDatatype = gridDataset.findGridDatatype(variableId);
         VariableDS var = gridDatatype.getVariable();
 
+        RangesList rangesList = getRangesList(gridDatatype, tmin, tmax, zmin, zmax, ymin, ymax,
+                xmin, xmax);
+        Array arr = readArray(var, rangesList);
+
+        /*
+         * Returns a 4D array that wraps the Array
+         */
+        int[] shape = new int[] { (tmax - tmin + 1), (zmax - zmin + 1), (ymax - ymin + 1),
+                (xmax - xmin + 1) };
+        WrappedArray wrappedArray = new WrappedArray(var, arr, needsEnhance(var), shape,
+                rangesList);
+
+        return wrappedArray;
+    }
+
+    @Override
+    public void readFloats(String variableId, int tmin, int tmax, int zmin, int zmax, int ymin,
+            int ymax, int xmin, int xmax, float[] values) throws IOException,
+            DataReadingException {
+        GridDatatype gridDatatype = gridDataset.findGridDatatype(variableId);
+        VariableDS var = gridDatatype.getVariable();
+
+        RangesList rangesList = getRangesList(gridDatatype, tmin, tmax, zmin, zmax, ymin, ymax,
+                xmin, xmax);
+        Array arr = readArray(var, rangesList);
+
+        int size = (tmax - tmin + 1) * (zmax - zmin + 1) * (ymax - ymin + 1) * (xmax - xmin + 1);
+        if (values.length < size) {
+            throw new IllegalArgumentException("Buffer of size " + values.length
+                    + " is too small to hold " + size + " values");
+        }
+
+        /*
+         * Permute the array so that any non-tzyx dimensions (which will have a
+         * length of 1) come first, followed by t, z, y and x. Iterating over
+         * the permuted array then gives values in the order we want, with x
+         * varying fastest.
+         */
+        int rank = arr.getRank();
+        int[] axisIndices = new int[] { rangesList.getTAxisIndex(), rangesList.getZAxisIndex(),
+                rangesList.getYAxisIndex(), rangesList.getXAxisIndex() };
+        int[] permutation = new int[rank];
+        int dim = 0;
+        for (int i = 0; i < rank; i++) {
+            if (!contains(axisIndices, i)) {
+                permutation[dim++] = i;
+            }
+        }
+        for (int axisIndex : axisIndices) {
+            if (axisIndex >= 0) {
+                permutation[dim++] = axisIndex;
+            }
+        }
+
+        boolean needsEnhance = needsEnhance(var);
+        MissingDataChecker missingChecker = new MissingDataChecker(var);
+        IndexIterator it = arr.permute(permutation).getIndexIterator();
+        for (int i = 0; i < size; i++) {
+            double val = it.getFloatNext();
+            if (needsEnhance) {
+                val = var.convertScaleOffsetMissing(val);
+            }
+            values[i] = missingChecker.isMissing(val) ? Float.NaN : (float) val;
+        }
+    }
+
+    private static RangesList getRangesList(GridDatatype gridDatatype, int tmin, int tmax,
+            int zmin, int zmax, int ymin, int ymax, int xmin, int xmax) {
         /*
          * Create RangesList object from GridDatatype object This will lead to
          * many RangesList objects being created during data extraction for
@@ -88,50 +157,53 @@ final class CdmGridDataSource implements GridDataSource {
         rangesList.setZRange(zmin, zmax);
         rangesList.setYRange(ymin, ymax);
         rangesList.setXRange(xmin, xmax);
+        return rangesList;
+    }
 
-        final Array arr;
+    private static Array readArray(VariableDS var, RangesList rangesList) throws IOException,
+            DataReadingException {
         Variable origVar = var.getOriginalVariable();
-
         try {
             if (origVar == null) {
                 /* We read from the enhanced variable */
-                arr = var.read(rangesList.getRanges());
+                return var.read(rangesList.getRanges());
             } else {
                 /*
                  * We read from the original variable to avoid enhancing data
                  * values that we won't use
                  */
-                arr = origVar.read(rangesList.getRanges());
+                return origVar.read(rangesList.getRanges());
             }
         } catch (InvalidRangeException ire) {
             throw new DataReadingException("Cannot read data - invalid range specified", ire);
         }
+    }
 
-        /*
-         * Decide whether or not we need to enhance any data values we read from
-         * this array
-         */
-        final boolean needsEnhance;
+    /**
+     * Decide whether or not we need to enhance any data values we read from
+     * this variable
+     */
+    private static boolean needsEnhance(VariableDS var) {
         Set<Enhance> enhanceMode = var.getEnhanceMode();
         if (enhanceMode.contains(Enhance.ScaleMissingDefer)) {
             /* Values read from the array are not enhanced, but need to be */
-            needsEnhance = true;
+            return true;
         } else if (enhanceMode.contains(Enhance.ScaleMissing)) {
             /* We only need to enhance if we read data from the plain Variable */
-            needsEnhance = origVar != null;
+            return var.getOriginalVariable() != null;
         } else {
             /* Values read from the array will not be enhanced */
-            needsEnhance = false;
+            return false;
         }
+    }
 
-        /*
-         * Returns a 4D array that wraps the Array
-         */
-        int[] shape = new int[] { (tmax - tmin + 1), (zmax - zmin + 1), (ymax - ymin + 1),
-                (xmax - xmin + 1) };
-        WrappedArray wrappedArray = new WrappedArray(var, arr, needsEnhance, shape, rangesList);
-
-        return wrappedArray;
+    private static boolean contains(int[] array, int value) {
+        for (int element : array) {
+            if (element == value) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -143,6 +215,7 @@ final class CdmGridDataSource implements GridDataSource {
         private VariableDS var;
         private Array arr;
         private boolean needsEnhance;
+        private final MissingDataChecker missingChecker;
         private final int[] shape;
         private final int xAxisIndex;
         private final int yAxisIndex;
@@ -155,6 +228,7 @@ final class CdmGridDataSource implements GridDataSource {
             this.var = var;
             this.arr = arr;
             this.needsEnhance = needsEnhance;
+            missingChecker = new MissingDataChecker(var);
             this.shape = shape;
 
             xAxisIndex = rangesList.getXAxisIndex();
@@ -173,11 +247,16 @@ final class CdmGridDataSource implements GridDataSource {
             /*
              * The convention is that the x coordinate varies fastest
              */
-            int x = coords[3];
-            int y = coords[2];
-            int z = coords[1];
-            int t = coords[0];
+            float val = getFloat(coords[0], coords[1], coords[2], coords[3]);
+            if (Float.isNaN(val)) {
+                return null;
+            } else {
+                return val;
+            }
+        }
 
+        @Override
+        public float getFloat(int t, int z, int y, int x) {
             /*
              * Create a new index
              */
@@ -198,13 +277,13 @@ final class CdmGridDataSource implements GridDataSource {
             if (needsEnhance) {
                 val = var.convertScaleOffsetMissing(val);
             }
-            if (isMissing(val)) {
+            if (missingChecker.isMissing(val)) {
                 /*
                  * In NcML aggregations, there is a double/float overflow issue
                  * which means that isMissing can return true in cases where it
                  * should be false.
                  */
-                return null;
+                return Float.NaN;
             } else {
                 return (float) val;
             }
@@ -224,42 +303,63 @@ final class CdmGridDataSource implements GridDataSource {
         public long size() {
             return shape[0] * shape[1] * shape[2] * shape[3];
         }
+    }
+
+    /**
+     * Performs the same checks as {@link VariableDS#isMissing(double)}, but
+     * allows a tolerance of 1e-7 on the maximum and minimum values. This is
+     * because when using aggregations we have no underlying original variable.
+     * In these cases, the valid min/max get automatically enhanced as doubles,
+     * but the value gets enhanced as its underlying data type. If this is a
+     * float, then rounding errors can occur.
+     * 
+     * e.g. the valid max may be 1.0f, but 0.9999999776482582. The valid max is
+     * represented in the double form, but the value is represented in the
+     * floating point form is 1.0, which is greater than the valid max, even if
+     * in the underlying data they are equal.
+     * 
+     * The properties of the variable are looked up once on construction rather
+     * than for every value checked.
+     */
+    private static final class MissingDataChecker {
+        private final VariableDS var;
+        private final boolean hasMissingValue;
+        private final boolean hasFillValue;
+        private final boolean checkValidMax;
+        private final boolean checkValidMin;
+        private final double validMax;
+        private final double validMin;
+
+        public MissingDataChecker(VariableDS var) {
+            this.var = var;
+            hasMissingValue = var.hasMissingValue();
+            hasFillValue = var.hasFillValue();
+            boolean hasInvalidData = var.hasInvalidData();
+            validMax = var.getValidMax();
+            validMin = var.getValidMin();
+            checkValidMax = hasInvalidData && validMax != -Double.MAX_VALUE;
+            checkValidMin = hasInvalidData && validMin != Double.MAX_VALUE;
+        }
 
         /**
-         * Performs the same checks as {@link VariableDS#isMissing(double)}, but
-         * allows a tolerance of 1e-7 on the maximum and minimum values. This is
-         * because when using aggregations we have no underlying original
-         * variable. In these cases, the valid min/max get automatically
-         * enhanced as doubles, but the value gets enhanced as its underlying
-         * data type. If this is a float, then rounding errors can occur.
-         * 
-         * e.g. the valid max may be 1.0f, but 0.9999999776482582. The valid max
-         * is represented in the double form, but the value is represented in
-         * the floating point form is 1.0, which is greater than the valid max,
-         * even if in the underlying data they are equal.
-         * 
          * @param val
          *            The value to check
          * @return Whether or not this should be considered missing data
          */
-        private boolean isMissing(double val) {
+        public boolean isMissing(double val) {
             if (Double.isNaN(val)) {
                 return true;
             }
-            if (var.hasMissingValue() && var.isMissingValue(val)) {
+            if (hasMissingValue && var.isMissingValue(val)) {
                 return true;
-            } else if (var.hasFillValue() && var.isFillValue(val)) {
+            } else if (hasFillValue && var.isFillValue(val)) {
                 return true;
-            } else if (var.hasInvalidData()) {
-                if (var.getValidMax() != -Double.MAX_VALUE) {
-                    if (val > var.getValidMax() && (val - var.getValidMax()) > 1e-7) {
-                        return true;
-                    }
+            } else {
+                if (checkValidMax && val > validMax && (val - validMax) > 1e-7) {
+                    return true;
                 }
-                if (var.getValidMin() != Double.MAX_VALUE) {
-                    if (val < var.getValidMin() && (var.getValidMin() - val) > 1e-7) {
-                        return true;
-                    }
+                if (checkValidMin && val < validMin && (validMin - val) > 1e-7) {
+                    return true;
                 }
             }
             return false;
@@ -33,20 +33,25 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ucar.nc2.Attribute;
 import ucar.nc2.Dimension;
-import ucar.nc2.NetcdfFile;
 import ucar.nc2.Variable;
+import ucar.nc2.dataset.CoordinateAxis;
+import ucar.nc2.dataset.CoordinateAxis1D;
+import ucar.nc2.dataset.CoordinateAxis2D;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.dataset.VariableDS;
 import ucar.nc2.dt.GridCoordSystem;
@@ -58,6 +63,7 @@ import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
 import uk.ac.rdg.resc.edal.dataset.GridDataSource;
+import uk.ac.rdg.resc.edal.dataset.cdm.GridDataSourcePool.GridDataSourceOpener;
 import uk.ac.rdg.resc.edal.dataset.plugins.MeanSDPlugin;
 import uk.ac.rdg.resc.edal.dataset.plugins.VectorPlugin;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
@@ -66,6 +72,7 @@ import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.VerticalAxis;
 import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.DaemonThreadFactory;
 import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
 
 /**
@@ -78,16 +85,66 @@ import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
 public final class CdmGridDatasetFactory extends DatasetFactory {
     private static final Logger log = LoggerFactory.getLogger(CdmGridDatasetFactory.class);
 
-    private String ncmlString = null;
+    /*
+     * Open data sources are shared between all datasets created by this
+     * factory, so that the total number of open files is bounded
+     */
+    private static final GridDataSourcePool dataSourcePool = new GridDataSourcePool(64,
+            5 * 60 * 1000L);
+
+    /*
+     * Creates the domains of each coordinate system in a dataset. Generating
+     * the look-up tables for curvilinear grids is slow, so datasets with
+     * several coordinate systems have them created in parallel.
+     */
+    private static final ExecutorService DOMAIN_EXECUTOR = Executors.newFixedThreadPool(Runtime
+            .getRuntime().availableProcessors(), new DaemonThreadFactory("dataset-domains-"));
+
+    /**
+     * Sets the maximum number of data sources which may be held open at once
+     * by all datasets created by this factory. Requests for data beyond this
+     * limit will wait until a data source becomes free.
+     * 
+     * @param maxOpen
+     *            The maximum number of open data sources. Must be at least 1.
+     */
+    public static void setMaxOpenDataSources(int maxOpen) {
+        dataSourcePool.setMaxOpen(maxOpen);
+    }
+
+    /**
+     * Sets the time after which data sources which have not been used are
+     * closed.
+     * 
+     * @param idleTimeoutMs
+     *            The idle timeout, in milliseconds
+     */
+    public static void setDataSourceIdleTimeout(long idleTimeoutMs) {
+        dataSourcePool.setIdleTimeout(idleTimeoutMs);
+    }
+
+    /*
+     * The NcML used for each location which is an aggregation of multiple
+     * files, and the manifests used to generate it. The NcML is regenerated
+     * whenever a dataset is (re)loaded.
+     */
+    private final Map<String, String> location2Ncml = new HashMap<>();
+    private final Map<String, TimeIndexManifest> location2Manifest = new HashMap<>();
 
     @Override
     public AbstractGridDataset createDataset(String id, String location) throws IOException, EdalException {
+        /*
+         * The data at this location may have changed since any pooled data
+         * sources were opened
+         */
+        dataSourcePool.invalidate(location);
+
         NetcdfDataset nc = null;
         try {
             /*
              * Open the dataset, using the cache for NcML aggregations
              */
-            nc = openAndAggregateDataset(location);
+            nc = openAndAggregateDataset(location, true);
 
             /*-
              * We may in future be able to use forecast model run collection aggregations for
@@ -173,11 +230,13 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
              * title.
              */
             Map<String, String> parentVarId2Title = new HashMap<String, String>();
-            for (Gridset gridset : gridDataset.getGridsets()) {
-                GridCoordSystem coordSys = gridset.getGeoCoordSystem();
-                HorizontalGrid hDomain = CdmUtils.createHorizontalGrid(coordSys);
-                VerticalAxis zDomain = CdmUtils.createVerticalAxis(coordSys);
-                TimeAxis tDomain = CdmUtils.createTimeAxis(coordSys);
+            List<Gridset> gridsets = gridDataset.getGridsets();
+            List<GridDomains> gridsetDomains = createDomains(gridsets);
+            for (int i = 0; i < gridsets.size(); i++) {
+                Gridset gridset = gridsets.get(i);
+                HorizontalGrid hDomain = gridsetDomains.get(i).hDomain;
+                VerticalAxis zDomain = gridsetDomains.get(i).zDomain;
+                TimeAxis tDomain = gridsetDomains.get(i).tDomain;
 
                 /*
                  * Create a VariableMetadata object for each GridDatatype
@@ -322,9 +381,99 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
         }
     }
 
+    /*
+     * The domains shared by all of the variables in a Gridset
+     */
+    private static final class GridDomains {
+        private final HorizontalGrid hDomain;
+        private final VerticalAxis zDomain;
+        private final TimeAxis tDomain;
+
+        private GridDomains(GridCoordSystem coordSys) {
+            hDomain = CdmUtils.createHorizontalGrid(coordSys);
+            zDomain = CdmUtils.createVerticalAxis(coordSys);
+            tDomain = CdmUtils.createTimeAxis(coordSys);
+        }
+    }
+
+    /**
+     * Creates the domains of each of the given {@link Gridset}s, in parallel
+     * if there is more than one.
+     * 
+     * All coordinate values are read on the calling thread before the domains
+     * are created, since a {@link NetcdfDataset} must not be read from more
+     * than one thread at a time. Once read, they are cached by their
+     * {@link CoordinateAxis} objects.
+     * 
+     * @return The domains of each {@link Gridset}, in the same order
+     */
+    private static List<GridDomains> createDomains(List<Gridset> gridsets) throws EdalException {
+        List<GridDomains> domains = new ArrayList<>();
+        if (gridsets.size() < 2) {
+            for (Gridset gridset : gridsets) {
+                domains.add(new GridDomains(gridset.getGeoCoordSystem()));
+            }
+            return domains;
+        }
+
+        for (Gridset gridset : gridsets) {
+            for (CoordinateAxis axis : gridset.getGeoCoordSystem().getCoordinateAxes()) {
+                if (axis instanceof CoordinateAxis1D) {
+                    ((CoordinateAxis1D) axis).getCoordValues();
+                } else if (axis instanceof CoordinateAxis2D) {
+                    ((CoordinateAxis2D) axis).getCoordValues();
+                }
+            }
+        }
+
+        List<Future<GridDomains>> pendingDomains = new ArrayList<>();
+        try {
+            for (Gridset gridset : gridsets) {
+                final GridCoordSystem coordSys = gridset.getGeoCoordSystem();
+                pendingDomains.add(DOMAIN_EXECUTOR.submit(new Callable<GridDomains>() {
+                    @Override
+                    public GridDomains call() {
+                        return new GridDomains(coordSys);
+                    }
+                }));
+            }
+            for (Future<GridDomains> pendingDomain : pendingDomains) {
+                domains.add(pendingDomain.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EdalException("Interrupted whilst creating dataset domains", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new EdalException("Problem creating dataset domains", cause);
+        } finally {
+            for (Future<GridDomains> pendingDomain : pendingDomains) {
+                pendingDomain.cancel(false);
+            }
+        }
+        return domains;
+    }
+
     private final class CdmGridDataset extends AbstractGridDataset {
         private final String location;
         private final DataReadingStrategy dataReadingStrategy;
+        private final GridDataSourceOpener opener = new GridDataSourceOpener() {
+            @Override
+            public GridDataSource open() throws IOException {
+                NetcdfDataset nc;
+                try {
+                    nc = openAndAggregateDataset(location, false);
+                } catch (EdalException e) {
+                    throw new IOException("Problem aggregating datasets", e);
+                }
+                return new CdmGridDataSource(CdmUtils.getGridDataset(nc));
+            }
+        };
 
         public CdmGridDataset(String id, String location, Collection<GridVariableMetadata> vars,
                 DataReadingStrategy dataReadingStrategy) {
@@ -333,15 +482,24 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
             this.dataReadingStrategy = dataReadingStrategy;
         }
 
+        /**
+         * Gets a {@link GridDataSource} from the pool, opening a new one if
+         * none are available. Closing the returned {@link GridDataSource}
+         * returns it to the pool.
+         */
         @Override
         protected GridDataSource openGridDataSource() throws IOException {
-            NetcdfDataset nc;
-            try {
-                nc = openAndAggregateDataset(location);
-            } catch (EdalException e) {
-                throw new IOException("Problem aggregating datasets", e);
-            }
-            return new CdmGridDataSource(CdmUtils.getGridDataset(nc));
+            return dataSourcePool.borrow(location, opener);
+        }
+
+        /**
+         * Gets a {@link GridDataSource} from the pool without waiting for one
+         * to be returned, so that parallel reads cannot deadlock with other
+         * requests holding the remaining {@link GridDataSource}s.
+         */
+        @Override
+        protected GridDataSource tryOpenGridDataSource() throws IOException {
+            return dataSourcePool.tryBorrow(location, opener);
         }
 
         @Override
@@ -366,6 +524,10 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
      *            aggregation file or an OPeNDAP location, {@literal i.e.}
      *            anything that can be passed to
      *            NetcdfDataset.openDataset(location).
+     * @param rescan
+     *            If {@code location} is a glob expression matching multiple
+     *            files, whether to check for changes to the set of files
+     *            rather than using the aggregation from a previous call
      * 
      * @return a {@link NetcdfDataset} object for accessing the data at the
      *         given location.
@@ -373,8 +535,8 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
      * @throws IOException
      *             if there was an error reading from the data source.
      */
-    private NetcdfDataset openAndAggregateDataset(String location) throws IOException,
-            EdalException {
+    private NetcdfDataset openAndAggregateDataset(String location, boolean rescan)
+            throws IOException, EdalException {
         NetcdfDataset nc;
         if (location.startsWith("dods://") || location.startsWith("http://")) {
             /*
@@ -382,6 +544,17 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
              */
             nc = CdmUtils.openDataset(location);
         } else {
+            /*
+             * If we have already generated the NcML for this location on a
+             * previous call, just use that.
+             */
+            String ncml;
+            synchronized (location2Ncml) {
+                ncml = location2Ncml.get(location);
+            }
+            if (ncml != null && !rescan) {
+                return NcMLReader.readNcML(new StringReader(ncml), null);
+            }
             /*
              * We have a local dataset
              */
@@ -397,127 +570,128 @@ public final class CdmGridDatasetFactory extends DatasetFactory {
                         + " doesn't refer to any existing files.");
             }
             if (files.size() == 1) {
-                location = files.get(0).getAbsolutePath();
-                nc = CdmUtils.openDataset(location);
+                synchronized (location2Ncml) {
+                    location2Ncml.remove(location);
+                }
+                nc = CdmUtils.openDataset(files.get(0).getAbsolutePath());
             } else {
                 /*
                  * We have multiple files in a glob expression. We write some
                  * NcML and use the NetCDF aggregation libs to parse this into
                  * an aggregated dataset.
-                 * 
-                 * If we have already generated the ncML on a previous call,
-                 * just use that.
                  */
-                if (ncmlString == null) {
-                    /*
-                     * Find the name of the time dimension
-                     */
-                    NetcdfDataset first = openAndAggregateDataset(files.get(0).getAbsolutePath());
-                    String timeDimName = null;
-                    for (Variable var : first.getVariables()) {
-                        if (var.isCoordinateVariable()) {
-                            for (Attribute attr : var.getAttributes()) {
-                                if (attr.getFullName().equalsIgnoreCase("units")
-                                        && attr.getStringValue().contains(" since ")) {
-                                    /*
-                                     * This is the time dimension. Since this is
-                                     * a co-ordinate variable, there is only 1
-                                     * dimension
-                                     */
-                                    Dimension timeDimension = var.getDimension(0);
-                                    timeDimName = timeDimension.getFullName();
-                                }
-                            }
-                        }
-                    }
-                    first.close();
-                    if (timeDimName == null) {
-                        throw new EdalException(
-                                "Cannot join multiple files without time dimensions");
-                    }
-                    /*
-                     * We can't assume that the glob expression will have
-                     * returned the files in time order.
-                     * 
-                     * We could assume that alphabetical == time ordered (and
-                     * for properly named files it will - but let's not rely on
-                     * our users having sensible naming conventions...
-                     * 
-                     * Sort the list using a comparator which opens the file and
-                     * gets the first value of the time dimension
-                     */
-                    final String aggDimName = timeDimName;
-                    Collections.sort(files, new Comparator<File>() {
-                        @Override
-                        public int compare(File ncFile1, File ncFile2) {
-                            NetcdfFile nc1 = null;
-                            NetcdfFile nc2 = null;
-                            try {
-                                nc1 = NetcdfFile.open(ncFile1.getAbsolutePath());
-                                nc2 = NetcdfFile.open(ncFile2.getAbsolutePath());
-                                Variable timeVar1 = nc1.findVariable(aggDimName);
-                                Variable timeVar2 = nc2.findVariable(aggDimName);
-                                long time1 = timeVar1.read().getLong(0);
-                                long time2 = timeVar2.read().getLong(0);
-                                return Long.compare(time1, time2);
-                            } catch (Exception e) {
-                                /*
-                                 * There was a problem reading the data. Sort
-                                 * alphanumerically by filename and hope for the
-                                 * best...
-                                 * 
-                                 * This catches all exceptions because however
-                                 * it fails this is still our best option.
-                                 * 
-                                 * If the error is a genuine problem, it'll show
-                                 * up as soon as we try and aggregate.
-                                 */
-                                return ncFile1.getAbsolutePath().compareTo(
-                                        ncFile2.getAbsolutePath());
-                            } finally {
-                                if (nc1 != null) {
-                                    try {
-                                        nc1.close();
-                                    } catch (IOException e) {
-                                        log.error("Problem closing netcdf file", e);
-                                    }
-                                }
-                                if (nc2 != null) {
-                                    try {
-                                        nc2.close();
-                                    } catch (IOException e) {
-                                        log.error("Problem closing netcdf file", e);
-                                    }
-                                }
-                            }
-                        }
-                    });
-
-                    /*
-                     * Now create the NcML string and use it to create an
-                     * aggregated dataset
-                     */
-                    StringBuffer ncmlStringBuffer = new StringBuffer();
-                    ncmlStringBuffer
-                            .append("<netcdf xmlns=\"http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2\">");
-                    ncmlStringBuffer.append("<aggregation dimName=\"" + timeDimName
-                            + "\" type=\"joinExisting\">");
-                    for (File file : files) {
-                        ncmlStringBuffer.append("<netcdf location=\"" + file.getAbsolutePath()
-                                + "\"/>");
-                    }
-                    ncmlStringBuffer.append("</aggregation>");
-                    ncmlStringBuffer.append("</netcdf>");
-
-                    ncmlString = ncmlStringBuffer.toString();
+                ncml = createAggregationNcml(location, files);
+                synchronized (location2Ncml) {
+                    location2Ncml.put(location, ncml);
                 }
-                nc = NcMLReader.readNcML(new StringReader(ncmlString), null);
+                nc = NcMLReader.readNcML(new StringReader(ncml), null);
             }
         }
 
         return nc;
     }
 
+    /**
+     * Creates NcML which joins the given files along their time dimension.
+     * 
+     * The files are sorted into time order using a {@link TimeIndexManifest},
+     * which is stored in the working directory (if one has been set). This
+     * means that only new or modified files need to be opened when a dataset
+     * is reloaded.
+     * 
+     * @param location
+     *            The location (glob expression) which the files were expanded
+     *            from
+     * @param files
+     *            The files to aggregate
+     * @return An NcML string representing the aggregation
+     */
+    private String createAggregationNcml(String location, List<File> files) throws IOException,
+            EdalException {
+        File manifestFile = TimeIndexManifest.getManifestFile(workingDir, location);
+
+        TimeIndexManifest manifest;
+        synchronized (location2Manifest) {
+            manifest = location2Manifest.get(location);
+        }
+        if (manifest == null) {
+            manifest = TimeIndexManifest.read(manifestFile, location);
+        }
+        if (manifest == null) {
+            manifest = new TimeIndexManifest(location, findTimeDimensionName(files.get(0)));
+        }
+
+        boolean changed;
+        synchronized (manifest) {
+            changed = manifest.update(files);
+            files = manifest.getSortedFiles();
+            if (changed) {
+                manifest.write(manifestFile);
+            }
+        }
+        synchronized (location2Manifest) {
+            location2Manifest.put(location, manifest);
+        }
+
+        /*
+         * Now create the NcML string. Supplying the number of time values in
+         * each file means that the NetCDF libraries don't need to open each
+         * file when creating the aggregation.
+         */
+        StringBuilder ncml = new StringBuilder();
+        ncml.append("<netcdf xmlns=\"http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2\">");
+        ncml.append("<aggregation dimName=\"" + manifest.getTimeDimName()
+                + "\" type=\"joinExisting\">");
+        for (File file : files) {
+            ncml.append("<netcdf location=\"" + file.getAbsolutePath() + "\"");
+            int numTimes = manifest.getNumTimeValues(file);
+            if (numTimes > 0) {
+                ncml.append(" ncoords=\"" + numTimes + "\"");
+            }
+            ncml.append("/>");
+        }
+        ncml.append("</aggregation>");
+        ncml.append("</netcdf>");
+        return ncml.toString();
+    }
+
+    /**
+     * Finds the name of the time dimension in a file
+     * 
+     * @param file
+     *            The file to examine
+     * @return The name of the time dimension
+     * @throws EdalException
+     *             If no time dimension can be found
+     */
+    private static String findTimeDimensionName(File file) throws IOException, EdalException {
+        NetcdfDataset first = CdmUtils.openDataset(file.getAbsolutePath());
+        String timeDimName = null;
+        try {
+            for (Variable var : first.getVariables()) {
+                if (var.isCoordinateVariable()) {
+                    for (Attribute attr : var.getAttributes()) {
+                        if (attr.getFullName().equalsIgnoreCase("units")
+                                && attr.getStringValue().contains(" since ")) {
+                            /*
+                             * This is the time dimension. Since this is a
+                             * co-ordinate variable, there is only 1 dimension
+                             */
+                            Dimension timeDimension = var.getDimension(0);
+                            timeDimName = timeDimension.getFullName();
+                        }
+                    }
+                }
+            }
+        } finally {
+            first.close();
+        }
+        if (timeDimName == null) {
+            throw new EdalException("Cannot join multiple files without time dimensions");
+        }
+        return timeDimName;
+    }
+
     /**
      * Returns the phenomenon that the given variable represents.
      * 
@@ -0,0 +1,410 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.GridDataSource;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * A bounded, thread-safe pool of open {@link GridDataSource}s, keyed by the
+ * location of the underlying data. This avoids re-opening (and for
+ * aggregations, re-aggregating) the underlying data for every request.
+ * 
+ * Each {@link GridDataSource} is used by a single thread at a time. Calling
+ * {@link GridDataSource#close()} on a borrowed data source returns it to the
+ * pool rather than closing it. Data sources which have been idle for longer
+ * than the idle timeout are closed, as are all idle data sources for a
+ * location when it is {@link #invalidate(String) invalidated}. If the maximum
+ * number of open data sources has been reached, requests for a new data source
+ * will first close the least-recently used idle data source, and otherwise
+ * wait until one is returned.
+ * 
+ * @author Guy Griffiths
+ */
+final class GridDataSourcePool {
+    private static final Logger log = LoggerFactory.getLogger(GridDataSourcePool.class);
+
+    /**
+     * Opens new {@link GridDataSource}s for the pool
+     */
+    interface GridDataSourceOpener {
+        public GridDataSource open() throws IOException;
+    }
+
+    private int maxOpen;
+    private long idleTimeoutMs;
+
+    /*
+     * Idle data sources for each location. The most recently used data source
+     * is at the head of each queue.
+     */
+    private final Map<String, Deque<PooledEntry>> idle = new HashMap<>();
+    /*
+     * The current generation of each location. This is incremented whenever a
+     * location is invalidated, so that data sources which are borrowed at the
+     * time get closed rather than returned to the pool.
+     */
+    private final Map<String, Integer> generations = new HashMap<>();
+    /*
+     * The total number of open data sources, both idle and borrowed
+     */
+    private int numOpen = 0;
+
+    private Timer evictionTimer = null;
+
+    /**
+     * @param maxOpen
+     *            The maximum number of data sources which may be open at once
+     * @param idleTimeoutMs
+     *            The time (in milliseconds) after which idle data sources are
+     *            closed
+     */
+    GridDataSourcePool(int maxOpen, long idleTimeoutMs) {
+        setMaxOpen(maxOpen);
+        setIdleTimeout(idleTimeoutMs);
+    }
+
+    synchronized void setMaxOpen(int maxOpen) {
+        if (maxOpen < 1) {
+            throw new IllegalArgumentException("Must allow at least one open data source");
+        }
+        this.maxOpen = maxOpen;
+        notifyAll();
+    }
+
+    synchronized void setIdleTimeout(long idleTimeoutMs) {
+        if (idleTimeoutMs < 0) {
+            throw new IllegalArgumentException("Idle timeout cannot be negative");
+        }
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Gets a {@link GridDataSource} for the given location, either from the
+     * pool or by opening a new one. The returned data source must be closed
+     * when it is no longer required, to return it to the pool.
+     * 
+     * @param location
+     *            The location of the data
+     * @param opener
+     *            The {@link GridDataSourceOpener} to use if a new
+     *            {@link GridDataSource} needs to be opened
+     * @return A {@link GridDataSource} for the exclusive use of the calling
+     *         thread until it is closed
+     * @throws IOException
+     *             If a new {@link GridDataSource} is needed and cannot be
+     *             opened
+     */
+    GridDataSource borrow(String location, GridDataSourceOpener opener) throws IOException {
+        return borrow(location, opener, true);
+    }
+
+    /**
+     * Gets a {@link GridDataSource} for the given location in the same way as
+     * {@link #borrow(String, GridDataSourceOpener)}, but without waiting if the
+     * maximum number of data sources are already in use. This should be used
+     * by threads which already hold a data source from this pool, since
+     * waiting could otherwise deadlock with other such threads.
+     * 
+     * @param location
+     *            The location of the data
+     * @param opener
+     *            The {@link GridDataSourceOpener} to use if a new
+     *            {@link GridDataSource} needs to be opened
+     * @return A {@link GridDataSource} for the exclusive use of the calling
+     *         thread until it is closed, or <code>null</code> if none is
+     *         available without waiting
+     * @throws IOException
+     *             If a new {@link GridDataSource} is needed and cannot be
+     *             opened
+     */
+    GridDataSource tryBorrow(String location, GridDataSourceOpener opener) throws IOException {
+        return borrow(location, opener, false);
+    }
+
+    private GridDataSource borrow(String location, GridDataSourceOpener opener, boolean wait)
+            throws IOException {
+        List<PooledEntry> toClose = new ArrayList<>();
+        int generation;
+        try {
+            synchronized (this) {
+                while (true) {
+                    evictExpired(toClose);
+                    Deque<PooledEntry> entries = idle.get(location);
+                    if (entries != null && !entries.isEmpty()) {
+                        return new PooledGridDataSource(entries.pollFirst());
+                    }
+                    if (numOpen >= maxOpen) {
+                        PooledEntry lru = removeLeastRecentlyUsed();
+                        if (lru != null) {
+                            toClose.add(lru);
+                        }
+                    }
+                    if (numOpen < maxOpen) {
+                        break;
+                    }
+                    if (!wait) {
+                        return null;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for a data source", e);
+                    }
+                }
+                numOpen++;
+                generation = getGeneration(location);
+            }
+        } finally {
+            closeAll(toClose);
+        }
+
+        /*
+         * Open outside of the lock, since this can be slow
+         */
+        boolean opened = false;
+        try {
+            GridDataSource dataSource = opener.open();
+            opened = true;
+            return new PooledGridDataSource(new PooledEntry(location, generation, dataSource));
+        } finally {
+            if (!opened) {
+                synchronized (this) {
+                    numOpen--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all idle data sources for the given location, and ensures that
+     * data sources currently in use for that location are closed rather than
+     * returned to the pool. This should be called whenever the data at a
+     * location has changed.
+     * 
+     * @param location
+     *            The location to invalidate
+     */
+    void invalidate(String location) {
+        List<PooledEntry> toClose = new ArrayList<>();
+        synchronized (this) {
+            generations.put(location, getGeneration(location) + 1);
+            Deque<PooledEntry> entries = idle.remove(location);
+            if (entries != null) {
+                toClose.addAll(entries);
+                numOpen -= entries.size();
+            }
+            notifyAll();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * @return The total number of open data sources, both idle and in use
+     */
+    synchronized int getNumOpen() {
+        return numOpen;
+    }
+
+    private void release(PooledEntry entry) {
+        List<PooledEntry> toClose = new ArrayList<>();
+        synchronized (this) {
+            if (entry.generation != getGeneration(entry.location)) {
+                toClose.add(entry);
+                numOpen--;
+            } else {
+                entry.lastUsed = System.currentTimeMillis();
+                Deque<PooledEntry> entries = idle.get(entry.location);
+                if (entries == null) {
+                    entries = new ArrayDeque<>();
+                    idle.put(entry.location, entries);
+                }
+                entries.addFirst(entry);
+                scheduleEviction();
+            }
+            evictExpired(toClose);
+            notifyAll();
+        }
+        closeAll(toClose);
+    }
+
+    private int getGeneration(String location) {
+        Integer generation = generations.get(location);
+        return generation == null ? 0 : generation;
+    }
+
+    /*
+     * Must be called whilst holding the lock. Adds expired entries to the
+     * supplied list and removes them from the pool.
+     */
+    private void evictExpired(List<PooledEntry> toClose) {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMs;
+        Iterator<Deque<PooledEntry>> it = idle.values().iterator();
+        while (it.hasNext()) {
+            Deque<PooledEntry> entries = it.next();
+            /*
+             * The oldest entries are at the tail
+             */
+            while (!entries.isEmpty() && entries.peekLast().lastUsed <= cutoff) {
+                toClose.add(entries.pollLast());
+                numOpen--;
+            }
+            if (entries.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * Must be called whilst holding the lock.
+     */
+    private PooledEntry removeLeastRecentlyUsed() {
+        Deque<PooledEntry> lruEntries = null;
+        for (Deque<PooledEntry> entries : idle.values()) {
+            if (!entries.isEmpty()
+                    && (lruEntries == null || entries.peekLast().lastUsed < lruEntries.peekLast().lastUsed)) {
+                lruEntries = entries;
+            }
+        }
+        if (lruEntries == null) {
+            return null;
+        }
+        PooledEntry lru = lruEntries.pollLast();
+        if (lruEntries.isEmpty()) {
+            idle.remove(lru.location);
+        }
+        numOpen--;
+        return lru;
+    }
+
+    /*
+     * Must be called whilst holding the lock. Ensures that idle data sources
+     * get closed even if no further requests are made.
+     */
+    private void scheduleEviction() {
+        if (evictionTimer == null) {
+            evictionTimer = new Timer("gridDataSourcePool-eviction", true);
+            long period = Math.max(1000L, idleTimeoutMs / 2);
+            evictionTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    List<PooledEntry> toClose = new ArrayList<>();
+                    synchronized (GridDataSourcePool.this) {
+                        evictExpired(toClose);
+                        GridDataSourcePool.this.notifyAll();
+                    }
+                    closeAll(toClose);
+                }
+            }, period, period);
+        }
+    }
+
+    private static void closeAll(List<PooledEntry> entries) {
+        for (PooledEntry entry : entries) {
+            try {
+                entry.dataSource.close();
+            } catch (IOException e) {
+                log.error("Problem closing data source for " + entry.location, e);
+            }
+        }
+    }
+
+    private static final class PooledEntry {
+        private final String location;
+        private final int generation;
+        private final GridDataSource dataSource;
+        private long lastUsed;
+
+        public PooledEntry(String location, int generation, GridDataSource dataSource) {
+            this.location = location;
+            this.generation = generation;
+            this.dataSource = dataSource;
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A {@link GridDataSource} which delegates to a pooled data source, and
+     * returns it to the pool when closed
+     */
+    private final class PooledGridDataSource implements GridDataSource {
+        private PooledEntry entry;
+
+        public PooledGridDataSource(PooledEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+                int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
+            return getEntry().dataSource.read(variableId, tmin, tmax, zmin, zmax, ymin, ymax,
+                    xmin, xmax);
+        }
+
+        @Override
+        public void readFloats(String variableId, int tmin, int tmax, int zmin, int zmax,
+                int ymin, int ymax, int xmin, int xmax, float[] values) throws IOException,
+                DataReadingException {
+            getEntry().dataSource.readFloats(variableId, tmin, tmax, zmin, zmax, ymin, ymax,
+                    xmin, xmax, values);
+        }
+
+        private PooledEntry getEntry() throws IOException {
+            if (entry == null) {
+                throw new IOException("Data source has already been closed");
+            }
+            return entry;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (entry != null) {
+                release(entry);
+                entry = null;
+            }
+        }
+    }
+}
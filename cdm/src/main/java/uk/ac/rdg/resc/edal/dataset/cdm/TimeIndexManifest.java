@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.Array;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+import uk.ac.rdg.resc.edal.util.HashUtils;
+
+/**
+ * A record of the time values contained in each of a set of files which are to
+ * be joined along their time dimension. For each file this stores its path,
+ * modification time, size, number of time values and the first and last time
+ * values.
+ * 
+ * This allows the files to be sorted into time order (and the aggregation to
+ * be built) without opening every file on each reload. Only files which are new
+ * or have changed since the manifest was last updated need to be opened.
+ * 
+ * @author Guy Griffiths
+ */
+final class TimeIndexManifest implements Serializable {
+    private static final long serialVersionUID = 2L;
+    private static final Logger log = LoggerFactory.getLogger(TimeIndexManifest.class);
+
+    private final String location;
+    private final String timeDimName;
+    private final Map<String, FileEntry> entries = new HashMap<>();
+
+    /**
+     * Creates a new, empty {@link TimeIndexManifest}
+     * 
+     * @param location
+     *            The location (glob expression) which the files in this
+     *            manifest are expanded from
+     * @param timeDimName
+     *            The name of the time dimension (and co-ordinate variable)
+     *            along which files are joined
+     */
+    TimeIndexManifest(String location, String timeDimName) {
+        this.location = location;
+        this.timeDimName = timeDimName;
+    }
+
+    /**
+     * Gets the file in which the manifest for a location is stored
+     * 
+     * @param workingDir
+     *            The directory to store manifests in. May be <code>null</code>
+     * @param location
+     *            The location (glob expression) of the aggregation
+     * @return The manifest file, or <code>null</code> if there is no working
+     *         directory
+     */
+    static File getManifestFile(File workingDir, String location) {
+        if (workingDir == null) {
+            return null;
+        }
+        return new File(workingDir, "aggregation-" + HashUtils.sha1Hex(location) + ".manifest");
+    }
+
+    /**
+     * @return The location (glob expression) which this manifest describes
+     */
+    String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return The name of the time dimension which this manifest indexes
+     */
+    String getTimeDimName() {
+        return timeDimName;
+    }
+
+    /**
+     * Updates this manifest so that it describes exactly the supplied files.
+     * Files which are unchanged since the last update are not opened.
+     * 
+     * @param files
+     *            The files which make up the aggregation
+     * @return Whether anything in the manifest changed
+     */
+    boolean update(List<File> files) {
+        boolean changed = false;
+        Map<String, FileEntry> oldEntries = new HashMap<>(entries);
+        entries.clear();
+        for (File file : files) {
+            String path = file.getAbsolutePath();
+            FileEntry entry = oldEntries.get(path);
+            if (entry == null || entry.lastModified != file.lastModified()
+                    || entry.size != file.length()) {
+                entry = readEntry(file);
+                changed = true;
+            }
+            entries.put(path, entry);
+        }
+        return changed || oldEntries.size() != entries.size();
+    }
+
+    /**
+     * @return The files in this manifest, sorted by their first time value.
+     *         If the times of any files could not be read, the files are
+     *         instead sorted by path.
+     */
+    List<File> getSortedFiles() {
+        List<String> paths = new ArrayList<>(entries.keySet());
+        boolean allTimesRead = true;
+        for (FileEntry entry : entries.values()) {
+            if (Double.isNaN(entry.firstTime)) {
+                allTimesRead = false;
+                break;
+            }
+        }
+        if (allTimesRead) {
+            Collections.sort(paths, new Comparator<String>() {
+                @Override
+                public int compare(String path1, String path2) {
+                    int timeCompare = Double.compare(entries.get(path1).firstTime,
+                            entries.get(path2).firstTime);
+                    return timeCompare != 0 ? timeCompare : path1.compareTo(path2);
+                }
+            });
+        } else {
+            /*
+             * There was a problem reading the data. Sort alphanumerically by
+             * filename and hope for the best...
+             * 
+             * If the error is a genuine problem, it'll show up as soon as we
+             * try and aggregate.
+             */
+            Collections.sort(paths);
+        }
+        List<File> files = new ArrayList<>();
+        for (String path : paths) {
+            files.add(new File(path));
+        }
+        return files;
+    }
+
+    /**
+     * @param file
+     *            A file in this manifest
+     * @return The number of time values in the file, or -1 if this is not
+     *         known
+     */
+    int getNumTimeValues(File file) {
+        FileEntry entry = entries.get(file.getAbsolutePath());
+        return entry == null ? -1 : entry.numTimes;
+    }
+
+    private FileEntry readEntry(File file) {
+        FileEntry entry = new FileEntry(file.lastModified(), file.length());
+        NetcdfFile nc = null;
+        try {
+            nc = NetcdfFile.open(file.getAbsolutePath());
+            Variable timeVar = nc.findVariable(timeDimName);
+            Array times = timeVar.read();
+            entry.numTimes = (int) times.getSize();
+            if (entry.numTimes > 0) {
+                entry.firstTime = times.getDouble(0);
+                entry.lastTime = times.getDouble(entry.numTimes - 1);
+            }
+        } catch (Exception e) {
+            /*
+             * This catches all exceptions because however it fails we can
+             * still fall back to sorting by filename
+             */
+            log.warn("Problem reading time values from " + file.getAbsolutePath(), e);
+        } finally {
+            if (nc != null) {
+                try {
+                    nc.close();
+                } catch (IOException e) {
+                    log.error("Problem closing netcdf file", e);
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Reads a {@link TimeIndexManifest} from disk
+     * 
+     * @param manifestFile
+     *            The file to read
+     * @param location
+     *            The location (glob expression) which the manifest must
+     *            describe
+     * @return The stored {@link TimeIndexManifest}, or <code>null</code> if it
+     *         does not exist, cannot be read, or describes a different
+     *         location
+     */
+    static TimeIndexManifest read(File manifestFile, String location) {
+        if (manifestFile == null || !manifestFile.exists()) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(manifestFile))) {
+            TimeIndexManifest manifest = (TimeIndexManifest) in.readObject();
+            if (!location.equals(manifest.location)) {
+                log.warn("Time index manifest " + manifestFile.getAbsolutePath()
+                        + " is for a different location (" + manifest.location
+                        + "). Ignoring it.");
+                return null;
+            }
+            return manifest;
+        } catch (ClassNotFoundException | IOException | ClassCastException e) {
+            /*
+             * Log this error, but otherwise ignore it - we will just recreate
+             * the manifest, so it's not a big problem.
+             */
+            log.warn("Problem reading time index manifest", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes this {@link TimeIndexManifest} to disk. Failures are logged but
+     * otherwise ignored, since the manifest can always be regenerated.
+     * 
+     * @param manifestFile
+     *            The file to write to
+     */
+    void write(File manifestFile) {
+        if (manifestFile == null) {
+            return;
+        }
+        /*
+         * Write to a temporary file first so that a partially-written manifest
+         * never replaces a good one
+         */
+        File tempFile = new File(manifestFile.getAbsolutePath() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tempFile))) {
+            out.writeObject(this);
+        } catch (IOException e) {
+            log.warn("Problem writing time index manifest", e);
+            tempFile.delete();
+            return;
+        }
+        manifestFile.delete();
+        if (!tempFile.renameTo(manifestFile)) {
+            log.warn("Could not move time index manifest to " + manifestFile.getAbsolutePath());
+        }
+    }
+
+    private static final class FileEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final long lastModified;
+        private final long size;
+        private int numTimes = -1;
+        private double firstTime = Double.NaN;
+        private double lastTime = Double.NaN;
+
+        public FileEntry(long lastModified, long size) {
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+}
@@ -252,6 +252,36 @@ public class CdmTransformedGrid extends AbstractTransformedGrid {
                 yAxis.findIndexOf(transformed.y));
     }
 
+    @Override
+    public void findIndicesOf(double[] xs, double[] ys, CoordinateReferenceSystem crs,
+            int[] outI, int[] outJ) {
+        /*
+         * Ensure positions are in CRS84, so that we can use our cached
+         * projection to transform them
+         */
+        double[][] lonLats = GISUtils.transformPositions(xs, ys, crs,
+                getCoordinateReferenceSystem());
+        /*
+         * Now transform all positions from CRS84 to the local CRS in one call
+         */
+        double[][] projected = proj.latLonToProj(new double[][] { lonLats[1], lonLats[0] },
+                new double[2][xs.length], 0, 1);
+        /*
+         * and find the indices along both axes
+         */
+        for (int p = 0; p < xs.length; p++) {
+            int x = xAxis.findIndexOf(projected[0][p]);
+            int y = yAxis.findIndexOf(projected[1][p]);
+            if (x >= 0 && y >= 0) {
+                outI[p] = x;
+                outJ[p] = y;
+            } else {
+                outI[p] = -1;
+                outJ[p] = -1;
+            }
+        }
+    }
+
     @Override
     public double transformNativeHeadingToWgs84(double xComp, double yComp, double lon, double lat) {
         double dxy = 1e-8;
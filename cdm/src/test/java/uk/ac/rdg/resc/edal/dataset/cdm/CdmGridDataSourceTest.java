@@ -68,4 +68,35 @@ public class CdmGridDataSourceTest {
         datasource.close();
     }
 
+    @Test
+    public void readFloatsTest() throws IOException, DataReadingException {
+        int tmin = 2;
+        int tmax = 4;
+        int zmin = 1;
+        int zmax = 3;
+        int ymin = 5;
+        int ymax = 10;
+        int xmin = 3;
+        int xmax = 20;
+
+        float[] values = new float[(tmax - tmin + 1) * (zmax - zmin + 1) * (ymax - ymin + 1)
+                * (xmax - xmin + 1)];
+        for (String varId : new String[] { "vLon", "vLat", "vDepth", "vTime" }) {
+            Array4D<Number> expected = datasource.read(varId, tmin, tmax, zmin, zmax, ymin, ymax,
+                    xmin, xmax);
+            datasource.readFloats(varId, tmin, tmax, zmin, zmax, ymin, ymax, xmin, xmax, values);
+            int index = 0;
+            for (int i = 0; i <= tmax - tmin; i++) {
+                for (int j = 0; j <= zmax - zmin; j++) {
+                    for (int k = 0; k <= ymax - ymin; k++) {
+                        for (int m = 0; m <= xmax - xmin; m++) {
+                            assertEquals(expected.get(i, j, k, m).floatValue(), values[index++],
+                                    delta);
+                        }
+                    }
+                }
+            }
+        }
+        datasource.close();
+    }
 }
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.AbstractGridDataSource;
+import uk.ac.rdg.resc.edal.dataset.GridDataSource;
+import uk.ac.rdg.resc.edal.dataset.cdm.GridDataSourcePool.GridDataSourceOpener;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+public class GridDataSourcePoolTest {
+    private GridDataSourcePool pool;
+    private CountingOpener opener;
+
+    @Before
+    public void setUp() {
+        pool = new GridDataSourcePool(2, 60 * 1000L);
+        opener = new CountingOpener();
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        GridDataSource dataSource = pool.borrow("a", opener);
+        dataSource.close();
+        dataSource = pool.borrow("a", opener);
+        dataSource.close();
+        assertEquals(1, opener.opened);
+        assertEquals(0, opener.closed);
+        assertEquals(1, pool.getNumOpen());
+    }
+
+    @Test
+    public void testConcurrentBorrowsOpenSeparateSources() throws IOException {
+        GridDataSource dataSource1 = pool.borrow("a", opener);
+        GridDataSource dataSource2 = pool.borrow("a", opener);
+        assertEquals(2, opener.opened);
+        dataSource1.close();
+        dataSource2.close();
+        assertEquals(2, pool.getNumOpen());
+    }
+
+    @Test
+    public void testMaxOpenEvictsLeastRecentlyUsed() throws IOException {
+        pool.borrow("a", opener).close();
+        pool.borrow("b", opener).close();
+        pool.borrow("c", opener).close();
+        assertEquals(3, opener.opened);
+        assertEquals(1, opener.closed);
+        assertEquals(2, pool.getNumOpen());
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        pool.borrow("a", opener).close();
+        GridDataSource inUse = pool.borrow("a", opener);
+        pool.borrow("a", opener).close();
+        pool.invalidate("a");
+        /* The idle data source should be closed immediately */
+        assertEquals(1, opener.closed);
+        /* The data source in use should be closed once returned */
+        inUse.close();
+        assertEquals(2, opener.closed);
+        assertEquals(0, pool.getNumOpen());
+
+        pool.borrow("a", opener).close();
+        assertEquals(3, opener.opened);
+    }
+
+    @Test
+    public void testIdleEviction() throws IOException {
+        pool.setIdleTimeout(0L);
+        pool.borrow("a", opener).close();
+        pool.borrow("b", opener).close();
+        assertEquals(2, opener.opened);
+        assertTrue(opener.closed >= 1);
+    }
+
+    @Test
+    public void testTryBorrowDoesNotWait() throws IOException {
+        GridDataSource dataSource1 = pool.borrow("a", opener);
+        GridDataSource dataSource2 = pool.tryBorrow("a", opener);
+        assertNotNull(dataSource2);
+        /*
+         * Both data sources are in use, so there is nothing to evict
+         */
+        assertNull(pool.tryBorrow("a", opener));
+        assertEquals(2, opener.opened);
+
+        dataSource2.close();
+        dataSource2 = pool.tryBorrow("a", opener);
+        assertNotNull(dataSource2);
+        assertEquals(2, opener.opened);
+        dataSource1.close();
+        dataSource2.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadAfterClose() throws Exception {
+        GridDataSource dataSource = pool.borrow("a", opener);
+        dataSource.close();
+        dataSource.read("var", 0, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    private static class CountingOpener implements GridDataSourceOpener {
+        private int opened = 0;
+        private int closed = 0;
+
+        @Override
+        public GridDataSource open() throws IOException {
+            opened++;
+            return new AbstractGridDataSource() {
+                @Override
+                public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin,
+                        int zmax, int ymin, int ymax, int xmin, int xmax) {
+                    return null;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    closed++;
+                }
+            };
+        }
+    }
+}
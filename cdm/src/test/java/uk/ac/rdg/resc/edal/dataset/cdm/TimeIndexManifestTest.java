@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset.cdm;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+
+public class TimeIndexManifestTest {
+    private static final String LOCATION = "/data/test/*.nc";
+
+    private File dir;
+    private File file1;
+    private File file2;
+    private File file3;
+
+    @Before
+    public void setUp() throws IOException, InvalidRangeException {
+        dir = File.createTempFile("manifest", "");
+        dir.delete();
+        dir.mkdir();
+        /*
+         * Named so that alphabetical order is not time order
+         */
+        file1 = writeFile("a.nc", 20, 21, 22);
+        file2 = writeFile("b.nc", 0, 1);
+        file3 = writeFile("c.nc", 10);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testSortedByTime() {
+        TimeIndexManifest manifest = new TimeIndexManifest(LOCATION, "time");
+        assertTrue(manifest.update(Arrays.asList(file1, file2, file3)));
+        assertEquals(Arrays.asList(file2, file3, file1), absolute(manifest.getSortedFiles()));
+        assertEquals(3, manifest.getNumTimeValues(file1));
+        assertEquals(2, manifest.getNumTimeValues(file2));
+        assertEquals(1, manifest.getNumTimeValues(file3));
+    }
+
+    @Test
+    public void testUpdate() throws IOException, InvalidRangeException {
+        TimeIndexManifest manifest = new TimeIndexManifest(LOCATION, "time");
+        manifest.update(Arrays.asList(file1, file2, file3));
+        assertFalse(manifest.update(Arrays.asList(file1, file2, file3)));
+
+        assertTrue(manifest.update(Arrays.asList(file1, file3)));
+        assertEquals(Arrays.asList(file3, file1), absolute(manifest.getSortedFiles()));
+
+        file3.delete();
+        file3 = writeFile("c.nc", 30, 31);
+        file3.setLastModified(file3.lastModified() + 10000L);
+        assertTrue(manifest.update(Arrays.asList(file1, file3)));
+        assertEquals(Arrays.asList(file1, file3), absolute(manifest.getSortedFiles()));
+        assertEquals(2, manifest.getNumTimeValues(file3));
+    }
+
+    @Test
+    public void testPersistence() {
+        File manifestFile = TimeIndexManifest.getManifestFile(dir, LOCATION);
+        TimeIndexManifest manifest = new TimeIndexManifest(LOCATION, "time");
+        manifest.update(Arrays.asList(file1, file2, file3));
+        manifest.write(manifestFile);
+
+        TimeIndexManifest readManifest = TimeIndexManifest.read(manifestFile, LOCATION);
+        assertNotNull(readManifest);
+        assertEquals("time", readManifest.getTimeDimName());
+        assertFalse(readManifest.update(Arrays.asList(file1, file2, file3)));
+        assertEquals(Arrays.asList(file2, file3, file1), absolute(readManifest.getSortedFiles()));
+
+        assertNull(TimeIndexManifest.read(new File(dir, "nonexistent.manifest"), LOCATION));
+    }
+
+    @Test
+    public void testDifferentLocationIgnored() {
+        String otherLocation = "/data/other/*.nc";
+        File manifestFile = TimeIndexManifest.getManifestFile(dir, LOCATION);
+        assertFalse(manifestFile.equals(TimeIndexManifest.getManifestFile(dir, otherLocation)));
+
+        TimeIndexManifest manifest = new TimeIndexManifest(LOCATION, "time");
+        manifest.update(Arrays.asList(file1, file2, file3));
+        manifest.write(manifestFile);
+
+        /*
+         * Simulate a name collision: a manifest for another location must
+         * not be trusted
+         */
+        assertNull(TimeIndexManifest.read(manifestFile, otherLocation));
+        assertEquals(LOCATION, TimeIndexManifest.read(manifestFile, LOCATION).getLocation());
+    }
+
+    private List<File> absolute(List<File> files) {
+        for (int i = 0; i < files.size(); i++) {
+            files.set(i, files.get(i).getAbsoluteFile());
+        }
+        return files;
+    }
+
+    private File writeFile(String name, double... times) throws IOException,
+            InvalidRangeException {
+        File file = new File(dir, name).getAbsoluteFile();
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3,
+                file.getAbsolutePath());
+        writer.addDimension(null, "time", times.length);
+        Variable timeVar = writer.addVariable(null, "time", DataType.DOUBLE, "time");
+        timeVar.addAttribute(new Attribute("units", "days since 2000-01-01"));
+        writer.create();
+        writer.write(timeVar, Array.factory(times));
+        writer.close();
+        return file;
+    }
+}
@@ -78,6 +78,54 @@ public abstract class AbstractContinuousDomainDataset extends AbstractDataset {
     @Override
     public List<? extends DiscreteFeature<?, ?>> extractMapFeatures(Set<String> varIds,
             PlottingDomainParams params) throws DataReadingException {
+        List<DiscreteFeature<?, ?>> features = new ArrayList<>();
+        Collection<String> featureIds = findMapFeatureIds(varIds, params, -1);
+        features.addAll(getFeatureReader().readFeatures(featureIds, varIds));
+        return features;
+    }
+
+    /**
+     * Extracts the map features which are nearest to the target position of
+     * the given {@link PlottingDomainParams}. This returns the same features as
+     * {@link #extractMapFeatures(Set, PlottingDomainParams)} would if all but
+     * the nearest were discarded, but the nearest features are found using
+     * the spatial index and are the only ones read.
+     * 
+     * @param varIds
+     *            The IDs of the variables which the features must contain
+     * @param params
+     *            The {@link PlottingDomainParams} defining the map. If no
+     *            target position is set, the first features found are
+     *            returned.
+     * @param maxFeatures
+     *            The maximum number of features to return
+     * @return The nearest map features
+     * @throws DataReadingException
+     *             If there is a problem reading the features
+     */
+    public List<? extends DiscreteFeature<?, ?>> extractNearestMapFeatures(Set<String> varIds,
+            PlottingDomainParams params, int maxFeatures) throws DataReadingException {
+        List<DiscreteFeature<?, ?>> features = new ArrayList<>();
+        Collection<String> featureIds = findMapFeatureIds(varIds, params, maxFeatures);
+        features.addAll(getFeatureReader().readFeatures(featureIds, varIds));
+        return features;
+    }
+
+    /**
+     * Finds the IDs of features which should appear on a map
+     * 
+     * @param varIds
+     *            The IDs of the variables which the features must contain
+     * @param params
+     *            The {@link PlottingDomainParams} defining the map
+     * @param maxFeatures
+     *            If positive, only this many feature IDs are returned,
+     *            choosing those nearest to the target position (if one is set)
+     * @return The IDs of the features. When a maximum number of features is
+     *         given, these are ordered nearest first.
+     */
+    protected List<String> findMapFeatureIds(Set<String> varIds, PlottingDomainParams params,
+            int maxFeatures) {
         BoundingBox hExtent = params.getBbox();
         Extent<Double> zExtent = params.getZExtent();
         Extent<DateTime> tExtent = params.getTExtent();
@@ -99,11 +147,17 @@ public abstract class AbstractContinuousDomainDataset extends AbstractDataset {
          * boundaries.
          */
         BoundingBox largeBoundingBox = GISUtils.getLargeBoundingBox(hExtent, 5);
-        List<DiscreteFeature<?, ?>> features = new ArrayList<>();
-        Collection<String> featureIds = featureIndexer.findFeatureIds(largeBoundingBox, zExtent,
-                tExtent, varIds);
-        features.addAll(getFeatureReader().readFeatures(featureIds, varIds));
-        return features;
+        HorizontalPosition pos = params.getTargetHorizontalPosition();
+        if (maxFeatures > 0 && pos != null) {
+            return featureIndexer.findNearestFeatureIds(pos, largeBoundingBox, zExtent, tExtent,
+                    varIds, maxFeatures);
+        }
+        List<String> featureIds = new ArrayList<>(featureIndexer.findFeatureIds(largeBoundingBox,
+                zExtent, tExtent, varIds));
+        if (maxFeatures > 0 && featureIds.size() > maxFeatures) {
+            return featureIds.subList(0, maxFeatures);
+        }
+        return featureIds;
     }
 
     @SuppressWarnings("unchecked")
@@ -40,6 +40,12 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.joda.time.Chronology;
 import org.joda.time.DateTime;
@@ -78,6 +84,10 @@ import uk.ac.rdg.resc.edal.grid.VerticalAxisImpl;
 import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Attribution;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Scope;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Stage;
 import uk.ac.rdg.resc.edal.position.GeoPosition;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.position.VerticalCrs;
@@ -86,12 +96,13 @@ import uk.ac.rdg.resc.edal.util.Array;
 import uk.ac.rdg.resc.edal.util.Array1D;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.DaemonThreadFactory;
 import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.FloatArray2D;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
 import uk.ac.rdg.resc.edal.util.ValuesArray1D;
-import uk.ac.rdg.resc.edal.util.ValuesArray2D;
 
 /**
  * A partial implementation of a {@link Dataset} based on a 4D grid, using a
@@ -105,6 +116,24 @@ public abstract class AbstractGridDataset extends AbstractDataset {
     private static final String NO_Z_AXIS_CODE = "NO_Z_AXIS";
     private static final String NO_T_AXIS_CODE = "NO_T_AXIS";
 
+    /*
+     * Used to generate a unique identifier for each instance, so that cached
+     * source data is never shared between datasets (or different versions of
+     * the same dataset)
+     */
+    private static final AtomicLong nextSourceId = new AtomicLong(0L);
+    private final long sourceId = nextSourceId.getAndIncrement();
+
+    /*
+     * Used to read the data for different variables in parallel. These reads
+     * are I/O-bound, so we can use rather more threads than we have
+     * processors, but the number is bounded so that many simultaneous requests
+     * cannot overwhelm the underlying storage.
+     */
+    private static final ExecutorService READ_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(4, Runtime.getRuntime().availableProcessors()), new DaemonThreadFactory(
+                    "grid-read-"));
+
     public AbstractGridDataset(String id, Collection<GridVariableMetadata> vars) {
         super(id, vars);
     }
@@ -339,9 +368,9 @@ public abstract class AbstractGridDataset extends AbstractDataset {
             StringBuilder id = new StringBuilder("uk.ac.rdg.resc.edal.feature.");
             id.append(System.currentTimeMillis());
             id.append(":");
-            StringBuilder name = new StringBuilder("Map of ");
             StringBuilder description = new StringBuilder("Map feature from variables:\n");
 
+            List<String> scalarVarIds = new ArrayList<String>();
             for (int i = 0; i < variableIds.size(); i++) {
                 String varId = variableIds.get(i);
                 if (!getVariableMetadata(varId).isScalar()) {
@@ -359,15 +388,29 @@ public abstract class AbstractGridDataset extends AbstractDataset {
                 }
 
                 id.append(varId);
-                name.append(varId + ", ");
                 description.append(varId + "\n");
+                scalarVarIds.add(varId);
+            }
+
+            /*
+             * Find all of the non-derived variables which are needed to
+             * generate the requested variables, and read each of them exactly
+             * once. This means that (e.g.) the magnitude and direction of a
+             * vector field only read the components once between them.
+             */
+            Set<String> visited = new HashSet<String>();
+            List<String> sourceVarIds = new ArrayList<String>();
+            for (String varId : scalarVarIds) {
+                findSourceVariables(varId, visited, sourceVarIds);
+            }
+            Map<String, Array2D<Number>> readData = readSourceData(sourceVarIds, targetGrid,
+                    zPos, time, dataSource);
 
+            for (String varId : scalarVarIds) {
                 /*
-                 * Do the actual data reading
+                 * Generate any derived variables from the data we have read
                  */
-                Array2D<Number> data = readHorizontalData(varId, targetGrid, zPos, time, dataSource);
-
-                values.put(varId, data);
+                values.put(varId, readHorizontalData(varId, targetGrid, readData));
                 /*
                  * We just use the existing parameter data, as it will be the
                  * same.
@@ -380,7 +423,6 @@ public abstract class AbstractGridDataset extends AbstractDataset {
              * grid and the VariableMetadata objects
              */
             MapDomain domain = new MapDomainImpl(targetGrid, zPos, vCrs, time);
-            name.delete(name.length() - 2, name.length() - 1);
             if (time != null) {
                 description.append("Time: " + time + "\n");
             }
@@ -389,8 +431,8 @@ public abstract class AbstractGridDataset extends AbstractDataset {
             }
 
             MapFeature mapFeature = new MapFeature(UUID.nameUUIDFromBytes(id.toString().getBytes())
-                    .toString(), name.toString(), description.toString(), domain, parameters,
-                    values);
+                    .toString(), getMapFeatureName(scalarVarIds), description.toString(), domain,
+                    parameters, values);
 
             return Collections.singletonList(mapFeature);
         } catch (IOException e) {
@@ -408,11 +450,39 @@ public abstract class AbstractGridDataset extends AbstractDataset {
     }
 
     /**
-     * Reads horizontal data for a variable, regardless of whether it is derived
-     * or not
+     * Finds the non-derived variables which are required to generate a
+     * variable
      * 
      * @param varId
-     *            The ID of the variable to read
+     *            The ID of the variable
+     * @param visited
+     *            The IDs of variables which have already been examined. These
+     *            will not be examined again
+     * @param sourceVarIds
+     *            A {@link List} to add the IDs of the required non-derived
+     *            variables to
+     */
+    private void findSourceVariables(String varId, Set<String> visited, List<String> sourceVarIds) {
+        if (!visited.add(varId)) {
+            return;
+        }
+        VariablePlugin plugin = isDerivedVariable(varId);
+        if (plugin == null) {
+            sourceVarIds.add(varId);
+        } else {
+            for (String pluginSourceVarId : plugin.usesVariables()) {
+                findSourceVariables(pluginSourceVarId, visited, sourceVarIds);
+            }
+        }
+    }
+
+    /**
+     * Reads horizontal data for a number of non-derived variables. The first
+     * variable is read on the calling thread, and any others are read in
+     * parallel using the I/O executor.
+     * 
+     * @param sourceVarIds
+     *            The IDs of the variables to read
      * @param targetGrid
      *            The {@link HorizontalGrid} on which to read data
      * @param zPos
@@ -420,51 +490,158 @@ public abstract class AbstractGridDataset extends AbstractDataset {
      * @param time
      *            The time to read at
      * @param dataSource
-     *            The {@link GridDataSource} to read data from
-     * @return
+     *            The {@link GridDataSource} to read the first variable from.
+     *            Other variables are read from their own {@link GridDataSource}
+     *            s, since these are not generally thread-safe, or from this
+     *            one if no other {@link GridDataSource} is available without
+     *            waiting.
+     * @return A {@link Map} of variable ID to the data read
      * @throws IOException
-     *             If there is a problem opening the {@link GridDataSource}
+     *             If there is a problem opening a {@link GridDataSource}
      * @throws DataReadingException
      *             If there is a problem reading the data
      * @throws VariableNotFoundException
      */
-    private Array2D<Number> readHorizontalData(String varId, final HorizontalGrid targetGrid,
-            Double zPos, DateTime time, GridDataSource dataSource) throws IOException,
-            DataReadingException, VariableNotFoundException {
-        VariablePlugin plugin = isDerivedVariable(varId);
-        if (plugin == null) {
-            return readUnderlyingHorizontalData(varId, targetGrid, zPos, time, dataSource);
-        } else {
-            @SuppressWarnings("unchecked")
-            Array2D<Number>[] pluginSourceData = new Array2D[plugin.usesVariables().length];
-            VariableMetadata[] pluginSourceMetadata = new VariableMetadata[plugin.usesVariables().length];
+    private Map<String, Array2D<Number>> readSourceData(List<String> sourceVarIds,
+            final HorizontalGrid targetGrid, final Double zPos, final DateTime time,
+            GridDataSource dataSource) throws IOException, DataReadingException,
+            VariableNotFoundException {
+        Map<String, Array2D<Number>> data = new HashMap<String, Array2D<Number>>();
+        if (sourceVarIds.isEmpty()) {
+            return data;
+        }
+        /*
+         * Reads are attributed to the same dataset and layer as the request
+         */
+        final Attribution attribution = RequestMetrics.getAttribution();
+        Map<String, Future<Array2D<Number>>> pendingReads = new HashMap<>();
+        try {
+            for (final String varId : sourceVarIds.subList(1, sourceVarIds.size())) {
+                pendingReads.put(varId, READ_EXECUTOR.submit(new Callable<Array2D<Number>>() {
+                    @Override
+                    public Array2D<Number> call() throws Exception {
+                        try (Scope scope = RequestMetrics.attribute(attribution)) {
+                            GridDataSource taskDataSource = tryOpenGridDataSource();
+                            if (taskDataSource == null) {
+                                /*
+                                 * No data source is available without waiting,
+                                 * so leave this variable for the calling
+                                 * thread
+                                 */
+                                return null;
+                            }
+                            try {
+                                return readUnderlyingHorizontalData(varId, targetGrid, zPos,
+                                        time, taskDataSource);
+                            } finally {
+                                taskDataSource.close();
+                            }
+                        }
+                    }
+                }));
+            }
+
+            String firstVarId = sourceVarIds.get(0);
+            data.put(firstVarId,
+                    readUnderlyingHorizontalData(firstVarId, targetGrid, zPos, time, dataSource));
+
+            for (Entry<String, Future<Array2D<Number>>> pendingRead : pendingReads.entrySet()) {
+                String varId = pendingRead.getKey();
+                Array2D<Number> result = getReadResult(pendingRead.getValue());
+                if (result == null) {
+                    result = readUnderlyingHorizontalData(varId, targetGrid, zPos, time,
+                            dataSource);
+                }
+                data.put(varId, result);
+            }
+        } finally {
             /*
-             * Loop through the variable IDs required by this plugin, getting
-             * data and metadata
-             * 
-             * If we have already read the data, add it to the array, otherwise
-             * read the data first.
+             * If anything went wrong, don't bother with any reads which
+             * haven't started yet. This has no effect on completed reads.
              */
-            for (int i = 0; i < pluginSourceData.length; i++) {
-                String pluginSourceVarId = plugin.usesVariables()[i];
-                pluginSourceData[i] = readHorizontalData(pluginSourceVarId, targetGrid, zPos, time,
-                        dataSource);
-                pluginSourceMetadata[i] = getVariableMetadata(pluginSourceVarId);
+            for (Future<Array2D<Number>> pendingRead : pendingReads.values()) {
+                pendingRead.cancel(false);
             }
+        }
+        return data;
+    }
 
-            return plugin.generateArray2D(varId,
-                    new Array2D<HorizontalPosition>(targetGrid.getYSize(), targetGrid.getXSize()) {
-                        @Override
-                        public HorizontalPosition get(int... coords) {
-                            return targetGrid.getDomainObjects().get(coords).getCentre();
-                        }
+    /**
+     * Waits for a read submitted to the I/O executor to complete, rethrowing
+     * any exceptions it caused
+     */
+    private static Array2D<Number> getReadResult(Future<Array2D<Number>> pendingRead)
+            throws IOException, DataReadingException, VariableNotFoundException {
+        try {
+            return pendingRead.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataReadingException("Interrupted whilst reading data", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof DataReadingException) {
+                throw (DataReadingException) cause;
+            } else if (cause instanceof VariableNotFoundException) {
+                throw (VariableNotFoundException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DataReadingException("Problem reading data", cause);
+        }
+    }
 
-                        @Override
-                        public void set(HorizontalPosition value, int... coords) {
-                            throw new UnsupportedOperationException("This array is immutable");
-                        }
-                    }, pluginSourceData);
+    /**
+     * Gets horizontal data for a variable, regardless of whether it is derived
+     * or not. Data for all of the non-derived variables it depends upon must
+     * already have been read.
+     * 
+     * @param varId
+     *            The ID of the variable to get data for
+     * @param targetGrid
+     *            The {@link HorizontalGrid} on which data was read
+     * @param readData
+     *            A {@link Map} of variable ID to the data which has already
+     *            been read or generated. Any derived variables generated by
+     *            this method are added to it, so that they are only generated
+     *            once.
+     * @return The data for the variable
+     */
+    private Array2D<Number> readHorizontalData(String varId, final HorizontalGrid targetGrid,
+            Map<String, Array2D<Number>> readData) {
+        Array2D<Number> data = readData.get(varId);
+        if (data != null) {
+            return data;
+        }
+        /*
+         * All non-derived variables have already been read, so this must be a
+         * derived one
+         */
+        VariablePlugin plugin = isDerivedVariable(varId);
+        @SuppressWarnings("unchecked")
+        Array2D<Number>[] pluginSourceData = new Array2D[plugin.usesVariables().length];
+        for (int i = 0; i < pluginSourceData.length; i++) {
+            pluginSourceData[i] = readHorizontalData(plugin.usesVariables()[i], targetGrid,
+                    readData);
         }
+
+        data = plugin.generateArray2D(varId,
+                new Array2D<HorizontalPosition>(targetGrid.getYSize(), targetGrid.getXSize()) {
+                    @Override
+                    public HorizontalPosition get(int... coords) {
+                        return targetGrid.getDomainObjects().get(coords).getCentre();
+                    }
+
+                    @Override
+                    public void set(HorizontalPosition value, int... coords) {
+                        throw new UnsupportedOperationException("This array is immutable");
+                    }
+                }, pluginSourceData);
+        readData.put(varId, data);
+        return data;
     }
 
     /**
@@ -520,11 +697,31 @@ public abstract class AbstractGridDataset extends AbstractDataset {
          */
         Domain2DMapper domainMapper = Domain2DMapper.forGrid(sourceGrid, targetGrid);
 
+        /*
+         * Count the data actually read from the source (i.e. not that served
+         * from the chunk cache)
+         */
+        if (RequestMetrics.isEnabled()) {
+            dataSource = new MeteredGridDataSource(dataSource);
+        }
+
+        /*
+         * If this read covers its source area densely enough, read through the
+         * chunk cache so that neighbouring and overlapping maps can reuse the
+         * data
+         */
+        if (SourceChunkCache.isEnabled() && SourceChunkCache.isWorthCaching(domainMapper)) {
+            dataSource = new ChunkCachingGridDataSource(dataSource, sourceId,
+                    sourceGrid.getXSize(), sourceGrid.getYSize());
+        }
+
         /*
          * Now use the appropriate DataReadingStrategy to read data
          */
+        long start = RequestMetrics.start();
         Array2D<Number> data = getDataReadingStrategy().readMapData(dataSource, varId, tIndex,
                 zIndex, domainMapper);
+        RequestMetrics.stop(Stage.READ, start);
         return data;
     }
 
@@ -629,6 +826,85 @@ public abstract class AbstractGridDataset extends AbstractDataset {
     @Override
     public List<? extends ProfileFeature> extractProfileFeatures(Set<String> varIds,
             PlottingDomainParams params) throws DataReadingException, VariableNotFoundException {
+        /*
+         * Find a bounding box to extract all profiles from
+         */
+        BoundingBox bbox = params.getBbox();
+        final HorizontalPosition pos = params.getTargetHorizontalPosition();
+        if (bbox == null) {
+            if (pos != null) {
+                bbox = new BoundingBoxImpl(pos.getX(), pos.getY(), pos.getX(), pos.getY(),
+                        pos.getCoordinateReferenceSystem());
+            } else {
+                bbox = null;
+            }
+        }
+
+        List<ProfileFeature> features = readProfileFeatures(varIds, params.getZExtent(), bbox,
+                null, params.getTargetT(), params.getTExtent());
+        if (pos != null) {
+            Collections.sort(features, new Comparator<ProfileFeature>() {
+                @Override
+                public int compare(ProfileFeature o1, ProfileFeature o2) {
+                    return Double.compare(GISUtils.getDistSquared(o1.getHorizontalPosition(), pos),
+                            GISUtils.getDistSquared(o2.getHorizontalPosition(), pos));
+                }
+            });
+        }
+        return features;
+    }
+
+    /**
+     * Extracts vertical profiles at a number of positions - for example along
+     * a transect, to plot a vertical section. This gives the same profiles as
+     * calling {@link #extractProfileFeatures(Set, PlottingDomainParams)} for
+     * each position in turn, but all of the profiles are read from a single
+     * {@link GridDataSource}, with nearby profiles read together as a few
+     * hyperslabs.
+     * 
+     * @param varIds
+     *            The IDs of the variables to extract
+     * @param positions
+     *            The {@link HorizontalPosition}s at which to extract profiles
+     * @param targetT
+     *            The time at which to extract profiles. If this is
+     *            <code>null</code>, profiles are extracted at all available
+     *            times.
+     * @return The extracted {@link ProfileFeature}s, in the same order as the
+     *         positions. Positions outside the domain have no profiles.
+     * @throws DataReadingException
+     *             If there is a problem reading the data
+     * @throws VariableNotFoundException
+     *             If any of the variables are not present in this dataset
+     */
+    public List<ProfileFeature> extractProfileFeatures(Set<String> varIds,
+            List<HorizontalPosition> positions, DateTime targetT) throws DataReadingException,
+            VariableNotFoundException {
+        List<ProfileFeature> features = readProfileFeatures(varIds, null, null, positions,
+                targetT, null);
+        Map<HorizontalPosition, List<ProfileFeature>> positionsToFeatures = new HashMap<>();
+        for (ProfileFeature feature : features) {
+            List<ProfileFeature> positionFeatures = positionsToFeatures.get(feature
+                    .getHorizontalPosition());
+            if (positionFeatures == null) {
+                positionFeatures = new ArrayList<>();
+                positionsToFeatures.put(feature.getHorizontalPosition(), positionFeatures);
+            }
+            positionFeatures.add(feature);
+        }
+        List<ProfileFeature> orderedFeatures = new ArrayList<>();
+        for (HorizontalPosition position : positions) {
+            List<ProfileFeature> positionFeatures = positionsToFeatures.get(position);
+            if (positionFeatures != null) {
+                orderedFeatures.addAll(positionFeatures);
+            }
+        }
+        return orderedFeatures;
+    }
+
+    private List<ProfileFeature> readProfileFeatures(Set<String> varIds, Extent<Double> zExtent,
+            BoundingBox bbox, List<HorizontalPosition> positions, DateTime targetT,
+            Extent<DateTime> tExtent) throws DataReadingException, VariableNotFoundException {
         List<ProfileFeature> features = new ArrayList<>();
         /*
          * If the user has passed in null for the variable IDs, they want all
@@ -669,7 +945,6 @@ public abstract class AbstractGridDataset extends AbstractDataset {
             return features;
         }
 
-        Extent<Double> zExtent = params.getZExtent();
         if (zExtent != null) {
             /*
              * The given z extent does not overlap with the z-extent for the
@@ -680,20 +955,6 @@ public abstract class AbstractGridDataset extends AbstractDataset {
             }
         }
 
-        /*
-         * Find a bounding box to extract all profiles from
-         */
-        BoundingBox bbox = params.getBbox();
-        final HorizontalPosition pos = params.getTargetHorizontalPosition();
-        if (bbox == null) {
-            if (pos != null) {
-                bbox = new BoundingBoxImpl(pos.getX(), pos.getY(), pos.getX(), pos.getY(),
-                        pos.getCoordinateReferenceSystem());
-            } else {
-                bbox = null;
-            }
-        }
-
         GridDataSource dataSource = null;
         try {
             /*
@@ -746,8 +1007,8 @@ public abstract class AbstractGridDataset extends AbstractDataset {
                  */
                 Map<ProfileLocation, Array1D<Number>> data;
                 try {
-                    data = readVerticalData(gridVariableMetadata, zAxis, bbox, params.getTargetT(),
-                            params.getTExtent(), dataSource);
+                    data = readVerticalData(gridVariableMetadata, zAxis, bbox, positions,
+                            targetT, tExtent, dataSource);
                 } catch (IOException e) {
                     throw new DataReadingException("Problem reading profile feature", e);
                 }
@@ -790,17 +1051,6 @@ public abstract class AbstractGridDataset extends AbstractDataset {
                         var2Values);
                 features.add(feature);
             }
-
-            if (pos != null) {
-                Collections.sort(features, new Comparator<ProfileFeature>() {
-                    @Override
-                    public int compare(ProfileFeature o1, ProfileFeature o2) {
-                        return Double.compare(
-                                GISUtils.getDistSquared(o1.getHorizontalPosition(), pos),
-                                GISUtils.getDistSquared(o2.getHorizontalPosition(), pos));
-                    }
-                });
-            }
         } catch (IOException e) {
             throw new DataReadingException("Problem reading profile feature", e);
         } finally {
@@ -914,6 +1164,9 @@ public abstract class AbstractGridDataset extends AbstractDataset {
      *            The desired vertical axis of the data
      * @param bbox
      *            The {@link BoundingBox} within which to read profiles
+     * @param positions
+     *            The positions at which to read profiles. If this is
+     *            non-<code>null</code> it is used instead of the bounding box
      * @param targetT
      *            The target time at which to read profiles
      * @param tExtent
@@ -927,8 +1180,8 @@ public abstract class AbstractGridDataset extends AbstractDataset {
      * @throws VariableNotFoundException
      */
     private Map<ProfileLocation, Array1D<Number>> readVerticalData(VariableMetadata metadata,
-            VerticalAxis zAxis, BoundingBox bbox, DateTime targetT, Extent<DateTime> tExtent,
-            GridDataSource dataSource) throws IOException, DataReadingException,
+            VerticalAxis zAxis, BoundingBox bbox, List<HorizontalPosition> positions,
+            DateTime targetT, Extent<DateTime> tExtent, GridDataSource dataSource) throws IOException, DataReadingException,
             VariableNotFoundException {
         VariablePlugin plugin = isDerivedVariable(metadata.getId());
         if (plugin == null) {
@@ -937,7 +1190,7 @@ public abstract class AbstractGridDataset extends AbstractDataset {
              * non-plugin-derived variables are gridded
              */
             return readUnderlyingVerticalData((GridVariableMetadata) metadata, zAxis, bbox,
-                    targetT, tExtent, dataSource);
+                    positions, targetT, tExtent, dataSource);
         } else {
             List<Map<ProfileLocation, Array1D<Number>>> pluginSourceData = new ArrayList<>();
             int nSourceVars = plugin.usesVariables().length;
@@ -953,8 +1206,8 @@ public abstract class AbstractGridDataset extends AbstractDataset {
                 String pluginSourceVarId = plugin.usesVariables()[i];
                 VariableMetadata variableMetadata = getVariableMetadata(pluginSourceVarId);
                 try {
-                    pluginSourceData.add(readVerticalData(variableMetadata, zAxis, bbox, targetT,
-                            tExtent, dataSource));
+                    pluginSourceData.add(readVerticalData(variableMetadata, zAxis, bbox,
+                            positions, targetT, tExtent, dataSource));
                 } catch (IOException e) {
                     log.error("Problem reading data", e);
                     throw new DataReadingException(
@@ -1015,6 +1268,9 @@ public abstract class AbstractGridDataset extends AbstractDataset {
      *            The desired vertical axis of the data
      * @param bbox
      *            The {@link BoundingBox} within which to read profiles
+     * @param positions
+     *            The positions at which to read profiles. If this is
+     *            non-<code>null</code> it is used instead of the bounding box
      * @param targetT
      *            The target time at which to read profiles
      * @param tExtent
@@ -1027,8 +1283,9 @@ public abstract class AbstractGridDataset extends AbstractDataset {
      *             {@link GridDataSource}
      */
     private Map<ProfileLocation, Array1D<Number>> readUnderlyingVerticalData(
-            GridVariableMetadata metadata, VerticalAxis zAxis, BoundingBox bbox, DateTime targetT,
-            Extent<DateTime> tExtent, GridDataSource dataSource) throws IOException,
+            GridVariableMetadata metadata, VerticalAxis zAxis, BoundingBox bbox,
+            List<HorizontalPosition> positions, DateTime targetT, Extent<DateTime> tExtent,
+            GridDataSource dataSource) throws IOException,
             DataReadingException {
         String varId = metadata.getId();
 
@@ -1043,25 +1300,9 @@ public abstract class AbstractGridDataset extends AbstractDataset {
          * Find all of the horizontal positions which should be included
          */
         List<HorizontalPosition> horizontalPositions = new ArrayList<HorizontalPosition>();
-        if (bbox == null) {
-            bbox = hDomain.getBoundingBox();
-        }
-        if (bbox.getLowerCorner().equals(bbox.getUpperCorner())) {
-            /*
-             * We have a single position
-             */
-            horizontalPositions.add(bbox.getLowerCorner());
-        } else {
-            /*
-             * We want all horizontal grid cells which fall within the bounding
-             * box
-             */
-            for (GridCell2D gridCell : hDomain.getDomainObjects()) {
-                if (bbox.contains(gridCell.getCentre())) {
-                    horizontalPositions.add(gridCell.getCentre());
-                }
-            }
-        }
+        int[][] gridIndices = findGridPoints(hDomain, bbox, positions, horizontalPositions);
+        int[] xIndices = gridIndices[0];
+        int[] yIndices = gridIndices[1];
 
         /*
          * Find all of the times which should be included
@@ -1087,75 +1328,138 @@ public abstract class AbstractGridDataset extends AbstractDataset {
         }
 
         /*
-         * Now read the data for each unique profile location.
+         * Find the index of each time. We only want times which exactly match.
          */
         Map<ProfileLocation, Array1D<Number>> ret = new HashMap<ProfileLocation, Array1D<Number>>();
-        for (HorizontalPosition hPos : horizontalPositions) {
-            for (DateTime time : times) {
-                ProfileLocation location = new ProfileLocation(hPos, time);
-
-                GridCoordinates2D hIndices = hDomain.findIndexOf(hPos);
+        int[] tIndices = new int[times.size()];
+        boolean anyTimes = false;
+        for (int i = 0; i < tIndices.length; i++) {
+            tIndices[i] = tAxis == null ? 0 : tAxis.getCoordinateValues().indexOf(times.get(i));
+            if (tIndices[i] >= 0) {
+                anyTimes = true;
+            }
+        }
+        if (!anyTimes || !containsGridPoint(xIndices, yIndices)) {
+            return ret;
+        }
 
-                int xIndex = hIndices.getX();
-                int yIndex = hIndices.getY();
+        /*
+         * Now read the z-limits
+         */
+        if (variableZAxis == null) {
+            throw new IllegalArgumentException("The variable " + varId
+                    + " has no vertical axis, so a vertical profile cannot be read.");
+        }
+        if (!variableZAxis.getVerticalCrs().equals(zAxis.getVerticalCrs())) {
+            throw new IllegalArgumentException("The vertical CRS of the variable " + varId
+                    + " must match that of the domain you are trying to read.");
+        }
+        int zSize = zAxis.size();
+        int[] zIndices = new int[zSize];
+        for (int i = 0; i < zSize; i++) {
+            Double zVal = zAxis.getCoordinateValue(i);
+            zIndices[i] = variableZAxis.findIndexOf(zVal);
+            if (zIndices[i] < 0) {
+                throw new IllegalArgumentException("The z-axis for the variable " + varId
+                        + " does not contain the position " + zVal + " which was requested.");
+            }
+        }
 
-                /*
-                 * We only want times which exactly match
-                 */
-                int tIndex = 0;
-                if (tAxis != null) {
-                    tIndex = tAxis.getCoordinateValues().indexOf(time);
-                }
-                if (tIndex < 0) {
+        /*
+         * Read the data for all profile locations at once, and move it to 1D
+         * Arrays
+         */
+        float[][] columns = GridColumnReader.readColumns(dataSource, varId, tIndices, zIndices,
+                xIndices, yIndices);
+        for (int p = 0; p < horizontalPositions.size(); p++) {
+            float[] column = columns[p];
+            if (column == null) {
+                continue;
+            }
+            for (int t = 0; t < tIndices.length; t++) {
+                if (tIndices[t] < 0) {
                     continue;
                 }
-
-                /*
-                 * Now read the z-limits
-                 */
-                if (variableZAxis == null) {
-                    throw new IllegalArgumentException("The variable " + varId
-                            + " has no vertical axis, so a vertical profile cannot be read.");
-                }
-                if (!variableZAxis.getVerticalCrs().equals(zAxis.getVerticalCrs())) {
-                    throw new IllegalArgumentException("The vertical CRS of the variable " + varId
-                            + " must match that of the domain you are trying to read.");
-                }
-                int zMin;
-                int zMax;
-                if (zAxis.isAscending()) {
-                    zMin = variableZAxis.findIndexOf(zAxis.getExtent().getLow());
-                    zMax = variableZAxis.findIndexOf(zAxis.getExtent().getHigh());
-                } else {
-                    zMin = variableZAxis.findIndexOf(zAxis.getExtent().getHigh());
-                    zMax = variableZAxis.findIndexOf(zAxis.getExtent().getLow());
-                }
-
-                /*
-                 * Read the data and move it to a 1D Array
-                 */
-                Array4D<Number> data4d = dataSource.read(varId, tIndex, tIndex, zMin, zMax, yIndex,
-                        yIndex, xIndex, xIndex);
-                int zSize = zAxis.size();
                 Array1D<Number> data = new ValuesArray1D(zSize);
-
                 for (int i = 0; i < zSize; i++) {
-                    Double zVal = zAxis.getCoordinateValue(i);
-                    int zIndex = variableZAxis.findIndexOf(zVal);
-                    if (zIndex < 0) {
-                        throw new IllegalArgumentException("The z-axis for the variable " + varId
-                                + " does not contain the position " + zVal
-                                + " which was requested.");
-                    }
-                    data.set(data4d.get(new int[] { 0, zIndex - zMin, 0, 0 }), new int[] { i });
+                    data.set(toNumber(column[t * zSize + i]), new int[] { i });
                 }
+                ret.put(new ProfileLocation(horizontalPositions.get(p), times.get(t)), data);
+            }
+        }
 
-                ret.put(location, data);
+        return ret;
+    }
 
+    /**
+     * Finds the grid points which should be included when extracting profiles
+     * or timeseries within a {@link BoundingBox}
+     * 
+     * @param hDomain
+     *            The {@link HorizontalGrid} of the variable being read
+     * @param bbox
+     *            The {@link BoundingBox} within which to find grid points. If
+     *            this is <code>null</code> the whole grid is used, and if its
+     *            corners are the same it represents a single position
+     * @param positions
+     *            The positions to find grid points for. If this is
+     *            non-<code>null</code> it is used instead of the bounding box
+     * @param horizontalPositions
+     *            A {@link List} to add the position of each grid point to
+     * @return An array containing the x-indices of the grid points followed by
+     *         the y-indices. Positions outside the grid have indices of -1.
+     */
+    private static int[][] findGridPoints(HorizontalGrid hDomain, BoundingBox bbox,
+            List<HorizontalPosition> positions, List<HorizontalPosition> horizontalPositions) {
+        if (positions != null) {
+            horizontalPositions.addAll(positions);
+            int[][] indices = new int[2][positions.size()];
+            GISUtils.findIndicesOf(hDomain, positions, indices[0], indices[1]);
+            return indices;
+        }
+        if (bbox == null) {
+            bbox = hDomain.getBoundingBox();
+        }
+        if (bbox.getLowerCorner().equals(bbox.getUpperCorner())) {
+            /*
+             * We have a single position
+             */
+            horizontalPositions.add(bbox.getLowerCorner());
+            int[][] indices = new int[2][1];
+            GISUtils.findIndicesOf(hDomain, horizontalPositions, indices[0], indices[1]);
+            return indices;
+        } else {
+            /*
+             * We want all horizontal grid cells which fall within the bounding
+             * box. We already know their indices.
+             */
+            List<GridCoordinates2D> coords = new ArrayList<GridCoordinates2D>();
+            for (GridCell2D gridCell : hDomain.getDomainObjects()) {
+                if (bbox.contains(gridCell.getCentre())) {
+                    horizontalPositions.add(gridCell.getCentre());
+                    coords.add(gridCell.getGridCoordinates());
+                }
+            }
+            int[][] indices = new int[2][coords.size()];
+            for (int p = 0; p < indices[0].length; p++) {
+                indices[0][p] = coords.get(p).getX();
+                indices[1][p] = coords.get(p).getY();
             }
+            return indices;
         }
+    }
 
-        return ret;
+    private static boolean containsGridPoint(int[] xIndices, int[] yIndices) {
+        for (int p = 0; p < xIndices.length; p++) {
+            if (xIndices[p] >= 0 && yIndices[p] >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Number toNumber(float value) {
+        return Float.isNaN(value) ? null : value;
     }
 
     private class PointSeriesLocation {
@@ -1658,25 +1962,9 @@ public abstract class AbstractGridDataset extends AbstractDataset {
          * Find all of the horizontal positions which should be included
          */
         List<HorizontalPosition> horizontalPositions = new ArrayList<HorizontalPosition>();
-        if (bbox == null) {
-            bbox = hDomain.getBoundingBox();
-        }
-        if (bbox.getLowerCorner().equals(bbox.getUpperCorner())) {
-            /*
-             * We have a single position
-             */
-            horizontalPositions.add(bbox.getLowerCorner());
-        } else {
-            /*
-             * We want all horizontal grid cells which fall within the bounding
-             * box
-             */
-            for (GridCell2D gridCell : hDomain.getDomainObjects()) {
-                if (bbox.contains(gridCell.getCentre())) {
-                    horizontalPositions.add(gridCell.getCentre());
-                }
-            }
-        }
+        int[][] gridIndices = findGridPoints(hDomain, bbox, null, horizontalPositions);
+        int[] xIndices = gridIndices[0];
+        int[] yIndices = gridIndices[1];
 
         /*
          * Find all of the elevations which should be included
@@ -1702,68 +1990,68 @@ public abstract class AbstractGridDataset extends AbstractDataset {
         }
 
         /*
-         * Now read the data for each unique profile location.
+         * Find the index of each elevation. We only want co-ordinate values
+         * which match exactly.
          */
         Map<PointSeriesLocation, Array1D<Number>> ret = new HashMap<PointSeriesLocation, Array1D<Number>>();
-        for (HorizontalPosition hPos : horizontalPositions) {
-            for (Double zVal : zVals) {
-                VerticalPosition zPos = null;
-                if (zVal != null) {
-                    zPos = new VerticalPosition(zVal, zAxis.getVerticalCrs());
-                }
-                PointSeriesLocation location = new PointSeriesLocation(hPos, zPos);
-
-                GridCoordinates2D hIndices = hDomain.findIndexOf(hPos);
+        int[] zIndices = new int[zVals.size()];
+        boolean anyElevations = false;
+        for (int i = 0; i < zIndices.length; i++) {
+            zIndices[i] = zAxis == null ? 0 : zAxis.getCoordinateValues().indexOf(zVals.get(i));
+            if (zIndices[i] >= 0) {
+                anyElevations = true;
+            }
+        }
+        if (!anyElevations || !containsGridPoint(xIndices, yIndices)) {
+            return ret;
+        }
 
-                int xIndex = hIndices.getX();
-                int yIndex = hIndices.getY();
+        /*
+         * Now read the t-limits
+         */
+        if (variableTAxis == null) {
+            throw new IllegalArgumentException("The variable " + varId
+                    + " has no time axis, so a timeseries cannot be read.");
+        }
+        if (!variableTAxis.getChronology().equals(tAxis.getChronology())) {
+            throw new IllegalArgumentException("The Chronology of the variable " + varId
+                    + " must match that of the domain you are trying to read.");
+        }
+        int tSize = tAxis.size();
+        int[] tIndices = new int[tSize];
+        for (int i = 0; i < tSize; i++) {
+            DateTime time = tAxis.getCoordinateValue(i);
+            tIndices[i] = variableTAxis.findIndexOf(time);
+            if (tIndices[i] < 0) {
+                throw new IllegalArgumentException("The time-axis for the variable " + varId
+                        + " does not contain the time " + time + " which was requested.");
+            }
+        }
 
-                /*
-                 * We only want co-ordinate values which match exactly
-                 */
-                int zIndex = 0;
-                if (zAxis != null) {
-                    zIndex = zAxis.getCoordinateValues().indexOf(zVal);
-                }
-                if (zIndex < 0) {
+        /*
+         * Read the data for all locations at once, and move it to 1D Arrays
+         */
+        float[][] columns = GridColumnReader.readColumns(dataSource, varId, tIndices, zIndices,
+                xIndices, yIndices);
+        int nZ = zIndices.length;
+        for (int p = 0; p < horizontalPositions.size(); p++) {
+            float[] column = columns[p];
+            if (column == null) {
+                continue;
+            }
+            for (int z = 0; z < zIndices.length; z++) {
+                if (zIndices[z] < 0) {
                     continue;
                 }
-
-                /*
-                 * Now read the t-limits
-                 */
-                if (variableTAxis == null) {
-                    throw new IllegalArgumentException("The variable " + varId
-                            + " has no time axis, so a timeseries cannot be read.");
-                }
-                if (!variableTAxis.getChronology().equals(tAxis.getChronology())) {
-                    throw new IllegalArgumentException("The Chronology of the variable " + varId
-                            + " must match that of the domain you are trying to read.");
+                VerticalPosition zPos = null;
+                if (zVals.get(z) != null) {
+                    zPos = new VerticalPosition(zVals.get(z), zAxis.getVerticalCrs());
                 }
-                int tMin = variableTAxis.findIndexOf(tAxis.getExtent().getLow());
-                int tMax = variableTAxis.findIndexOf(tAxis.getExtent().getHigh());
-
-                /*
-                 * Read the data and move it to a 1D Array
-                 */
-                Array4D<Number> data4d = dataSource.read(varId, tMin, tMax, zIndex, zIndex, yIndex,
-                        yIndex, xIndex, xIndex);
-                int tSize = tAxis.size();
                 Array1D<Number> data = new ValuesArray1D(tSize);
-
                 for (int i = 0; i < tSize; i++) {
-                    DateTime time = tAxis.getCoordinateValue(i);
-                    int tIndex = variableTAxis.findIndexOf(time);
-                    if (tIndex < 0) {
-                        throw new IllegalArgumentException("The time-axis for the variable "
-                                + varId + " does not contain the time " + time
-                                + " which was requested.");
-                    }
-                    data.set(data4d.get(new int[] { tIndex - tMin, 0, 0, 0 }), new int[] { i });
+                    data.set(toNumber(column[i * nZ + z]), new int[] { i });
                 }
-
-                ret.put(location, data);
-
+                ret.put(new PointSeriesLocation(horizontalPositions.get(p), zPos), data);
             }
         }
 
@@ -1915,16 +2203,88 @@ public abstract class AbstractGridDataset extends AbstractDataset {
         }
     }
 
-    /*
-     * TODO like trajectory reading, do we still need this? Probably, but how to
-     * best use it?
+    /**
+     * Gets the name of the {@link MapFeature} which is extracted from a
+     * {@link AbstractGridDataset} for a set of variables. Values which are
+     * read separately can use this to be named consistently with those taken
+     * from a {@link MapFeature}.
+     * 
+     * @param variableIds
+     *            The IDs of the scalar variables in the feature
+     * @return The name of the feature
+     */
+    public static String getMapFeatureName(List<String> variableIds) {
+        StringBuilder name = new StringBuilder("Map of ");
+        for (String varId : variableIds) {
+            name.append(varId + ", ");
+        }
+        name.delete(name.length() - 2, name.length() - 1);
+        return name.toString();
+    }
+
+    /**
+     * Reads the value of a variable at a single point
+     * 
+     * @param variableId
+     *            The ID of the variable to read
+     * @param position
+     *            The {@link HorizontalPosition} to read at
+     * @param zVal
+     *            The z-position to read at
+     * @param time
+     *            The time to read at
+     * @return The value of the variable, or <code>null</code> if the position
+     *         is outside the variable's horizontal domain
+     * @throws DataReadingException
+     *             If there is a problem reading the data
+     * @throws VariableNotFoundException
+     *             If the variable is not present in this dataset
      */
     public final Number readSinglePoint(String variableId, HorizontalPosition position,
             Double zVal, DateTime time) throws DataReadingException, VariableNotFoundException {
+        return readSinglePoints(Collections.singleton(variableId), position, zVal, time).get(
+                variableId);
+    }
+
+    /**
+     * Reads the values of a number of variables at a single point. This is
+     * much cheaper than extracting a map feature and picking out a single
+     * value, since only the single source cell containing the point is read
+     * for each variable.
+     * 
+     * All values are read from a single {@link GridDataSource}, and each
+     * non-derived variable is read only once, however many of the requested
+     * variables are derived from it.
+     * 
+     * @param variableIds
+     *            The IDs of the variables to read
+     * @param position
+     *            The {@link HorizontalPosition} to read at
+     * @param zVal
+     *            The z-position to read at
+     * @param time
+     *            The time to read at
+     * @return A {@link Map} of variable ID to value. Values are
+     *         <code>null</code> where the position is outside a variable's
+     *         horizontal domain
+     * @throws DataReadingException
+     *             If there is a problem reading the data
+     * @throws VariableNotFoundException
+     *             If any of the variables are not present in this dataset
+     */
+    public final Map<String, Number> readSinglePoints(Set<String> variableIds,
+            HorizontalPosition position, Double zVal, DateTime time)
+            throws DataReadingException, VariableNotFoundException {
         GridDataSource gridDataSource = null;
         try {
             gridDataSource = openGridDataSource();
-            return readPointData(variableId, position, zVal, time, gridDataSource);
+            Map<String, Number> readValues = new HashMap<>();
+            Map<String, Number> values = new HashMap<>();
+            for (String variableId : variableIds) {
+                values.put(variableId,
+                        readPointData(variableId, position, zVal, time, gridDataSource, readValues));
+            }
+            return values;
         } catch (IOException e) {
             throw new DataReadingException("Problem reading data", e);
         } finally {
@@ -1942,22 +2302,95 @@ public abstract class AbstractGridDataset extends AbstractDataset {
             GridDataSource dataSource) throws DataReadingException, VariableNotFoundException {
         Array1D<Number> data = new ValuesArray1D(domain.size());
         Array<GeoPosition> domainObjects = domain.getDomainObjects();
-        for (int i = 0; i < domain.size(); i++) {
+        if (isDerivedVariable(variableId) != null) {
+            /*
+             * Derived variables are generated point by point from their source
+             * variables
+             */
+            for (int i = 0; i < domain.size(); i++) {
+                GeoPosition position = domainObjects.get(i);
+                Double z = null;
+                if (position.getVerticalPosition() != null) {
+                    z = position.getVerticalPosition().getZ();
+                }
+                Number value = readPointData(variableId, position.getHorizontalPosition(), z,
+                        position.getTime(), dataSource, new HashMap<String, Number>());
+                data.set(value, i);
+            }
+            return data;
+        }
+
+        /*
+         * Map all of the points to grid indices first, so that they can be read
+         * in a few blocks rather than one at a time
+         */
+        GridVariableMetadata metadata = (GridVariableMetadata) getVariableMetadata(variableId);
+        int nPoints = domain.size();
+        List<HorizontalPosition> hPositions = new ArrayList<>(nPoints);
+        for (int i = 0; i < nPoints; i++) {
+            hPositions.add(domainObjects.get(i).getHorizontalPosition());
+        }
+        int[] xIndices = new int[nPoints];
+        int[] yIndices = new int[nPoints];
+        GISUtils.findIndicesOf(metadata.getHorizontalDomain(), hPositions, xIndices, yIndices);
+
+        int[] zIndices = new int[nPoints];
+        int[] tIndices = new int[nPoints];
+        for (int i = 0; i < nPoints; i++) {
+            if (xIndices[i] < 0 || yIndices[i] < 0) {
+                zIndices[i] = -1;
+                tIndices[i] = -1;
+                continue;
+            }
             GeoPosition position = domainObjects.get(i);
             Double z = null;
             if (position.getVerticalPosition() != null) {
                 z = position.getVerticalPosition().getZ();
             }
-            Number value = readPointData(variableId, position.getHorizontalPosition(), z,
-                    position.getTime(), dataSource);
-            data.set(value, i);
+            zIndices[i] = getVerticalIndex(z, metadata.getVerticalDomain(), variableId);
+            tIndices[i] = getTimeIndex(position.getTime(), metadata.getTemporalDomain(),
+                    variableId);
+        }
+
+        try {
+            float[] values = GridColumnReader.readPoints(dataSource, variableId, tIndices,
+                    zIndices, xIndices, yIndices);
+            for (int i = 0; i < nPoints; i++) {
+                data.set(toNumber(values[i]), i);
+            }
+        } catch (IOException e) {
+            throw new DataReadingException("Problem reading data", e);
         }
         return data;
     }
 
+    /**
+     * Reads the value of a variable at a single point
+     * 
+     * @param variableId
+     *            The ID of the variable to read
+     * @param position
+     *            The {@link HorizontalPosition} to read at
+     * @param zVal
+     *            The z-position to read at
+     * @param time
+     *            The time to read at
+     * @param gridDataSource
+     *            The {@link GridDataSource} to read from
+     * @param readValues
+     *            The values which have already been read at this point, keyed
+     *            by variable ID. Any values read by this method (including
+     *            those needed to generate derived variables) are added to it
+     * @return The value, or <code>null</code> if the position is outside the
+     *         variable's horizontal domain
+     */
     private Number readPointData(String variableId, HorizontalPosition position, Double zVal,
-            DateTime time, GridDataSource gridDataSource) throws DataReadingException,
-            VariableNotFoundException {
+            DateTime time, GridDataSource gridDataSource, Map<String, Number> readValues)
+            throws DataReadingException, VariableNotFoundException {
+        if (readValues.containsKey(variableId)) {
+            return readValues.get(variableId);
+        }
+        Number value;
         VariablePlugin plugin = isDerivedVariable(variableId);
         if (plugin != null) {
             /*
@@ -1973,10 +2406,11 @@ public abstract class AbstractGridDataset extends AbstractDataset {
                  * method, we safely cover the cases where derived variables are
                  * derived from other derived variables
                  */
-                baseValues[i] = readSinglePoint(baseVariables[i], position, zVal, time);
+                baseValues[i] = readPointData(baseVariables[i], position, zVal, time,
+                        gridDataSource, readValues);
             }
 
-            return plugin.getValue(variableId, position, baseValues);
+            value = plugin.getValue(variableId, position, baseValues);
         } else {
             try {
                 /*
@@ -1989,22 +2423,24 @@ public abstract class AbstractGridDataset extends AbstractDataset {
                 GridVariableMetadata variableMetadata = (GridVariableMetadata) getVariableMetadata(variableId);
                 GridCoordinates2D xy = variableMetadata.getHorizontalDomain().findIndexOf(position);
                 if (xy == null) {
-                    return null;
-                }
-
-                VerticalAxis verticalDomain = variableMetadata.getVerticalDomain();
-                int z = getVerticalIndex(zVal, verticalDomain, variableId);
+                    value = null;
+                } else {
+                    VerticalAxis verticalDomain = variableMetadata.getVerticalDomain();
+                    int z = getVerticalIndex(zVal, verticalDomain, variableId);
 
-                TimeAxis temporalDomain = variableMetadata.getTemporalDomain();
-                int t = getTimeIndex(time, temporalDomain, variableId);
+                    TimeAxis temporalDomain = variableMetadata.getTemporalDomain();
+                    int t = getTimeIndex(time, temporalDomain, variableId);
 
-                Array4D<Number> readData = gridDataSource.read(variableId, t, t, z, z, xy.getY(),
-                        xy.getY(), xy.getX(), xy.getX());
-                return readData.get(0, 0, 0, 0);
+                    Array4D<Number> readData = gridDataSource.read(variableId, t, t, z, z,
+                            xy.getY(), xy.getY(), xy.getX(), xy.getX());
+                    value = readData.get(0, 0, 0, 0);
+                }
             } catch (IOException e) {
                 throw new DataReadingException("Problem reading data", e);
             }
         }
+        readValues.put(variableId, value);
+        return value;
     }
 
     @Override
@@ -2014,6 +2450,26 @@ public abstract class AbstractGridDataset extends AbstractDataset {
 
     protected abstract GridDataSource openGridDataSource() throws IOException;
 
+    /**
+     * Opens an additional {@link GridDataSource} whilst the calling request
+     * already holds one, so that variables can be read in parallel.
+     * Implementations which limit the number of open {@link GridDataSource}s
+     * must not wait for one to become available here, since the requests
+     * holding them may be waiting for this read to complete. They should
+     * return <code>null</code> instead, in which case the variable is read
+     * using the request's own {@link GridDataSource}.
+     * 
+     * The default implementation calls {@link #openGridDataSource()}.
+     * 
+     * @return A new {@link GridDataSource}, or <code>null</code> if none is
+     *         available without waiting
+     * @throws IOException
+     *             If there is a problem opening the {@link GridDataSource}
+     */
+    protected GridDataSource tryOpenGridDataSource() throws IOException {
+        return openGridDataSource();
+    }
+
     protected abstract DataReadingStrategy getDataReadingStrategy();
 
     public HovmoellerFeature extractHovmollerFeatures(Set<String> varIds,
@@ -2093,8 +2549,8 @@ public abstract class AbstractGridDataset extends AbstractDataset {
             for (String derivedVarId : varsToGenerate.keySet()) {
                 VariablePlugin plugin = varsToGenerate.get(derivedVarId);
 
-                //@SuppressWarnings("unchecked")
-                Array2D<Number>[] pluginSourceData = new ValuesArray2D[plugin.usesVariables().length];
+                @SuppressWarnings("unchecked")
+                Array2D<Number>[] pluginSourceData = new Array2D[plugin.usesVariables().length];
                 VariableMetadata[] pluginSourceMetadata = new VariableMetadata[plugin
                         .usesVariables().length];
                 /*
@@ -2166,7 +2622,7 @@ public abstract class AbstractGridDataset extends AbstractDataset {
 
         int ysize = domain.getTimeAxis().size();
         int xsize = domain.getlPointsOnLineString().size();
-        Array2D<Number> data = new ValuesArray2D(ysize, xsize);
+        FloatArray2D data = new FloatArray2D(ysize, xsize);
 
         Array2D<HovmoellerCell> cells = domain.getDomainObjects();
 
@@ -2180,10 +2636,9 @@ public abstract class AbstractGridDataset extends AbstractDataset {
                 if (getVariableMetadata(variableId).getTemporalDomain().contains(
                         tAxis.getCoordinateValue(j))) {
                     Number value = readPointData(variableId, position, z,
-                            tAxis.getCoordinateValue(j), dataSource);
+                            tAxis.getCoordinateValue(j), dataSource,
+                            new HashMap<String, Number>());
                     data.set(value, j, i);
-                } else {
-                    data.set(null, j, i);
                 }
             }
 
@@ -87,6 +87,31 @@ public abstract class AbstractPointDataset<F extends DiscreteFeature<?, ?>> exte
         return pointFeatures;
     }
 
+    @Override
+    public List<PointFeature> extractNearestMapFeatures(Set<String> varIds,
+            PlottingDomainParams params, int maxFeatures) throws DataReadingException {
+        /*
+         * Some features may not convert to a PointFeature at the target
+         * position, so we find all candidates in order of distance, and read
+         * them a few at a time until we have enough.
+         */
+        List<String> featureIds = findMapFeatureIds(varIds, params, Integer.MAX_VALUE);
+        List<PointFeature> pointFeatures = new ArrayList<>();
+        int start = 0;
+        while (pointFeatures.size() < maxFeatures && start < featureIds.size()) {
+            int end = Math.min(featureIds.size(), start + maxFeatures - pointFeatures.size());
+            for (F feature : getFeatureReader().readFeatures(featureIds.subList(start, end),
+                    varIds)) {
+                PointFeature pointFeature = convertFeature(feature, params);
+                if (pointFeature != null) {
+                    pointFeatures.add(pointFeature);
+                }
+            }
+            start = end;
+        }
+        return pointFeatures;
+    }
+
     /**
      * {@inheritDoc}
      * 
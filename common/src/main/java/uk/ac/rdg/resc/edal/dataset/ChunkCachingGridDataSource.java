@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.IOException;
+
+import uk.ac.rdg.resc.edal.dataset.SourceChunkCache.ChunkKey;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * A {@link GridDataSource} which reads 2D hyperslabs through the
+ * {@link SourceChunkCache}. Reads covering a single time and z index are
+ * satisfied from cached chunks where possible, and any missing chunks are read
+ * in full from the underlying {@link GridDataSource} and cached. All other
+ * reads are passed straight through.
+ * 
+ * Closing this {@link GridDataSource} does not close the underlying one.
+ * 
+ * @author Guy Griffiths
+ */
+class ChunkCachingGridDataSource implements GridDataSource {
+    private final GridDataSource dataSource;
+    private final long sourceId;
+    private final int xSize;
+    private final int ySize;
+
+    /**
+     * @param dataSource
+     *            The {@link GridDataSource} to read data from
+     * @param sourceId
+     *            A unique identifier of the data. This must change if the
+     *            underlying data changes
+     * @param xSize
+     *            The x-size of the source grid
+     * @param ySize
+     *            The y-size of the source grid
+     */
+    ChunkCachingGridDataSource(GridDataSource dataSource, long sourceId, int xSize, int ySize) {
+        this.dataSource = dataSource;
+        this.sourceId = sourceId;
+        this.xSize = xSize;
+        this.ySize = ySize;
+    }
+
+    @Override
+    public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+            int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
+        return dataSource.read(variableId, tmin, tmax, zmin, zmax, ymin, ymax, xmin, xmax);
+    }
+
+    @Override
+    public void readFloats(String variableId, int tmin, int tmax, int zmin, int zmax, int ymin,
+            int ymax, int xmin, int xmax, float[] values) throws IOException,
+            DataReadingException {
+        if (tmin != tmax || zmin != zmax) {
+            dataSource.readFloats(variableId, tmin, tmax, zmin, zmax, ymin, ymax, xmin, xmax,
+                    values);
+            return;
+        }
+        int width = xmax - xmin + 1;
+        int size = SourceChunkCache.CHUNK_SIZE;
+        for (int chunkY = ymin / size; chunkY <= ymax / size; chunkY++) {
+            int chunkYmin = chunkY * size;
+            int chunkHeight = Math.min(size, ySize - chunkYmin);
+            for (int chunkX = xmin / size; chunkX <= xmax / size; chunkX++) {
+                int chunkXmin = chunkX * size;
+                int chunkWidth = Math.min(size, xSize - chunkXmin);
+                float[] chunk = getChunk(variableId, tmin, zmin, chunkY, chunkX, chunkWidth,
+                        chunkHeight);
+                /*
+                 * Copy the overlapping part of the chunk into the output
+                 */
+                int y0 = Math.max(ymin, chunkYmin);
+                int y1 = Math.min(ymax, chunkYmin + chunkHeight - 1);
+                int x0 = Math.max(xmin, chunkXmin);
+                int x1 = Math.min(xmax, chunkXmin + chunkWidth - 1);
+                for (int y = y0; y <= y1; y++) {
+                    System.arraycopy(chunk, (y - chunkYmin) * chunkWidth + x0 - chunkXmin,
+                            values, (y - ymin) * width + x0 - xmin, x1 - x0 + 1);
+                }
+            }
+        }
+    }
+
+    private float[] getChunk(String variableId, int tIndex, int zIndex, int chunkY, int chunkX,
+            int chunkWidth, int chunkHeight) throws IOException, DataReadingException {
+        ChunkKey key = new ChunkKey(sourceId, variableId, tIndex, zIndex, chunkY, chunkX);
+        float[] chunk = SourceChunkCache.get(key);
+        RequestMetrics.cacheAccess("sourceChunk", chunk != null);
+        if (chunk == null) {
+            int chunkYmin = chunkY * SourceChunkCache.CHUNK_SIZE;
+            int chunkXmin = chunkX * SourceChunkCache.CHUNK_SIZE;
+            chunk = new float[chunkWidth * chunkHeight];
+            dataSource.readFloats(variableId, tIndex, tIndex, zIndex, zIndex, chunkYmin,
+                    chunkYmin + chunkHeight - 1, chunkXmin, chunkXmin + chunkWidth - 1, chunk);
+            SourceChunkCache.put(key, chunk);
+        }
+        return chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        /*
+         * The underlying data source is managed by whoever created it
+         */
+    }
+}
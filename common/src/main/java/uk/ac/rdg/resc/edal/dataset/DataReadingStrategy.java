@@ -28,8 +28,6 @@
 package uk.ac.rdg.resc.edal.dataset;
 
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.List;
 
 import org.h2.store.DataReader;
 
@@ -37,8 +35,7 @@ import uk.ac.rdg.resc.edal.dataset.DomainMapper.DomainMapperEntry;
 import uk.ac.rdg.resc.edal.dataset.DomainMapper.Scanline;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.util.Array2D;
-import uk.ac.rdg.resc.edal.util.Array4D;
-import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+import uk.ac.rdg.resc.edal.util.FloatArray2D;
 
 /**
  * <p>
@@ -126,28 +123,27 @@ public enum DataReadingStrategy {
         @Override
         public Array2D<Number> readMapData(GridDataSource dataSource, String varId, int tIndex,
                 int zIndex, Domain2DMapper domainMapper) throws IOException, DataReadingException {
-            Array2D<Number> ret = new ValuesArray2D(domainMapper.getTargetYSize(),
+            FloatArray2D ret = new FloatArray2D(domainMapper.getTargetYSize(),
                     domainMapper.getTargetXSize());
+            float[] target = ret.getData();
 
-            Iterator<Scanline<int[]>> it = domainMapper.scanlineIterator();
-            while (it.hasNext()) {
-                Scanline<int[]> scanline = it.next();
-                List<DomainMapperEntry<int[]>> entries = scanline.getPixelMapEntries();
+            /*
+             * A buffer which is reused for each scanline. It grows if a longer
+             * scanline is encountered.
+             */
+            float[] buffer = new float[0];
+            int[] ranges = domainMapper.getScanlineRanges();
+            for (int r = 0; r < ranges.length; r += 3) {
+                int j = ranges[r];
+                int imin = ranges[r + 1];
+                int imax = ranges[r + 2];
 
-                int j = scanline.getSourceGridJIndex();
-                int imin = entries.get(0).getSourceGridIIndex();
-                int imax = entries.get(entries.size() - 1).getSourceGridIIndex();
-
-                Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex, j, j,
-                        imin, imax);
-
-                for (DomainMapperEntry<int[]> dme : entries) {
-                    List<int[]> targetGridPoints = dme.getTargetIndices();
-                    for (int[] targetPoint : targetGridPoints) {
-                        ret.set(data.get(0, 0, 0, dme.getSourceGridIIndex() - imin), new int[] {
-                                targetPoint[1], targetPoint[0] });
-                    }
+                if (buffer.length < imax - imin + 1) {
+                    buffer = new float[imax - imin + 1];
                 }
+                dataSource.readFloats(varId, tIndex, tIndex, zIndex, zIndex, j, j, imin, imax,
+                        buffer);
+                domainMapper.mapValues(buffer, imin, imax, j, j, target);
             }
             return ret;
         }
@@ -162,7 +158,7 @@ public enum DataReadingStrategy {
         @Override
         public Array2D<Number> readMapData(GridDataSource dataSource, String varId, int tIndex,
                 int zIndex, Domain2DMapper domainMapper) throws IOException, DataReadingException {
-            Array2D<Number> ret = new ValuesArray2D(domainMapper.getTargetYSize(),
+            FloatArray2D ret = new FloatArray2D(domainMapper.getTargetYSize(),
                     domainMapper.getTargetXSize());
             if (domainMapper.isEmpty()) {
                 return ret;
@@ -171,16 +167,10 @@ public enum DataReadingStrategy {
             int imax = domainMapper.getMaxIIndex();
             int jmin = domainMapper.getMinJIndex();
             int jmax = domainMapper.getMaxJIndex();
-            Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex, jmin,
-                    jmax, imin, imax);
-            for (DomainMapperEntry<int[]> pme : domainMapper) {
-                List<int[]> targetGridPoints = pme.getTargetIndices();
-                for (int[] targetPoint : targetGridPoints) {
-                    ret.set(data.get(0, 0, pme.getSourceGridJIndex() - jmin,
-                            pme.getSourceGridIIndex() - imin), new int[] { targetPoint[1],
-                            targetPoint[0] });
-                }
-            }
+            float[] buffer = new float[(imax - imin + 1) * (jmax - jmin + 1)];
+            dataSource.readFloats(varId, tIndex, tIndex, zIndex, zIndex, jmin, jmax, imin, imax,
+                    buffer);
+            domainMapper.mapValues(buffer, imin, imax, jmin, jmax, ret.getData());
             return ret;
         }
     },
@@ -193,16 +183,14 @@ public enum DataReadingStrategy {
         @Override
         public Array2D<Number> readMapData(GridDataSource dataSource, String varId, int tIndex,
                 int zIndex, Domain2DMapper domainMapper) throws IOException, DataReadingException {
-            Array2D<Number> ret = new ValuesArray2D(domainMapper.getTargetYSize(),
+            FloatArray2D ret = new FloatArray2D(domainMapper.getTargetYSize(),
                     domainMapper.getTargetXSize());
+            float[] buffer = new float[1];
             for (DomainMapperEntry<int[]> pme : domainMapper) {
-                Array4D<Number> data = dataSource.read(varId, tIndex, tIndex, zIndex, zIndex,
+                dataSource.readFloats(varId, tIndex, tIndex, zIndex, zIndex,
                         pme.getSourceGridJIndex(), pme.getSourceGridJIndex(),
-                        pme.getSourceGridIIndex(), pme.getSourceGridIIndex());
-                List<int[]> targetGridPoints = pme.getTargetIndices();
-                for (int[] targetPoint : targetGridPoints) {
-                    ret.set(data.get(0, 0, 0, 0), new int[] { targetPoint[1], targetPoint[0] });
-                }
+                        pme.getSourceGridIIndex(), pme.getSourceGridIIndex(), buffer);
+                setTargetValues(ret, buffer[0], pme);
             }
             return ret;
         }
@@ -211,4 +199,15 @@ public enum DataReadingStrategy {
     abstract public Array2D<Number> readMapData(GridDataSource dataSource, String varId,
             int tIndex, int zIndex, Domain2DMapper domainMapper) throws IOException,
             DataReadingException;
+
+    /**
+     * Sets a value read from the source grid at all of the target grid points
+     * which map to it
+     */
+    private static void setTargetValues(FloatArray2D target, float value,
+            DomainMapperEntry<int[]> entry) {
+        for (int[] targetPoint : entry.getTargetIndices()) {
+            target.setFloat(value, targetPoint[1], targetPoint[0]);
+        }
+    }
 }
@@ -32,7 +32,7 @@ import java.util.Collection;
 
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
-import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.ac.rdg.resc.edal.util.GISUtils;
 
 /**
  * This is an implementation of a {@link DomainMapper} which maps 2D indices
@@ -74,19 +74,14 @@ public class Domain1DMapper extends DomainMapper<Integer> {
 
         long start = System.currentTimeMillis();
         Domain1DMapper mapper = new Domain1DMapper(sourceGrid, targetPositions.size());
-        int pixelIndex = 0;
         /*
          * Find the nearest grid coordinates to all the points in the domain
          */
-        for (HorizontalPosition pos : targetPositions) {
-            /*
-             * Find the index of the cell containing this position
-             */
-            GridCoordinates2D indices = sourceGrid.findIndexOf(pos);
-            if(indices != null) {
-                mapper.put(indices.getX(), indices.getY(), pixelIndex);
-            }
-            pixelIndex++;
+        int[] sourceIs = new int[targetPositions.size()];
+        int[] sourceJs = new int[targetPositions.size()];
+        GISUtils.findIndicesOf(sourceGrid, targetPositions, sourceIs, sourceJs);
+        for (int pixelIndex = 0; pixelIndex < sourceIs.length; pixelIndex++) {
+            mapper.put(sourceIs[pixelIndex], sourceJs[pixelIndex], pixelIndex);
         }
         long end = System.currentTimeMillis();
         mapper.sortIndices();
@@ -28,16 +28,21 @@
 
 package uk.ac.rdg.resc.edal.dataset;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
 import uk.ac.rdg.resc.edal.grid.GridCell2D;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
 import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Stage;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array;
 import uk.ac.rdg.resc.edal.util.GISUtils;
-import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 
 /**
  * This is an implementation of a {@link DomainMapper} which maps 2D indices
@@ -55,6 +60,17 @@ import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
  * @author Guy
  */
 public class Domain2DMapper extends DomainMapper<int[]> {
+    /*
+     * Recently-used mappers. For tiled clients the same target grids are
+     * requested repeatedly, so most mappers can be reused. The size of the
+     * cache is limited by the total number of mappings held by the cached
+     * mappers, since this determines the memory used.
+     */
+    private static final long MAX_CACHED_MAPPINGS = 4 * 1024 * 1024;
+    private static final LinkedHashMap<MapperKey, Domain2DMapper> cache = new LinkedHashMap<>(16,
+            0.75f, true);
+    private static long cachedMappings = 0L;
+
     private int targetXSize;
     private int targetYSize;
 
@@ -102,6 +118,36 @@ public class Domain2DMapper extends DomainMapper<int[]> {
      * @return A {@link Domain2DMapper} performing the mapping
      */
     public static Domain2DMapper forGrid(HorizontalGrid sourceGrid, final HorizontalGrid targetGrid) {
+        MapperKey key = new MapperKey(sourceGrid, targetGrid);
+        synchronized (cache) {
+            Domain2DMapper mapper = cache.get(key);
+            if (mapper != null) {
+                RequestMetrics.cacheAccess("domainMapper", true);
+                return mapper;
+            }
+        }
+        RequestMetrics.cacheAccess("domainMapper", false);
+        long start = RequestMetrics.start();
+        Domain2DMapper mapper = createMapper(sourceGrid, targetGrid);
+        RequestMetrics.stop(Stage.DOMAIN_MAPPING, start);
+        if (mapper.getNumMappings() > MAX_CACHED_MAPPINGS) {
+            return mapper;
+        }
+        synchronized (cache) {
+            if (cache.put(key, mapper) == null) {
+                cachedMappings += mapper.getNumMappings();
+            }
+            Iterator<Domain2DMapper> it = cache.values().iterator();
+            while (cachedMappings > MAX_CACHED_MAPPINGS && it.hasNext()) {
+                cachedMappings -= it.next().getNumMappings();
+                it.remove();
+            }
+        }
+        return mapper;
+    }
+
+    private static Domain2DMapper createMapper(HorizontalGrid sourceGrid,
+            HorizontalGrid targetGrid) {
         if (sourceGrid instanceof RectilinearGrid
                 && targetGrid instanceof RectilinearGrid
                 && GISUtils.crsMatch(sourceGrid.getCoordinateReferenceSystem(),
@@ -179,25 +225,110 @@ public class Domain2DMapper extends DomainMapper<int[]> {
      */
     private static Domain2DMapper forGeneralGrids(HorizontalGrid sourceGrid,
             final HorizontalGrid targetGrid) {
-        Domain2DMapper mapper = new Domain2DMapper(sourceGrid, targetGrid.getXSize(),
-                targetGrid.getYSize());
+        int xSize = targetGrid.getXSize();
+        int ySize = targetGrid.getYSize();
+        Domain2DMapper mapper = new Domain2DMapper(sourceGrid, xSize, ySize);
         /*
-         * Find the nearest grid coordinates to all the points in the domain
+         * Get the centres of all target grid cells, in the order of their
+         * indices in the target domain
          */
-        Array<GridCell2D> targetDomainObjects = targetGrid.getDomainObjects();
-        for (int j = 0; j < targetGrid.getYSize(); j++) {
-            for (int i = 0; i < targetGrid.getXSize(); i++) {
-                targetGrid.getDomainObjects().get(j, i).getCentre();
-                HorizontalPosition transformedPosition = GISUtils.transformPosition(targetDomainObjects.get(j,i).getCentre(), sourceGrid
-                        .getCoordinateReferenceSystem());
-                GridCoordinates2D indices = sourceGrid.findIndexOf(transformedPosition);
-                if(indices != null) {
-                    mapper.put(indices.getX(), indices.getY(), mapper.convertCoordsToIndex(i, j));
+        int size = xSize * ySize;
+        double[] xs = new double[size];
+        double[] ys = new double[size];
+        if (targetGrid instanceof RectilinearGrid) {
+            ReferenceableAxis<Double> xAxis = ((RectilinearGrid) targetGrid).getXAxis();
+            ReferenceableAxis<Double> yAxis = ((RectilinearGrid) targetGrid).getYAxis();
+            double[] xVals = new double[xSize];
+            for (int i = 0; i < xSize; i++) {
+                xVals[i] = xAxis.getCoordinateValue(i);
+            }
+            int p = 0;
+            for (int j = 0; j < ySize; j++) {
+                double y = yAxis.getCoordinateValue(j);
+                for (int i = 0; i < xSize; i++) {
+                    xs[p] = xVals[i];
+                    ys[p] = y;
+                    p++;
                 }
             }
+        } else {
+            Array<GridCell2D> targetDomainObjects = targetGrid.getDomainObjects();
+            int p = 0;
+            for (int j = 0; j < ySize; j++) {
+                for (int i = 0; i < xSize; i++) {
+                    HorizontalPosition centre = targetDomainObjects.get(j, i).getCentre();
+                    xs[p] = centre.getX();
+                    ys[p] = centre.getY();
+                    p++;
+                }
+            }
+        }
+
+        /*
+         * Find the nearest grid coordinates to all the points in the domain
+         */
+        int[] sourceIs = new int[size];
+        int[] sourceJs = new int[size];
+        sourceGrid.findIndicesOf(xs, ys, targetGrid.getCoordinateReferenceSystem(), sourceIs,
+                sourceJs);
+        for (int index = 0; index < size; index++) {
+            mapper.put(sourceIs[index], sourceJs[index], index);
         }
 
         mapper.sortIndices();
         return mapper;
     }
+
+    /**
+     * Key for the cache of {@link Domain2DMapper}s. Source grids belong to
+     * datasets and are not recreated between requests, so they are compared
+     * by identity (some source grids are very expensive to compare by value).
+     * Target grids are compared by value, along with their CRS, which is not
+     * taken into account by all {@link HorizontalGrid#equals(Object)}
+     * implementations.
+     */
+    private static final class MapperKey {
+        private final HorizontalGrid sourceGrid;
+        private final HorizontalGrid targetGrid;
+        private final CoordinateReferenceSystem targetCrs;
+        private final int hashCode;
+
+        public MapperKey(HorizontalGrid sourceGrid, HorizontalGrid targetGrid) {
+            this.sourceGrid = sourceGrid;
+            this.targetGrid = targetGrid;
+            this.targetCrs = targetGrid.getCoordinateReferenceSystem();
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + System.identityHashCode(sourceGrid);
+            result = prime * result + targetGrid.hashCode();
+            result = prime * result + ((targetCrs == null) ? 0 : targetCrs.hashCode());
+            hashCode = result;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            MapperKey other = (MapperKey) obj;
+            if (sourceGrid != other.sourceGrid)
+                return false;
+            if (!targetGrid.equals(other.targetGrid))
+                return false;
+            if (targetCrs == null) {
+                if (other.targetCrs != null)
+                    return false;
+            } else if (!targetCrs.equals(other.targetCrs))
+                return false;
+            return true;
+        }
+    }
 }
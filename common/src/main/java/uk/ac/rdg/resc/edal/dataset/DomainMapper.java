@@ -30,6 +30,7 @@ package uk.ac.rdg.resc.edal.dataset;
 
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -119,6 +120,7 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
     }
 
     private final int sourceGridISize;
+    private final long sourceGridSize;
 
     private final int targetDomainSize;
 
@@ -145,6 +147,7 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
 
         this.targetDomainSize = (int) targetDomainSize;
         sourceGridISize = sourceGrid.getXSize();
+        sourceGridSize = sourceGrid.size();
 
         /*
          * Create an estimate of a suitable chunk size. We don't want this to be
@@ -195,8 +198,12 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
     /**
      * Sorts the arrays of source and target indices so that the arrays are in
      * order of increasing source grid index, then increasing target grid index.
-     * Uses an in-place quicksort algorithm adapted from
-     * http://www.vogella.de/articles/JavaAlgorithmsQuicksort/article.html.
+     * 
+     * Where possible, each (source, target) pair is packed into a single long
+     * and the resulting primitive array is sorted. Otherwise an in-place
+     * quicksort algorithm adapted from
+     * http://www.vogella.de/articles/JavaAlgorithmsQuicksort/article.html is
+     * used.
      */
     protected void sortIndices() {
         int numElements = sourceGridIndices.size();
@@ -205,7 +212,20 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
          */
         if (numElements < 2)
             return;
-        quicksort(0, numElements - 1);
+        if (sourceGridSize <= Long.MAX_VALUE / targetDomainSize) {
+            long[] keys = new long[numElements];
+            for (int i = 0; i < numElements; i++) {
+                keys[i] = sourceGridIndices.getLong(i) * targetDomainSize
+                        + targetGridIndices.getLong(i);
+            }
+            Arrays.sort(keys);
+            for (int i = 0; i < numElements; i++) {
+                sourceGridIndices.set(i, keys[i] / targetDomainSize);
+                targetGridIndices.set(i, keys[i] % targetDomainSize);
+            }
+        } else {
+            quicksort(0, numElements - 1);
+        }
     }
 
     private void quicksort(final int low, final int high) {
@@ -215,14 +235,16 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
          * The elements to be sorted are pairs of longs: the first is the source
          * grid index, the second is the target grid index.
          */
-        final long[] pivot = getPair(low + (high - low) / 2);
+        int pivotIndex = low + (high - low) / 2;
+        final long pivotSource = sourceGridIndices.getLong(pivotIndex);
+        final long pivotTarget = targetGridIndices.getLong(pivotIndex);
 
         /* Divide into two lists */
         while (i <= j) {
-            while (comparePairs(getPair(i), pivot) < 0) {
+            while (comparePairs(i, pivotSource, pivotTarget) < 0) {
                 i++;
             }
-            while (comparePairs(getPair(j), pivot) > 0) {
+            while (comparePairs(j, pivotSource, pivotTarget) > 0) {
                 j--;
             }
             if (i <= j) {
@@ -240,29 +262,24 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
         }
     }
 
-    /*
-     * Gets the pair of [source, target] grid indices at the given index
-     */
-    private long[] getPair(int index) {
-        return new long[] { sourceGridIndices.getLong(index), targetGridIndices.getLong(index) };
-    }
-
     /**
-     * Returns <0 if pair1 < pair2, 0 if pair1 == pair2, >0 otherwise.
-     * Comparisons are performed first on the source grid index, then on the
-     * target grid index.
+     * Returns <0 if the pair at the given index < (source, target), 0 if they
+     * are equal, >0 otherwise. Comparisons are performed first on the source
+     * grid index, then on the target grid index.
      */
-    private int comparePairs(long[] pair1, long[] pair2) {
-        if (pair1[0] < pair2[0])
+    private int comparePairs(int index, long source, long target) {
+        long indexSource = sourceGridIndices.getLong(index);
+        if (indexSource < source)
             return -1;
-        if (pair1[0] > pair2[0])
+        if (indexSource > source)
             return 1;
         /*
          * Source grid indices must be equal, so compare target grid indices
          */
-        if (pair1[1] < pair2[1])
+        long indexTarget = targetGridIndices.getLong(index);
+        if (indexTarget < target)
             return -1;
-        if (pair1[1] > pair2[1])
+        if (indexTarget > target)
             return 1;
         /*
          * Both equal
@@ -332,6 +349,14 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
         return sourceGridIndices.size() == 0;
     }
 
+    /**
+     * Returns the number of (source, target) mappings stored in this
+     * {@link DomainMapper}
+     */
+    int getNumMappings() {
+        return sourceGridIndices.size();
+    }
+
     /**
      * Returns the size of the target domain
      */
@@ -402,6 +427,103 @@ abstract class DomainMapper<T> implements Iterable<DomainMapper.DomainMapperEntr
         return (maxIIndex - minIIndex + 1) * (maxJIndex - minJIndex + 1);
     }
 
+    /**
+     * Copies values read from a rectangle of the source grid to every point
+     * in the target domain which maps onto them. This is equivalent to
+     * iterating over the {@link DomainMapperEntry}s and setting each of their
+     * target indices, but works directly on the stored indices, so that no
+     * objects are created for each point.
+     * 
+     * Mappings to source points outside the rectangle are ignored, and the
+     * corresponding target values are left unchanged.
+     * 
+     * @param sourceValues
+     *            The values in the rectangle of the source grid, with the i
+     *            index varying fastest
+     * @param imin
+     *            The minimum i index of the rectangle
+     * @param imax
+     *            The maximum i index of the rectangle
+     * @param jmin
+     *            The minimum j index of the rectangle
+     * @param jmax
+     *            The maximum j index of the rectangle
+     * @param targetValues
+     *            The array to write values into, indexed by target domain
+     *            index
+     */
+    public void mapValues(float[] sourceValues, int imin, int imax, int jmin, int jmax,
+            float[] targetValues) {
+        int width = imax - imin + 1;
+        int numElements = sourceGridIndices.size();
+        long lastSourceIndex = (long) jmax * sourceGridISize + imax;
+        for (int k = findFirstMapping((long) jmin * sourceGridISize + imin); k < numElements; k++) {
+            long sourceIndex = sourceGridIndices.getLong(k);
+            if (sourceIndex > lastSourceIndex) {
+                break;
+            }
+            int i = (int) (sourceIndex % sourceGridISize);
+            if (i < imin || i > imax) {
+                continue;
+            }
+            int j = (int) (sourceIndex / sourceGridISize);
+            targetValues[targetGridIndices.getInt(k)] = sourceValues[(j - jmin) * width + i
+                    - imin];
+        }
+    }
+
+    /**
+     * Finds the extent of each row of the source grid which contains mapped
+     * points. This is the primitive equivalent of {@link #scanlineIterator()}.
+     * 
+     * @return An array containing a (j, imin, imax) triple for each row which
+     *         contains mapped points, in order of increasing j
+     */
+    public int[] getScanlineRanges() {
+        int numElements = sourceGridIndices.size();
+        int[] ranges = new int[0];
+        int numRanges = 0;
+        int lastJ = -1;
+        for (int k = 0; k < numElements; k++) {
+            long sourceIndex = sourceGridIndices.getLong(k);
+            int i = (int) (sourceIndex % sourceGridISize);
+            int j = (int) (sourceIndex / sourceGridISize);
+            if (j != lastJ) {
+                if (3 * numRanges == ranges.length) {
+                    ranges = Arrays.copyOf(ranges, Math.max(48, 2 * ranges.length));
+                }
+                ranges[3 * numRanges] = j;
+                ranges[3 * numRanges + 1] = i;
+                numRanges++;
+                lastJ = j;
+            }
+            /*
+             * Entries are sorted, so the last i in each row is the largest
+             */
+            ranges[3 * numRanges - 1] = i;
+        }
+        return Arrays.copyOf(ranges, 3 * numRanges);
+    }
+
+    /*
+     * Finds the position of the first mapping whose source index is at least
+     * the given value, using the fact that the mappings are sorted by source
+     * index
+     */
+    private int findFirstMapping(long sourceIndex) {
+        int low = 0;
+        int high = sourceGridIndices.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sourceGridIndices.getLong(mid) < sourceIndex) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
     /**
      * Returns an unmodifiable iterator over all the {@link DomainMapperEntry}s
      * in this PixelMap.
@@ -67,6 +67,32 @@ public interface FeatureIndexer extends Serializable {
             Extent<Double> verticalExtent, Extent<DateTime> timeExtent,
             Collection<String> variableIds);
 
+    /**
+     * Finds the IDs of the features nearest to a position which satisfy the
+     * given spatio-temporal constraints. Only the indexed positions are used,
+     * so no feature data needs to be read. If any constraint is
+     * <code>null</code> it is considered to be unconstrained in that
+     * dimension.
+     * 
+     * @param position
+     *            The {@link HorizontalPosition} to find the nearest features to
+     * @param horizontalExtent
+     *            The {@link BoundingBox} which features must have positions in.
+     * @param verticalExtent
+     *            The vertical range which features must have positions in.
+     * @param timeExtent
+     *            The time range which features must have positions in.
+     * @param variableIds
+     *            The variable IDs which features must contain
+     * @param maxFeatures
+     *            The maximum number of feature IDs to return
+     * @return A {@link List} of up to <code>maxFeatures</code> feature IDs,
+     *         nearest first
+     */
+    public List<String> findNearestFeatureIds(HorizontalPosition position,
+            BoundingBox horizontalExtent, Extent<Double> verticalExtent,
+            Extent<DateTime> timeExtent, Collection<String> variableIds, int maxFeatures);
+
     /**
      * @return All feature IDs present in this {@link FeatureIndexer}
      */
@@ -0,0 +1,393 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+
+/**
+ * Reads columns of data (i.e. sets of t- and z-indices) or single values at a
+ * number of grid points from a {@link GridDataSource}.
+ * 
+ * Rather than reading each point separately (which for a multi-file
+ * aggregation means touching every file once per point), the points are
+ * split into runs of consecutive points which lie close together in index
+ * space. The bounding box of each run is read as a single hyperslab (or a
+ * small number of them), and the individual values are copied out of these in
+ * memory. Points along a transect or a trajectory therefore need a handful of
+ * reads, and points filling an area need just one.
+ * 
+ * Similarly, the t- and z-indices of columns are split into runs of nearby
+ * indices, and only these are read.
+ * 
+ * @author Guy Griffiths
+ */
+final class GridColumnReader {
+    /*
+     * A run of points may be read as a single block as long as its bounding
+     * box in index space contains no more than this many grid points per
+     * point in the run...
+     */
+    private static final int MAX_BOX_POINTS_PER_POINT = 4;
+
+    /*
+     * ...or as long as it contains no more than this many values. Reading a
+     * few unwanted values is much cheaper than issuing another read.
+     */
+    private static final int MIN_BLOCK_VALUES = 256 * 1024;
+
+    /*
+     * The maximum number of values to read in a single hyperslab. Larger reads
+     * are split up along the t-axis.
+     */
+    private static final int MAX_HYPERSLAB_VALUES = 4 * 1024 * 1024;
+
+    /*
+     * Requested t- or z-indices which are no further apart than this are read
+     * as part of the same range. Reading a few unwanted values is cheaper
+     * than issuing another read, but a range is not extended across a large
+     * gap.
+     */
+    private static final int MAX_INDEX_GAP = 8;
+
+    private GridColumnReader() {
+    }
+
+    /**
+     * Reads columns of data at a number of horizontal grid points
+     * 
+     * @param dataSource
+     *            The {@link GridDataSource} to read from
+     * @param varId
+     *            The ID of the variable to read
+     * @param tIndices
+     *            The t-indices to read in each column. Negative indices are
+     *            ignored.
+     * @param zIndices
+     *            The z-indices to read in each column. Negative indices are
+     *            ignored.
+     * @param xIndices
+     *            The x-indices of the points to read
+     * @param yIndices
+     *            The y-indices of the points to read. Points with a negative x-
+     *            or y-index are ignored.
+     * @return An array containing the column of data for each point, or
+     *         <code>null</code> for ignored points. The value at
+     *         <code>tIndices[i]</code> and <code>zIndices[j]</code> is at
+     *         position <code>i * zIndices.length + j</code>. Missing data and
+     *         ignored indices are represented by {@link Float#NaN}
+     * @throws IOException
+     *             If there is an IO problem accessing the data
+     * @throws DataReadingException
+     *             If there is another issue reading the data
+     */
+    static float[][] readColumns(GridDataSource dataSource, String varId, int[] tIndices,
+            int[] zIndices, int[] xIndices, int[] yIndices) throws IOException,
+            DataReadingException {
+        int nZ = zIndices.length;
+        float[][] columns = new float[xIndices.length][];
+        for (int p = 0; p < xIndices.length; p++) {
+            if (xIndices[p] >= 0 && yIndices[p] >= 0) {
+                columns[p] = new float[tIndices.length * nZ];
+                Arrays.fill(columns[p], Float.NaN);
+            }
+        }
+
+        /*
+         * Only read the ranges of t- and z-indices which were asked for, so
+         * that (e.g.) a timeseries at two times a year apart doesn't read
+         * every time in between
+         */
+        for (int[] tRun : getRuns(tIndices)) {
+            for (int[] zRun : getRuns(zIndices)) {
+                float[][] block = readColumns(dataSource, varId, tRun[0], tRun[1], zRun[0],
+                        zRun[1], xIndices, yIndices);
+                int nBlockZ = zRun[1] - zRun[0] + 1;
+                for (int p = 0; p < xIndices.length; p++) {
+                    if (columns[p] == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < tIndices.length; i++) {
+                        if (tIndices[i] < tRun[0] || tIndices[i] > tRun[1]) {
+                            continue;
+                        }
+                        int blockOffset = (tIndices[i] - tRun[0]) * nBlockZ - zRun[0];
+                        for (int j = 0; j < nZ; j++) {
+                            if (zIndices[j] >= zRun[0] && zIndices[j] <= zRun[1]) {
+                                columns[p][i * nZ + j] = block[p][blockOffset + zIndices[j]];
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Splits a set of indices into runs which are each worth reading as a
+     * single range
+     * 
+     * @param indices
+     *            The indices, in any order. Negative indices are ignored.
+     * @return The first and last index of each run
+     */
+    private static List<int[]> getRuns(int[] indices) {
+        int[] sorted = indices.clone();
+        Arrays.sort(sorted);
+        List<int[]> runs = new ArrayList<>();
+        int[] run = null;
+        for (int index : sorted) {
+            if (index < 0) {
+                continue;
+            }
+            if (run == null || index - run[1] > MAX_INDEX_GAP) {
+                run = new int[] { index, index };
+                runs.add(run);
+            } else {
+                run[1] = index;
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Reads columns covering a range of t- and z-indices at a number of
+     * horizontal grid points
+     * 
+     * @return An array containing the column of data for each point, or
+     *         <code>null</code> for ignored points. The value at t-index
+     *         <code>t</code> and z-index <code>z</code> is at position
+     *         <code>(t - tMin) * (zMax - zMin + 1) + (z - zMin)</code>.
+     */
+    private static float[][] readColumns(GridDataSource dataSource, String varId, int tMin,
+            int tMax, int zMin, int zMax, int[] xIndices, int[] yIndices) throws IOException,
+            DataReadingException {
+        int nT = tMax - tMin + 1;
+        int nZ = zMax - zMin + 1;
+        long columnSize = (long) nT * nZ;
+        float[][] columns = new float[xIndices.length][];
+        for (int p = 0; p < xIndices.length; p++) {
+            if (xIndices[p] >= 0 && yIndices[p] >= 0) {
+                columns[p] = new float[nT * nZ];
+            }
+        }
+
+        int start = 0;
+        while (start < xIndices.length) {
+            if (columns[start] == null) {
+                start++;
+                continue;
+            }
+            /*
+             * Extend the run of points for as long as its bounding box stays
+             * dense enough, and a single time step of it fits into a hyperslab
+             */
+            int nPoints = 1;
+            int xMin = xIndices[start];
+            int xMax = xMin;
+            int yMin = yIndices[start];
+            int yMax = yMin;
+            int end = start + 1;
+            for (; end < xIndices.length; end++) {
+                if (columns[end] == null) {
+                    continue;
+                }
+                int newXMin = Math.min(xMin, xIndices[end]);
+                int newXMax = Math.max(xMax, xIndices[end]);
+                int newYMin = Math.min(yMin, yIndices[end]);
+                int newYMax = Math.max(yMax, yIndices[end]);
+                long boxSize = (long) (newXMax - newXMin + 1) * (newYMax - newYMin + 1);
+                if (!isDenseEnough(boxSize * columnSize, (nPoints + 1) * columnSize)
+                        || boxSize * nZ > MAX_HYPERSLAB_VALUES) {
+                    break;
+                }
+                xMin = newXMin;
+                xMax = newXMax;
+                yMin = newYMin;
+                yMax = newYMax;
+                nPoints++;
+            }
+
+            if (nPoints == 1) {
+                dataSource.readFloats(varId, tMin, tMax, zMin, zMax, yIndices[start],
+                        yIndices[start], xIndices[start], xIndices[start], columns[start]);
+            } else {
+                readColumnBlock(dataSource, varId, tMin, tMax, zMin, zMax, xMin, xMax, yMin,
+                        yMax, xIndices, yIndices, start, end, columns);
+            }
+            start = end;
+        }
+        return columns;
+    }
+
+    /**
+     * Reads the bounding box of a run of points in as few hyperslabs as
+     * possible, and copies each column out of them
+     */
+    private static void readColumnBlock(GridDataSource dataSource, String varId, int tMin,
+            int tMax, int zMin, int zMax, int xMin, int xMax, int yMin, int yMax,
+            int[] xIndices, int[] yIndices, int start, int end, float[][] columns)
+            throws IOException, DataReadingException {
+        int nT = tMax - tMin + 1;
+        int nZ = zMax - zMin + 1;
+        int nX = xMax - xMin + 1;
+        int nY = yMax - yMin + 1;
+        long boxSize = (long) nX * nY;
+        long sliceSize = boxSize * nZ;
+        int tChunkSize = (int) Math.max(1, MAX_HYPERSLAB_VALUES / sliceSize);
+        float[] buffer = new float[(int) (sliceSize * Math.min(tChunkSize, nT))];
+        for (int tChunkStart = tMin; tChunkStart <= tMax; tChunkStart += tChunkSize) {
+            int tChunkEnd = Math.min(tChunkStart + tChunkSize - 1, tMax);
+            dataSource.readFloats(varId, tChunkStart, tChunkEnd, zMin, zMax, yMin, yMax, xMin,
+                    xMax, buffer);
+            int nTChunk = tChunkEnd - tChunkStart + 1;
+            int columnOffset = (tChunkStart - tMin) * nZ;
+            for (int p = start; p < end; p++) {
+                float[] column = columns[p];
+                if (column == null) {
+                    continue;
+                }
+                int pointOffset = (yIndices[p] - yMin) * nX + (xIndices[p] - xMin);
+                for (int tz = 0; tz < nTChunk * nZ; tz++) {
+                    column[columnOffset + tz] = buffer[(int) (tz * boxSize) + pointOffset];
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads single values at a number of grid points, each of which may have
+     * different t- and z-indices (e.g. along a trajectory)
+     * 
+     * @param dataSource
+     *            The {@link GridDataSource} to read from
+     * @param varId
+     *            The ID of the variable to read
+     * @param tIndices
+     *            The t-indices of the points to read
+     * @param zIndices
+     *            The z-indices of the points to read
+     * @param xIndices
+     *            The x-indices of the points to read
+     * @param yIndices
+     *            The y-indices of the points to read. Points with any negative
+     *            index are ignored.
+     * @return An array containing the value at each point. Missing data and
+     *         ignored points are represented by {@link Float#NaN}
+     * @throws IOException
+     *             If there is an IO problem accessing the data
+     * @throws DataReadingException
+     *             If there is another issue reading the data
+     */
+    static float[] readPoints(GridDataSource dataSource, String varId, int[] tIndices,
+            int[] zIndices, int[] xIndices, int[] yIndices) throws IOException,
+            DataReadingException {
+        float[] values = new float[xIndices.length];
+        Arrays.fill(values, Float.NaN);
+
+        int start = 0;
+        while (start < xIndices.length) {
+            if (!isValid(start, tIndices, zIndices, xIndices, yIndices)) {
+                start++;
+                continue;
+            }
+            int nPoints = 1;
+            int tMin = tIndices[start];
+            int tMax = tMin;
+            int zMin = zIndices[start];
+            int zMax = zMin;
+            int xMin = xIndices[start];
+            int xMax = xMin;
+            int yMin = yIndices[start];
+            int yMax = yMin;
+            int end = start + 1;
+            for (; end < xIndices.length; end++) {
+                if (!isValid(end, tIndices, zIndices, xIndices, yIndices)) {
+                    continue;
+                }
+                int newTMin = Math.min(tMin, tIndices[end]);
+                int newTMax = Math.max(tMax, tIndices[end]);
+                int newZMin = Math.min(zMin, zIndices[end]);
+                int newZMax = Math.max(zMax, zIndices[end]);
+                int newXMin = Math.min(xMin, xIndices[end]);
+                int newXMax = Math.max(xMax, xIndices[end]);
+                int newYMin = Math.min(yMin, yIndices[end]);
+                int newYMax = Math.max(yMax, yIndices[end]);
+                long boxSize = (long) (newTMax - newTMin + 1) * (newZMax - newZMin + 1)
+                        * (newYMax - newYMin + 1) * (newXMax - newXMin + 1);
+                if (!isDenseEnough(boxSize, nPoints + 1) || boxSize > MAX_HYPERSLAB_VALUES) {
+                    break;
+                }
+                tMin = newTMin;
+                tMax = newTMax;
+                zMin = newZMin;
+                zMax = newZMax;
+                xMin = newXMin;
+                xMax = newXMax;
+                yMin = newYMin;
+                yMax = newYMax;
+                nPoints++;
+            }
+
+            int nX = xMax - xMin + 1;
+            int nY = yMax - yMin + 1;
+            int nZ = zMax - zMin + 1;
+            float[] buffer = new float[(tMax - tMin + 1) * nZ * nY * nX];
+            dataSource.readFloats(varId, tMin, tMax, zMin, zMax, yMin, yMax, xMin, xMax, buffer);
+            for (int p = start; p < end; p++) {
+                if (isValid(p, tIndices, zIndices, xIndices, yIndices)) {
+                    int row = ((tIndices[p] - tMin) * nZ + zIndices[p] - zMin) * nY
+                            + yIndices[p] - yMin;
+                    values[p] = buffer[row * nX + xIndices[p] - xMin];
+                }
+            }
+            start = end;
+        }
+        return values;
+    }
+
+    private static boolean isValid(int p, int[] tIndices, int[] zIndices, int[] xIndices,
+            int[] yIndices) {
+        return tIndices[p] >= 0 && zIndices[p] >= 0 && xIndices[p] >= 0 && yIndices[p] >= 0;
+    }
+
+    /**
+     * @return Whether a block containing the given number of values is worth
+     *         reading in one go to get the given number of wanted values
+     */
+    private static boolean isDenseEnough(long blockValues, long wantedValues) {
+        return blockValues <= MIN_BLOCK_VALUES
+                || blockValues <= MAX_BOX_POINTS_PER_POINT * wantedValues;
+    }
+}
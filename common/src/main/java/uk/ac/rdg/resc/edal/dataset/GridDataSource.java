@@ -76,6 +76,43 @@ public interface GridDataSource {
     public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
             int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException;
 
+    /**
+     * Read a 4D hyperslab of data from the underlying data source directly into
+     * a caller-supplied buffer. This avoids the per-value overhead of
+     * {@link #read(String, int, int, int, int, int, int, int, int)} when a
+     * large number of values are required.
+     * 
+     * @param variableId
+     *            The variable ID to read
+     * @param tmin
+     *            The minimum time index in the underlying data
+     * @param tmax
+     *            The maximum time index in the underlying data
+     * @param zmin
+     *            The minimum z index in the underlying data
+     * @param zmax
+     *            The maximum z index in the underlying data
+     * @param ymin
+     *            The minimum y index in the underlying data
+     * @param ymax
+     *            The maximum y index in the underlying data
+     * @param xmin
+     *            The minimum x index in the underlying data
+     * @param xmax
+     *            The maximum x index in the underlying data
+     * @param values
+     *            The buffer to write values into. This must be at least as
+     *            large as the requested hyperslab. Values are written with the
+     *            x index varying fastest, then y, z and t. Missing data is
+     *            represented by {@link Float#NaN}
+     * @throws IOException
+     *             If there is an IO problem accessing the data
+     * @throws DataReadingException
+     *             If there is another issue reading the data
+     */
+    public void readFloats(String variableId, int tmin, int tmax, int zmin, int zmax, int ymin,
+            int ymax, int xmin, int xmax, float[] values) throws IOException, DataReadingException;
+
     /**
      * Close all resources associated with the underlying data.
      * 
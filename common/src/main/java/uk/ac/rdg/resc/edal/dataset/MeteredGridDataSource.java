@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.io.IOException;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * A {@link GridDataSource} which records the amount of data read from an
+ * underlying {@link GridDataSource} with {@link RequestMetrics}. Every value
+ * is counted as 4 bytes, since values are read as floats whatever their type
+ * on disk.
+ * 
+ * Closing this {@link GridDataSource} does not close the underlying one.
+ * 
+ * @author Guy Griffiths
+ */
+class MeteredGridDataSource implements GridDataSource {
+    private static final int BYTES_PER_VALUE = 4;
+
+    private final GridDataSource dataSource;
+
+    MeteredGridDataSource(GridDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+            int ymin, int ymax, int xmin, int xmax) throws IOException, DataReadingException {
+        Array4D<Number> data = dataSource.read(variableId, tmin, tmax, zmin, zmax, ymin, ymax,
+                xmin, xmax);
+        RequestMetrics.addBytesRead(BYTES_PER_VALUE * data.size());
+        return data;
+    }
+
+    @Override
+    public void readFloats(String variableId, int tmin, int tmax, int zmin, int zmax, int ymin,
+            int ymax, int xmin, int xmax, float[] values) throws IOException,
+            DataReadingException {
+        dataSource.readFloats(variableId, tmin, tmax, zmin, zmax, ymin, ymax, xmin, xmax, values);
+        RequestMetrics.addBytesRead((long) BYTES_PER_VALUE * (tmax - tmin + 1) * (zmax - zmin + 1)
+                * (ymax - ymin + 1) * (xmax - xmin + 1));
+    }
+
+    @Override
+    public void close() throws IOException {
+        /*
+         * The underlying data source is managed by whoever created it
+         */
+    }
+}
@@ -29,17 +29,26 @@
 package uk.ac.rdg.resc.edal.dataset;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.joda.time.DateTime;
+import org.khelekore.prtree.DistanceCalculator;
+import org.khelekore.prtree.DistanceResult;
 import org.khelekore.prtree.MBR;
 import org.khelekore.prtree.MBRConverter;
+import org.khelekore.prtree.NodeFilter;
 import org.khelekore.prtree.PRTree;
+import org.khelekore.prtree.PointND;
 import org.khelekore.prtree.SimpleMBR;
+import org.khelekore.prtree.SimplePointND;
 import org.opengis.metadata.extent.GeographicBoundingBox;
 
 import uk.ac.rdg.resc.edal.domain.Extent;
@@ -100,7 +109,126 @@ public class PRTreeFeatureIndexer implements FeatureIndexer,
     public Collection<String> findFeatureIds(BoundingBox horizontalExtent,
             Extent<Double> verticalExtent, Extent<DateTime> timeExtent,
             Collection<String> variableIds) {
+        List<FeatureBounds> features = findFeatures(horizontalExtent, verticalExtent, timeExtent,
+                variableIds);
+        Collection<String> featureIds = new ArrayList<>(features.size());
+        for (FeatureBounds feature : features) {
+            featureIds.add(feature.id);
+        }
+        return featureIds;
+    }
+
+    @Override
+    public List<String> findNearestFeatureIds(HorizontalPosition position,
+            BoundingBox horizontalExtent, final Extent<Double> verticalExtent,
+            final Extent<DateTime> timeExtent, final Collection<String> variableIds,
+            int maxFeatures) {
+        /*
+         * Distances are calculated in the same CRS as the indexed positions
+         */
+        if (!GISUtils.isWgs84LonLat(position.getCoordinateReferenceSystem())) {
+            position = GISUtils.transformPosition(position, DefaultGeographicCRS.WGS84);
+        }
+        final double x = GISUtils.constrainLongitude180(position.getX());
+        final double y = position.getY();
 
+        List<String> featureIds = new ArrayList<>();
+        if (maxFeatures <= 0) {
+            return featureIds;
+        }
+        List<FeatureBounds> candidates;
+        if (horizontalExtent != null) {
+            /*
+             * Only the features within the extent can be returned, so it's
+             * cheapest to find them all and sort them by distance.
+             */
+            candidates = findFeatures(horizontalExtent, verticalExtent, timeExtent, variableIds);
+        } else {
+            /*
+             * Search the tree outwards from the position. Using a 2D point
+             * means that the search only considers horizontal distance - the
+             * filter handles the other constraints.
+             * 
+             * The tree doesn't know that longitude wraps, so we also search
+             * from the position shifted by 360 degrees towards the date line.
+             * Any feature which is nearer across the date line is then found
+             * at its true distance.
+             */
+            final long tLow = timeExtent == null ? -Long.MAX_VALUE : timeExtent.getLow()
+                    .getMillis();
+            final long tHigh = timeExtent == null ? Long.MAX_VALUE : timeExtent.getHigh()
+                    .getMillis();
+            DistanceCalculator<FeatureBounds> calculator = new DistanceCalculator<FeatureBounds>() {
+                @Override
+                public double distanceTo(FeatureBounds feature, PointND p) {
+                    double dx = feature.horizontalPosition.getX() - p.getOrd(0);
+                    double dy = feature.horizontalPosition.getY() - p.getOrd(1);
+                    return dx * dx + dy * dy;
+                }
+            };
+            NodeFilter<FeatureBounds> filter = new NodeFilter<FeatureBounds>() {
+                @Override
+                public boolean accept(FeatureBounds feature) {
+                    if (verticalExtent != null
+                            && (feature.verticalExtent.getHigh() < verticalExtent.getLow()
+                                    || feature.verticalExtent.getLow() > verticalExtent.getHigh())) {
+                        return false;
+                    }
+                    if (feature.timeExtent.getHigh() < tLow
+                            || feature.timeExtent.getLow() > tHigh) {
+                        return false;
+                    }
+                    return variableIds == null || feature.variableIds.containsAll(variableIds);
+                }
+            };
+            candidates = new ArrayList<>();
+            Set<FeatureBounds> found = Collections
+                    .newSetFromMap(new IdentityHashMap<FeatureBounds, Boolean>());
+            for (double searchX : new double[] { x, x < 0 ? x + 360.0 : x - 360.0 }) {
+                for (DistanceResult<FeatureBounds> result : prTree.nearestNeighbour(
+                        calculator, filter, maxFeatures, new SimplePointND(searchX, y))) {
+                    if (found.add(result.get())) {
+                        candidates.add(result.get());
+                    }
+                }
+            }
+        }
+
+        final double[] distances = new double[candidates.size()];
+        Integer[] order = new Integer[candidates.size()];
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = getDistSquared(candidates.get(i), x, y);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(distances[i1], distances[i2]);
+            }
+        });
+        for (int i = 0; i < order.length && i < maxFeatures; i++) {
+            featureIds.add(candidates.get(order[i]).id);
+        }
+        return featureIds;
+    }
+
+    /**
+     * @return The squared distance in degrees between a feature and a
+     *         position, taking the shorter way around in longitude. Both
+     *         longitudes must be in the range (-180:180].
+     */
+    private static double getDistSquared(FeatureBounds feature, double x, double y) {
+        double dx = Math.abs(feature.horizontalPosition.getX() - x);
+        if (dx > 180.0) {
+            dx = 360.0 - dx;
+        }
+        double dy = feature.horizontalPosition.getY() - y;
+        return dx * dx + dy * dy;
+    }
+
+    private List<FeatureBounds> findFeatures(BoundingBox horizontalExtent,
+            Extent<Double> verticalExtent, Extent<DateTime> timeExtent,
+            Collection<String> variableIds) {
         if (!GISUtils.isWgs84LonLat(horizontalExtent.getCoordinateReferenceSystem())) {
             GeographicBoundingBox geographicBoundingBox = GISUtils
                     .toGeographicBoundingBox(horizontalExtent);
@@ -153,7 +281,7 @@ public class PRTreeFeatureIndexer implements FeatureIndexer,
          * Check to see if we have a bounding box which crosses the date line.
          * If so, make 2 requests to the PRTree
          */
-        Collection<String> featureIds = new ArrayList<>();
+        List<FeatureBounds> foundFeatures = new ArrayList<>();
         Iterable<FeatureBounds> features;
         if (horizontalExtent.getMaxX() > 180) {
             if (horizontalExtent.getMaxX() > 540) {
@@ -169,7 +297,7 @@ public class PRTreeFeatureIndexer implements FeatureIndexer,
                         tHigh);
                 features = prTree.find(mbr);
                 for (FeatureBounds feature : features) {
-                    featureIds.add(feature.id);
+                    foundFeatures.add(feature);
                 }
 
                 mbr = new SimpleMBR(-180,
@@ -179,7 +307,7 @@ public class PRTreeFeatureIndexer implements FeatureIndexer,
                 features = prTree.find(mbr);
             }
             for (FeatureBounds feature : features) {
-                featureIds.add(feature.id);
+                foundFeatures.add(feature);
             }
         } else {
             MBR mbr = new SimpleMBR(horizontalExtent.getMinX(), horizontalExtent.getMaxX(),
@@ -199,11 +327,11 @@ public class PRTreeFeatureIndexer implements FeatureIndexer,
                     }
                 }
                 if (addFeature) {
-                    featureIds.add(feature.id);
+                    foundFeatures.add(feature);
                 }
             }
         }
-        return featureIds;
+        return foundFeatures;
     }
 
     @Override
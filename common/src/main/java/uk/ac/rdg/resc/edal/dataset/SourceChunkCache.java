@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * A global, size-limited cache of chunks of source data, used when reading
+ * maps from {@link AbstractGridDataset}s.
+ * 
+ * Source grids are divided into square chunks of {@link #CHUNK_SIZE} points in
+ * the x and y directions. Each chunk holds the data for a single variable at a
+ * single time and z index. When a map is read, the chunks which it covers are
+ * read in full and cached, so that neighbouring and overlapping maps (e.g.
+ * adjacent tiles, or the same area after a small pan) can be regridded from
+ * memory without any further reading of the underlying data.
+ * 
+ * The least recently used chunks are discarded once the cache reaches its
+ * maximum size.
+ * 
+ * @author Guy Griffiths
+ */
+public final class SourceChunkCache {
+    /** The size of each chunk in the x and y directions */
+    public static final int CHUNK_SIZE = 256;
+
+    /*
+     * Maps which would read at least this many source points for each target
+     * point are too sparse to benefit from caching - we would end up reading
+     * whole chunks just to use a few values from each of them.
+     */
+    private static final int MAX_SOURCE_POINTS_PER_TARGET_POINT = 4;
+
+    private static long maxBytes = 64L * 1024 * 1024;
+    private static long currentBytes = 0L;
+    private static final LinkedHashMap<ChunkKey, float[]> chunks = new LinkedHashMap<>(16,
+            0.75f, true);
+
+    private SourceChunkCache() {
+    }
+
+    /**
+     * Sets the maximum amount of memory used to store source data chunks.
+     * 
+     * @param maxSizeMB
+     *            The maximum size of the cache, in MB. 0 disables the cache.
+     */
+    public static synchronized void setMaxSizeMB(int maxSizeMB) {
+        if (maxSizeMB < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative");
+        }
+        maxBytes = maxSizeMB * 1024L * 1024L;
+        evict();
+    }
+
+    /**
+     * Removes all chunks from the cache
+     */
+    public static synchronized void clear() {
+        chunks.clear();
+        currentBytes = 0L;
+    }
+
+    static synchronized boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return Whether the read described by the given {@link Domain2DMapper}
+     *         is dense enough that reading whole chunks of data will not lead
+     *         to large amounts of wasted data
+     */
+    static boolean isWorthCaching(Domain2DMapper domainMapper) {
+        return !domainMapper.isEmpty()
+                && domainMapper.getBoundingBoxSize() <= (long) MAX_SOURCE_POINTS_PER_TARGET_POINT
+                        * domainMapper.getTargetDomainSize();
+    }
+
+    static synchronized float[] get(ChunkKey key) {
+        return chunks.get(key);
+    }
+
+    static synchronized void put(ChunkKey key, float[] chunk) {
+        float[] old = chunks.put(key, chunk);
+        if (old != null) {
+            currentBytes -= 4L * old.length;
+        }
+        currentBytes += 4L * chunk.length;
+        evict();
+    }
+
+    /*
+     * Must be called whilst holding the lock
+     */
+    private static void evict() {
+        Iterator<Entry<ChunkKey, float[]>> it = chunks.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            currentBytes -= 4L * it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Identifies a chunk of source data
+     */
+    static final class ChunkKey {
+        private final long sourceId;
+        private final String varId;
+        private final int tIndex;
+        private final int zIndex;
+        private final int chunkY;
+        private final int chunkX;
+
+        /**
+         * @param sourceId
+         *            A unique identifier of the data source. This must change
+         *            if the underlying data changes
+         * @param varId
+         *            The ID of the variable
+         * @param tIndex
+         *            The time index of the chunk
+         * @param zIndex
+         *            The z index of the chunk
+         * @param chunkY
+         *            The index of the chunk in the y direction
+         * @param chunkX
+         *            The index of the chunk in the x direction
+         */
+        ChunkKey(long sourceId, String varId, int tIndex, int zIndex, int chunkY, int chunkX) {
+            this.sourceId = sourceId;
+            this.varId = varId;
+            this.tIndex = tIndex;
+            this.zIndex = zIndex;
+            this.chunkY = chunkY;
+            this.chunkX = chunkX;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + (int) (sourceId ^ (sourceId >>> 32));
+            result = prime * result + ((varId == null) ? 0 : varId.hashCode());
+            result = prime * result + tIndex;
+            result = prime * result + zIndex;
+            result = prime * result + chunkY;
+            result = prime * result + chunkX;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            ChunkKey other = (ChunkKey) obj;
+            if (sourceId != other.sourceId || tIndex != other.tIndex || zIndex != other.zIndex
+                    || chunkY != other.chunkY || chunkX != other.chunkX)
+                return false;
+            if (varId == null) {
+                if (other.varId != null)
+                    return false;
+            } else if (!varId.equals(other.varId))
+                return false;
+            return true;
+        }
+    }
+}
@@ -125,6 +125,7 @@ public abstract class VariablePlugin {
             throw new IllegalArgumentException("This plugin needs " + uses.length
                     + " data sources, but you have supplied " + sourceArrays.length);
         }
+        final String varSuffix = varId.substring(prefixLength);
         return new Array1D<Number>(sourceArrays[0].getShape()[0]) {
             @Override
             public void set(Number value, int... coords) {
@@ -140,8 +141,7 @@ public abstract class VariablePlugin {
                         return null;
                     }
                 }
-                return generateValue(varId.substring(prefixLength), positions.get(coords),
-                        sourceValues);
+                return generateValue(varSuffix, positions.get(coords), sourceValues);
             }
         };
     }
@@ -163,6 +163,16 @@ public abstract class VariablePlugin {
             throw new IllegalArgumentException("This plugin needs " + uses.length
                     + " data sources, but you have supplied " + sourceArrays.length);
         }
+        final String varSuffix = varId.substring(prefixLength);
+        /*
+         * Values are generated on demand rather than up-front. Some layers
+         * (e.g. arrows) only ever sample a small subset of the pixels, and
+         * generating some values (e.g. vector directions on a projected grid)
+         * can be expensive.
+         * 
+         * Source values are read as primitives, so that missing values can be
+         * detected without creating any objects.
+         */
         return new Array2D<Number>(sourceArrays[0].getYSize(), sourceArrays[0].getXSize()) {
             @Override
             public void set(Number value, int... coords) {
@@ -171,15 +181,28 @@ public abstract class VariablePlugin {
 
             @Override
             public Number get(int... coords) {
+                return generate(coords[0], coords[1]);
+            }
+
+            @Override
+            public float getFloat(int y, int x) {
+                Number value = generate(y, x);
+                if (value == null) {
+                    return Float.NaN;
+                }
+                return value.floatValue();
+            }
+
+            private Number generate(int y, int x) {
                 Number[] sourceValues = new Number[sourceArrays.length];
                 for (int i = 0; i < sourceValues.length; i++) {
-                    sourceValues[i] = sourceArrays[i].get(coords);
-                    if (sourceValues[i] == null) {
+                    float sourceValue = sourceArrays[i].getFloat(y, x);
+                    if (Float.isNaN(sourceValue)) {
                         return null;
                     }
+                    sourceValues[i] = sourceValue;
                 }
-                return generateValue(varId.substring(prefixLength), positions.get(coords),
-                        sourceValues);
+                return generateValue(varSuffix, positions.get(y, x), sourceValues);
             }
         };
     }
@@ -57,28 +57,28 @@
  */
 package uk.ac.rdg.resc.edal.feature;
 
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
 import org.joda.time.DateTime;
 
-import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
-import uk.ac.rdg.resc.edal.dataset.Domain2DMapper;
-import uk.ac.rdg.resc.edal.dataset.GridDataSource;
 import uk.ac.rdg.resc.edal.domain.GridDomain;
 import uk.ac.rdg.resc.edal.domain.MapDomain;
 import uk.ac.rdg.resc.edal.domain.MapDomainImpl;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.grid.GridCell2D;
 import uk.ac.rdg.resc.edal.grid.GridCell4D;
 import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.VerticalAxis;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
 import uk.ac.rdg.resc.edal.position.GeoPosition;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
 
 /**
  * An implementation of a {@link Feature} whose domain is a {@link GridDomain}
@@ -148,7 +148,28 @@ public class GridFeature extends AbstractDiscreteFeature<GeoPosition, GridCell4D
             varIds = getParameterIds();
         }
 
-        Domain2DMapper mapper = Domain2DMapper.forGrid(domain.getHorizontalGrid(), targetGrid);
+        /*
+         * Find the source grid indices of each point in the target grid. These
+         * are the same for every variable.
+         */
+        HorizontalGrid sourceGrid = domain.getHorizontalGrid();
+        Array<GridCell2D> targetCells = targetGrid.getDomainObjects();
+        int xSize = targetGrid.getXSize();
+        int size = xSize * targetGrid.getYSize();
+        double[] xs = new double[size];
+        double[] ys = new double[size];
+        for (int j = 0; j < targetGrid.getYSize(); j++) {
+            for (int i = 0; i < xSize; i++) {
+                HorizontalPosition position = targetCells.get(j, i).getCentre();
+                xs[j * xSize + i] = position.getX();
+                ys[j * xSize + i] = position.getY();
+            }
+        }
+        int[] sourceIs = new int[size];
+        int[] sourceJs = new int[size];
+        sourceGrid.findIndicesOf(xs, ys, targetGrid.getCoordinateReferenceSystem(), sourceIs,
+                sourceJs);
+
         Map<String, Parameter> parameters = new HashMap<>();
         Map<String, Array2D<Number>> values = new HashMap<>();
         for (String varId : varIds) {
@@ -159,36 +180,22 @@ public class GridFeature extends AbstractDiscreteFeature<GeoPosition, GridCell4D
 
             parameters.put(varId, getParameter(varId));
 
-            final Array4D<Number> fullValues = getValues(varId);
-            DataReadingStrategy dataReadingStrategy = DataReadingStrategy.PIXEL_BY_PIXEL;
-            GridDataSource dataSource = new GridDataSource() {
-                @Override
-                public Array4D<Number> read(String variableId, final int tmin, int tmax,
-                        final int zmin, int zmax, final int ymin, int ymax, final int xmin, int xmax) {
-                    return new Array4D<Number>(tmax - tmin + 1, zmax - zmin + 1, ymax - ymin + 1,
-                            xmax - xmin + 1) {
-                        @Override
-                        public Number get(int... coords) {
-                            return fullValues.get(coords[0] + tmin, coords[1] + zmin, coords[2]
-                                    + ymin, coords[3] + xmin);
-                        }
-
-                        @Override
-                        public void set(Number value, int... coords) {
-                        }
-                    };
-                }
-
-                @Override
-                public void close() throws IOException {
+            /*
+             * The values of a GridFeature can be of any Number type, so we
+             * subset them directly rather than using a DataReadingStrategy
+             * (which reads values as floats)
+             */
+            Array4D<Number> fullValues = getValues(varId);
+            Array2D<Number> readMapData = new ValuesArray2D(targetGrid.getYSize(),
+                    targetGrid.getXSize());
+            for (int j = 0; j < targetGrid.getYSize(); j++) {
+                for (int i = 0; i < xSize; i++) {
+                    int index = j * xSize + i;
+                    if (sourceIs[index] >= 0) {
+                        readMapData.set(fullValues.get(tIndex, zIndex, sourceJs[index],
+                                sourceIs[index]), j, i);
+                    }
                 }
-            };
-            Array2D<Number> readMapData;
-            try {
-                readMapData = dataReadingStrategy.readMapData(dataSource, varId, tIndex, zIndex,
-                        mapper);
-            } catch (IOException e) {
-                throw new DataReadingException("Problem reading data", e);
             }
             values.put(varId, readMapData);
         }
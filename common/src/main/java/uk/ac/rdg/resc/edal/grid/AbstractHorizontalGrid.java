@@ -30,6 +30,8 @@ package uk.ac.rdg.resc.edal.grid;
 
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
 public abstract class AbstractHorizontalGrid implements HorizontalGrid {
 
     protected CoordinateReferenceSystem crs;
@@ -42,4 +44,10 @@ public abstract class AbstractHorizontalGrid implements HorizontalGrid {
     public CoordinateReferenceSystem getCoordinateReferenceSystem() {
         return crs;
     }
+
+    @Override
+    public void findIndicesOf(double[] xs, double[] ys, CoordinateReferenceSystem crs,
+            int[] outI, int[] outJ) {
+        GISUtils.findIndicesIndividually(this, xs, ys, crs, outI, outJ);
+    }
 }
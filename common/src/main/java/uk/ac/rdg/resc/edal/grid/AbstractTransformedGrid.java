@@ -31,6 +31,8 @@ package uk.ac.rdg.resc.edal.grid;
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
 /**
  * This is an abstract implementation of a {@link HorizontalGrid} for which
  * there exists a transformation to convert WGS84 to the native CRS.
@@ -70,4 +72,10 @@ public abstract class AbstractTransformedGrid implements HorizontalGrid {
     public final CoordinateReferenceSystem getCoordinateReferenceSystem() {
         return DefaultGeographicCRS.WGS84;
     }
+
+    @Override
+    public void findIndicesOf(double[] xs, double[] ys, CoordinateReferenceSystem crs,
+            int[] outI, int[] outJ) {
+        GISUtils.findIndicesIndividually(this, xs, ys, crs, outI, outJ);
+    }
 }
@@ -28,6 +28,8 @@
 
 package uk.ac.rdg.resc.edal.grid;
 
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
 import uk.ac.rdg.resc.edal.domain.DiscreteHorizontalDomain;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
@@ -70,6 +72,32 @@ public interface HorizontalGrid extends DiscreteHorizontalDomain<GridCell2D> {
      */
     public GridCoordinates2D findIndexOf(HorizontalPosition position);
 
+    /**
+     * Finds the indices of a number of positions within this domain. This
+     * gives the same results as calling
+     * {@link #findIndexOf(HorizontalPosition)} for each position, but is
+     * generally much faster when many positions are required.
+     * 
+     * @param xs
+     *            The x-coordinates of the positions to find the indices of
+     * @param ys
+     *            The y-coordinates of the positions to find the indices of
+     * @param crs
+     *            The {@link CoordinateReferenceSystem} of the positions. If
+     *            this is <code>null</code>, the positions are assumed to be in
+     *            the CRS of this grid.
+     * @param outI
+     *            An array to receive the x-indices of the positions. This must
+     *            be at least as long as <code>xs</code>. Positions which are
+     *            outside the domain will have an x-index of -1.
+     * @param outJ
+     *            An array to receive the y-indices of the positions. This must
+     *            be at least as long as <code>xs</code>. Positions which are
+     *            outside the domain will have a y-index of -1.
+     */
+    public void findIndicesOf(double[] xs, double[] ys, CoordinateReferenceSystem crs,
+            int[] outI, int[] outJ);
+
     @Override
     public boolean equals(Object obj);
     
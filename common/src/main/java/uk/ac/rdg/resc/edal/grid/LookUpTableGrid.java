@@ -27,12 +27,19 @@
  *******************************************************************************/
 package uk.ac.rdg.resc.edal.grid;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.Map.Entry;
 
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array2D;
@@ -56,16 +63,37 @@ import uk.ac.rdg.resc.edal.util.LookUpTable;
  * @author Jon Blower
  */
 public final class LookUpTableGrid extends AbstractCurvilinearGrid {
+    private static final Logger log = LoggerFactory.getLogger(LookUpTableGrid.class);
+
+    /** The maximum number of LookUpTableGrids to keep strong references to */
+    private static final int MAX_CACHED_GRIDS = 8;
+
     /**
-     * In-memory cache of LookUpTableGrid objects to save expensive
-     * re-generation of same object
-     * 
-     * @todo The CurvilinearGrid objects can be very big. Really we only need to
-     *       key on the arrays of lon and lat: all other quantities can be
-     *       calculated from these. This means that we could make other large
-     *       objects available for garbage collection.
+     * In-memory cache of recently-used LookUpTableGrid objects to save
+     * expensive re-generation of same object, keyed on the content hash of
+     * their coordinates. The CurvilinearCoords objects can be very big, so the
+     * number of these is limited.
+     */
+    private static final Map<String, LookUpTableGrid> CACHE = new LinkedHashMap<String, LookUpTableGrid>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, LookUpTableGrid> eldest) {
+            return size() > MAX_CACHED_GRIDS;
+        }
+    };
+
+    /**
+     * Weak references to all LookUpTableGrids which have been generated. This
+     * allows grids which have dropped out of the {@link #CACHE} but are still
+     * in use (e.g. by a dataset) to be shared without holding on to grids
+     * which are no longer used anywhere.
      */
-    private static final Map<CurvilinearCoords, LookUpTableGrid> CACHE = new HashMap<CurvilinearCoords, LookUpTableGrid>();
+    private static final Map<String, WeakReference<LookUpTableGrid>> ALL_GRIDS = new HashMap<>();
+
+    /** Directory in which look-up tables are stored. null to disable */
+    private static volatile File lutDirectory = null;
 
     private final LookUpTable lut;
 
@@ -74,30 +102,138 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
      */
     public static LookUpTableGrid generate(Array2D<Number> lonVals, Array2D<Number> latVals) {
         CurvilinearCoords curvCoords = new CurvilinearCoords(lonVals, latVals);
+        String key = curvCoords.getContentHash();
+
+        LookUpTableGrid lutGrid;
+        synchronized (CACHE) {
+            lutGrid = getCachedGrid(key);
+            if (lutGrid != null) {
+                return lutGrid;
+            }
+        }
 
         /*
-         * We calculate the required resolution of the look-up tables. We want
-         * this to be around 3 times the resolution of the grid.
+         * Creating a look-up table can take a long time, so it is done without
+         * holding the lock. Two threads may occasionally generate the same
+         * look-up table, but the result is the same in either case.
          */
-        double minLutResolution = Math.sqrt(curvCoords.getMeanCellArea()) / 3.0;
+        LookUpTable lut = readLut(key);
+        if (lut == null) {
+            /*
+             * We calculate the required resolution of the look-up tables. We
+             * want this to be around 3 times the resolution of the grid.
+             */
+            double minLutResolution = Math.sqrt(curvCoords.getMeanCellArea()) / 3.0;
+            /* Create a look-up table for this coord sys */
+            lut = new LookUpTable(curvCoords, minLutResolution);
+            writeLut(key, lut);
+        }
 
         synchronized (CACHE) {
-            LookUpTableGrid lutGrid = CACHE.get(curvCoords);
+            lutGrid = getCachedGrid(key);
             if (lutGrid == null) {
-                /* Create a look-up table for this coord sys */
-                LookUpTable lut = new LookUpTable(curvCoords, minLutResolution);
                 /* Create the LookUpTableGrid */
                 lutGrid = new LookUpTableGrid(curvCoords, lut);
                 /* Now put this in the cache */
-                CACHE.put(curvCoords, lutGrid);
+                CACHE.put(key, lutGrid);
+                ALL_GRIDS.put(key, new WeakReference<>(lutGrid));
             }
             return lutGrid;
         }
     }
 
+    /*
+     * Must be called whilst holding the lock on CACHE
+     */
+    private static LookUpTableGrid getCachedGrid(String key) {
+        LookUpTableGrid lutGrid = CACHE.get(key);
+        if (lutGrid == null) {
+            WeakReference<LookUpTableGrid> ref = ALL_GRIDS.get(key);
+            if (ref != null) {
+                lutGrid = ref.get();
+                if (lutGrid != null) {
+                    CACHE.put(key, lutGrid);
+                }
+            }
+            /* Remove references to grids which have been garbage collected */
+            Iterator<WeakReference<LookUpTableGrid>> it = ALL_GRIDS.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+        }
+        return lutGrid;
+    }
+
+    private static LookUpTable readLut(String key) {
+        File lutFile = getLutFile(key);
+        if (lutFile == null || !lutFile.exists()) {
+            return null;
+        }
+        try {
+            return LookUpTable.readFrom(lutFile);
+        } catch (IOException e) {
+            log.warn("Problem reading look-up table from " + lutFile + ".  It will be regenerated",
+                    e);
+            return null;
+        }
+    }
+
+    private static void writeLut(String key, LookUpTable lut) {
+        File lutFile = getLutFile(key);
+        if (lutFile == null) {
+            return;
+        }
+        /*
+         * Write to a temporary file first so that a partially-written file is
+         * never read as a look-up table
+         */
+        File tempFile = new File(lutFile.getAbsolutePath() + "." + Thread.currentThread().getId()
+                + ".tmp");
+        try {
+            lut.writeTo(tempFile);
+            if (!tempFile.renameTo(lutFile)) {
+                log.warn("Problem writing look-up table to " + lutFile);
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            log.warn("Problem writing look-up table to " + lutFile, e);
+            tempFile.delete();
+        }
+    }
+
+    private static File getLutFile(String key) {
+        File dir = lutDirectory;
+        if (dir == null) {
+            return null;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.warn("Cannot create look-up table directory " + dir);
+            return null;
+        }
+        return new File(dir, key + ".lut");
+    }
+
+    /**
+     * Sets the directory in which to store generated look-up tables. Look-up
+     * tables can take a long time to generate for large grids, but once
+     * stored they can be read (memory-mapped) almost instantly, so that
+     * reloading datasets with the same coordinates is quick, even after a
+     * restart.
+     * 
+     * @param lutDirectory
+     *            The directory to store look-up tables in, or
+     *            <code>null</code> to disable storing them
+     */
+    public static void setLutDirectory(File lutDirectory) {
+        LookUpTableGrid.lutDirectory = lutDirectory;
+    }
+
     public static void clearCache() {
         synchronized (CACHE) {
             CACHE.clear();
+            ALL_GRIDS.clear();
         }
     }
 
@@ -112,8 +248,39 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
         if(!GISUtils.isWgs84LonLat(position.getCoordinateReferenceSystem())) {
             position = GISUtils.transformPosition(position, DefaultGeographicCRS.WGS84);
         }
-        double x = position.getX();
-        double y = position.getY();
+        Cell cell = findNearestCell(position.getX(), position.getY());
+        if (cell == null) {
+            return null;
+        }
+        return new GridCoordinates2D(cell.getI(), cell.getJ());
+    }
+
+    @Override
+    public void findIndicesOf(double[] xs, double[] ys, CoordinateReferenceSystem crs,
+            int[] outI, int[] outJ) {
+        double[][] lonLats = GISUtils.transformPositions(xs, ys, crs, DefaultGeographicCRS.WGS84);
+        for (int p = 0; p < xs.length; p++) {
+            Cell cell = null;
+            if (!Double.isNaN(lonLats[0][p]) && !Double.isNaN(lonLats[1][p])) {
+                cell = findNearestCell(lonLats[0][p], lonLats[1][p]);
+            }
+            if (cell != null) {
+                outI[p] = cell.getI();
+                outJ[p] = cell.getJ();
+            } else {
+                outI[p] = -1;
+                outJ[p] = -1;
+            }
+        }
+    }
+
+    /**
+     * Finds the cell nearest to a WGS84 position
+     * 
+     * @return The nearest {@link Cell}, or <code>null</code> if the position
+     *         is not in the domain of the look-up table
+     */
+    private Cell findNearestCell(double x, double y) {
         /*
          * Find the "first guess" at the containing cell according to the
          * look-up table
@@ -128,16 +295,15 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
          */
         Cell cell = curvCoords.getCell(lutCoords[0], lutCoords[1]);
         if (cell.contains(x, y)) {
-            return new GridCoordinates2D(lutCoords[0], lutCoords[1]);
+            return cell;
         }
 
         /*
-         * We do a gradient-descent method to find the true nearest neighbour We
-         * store the grid coordinates that we have already examined.
-         */
-        Set<Cell> examined = new HashSet<Cell>();
-        examined.add(cell);
-        /*
+         * We do a gradient-descent method to find the true nearest neighbour.
+         * We only ever move to a cell which is strictly nearer than any cell
+         * examined so far, so there is no need to keep track of which cells
+         * have already been examined.
+         * 
          * Find the Euclidean distance from the cell centre to the target
          * position
          */
@@ -149,14 +315,11 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
         for (int i = 0; found && i < maxIterations; i++) {
             found = false;
             for (Cell neighbour : cell.getNeighbours()) {
-                if (!examined.contains(neighbour)) {
-                    double distanceSq = neighbour.findDistanceSq(x, y);
-                    if (distanceSq < shortestDistanceSq) {
-                        cell = neighbour;
-                        shortestDistanceSq = distanceSq;
-                        found = true;
-                    }
-                    examined.add(neighbour);
+                double distanceSq = neighbour.findDistanceSq(x, y);
+                if (distanceSq < shortestDistanceSq) {
+                    cell = neighbour;
+                    shortestDistanceSq = distanceSq;
+                    found = true;
                 }
             }
         }
@@ -166,11 +329,11 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
          * actually contained within one of the cell's neighbours
          */
         if (cell.contains(x, y)) {
-            return new GridCoordinates2D(cell.getI(), cell.getJ());
+            return cell;
         }
         for (Cell neighbour : cell.getNeighbours()) {
             if (neighbour.contains(x, y)) {
-                return new GridCoordinates2D(neighbour.getI(), neighbour.getJ());
+                return neighbour;
             }
         }
 
@@ -179,7 +342,7 @@ public final class LookUpTableGrid extends AbstractCurvilinearGrid {
          * the contains() checks. This is probably OK in the middle of a grid,
          * but we might need to be careful at the edges
          */
-        return new GridCoordinates2D(cell.getI(), cell.getJ());
+        return cell;
     }
 
     @Override
@@ -151,6 +151,39 @@ public class RectilinearGridImpl extends AbstractHorizontalGrid implements Recti
         }
     }
 
+    @Override
+    public void findIndicesOf(double[] xs, double[] ys, CoordinateReferenceSystem crs,
+            int[] outI, int[] outJ) {
+        double[][] transformed = GISUtils.transformPositions(xs, ys, crs, this.crs);
+        double[] gridXs = transformed[0];
+        double[] gridYs = transformed[1];
+        for (int p = 0; p < xs.length; p++) {
+            int x = findAxisIndex(xAxis, gridXs[p]);
+            int y = x >= 0 ? findAxisIndex(yAxis, gridYs[p]) : -1;
+            if (x >= 0 && y >= 0) {
+                outI[p] = x;
+                outJ[p] = y;
+            } else {
+                outI[p] = -1;
+                outJ[p] = -1;
+            }
+        }
+    }
+
+    /*
+     * Finds an index on an axis, avoiding boxing for the standard axis
+     * implementations
+     */
+    private static int findAxisIndex(ReferenceableAxis<Double> axis, double value) {
+        if (axis instanceof RegularAxisImpl) {
+            return ((RegularAxisImpl) axis).findIndexOfValue(value);
+        } else if (axis instanceof ReferenceableAxisImpl) {
+            return ((ReferenceableAxisImpl) axis).findIndexOfValue(value);
+        } else {
+            return axis.findIndexOf(value);
+        }
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
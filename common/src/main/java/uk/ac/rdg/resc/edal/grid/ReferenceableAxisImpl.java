@@ -28,6 +28,7 @@
 
 package uk.ac.rdg.resc.edal.grid;
 
+import java.util.Arrays;
 import java.util.List;
 
 import uk.ac.rdg.resc.edal.util.GISUtils;
@@ -42,6 +43,13 @@ import uk.ac.rdg.resc.edal.util.GISUtils;
 public class ReferenceableAxisImpl extends AbstractIrregularAxis<Double> {
 
     private final boolean isLongitude;
+    /*
+     * Primitive copies of the (ascending) axis values and the axis extent, so
+     * that indices can be found without boxing
+     */
+    private final double[] values;
+    private final double extentLow;
+    private final double extentHigh;
 
     /**
      * Creates a ReferenceableAxis from the given array of axis values. The axis
@@ -64,16 +72,54 @@ public class ReferenceableAxisImpl extends AbstractIrregularAxis<Double> {
     public ReferenceableAxisImpl(String name, List<Double> axisValues, boolean isLongitude) {
         super(name, axisValues);
         this.isLongitude = isLongitude;
+        values = new double[size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getCoordinateValue(reversed ? values.length - 1 - i : i);
+        }
+        extentLow = getCoordinateExtent().getLow();
+        extentHigh = getCoordinateExtent().getHigh();
     }
 
     @Override
     public int findIndexOf(Double position) {
-        if (position == null || Double.isNaN(position))
+        if (position == null)
+            return -1;
+        return findIndexOfValue(position);
+    }
+
+    /**
+     * Equivalent to {@link #findIndexOf(Double)}, but without boxing, for use
+     * when finding many indices at once
+     */
+    int findIndexOfValue(double position) {
+        if (Double.isNaN(position))
             return -1;
         if (isLongitude) {
-            position = GISUtils.getNextEquivalentLongitude(this.getMinimumValue(), position);
+            position = GISUtils.getNextEquivalentLongitude(values[0], position);
+        }
+        int index = Arrays.binarySearch(values, position);
+        if (index < 0) {
+            int insertionPoint = -(index + 1);
+            if (insertionPoint == 0) {
+                /* Below the first value, but may be within its bounds */
+                if (position < extentLow) {
+                    return -1;
+                }
+                index = 0;
+            } else if (insertionPoint == values.length) {
+                /* Above the last value, but may be within its bounds */
+                if (position > extentHigh) {
+                    return -1;
+                }
+                index = values.length - 1;
+            } else if (Math.abs(values[insertionPoint] - position) < Math
+                    .abs(values[insertionPoint - 1] - position)) {
+                index = insertionPoint;
+            } else {
+                index = insertionPoint - 1;
+            }
         }
-        return super.findIndexOf(position);
+        return reversed ? values.length - 1 - index : index;
     }
 
     @Override
@@ -50,6 +50,11 @@ public final class RegularAxisImpl extends AbstractReferenceableAxis<Double> imp
      */
     private int size;
     private final boolean isLongitude;
+    /*
+     * The lower bound of the coordinate extent, cached for index searches on
+     * longitude axes
+     */
+    private double extentLow;
 
     public RegularAxisImpl(String name, double firstValue, double spacing, int size,
             boolean isLongitude) {
@@ -68,6 +73,7 @@ public final class RegularAxisImpl extends AbstractReferenceableAxis<Double> imp
         this.firstValue = firstValue;
         this.spacing = spacing;
         this.size = size;
+        this.extentLow = getCoordinateExtent().getLow();
     }
 
     @Override
@@ -111,12 +117,22 @@ public final class RegularAxisImpl extends AbstractReferenceableAxis<Double> imp
 
     @Override
     public int findIndexOf(Double position) {
-        if (position == null || Double.isNaN(position)) {
+        if (position == null) {
+            return -1;
+        }
+        return findIndexOfValue(position);
+    }
+
+    /**
+     * Equivalent to {@link #findIndexOf(Double)}, but without boxing, for use
+     * when finding many indices at once
+     */
+    int findIndexOfValue(double position) {
+        if (Double.isNaN(position)) {
             return -1;
         }
         if (isLongitude) {
-            position = GISUtils
-                    .getNextEquivalentLongitude(getCoordinateExtent().getLow(), position);
+            position = GISUtils.getNextEquivalentLongitude(extentLow, position);
         }
         /*
          * This method will generally be faster than an exhaustive search, or
@@ -124,7 +140,7 @@ public final class RegularAxisImpl extends AbstractReferenceableAxis<Double> imp
          */
 
         /* We find the (non-integer) index of the given value */
-        Double indexDbl = getIndex(position);
+        double indexDbl = (position - firstValue) / spacing;
         /* We round to the nearest integer */
         int index = (int) Math.round(indexDbl);
         if (index < 0 || index >= size) {
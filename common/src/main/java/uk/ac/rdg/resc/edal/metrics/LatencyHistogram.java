@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with fixed bucket boundaries. Recording a duration
+ * is lock-free, so this can be shared between request threads.
+ * 
+ * @author Guy Griffiths
+ */
+public final class LatencyHistogram {
+    /*
+     * The upper bounds of the buckets, in milliseconds. There is an additional
+     * bucket for anything longer than the last bound.
+     */
+    private static final double[] BUCKET_BOUNDS_MILLIS = { 1, 2.5, 5, 10, 25, 50, 100, 250,
+            500, 1000, 2500, 5000, 10000, 30000 };
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_MILLIS.length];
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = (long) (BUCKET_BOUNDS_MILLIS[i] * 1000000L);
+        }
+    }
+
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(
+            BUCKET_BOUNDS_MILLIS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    /**
+     * Records a duration
+     * 
+     * @param nanos
+     *            The duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        bucketCounts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Adds all of the durations recorded in another {@link LatencyHistogram}
+     * to this one
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < bucketCounts.length(); i++) {
+            bucketCounts.addAndGet(i, other.bucketCounts.get(i));
+        }
+        count.addAndGet(other.count.get());
+        sumNanos.addAndGet(other.sumNanos.get());
+    }
+
+    /**
+     * @return The upper bounds of the buckets, in milliseconds. The final
+     *         bucket (which is not included) has no upper bound.
+     */
+    public static double[] getBucketBoundsMillis() {
+        return BUCKET_BOUNDS_MILLIS.clone();
+    }
+
+    /**
+     * @return The number of durations in each bucket. This has one more entry
+     *         than {@link #getBucketBoundsMillis()}, for durations longer than
+     *         the largest bound.
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[bucketCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = bucketCounts.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * @return The number of durations which have been recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The total of all recorded durations, in nanoseconds
+     */
+    public long getSumNanos() {
+        return sumNanos.get();
+    }
+
+    /**
+     * @return The mean of the recorded durations in milliseconds, or 0 if
+     *         none have been recorded
+     */
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0.0 : sumNanos.get() / (n * 1e6);
+    }
+
+    /**
+     * Estimates a percentile of the recorded durations, by interpolating
+     * within the bucket which contains it.
+     * 
+     * @param percentile
+     *            The percentile to estimate, between 0 and 100
+     * @return The estimated duration in milliseconds, or 0 if none have been
+     *         recorded. Durations longer than the largest bucket bound are
+     *         reported as that bound.
+     */
+    public double getPercentileMillis(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0.0;
+        }
+        double rank = total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0;
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            if (counts[i] > 0 && cumulative + counts[i] >= rank) {
+                double lower = i == 0 ? 0.0 : BUCKET_BOUNDS_MILLIS[i - 1];
+                double fraction = (rank - cumulative) / counts[i];
+                return lower + fraction * (BUCKET_BOUNDS_MILLIS[i] - lower);
+            }
+            cumulative += counts[i];
+        }
+        return BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1];
+    }
+}
@@ -0,0 +1,650 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects timings of the stages of the request pipeline, along with the
+ * amount of data read, cache hit ratios and the number of active and queued
+ * requests.
+ * 
+ * Stages are timed with:
+ * 
+ * <pre>
+ * long start = RequestMetrics.start();
+ * ...
+ * RequestMetrics.stop(Stage.READ, start);
+ * </pre>
+ * 
+ * Timings and byte counts are attributed to the dataset and layer set for the
+ * current thread by {@link #attribute(String, String)}. Stages can be nested
+ * (e.g. rendering a map includes reading its data), so the time spent in
+ * different stages does not add up to the time spent on a request.
+ * 
+ * When collection is disabled (the default), each of these methods costs a
+ * single volatile read.
+ * 
+ * @author Guy Griffiths
+ */
+public final class RequestMetrics {
+    private static final Logger log = LoggerFactory.getLogger(RequestMetrics.class);
+
+    /**
+     * The name under which the {@link RequestMetricsMXBean} is registered
+     */
+    public static final String OBJECT_NAME = "uk.ac.rdg.resc.edal:type=RequestMetrics";
+
+    /*
+     * Dataset IDs, layer names and request types come from clients, so we
+     * limit the number of distinct series. Anything beyond this is recorded
+     * under OTHER.
+     */
+    private static final int MAX_SERIES = 1000;
+    private static final String OTHER = "other";
+
+    /**
+     * The stages of the request pipeline which are timed
+     */
+    public enum Stage {
+        /** Compiling a style into a MapImage */
+        STYLE("style"),
+        /** Mapping a target grid onto a source grid */
+        DOMAIN_MAPPING("domain_mapping"),
+        /** Reading the data for a map */
+        READ("read"),
+        /** Drawing an image */
+        RENDER("render"),
+        /** Encoding images into the output format */
+        ENCODE("encode");
+
+        private final String label;
+
+        private Stage(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return The name of this stage, as used in reported metrics
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * The dataset and layer which measurements are attributed to
+     */
+    public static final class Attribution {
+        private final String datasetId;
+        private final String layerName;
+
+        public Attribution(String datasetId, String layerName) {
+            this.datasetId = datasetId == null ? "" : datasetId;
+            this.layerName = layerName == null ? "" : layerName;
+        }
+
+        public String getDatasetId() {
+            return datasetId;
+        }
+
+        public String getLayerName() {
+            return layerName;
+        }
+    }
+
+    /**
+     * Restores the previous {@link Attribution} when closed. This is intended
+     * for use in try-with-resources statements.
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        public void close();
+    }
+
+    /**
+     * Identifies the timings of a single stage for a single dataset and layer
+     */
+    public static final class Series {
+        private final Stage stage;
+        private final String datasetId;
+        private final String layerName;
+
+        private Series(Stage stage, String datasetId, String layerName) {
+            this.stage = stage;
+            this.datasetId = datasetId;
+            this.layerName = layerName;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        /**
+         * @return The ID of the dataset, or an empty string if the timings
+         *         were not attributed to a dataset
+         */
+        public String getDatasetId() {
+            return datasetId;
+        }
+
+        /**
+         * @return The name of the layer, or an empty string if the timings
+         *         were not attributed to a single layer
+         */
+        public String getLayerName() {
+            return layerName;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + stage.hashCode();
+            result = prime * result + datasetId.hashCode();
+            result = prime * result + layerName.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Series))
+                return false;
+            Series other = (Series) obj;
+            return stage == other.stage && datasetId.equals(other.datasetId)
+                    && layerName.equals(other.layerName);
+        }
+    }
+
+    private static final Scope NO_SCOPE = new Scope() {
+        @Override
+        public void close() {
+        }
+    };
+
+    private static volatile boolean enabled = false;
+
+    private static final ThreadLocal<Attribution> currentAttribution = new ThreadLocal<>();
+
+    private static final ConcurrentMap<Series, LatencyHistogram> stageLatencies = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LatencyHistogram> requestLatencies = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, AtomicInteger> activeRequests = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, AtomicLong> bytesRead = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CacheCounter> caches = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Collection<?>> queues = new ConcurrentHashMap<>();
+
+    private RequestMetrics() {
+    }
+
+    /**
+     * @return Whether metrics are currently being collected
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets whether metrics should be collected. Previously collected metrics
+     * are kept when collection is disabled.
+     */
+    public static void setEnabled(boolean enabled) {
+        if (RequestMetrics.enabled != enabled) {
+            log.info((enabled ? "Enabling" : "Disabling") + " request metrics");
+        }
+        RequestMetrics.enabled = enabled;
+    }
+
+    /**
+     * Starts timing a stage
+     * 
+     * @return A value to pass to {@link #stop(Stage, long)}
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Finishes timing a stage
+     * 
+     * @param stage
+     *            The {@link Stage} being timed
+     * @param start
+     *            The value returned by {@link #start()}
+     */
+    public static void stop(Stage stage, long start) {
+        if (start == 0L) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        Attribution attribution = currentAttribution.get();
+        Series series = attribution == null ? new Series(stage, "", "") : new Series(stage,
+                attribution.datasetId, attribution.layerName);
+        LatencyHistogram histogram = stageLatencies.get(series);
+        if (histogram == null) {
+            histogram = addSeries(stageLatencies, series, new Series(stage, OTHER, OTHER),
+                    new LatencyHistogram());
+        }
+        histogram.record(elapsed);
+    }
+
+    /**
+     * Attributes all measurements made on this thread to the given dataset
+     * and layer, until the returned {@link Scope} is closed.
+     * 
+     * @param datasetId
+     *            The ID of the dataset, or <code>null</code> if the
+     *            measurements do not relate to a single dataset
+     * @param layerName
+     *            The name of the layer, or <code>null</code> if the
+     *            measurements do not relate to a single layer
+     * @return A {@link Scope} which restores the previous attribution when
+     *         closed
+     */
+    public static Scope attribute(String datasetId, String layerName) {
+        if (!enabled) {
+            return NO_SCOPE;
+        }
+        return attribute(new Attribution(datasetId, layerName));
+    }
+
+    /**
+     * Attributes all measurements made on this thread in the same way as
+     * those on the thread which returned the given {@link Attribution} from
+     * {@link #getAttribution()}. This is used to hand work to another thread.
+     * 
+     * @param attribution
+     *            The {@link Attribution} to use. May be <code>null</code>
+     * @return A {@link Scope} which restores the previous attribution when
+     *         closed
+     */
+    public static Scope attribute(Attribution attribution) {
+        if (!enabled) {
+            return NO_SCOPE;
+        }
+        final Attribution previous = currentAttribution.get();
+        currentAttribution.set(attribution);
+        return new Scope() {
+            @Override
+            public void close() {
+                if (previous == null) {
+                    currentAttribution.remove();
+                } else {
+                    currentAttribution.set(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return The {@link Attribution} for measurements made on this thread,
+     *         or <code>null</code> if there is none
+     */
+    public static Attribution getAttribution() {
+        return enabled ? currentAttribution.get() : null;
+    }
+
+    /**
+     * Records that a request has started
+     * 
+     * @param request
+     *            The type of request (e.g. GetMap)
+     * @return A value to pass to {@link #requestFinished(String, long)}
+     */
+    public static long requestStarted(String request) {
+        if (!enabled) {
+            return 0L;
+        }
+        getActiveCounter(request).incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records that a request has finished
+     * 
+     * @param request
+     *            The type of request (e.g. GetMap)
+     * @param start
+     *            The value returned by {@link #requestStarted(String)}
+     */
+    public static void requestFinished(String request, long start) {
+        if (start == 0L) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        getActiveCounter(request).decrementAndGet();
+        LatencyHistogram histogram = requestLatencies.get(request);
+        if (histogram == null) {
+            histogram = addSeries(requestLatencies, request, OTHER, new LatencyHistogram());
+        }
+        histogram.record(elapsed);
+    }
+
+    private static AtomicInteger getActiveCounter(String request) {
+        AtomicInteger counter = activeRequests.get(request);
+        if (counter == null) {
+            counter = addSeries(activeRequests, request, OTHER, new AtomicInteger());
+        }
+        return counter;
+    }
+
+    /**
+     * Records that source data has been read. This is attributed to the
+     * current dataset.
+     * 
+     * @param bytes
+     *            The number of bytes read
+     */
+    public static void addBytesRead(long bytes) {
+        if (!enabled) {
+            return;
+        }
+        Attribution attribution = currentAttribution.get();
+        String datasetId = attribution == null ? "" : attribution.datasetId;
+        AtomicLong counter = bytesRead.get(datasetId);
+        if (counter == null) {
+            counter = addSeries(bytesRead, datasetId, OTHER, new AtomicLong());
+        }
+        counter.addAndGet(bytes);
+    }
+
+    /**
+     * Records an access to a cache
+     * 
+     * @param cacheName
+     *            The name of the cache
+     * @param hit
+     *            Whether the requested item was in the cache
+     */
+    public static void cacheAccess(String cacheName, boolean hit) {
+        if (!enabled) {
+            return;
+        }
+        CacheCounter counter = caches.get(cacheName);
+        if (counter == null) {
+            counter = addSeries(caches, cacheName, OTHER, new CacheCounter());
+        }
+        counter.record(hit);
+    }
+
+    /**
+     * Registers a queue of tasks waiting for worker threads, so that its size
+     * is reported. The size is read whenever metrics are reported, so this has
+     * no cost when handling requests.
+     * 
+     * @param name
+     *            The name to report the queue under
+     * @param queue
+     *            The queue
+     */
+    public static void registerQueue(String name, Collection<?> queue) {
+        queues.put(name, queue);
+    }
+
+    private static <K, V> V addSeries(ConcurrentMap<K, V> map, K key, K overflowKey, V value) {
+        if (map.size() >= MAX_SERIES) {
+            key = overflowKey;
+        }
+        V existing = map.putIfAbsent(key, value);
+        return existing == null ? value : existing;
+    }
+
+    /**
+     * @return The timings of each stage, for each dataset and layer
+     */
+    public static Map<Series, LatencyHistogram> getStageLatencies() {
+        return Collections.unmodifiableMap(new HashMap<>(stageLatencies));
+    }
+
+    /**
+     * @return The timings of each stage, over all datasets and layers
+     */
+    public static Map<Stage, LatencyHistogram> getStageTotals() {
+        Map<Stage, LatencyHistogram> totals = new HashMap<>();
+        for (Entry<Series, LatencyHistogram> entry : stageLatencies.entrySet()) {
+            Stage stage = entry.getKey().getStage();
+            LatencyHistogram total = totals.get(stage);
+            if (total == null) {
+                total = new LatencyHistogram();
+                totals.put(stage, total);
+            }
+            total.add(entry.getValue());
+        }
+        return totals;
+    }
+
+    /**
+     * @return The timings of each type of request
+     */
+    public static Map<String, LatencyHistogram> getRequestLatencies() {
+        return Collections.unmodifiableMap(new HashMap<>(requestLatencies));
+    }
+
+    /**
+     * @return The number of requests of each type currently being handled
+     */
+    public static Map<String, Integer> getActiveRequests() {
+        Map<String, Integer> active = new HashMap<>();
+        for (Entry<String, AtomicInteger> entry : activeRequests.entrySet()) {
+            active.put(entry.getKey(), entry.getValue().get());
+        }
+        return active;
+    }
+
+    /**
+     * @return The number of tasks waiting in each registered queue
+     */
+    public static Map<String, Integer> getQueuedTasks() {
+        Map<String, Integer> queued = new HashMap<>();
+        for (Entry<String, Collection<?>> entry : queues.entrySet()) {
+            queued.put(entry.getKey(), entry.getValue().size());
+        }
+        return queued;
+    }
+
+    /**
+     * @return The number of bytes of source data read for each dataset
+     */
+    public static Map<String, Long> getBytesRead() {
+        Map<String, Long> bytes = new HashMap<>();
+        for (Entry<String, AtomicLong> entry : bytesRead.entrySet()) {
+            bytes.put(entry.getKey(), entry.getValue().get());
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The hit/miss counts of each cache
+     */
+    public static Map<String, CacheCounter> getCaches() {
+        return Collections.unmodifiableMap(new HashMap<>(caches));
+    }
+
+    /**
+     * Discards all recorded timings and counts. The number of active requests
+     * and the registered queues are kept.
+     */
+    public static void reset() {
+        stageLatencies.clear();
+        requestLatencies.clear();
+        bytesRead.clear();
+        caches.clear();
+    }
+
+    /**
+     * Registers a {@link RequestMetricsMXBean} with the platform MBean server,
+     * under {@link #OBJECT_NAME}. This does nothing if it is already
+     * registered.
+     */
+    public static void registerMXBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MXBean(), name);
+            }
+        } catch (JMException e) {
+            log.warn("Problem registering request metrics with JMX", e);
+        }
+    }
+
+    /**
+     * Removes the {@link RequestMetricsMXBean} from the platform MBean server
+     */
+    public static void unregisterMXBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Problem removing request metrics from JMX", e);
+        }
+    }
+
+    private static final class MXBean implements RequestMetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return RequestMetrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            RequestMetrics.setEnabled(enabled);
+        }
+
+        @Override
+        public int getActiveRequests() {
+            int total = 0;
+            for (Integer active : RequestMetrics.getActiveRequests().values()) {
+                total += active;
+            }
+            return total;
+        }
+
+        @Override
+        public int getQueuedTasks() {
+            int total = 0;
+            for (Integer queued : RequestMetrics.getQueuedTasks().values()) {
+                total += queued;
+            }
+            return total;
+        }
+
+        @Override
+        public long getBytesRead() {
+            long total = 0L;
+            for (Long bytes : RequestMetrics.getBytesRead().values()) {
+                total += bytes;
+            }
+            return total;
+        }
+
+        @Override
+        public Map<String, Double> getCacheHitRatios() {
+            Map<String, Double> ratios = new HashMap<>();
+            for (Entry<String, CacheCounter> entry : caches.entrySet()) {
+                double ratio = entry.getValue().getHitRatio();
+                if (!Double.isNaN(ratio)) {
+                    ratios.put(entry.getKey(), ratio);
+                }
+            }
+            return ratios;
+        }
+
+        @Override
+        public Map<String, Long> getStageCounts() {
+            Map<String, Long> counts = new HashMap<>();
+            for (Entry<Stage, LatencyHistogram> entry : getStageTotals().entrySet()) {
+                counts.put(entry.getKey().getLabel(), entry.getValue().getCount());
+            }
+            return counts;
+        }
+
+        @Override
+        public Map<String, Double> getStageMeanMillis() {
+            Map<String, Double> means = new HashMap<>();
+            for (Entry<Stage, LatencyHistogram> entry : getStageTotals().entrySet()) {
+                means.put(entry.getKey().getLabel(), entry.getValue().getMeanMillis());
+            }
+            return means;
+        }
+
+        @Override
+        public Map<String, Double> getStage95thPercentileMillis() {
+            Map<String, Double> percentiles = new HashMap<>();
+            for (Entry<Stage, LatencyHistogram> entry : getStageTotals().entrySet()) {
+                percentiles.put(entry.getKey().getLabel(),
+                        entry.getValue().getPercentileMillis(95.0));
+            }
+            return percentiles;
+        }
+
+        @Override
+        public Map<String, Long> getRequestCounts() {
+            Map<String, Long> counts = new HashMap<>();
+            for (Entry<String, LatencyHistogram> entry : requestLatencies.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue().getCount());
+            }
+            return counts;
+        }
+
+        @Override
+        public Map<String, Double> getRequestMeanMillis() {
+            Map<String, Double> means = new HashMap<>();
+            for (Entry<String, LatencyHistogram> entry : requestLatencies.entrySet()) {
+                means.put(entry.getKey(), entry.getValue().getMeanMillis());
+            }
+            return means;
+        }
+
+        @Override
+        public void reset() {
+            RequestMetrics.reset();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX management interface for {@link RequestMetrics}. Stage and request
+ * statistics are aggregated over all datasets and layers - the per-layer
+ * figures are available from the ncWMS admin pages.
+ * 
+ * @author Guy Griffiths
+ */
+public interface RequestMetricsMXBean {
+    public boolean isEnabled();
+
+    public void setEnabled(boolean enabled);
+
+    /**
+     * @return The number of requests currently being handled
+     */
+    public int getActiveRequests();
+
+    /**
+     * @return The number of tasks waiting for a worker thread
+     */
+    public int getQueuedTasks();
+
+    /**
+     * @return The number of bytes of source data read for maps
+     */
+    public long getBytesRead();
+
+    /**
+     * @return The hit ratio of each cache which has been accessed
+     */
+    public Map<String, Double> getCacheHitRatios();
+
+    /**
+     * @return The number of times each stage has been timed
+     */
+    public Map<String, Long> getStageCounts();
+
+    /**
+     * @return The mean duration of each stage, in milliseconds
+     */
+    public Map<String, Double> getStageMeanMillis();
+
+    /**
+     * @return The estimated 95th percentile duration of each stage, in
+     *         milliseconds
+     */
+    public Map<String, Double> getStage95thPercentileMillis();
+
+    /**
+     * @return The number of requests of each type which have completed
+     */
+    public Map<String, Long> getRequestCounts();
+
+    /**
+     * @return The mean duration of each type of request, in milliseconds
+     */
+    public Map<String, Double> getRequestMeanMillis();
+
+    /**
+     * Discards all recorded timings and counts
+     */
+    public void reset();
+}
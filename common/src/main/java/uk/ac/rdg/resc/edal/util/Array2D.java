@@ -112,4 +112,27 @@ public abstract class Array2D<T> implements Array<T> {
     public int getYSize() {
         return shape[Y_IND];
     }
+
+    /**
+     * Gets a value from the array as a primitive float. Missing values are
+     * returned as {@link Float#NaN}.
+     * 
+     * This implementation delegates to {@link #get(int...)}. Subclasses which
+     * store primitive values should override it so that values can be read
+     * without creating a {@link Number} object for each one.
+     * 
+     * @param y
+     *            The y-index of the value
+     * @param x
+     *            The x-index of the value
+     * @return The value at the given indices, or {@link Float#NaN} if it is
+     *         missing
+     */
+    public float getFloat(int y, int x) {
+        T value = get(y, x);
+        if (value instanceof Number) {
+            return ((Number) value).floatValue();
+        }
+        return Float.NaN;
+    }
 }
@@ -143,4 +143,32 @@ public abstract class Array4D<T> implements Array<T> {
     public int getTSize() {
         return shape[T_IND];
     }
+
+    /**
+     * Gets a value from the array as a primitive float. Missing values are
+     * returned as {@link Float#NaN}.
+     * 
+     * This implementation delegates to {@link #get(int...)}. Subclasses which
+     * store primitive values (or wrap an underlying data source) should
+     * override it so that values can be read without creating a
+     * {@link Number} object for each one.
+     * 
+     * @param t
+     *            The t-index of the value
+     * @param z
+     *            The z-index of the value
+     * @param y
+     *            The y-index of the value
+     * @param x
+     *            The x-index of the value
+     * @return The value at the given indices, or {@link Float#NaN} if it is
+     *         missing
+     */
+    public float getFloat(int t, int z, int y, int x) {
+        T value = get(t, z, y, x);
+        if (value instanceof Number) {
+            return ((Number) value).floatValue();
+        }
+        return Float.NaN;
+    }
 }
@@ -30,6 +30,9 @@ package uk.ac.rdg.resc.edal.util;
 
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -75,6 +78,8 @@ public final class CurvilinearCoords {
     private final Array2D<Number> cornerLats;
     /** The lon-lat bounding box of the grid */
     private final BoundingBox lonLatBbox;
+    /** Lazily-calculated digest of the coordinate values */
+    private volatile String contentHash = null;
 
     public CurvilinearCoords(Array2D<Number> lonVals, Array2D<Number> latVals) {
         /* Sanity check */
@@ -223,6 +228,26 @@ public final class CurvilinearCoords {
                 cornerJ, cornerI).doubleValue());
     }
 
+    /*
+     * Direct access to coordinate values, for generating look-up tables
+     * without creating Cell objects
+     */
+    float getMidpointLon(int i, int j) {
+        return longitudes[getIndex(i, j)];
+    }
+
+    float getMidpointLat(int i, int j) {
+        return latitudes[getIndex(i, j)];
+    }
+
+    double getCornerLon(int cornerI, int cornerJ) {
+        return cornerLons.get(cornerJ, cornerI).doubleValue();
+    }
+
+    double getCornerLat(int cornerI, int cornerJ) {
+        return cornerLats.get(cornerJ, cornerI).doubleValue();
+    }
+
     /**
      * Gets the [i,j]th cell in this grid.
      * 
@@ -252,6 +277,35 @@ public final class CurvilinearCoords {
         return nj;
     }
 
+    /**
+     * Returns a digest of the longitude and latitude values of this grid, as a
+     * hexadecimal string. Two {@link CurvilinearCoords} which are equal will
+     * have the same content hash, so this can be used as a key for data
+     * derived from the coordinates which is stored outside of memory.
+     */
+    public String getContentHash() {
+        if (contentHash == null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                /* All Java implementations are required to support SHA-1 */
+                throw new IllegalStateException(e);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(8 + 8 * longitudes.length);
+            buf.putInt(ni).putInt(nj);
+            for (int i = 0; i < longitudes.length; i++) {
+                buf.putFloat(longitudes[i]).putFloat(latitudes[i]);
+            }
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest(buf.array())) {
+                hash.append(String.format("%02x", b));
+            }
+            contentHash = hash.toString();
+        }
+        return contentHash;
+    }
+
     /** Returns the number of cells in this grid */
     public int size() {
         return longitudes.length;
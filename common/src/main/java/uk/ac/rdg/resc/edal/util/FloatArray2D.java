@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.Arrays;
+
+/**
+ * Implementation of an {@link Array2D} which uses a primitive float array for
+ * storage. Missing values are stored as {@link Float#NaN} and are returned as
+ * <code>null</code> from {@link #get(int...)}, so this can be used in place of
+ * a {@link ValuesArray2D} wherever single-precision values are sufficient
+ * (e.g. for data which is to be plotted).
+ * 
+ * Values should be read and written with {@link #getFloat(int, int)} and
+ * {@link #setFloat(float, int, int)} where possible, since these do not create
+ * a {@link Number} object for every value.
+ * 
+ * @author Guy Griffiths
+ */
+public class FloatArray2D extends Array2D<Number> {
+
+    private final float[] data;
+    private final int xSize;
+    private final int ySize;
+
+    /**
+     * Creates a new {@link FloatArray2D} with all values initially missing
+     * 
+     * @param ySize
+     *            The size of the array in the y-direction
+     * @param xSize
+     *            The size of the array in the x-direction
+     */
+    public FloatArray2D(int ySize, int xSize) {
+        super(ySize, xSize);
+        this.xSize = xSize;
+        this.ySize = ySize;
+        data = new float[ySize * xSize];
+        Arrays.fill(data, Float.NaN);
+    }
+
+    @Override
+    public Number get(int... coords) {
+        if (coords.length != 2) {
+            throw new IllegalArgumentException("Wrong number of co-ordinates (" + coords.length
+                    + ") for this Array (needs 2)");
+        }
+        float value = data[getIndex(coords[Y_IND], coords[X_IND])];
+        if (Float.isNaN(value)) {
+            return null;
+        }
+        return value;
+    }
+
+    @Override
+    public void set(Number value, int... coords) {
+        if (coords.length != 2) {
+            throw new IllegalArgumentException("Wrong number of co-ordinates (" + coords.length
+                    + ") for this Array (needs 2)");
+        }
+        data[getIndex(coords[Y_IND], coords[X_IND])] = (value == null) ? Float.NaN : value
+                .floatValue();
+    }
+
+    @Override
+    public float getFloat(int y, int x) {
+        return data[getIndex(y, x)];
+    }
+
+    /**
+     * Sets a value in the array. Missing values should be set as
+     * {@link Float#NaN}.
+     * 
+     * @param value
+     *            The value to set
+     * @param y
+     *            The y-index of the value
+     * @param x
+     *            The x-index of the value
+     */
+    public void setFloat(float value, int y, int x) {
+        data[getIndex(y, x)] = value;
+    }
+
+    /**
+     * Sets every value in the array to the given value
+     * 
+     * @param value
+     *            The value to set. Use {@link Float#NaN} to mark every value as
+     *            missing.
+     */
+    public void fill(float value) {
+        Arrays.fill(data, value);
+    }
+
+    /**
+     * Returns the array which backs this {@link FloatArray2D}. This is stored
+     * with the x-dimension varying fastest (i.e. the value at (y,x) is at
+     * position <code>y * getXSize() + x</code>), and missing values are
+     * {@link Float#NaN}. Changes to the returned array will be reflected in
+     * this {@link FloatArray2D}.
+     * 
+     * This is intended for code which needs to process an entire array in a
+     * single pass (e.g. for plotting).
+     * 
+     * @return The backing array of this {@link FloatArray2D}
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    private int getIndex(int y, int x) {
+        if (x < 0 || x >= xSize || y < 0 || y >= ySize) {
+            throw new ArrayIndexOutOfBoundsException("Co-ordinates (" + y + "," + x
+                    + ") are out of bounds for this Array");
+        }
+        return y * xSize + x;
+    }
+}
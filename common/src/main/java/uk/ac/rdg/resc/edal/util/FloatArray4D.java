@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.Arrays;
+
+/**
+ * Implementation of an {@link Array4D} which uses a primitive float array for
+ * storage. Missing values are stored as {@link Float#NaN} and are returned as
+ * <code>null</code> from {@link #get(int...)}.
+ * 
+ * Values should be read and written with
+ * {@link #getFloat(int, int, int, int)} and
+ * {@link #setFloat(float, int, int, int, int)} where possible, since these do
+ * not create a {@link Number} object for every value.
+ * 
+ * @author Guy Griffiths
+ */
+public class FloatArray4D extends Array4D<Number> {
+
+    private final float[] data;
+    private final int xSize;
+    private final int ySize;
+    private final int zSize;
+    private final int tSize;
+
+    /**
+     * Creates a new {@link FloatArray4D} with all values initially missing
+     * 
+     * @param tSize
+     *            The size of the array in the t-direction
+     * @param zSize
+     *            The size of the array in the z-direction
+     * @param ySize
+     *            The size of the array in the y-direction
+     * @param xSize
+     *            The size of the array in the x-direction
+     */
+    public FloatArray4D(int tSize, int zSize, int ySize, int xSize) {
+        super(tSize, zSize, ySize, xSize);
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.zSize = zSize;
+        this.tSize = tSize;
+        data = new float[tSize * zSize * ySize * xSize];
+        Arrays.fill(data, Float.NaN);
+    }
+
+    @Override
+    public Number get(int... coords) {
+        if (coords.length != 4) {
+            throw new IllegalArgumentException("Wrong number of co-ordinates (" + coords.length
+                    + ") for this Array (needs 4)");
+        }
+        float value = data[getIndex(coords[T_IND], coords[Z_IND], coords[Y_IND], coords[X_IND])];
+        if (Float.isNaN(value)) {
+            return null;
+        }
+        return value;
+    }
+
+    @Override
+    public void set(Number value, int... coords) {
+        if (coords.length != 4) {
+            throw new IllegalArgumentException("Wrong number of co-ordinates (" + coords.length
+                    + ") for this Array (needs 4)");
+        }
+        data[getIndex(coords[T_IND], coords[Z_IND], coords[Y_IND], coords[X_IND])] = (value == null) ? Float.NaN
+                : value.floatValue();
+    }
+
+    @Override
+    public float getFloat(int t, int z, int y, int x) {
+        return data[getIndex(t, z, y, x)];
+    }
+
+    /**
+     * Sets a value in the array. Missing values should be set as
+     * {@link Float#NaN}.
+     * 
+     * @param value
+     *            The value to set
+     * @param t
+     *            The t-index of the value
+     * @param z
+     *            The z-index of the value
+     * @param y
+     *            The y-index of the value
+     * @param x
+     *            The x-index of the value
+     */
+    public void setFloat(float value, int t, int z, int y, int x) {
+        data[getIndex(t, z, y, x)] = value;
+    }
+
+    /**
+     * Sets every value in the array to the given value
+     * 
+     * @param value
+     *            The value to set. Use {@link Float#NaN} to mark every value as
+     *            missing.
+     */
+    public void fill(float value) {
+        Arrays.fill(data, value);
+    }
+
+    /**
+     * Returns the array which backs this {@link FloatArray4D}. This is stored
+     * with the x-dimension varying fastest, followed by y, z, and t, and
+     * missing values are {@link Float#NaN}. Changes to the returned array will
+     * be reflected in this {@link FloatArray4D}.
+     * 
+     * @return The backing array of this {@link FloatArray4D}
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    private int getIndex(int t, int z, int y, int x) {
+        if (x < 0 || x >= xSize || y < 0 || y >= ySize || z < 0 || z >= zSize || t < 0
+                || t >= tSize) {
+            throw new ArrayIndexOutOfBoundsException("Co-ordinates (" + t + "," + z + "," + y
+                    + "," + x + ") are out of bounds for this Array");
+        }
+        return ((t * zSize + z) * ySize + y) * xSize + x;
+    }
+}
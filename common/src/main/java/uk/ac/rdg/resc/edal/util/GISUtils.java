@@ -31,6 +31,8 @@ package uk.ac.rdg.resc.edal.util;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -51,6 +53,7 @@ import org.opengis.referencing.ReferenceIdentifier;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.Matrix;
+import org.opengis.referencing.operation.TransformException;
 import org.opengis.util.FactoryException;
 
 import uk.ac.rdg.resc.edal.domain.Extent;
@@ -236,6 +239,159 @@ public final class GISUtils {
         }
     }
 
+    /**
+     * Transforms a number of positions to a new coordinate reference system in
+     * a single operation. This is considerably faster than transforming each
+     * position individually.
+     * 
+     * @param xs
+     *            The x-coordinates of the positions to transform
+     * @param ys
+     *            The y-coordinates of the positions to transform
+     * @param sourceCrs
+     *            The CRS of the positions. If this is <code>null</code> the
+     *            positions are assumed to be in the target CRS
+     * @param targetCrs
+     *            The CRS to transform into
+     * @return A 2-element array containing the transformed x-coordinates and
+     *         y-coordinates respectively. If no transformation is required,
+     *         this will contain the original arrays. Positions which cannot be
+     *         transformed will have NaN coordinates.
+     */
+    public static double[][] transformPositions(double[] xs, double[] ys,
+            CoordinateReferenceSystem sourceCrs, CoordinateReferenceSystem targetCrs) {
+        if (sourceCrs == null || targetCrs == null || crsMatch(sourceCrs, targetCrs)) {
+            return new double[][] { xs, ys };
+        }
+        MathTransform transform;
+        try {
+            transform = CRS.findMathTransform(sourceCrs, targetCrs, true);
+        } catch (FactoryException e) {
+            throw new RuntimeException(e);
+        }
+        if (transform.isIdentity()) {
+            return new double[][] { xs, ys };
+        }
+        int n = xs.length;
+        double[] points = new double[2 * n];
+        for (int i = 0; i < n; i++) {
+            points[2 * i] = xs[i];
+            points[2 * i + 1] = ys[i];
+        }
+        try {
+            transform.transform(points, 0, points, 0, n);
+        } catch (TransformException e) {
+            /*
+             * At least one point could not be transformed. Fall back to
+             * transforming each point individually so that we don't lose the
+             * ones which can be.
+             */
+            double[] point = new double[2];
+            for (int i = 0; i < n; i++) {
+                point[0] = xs[i];
+                point[1] = ys[i];
+                try {
+                    transform.transform(point, 0, point, 0, 1);
+                    points[2 * i] = point[0];
+                    points[2 * i + 1] = point[1];
+                } catch (TransformException pe) {
+                    points[2 * i] = Double.NaN;
+                    points[2 * i + 1] = Double.NaN;
+                }
+            }
+        }
+        double[] transformedXs = new double[n];
+        double[] transformedYs = new double[n];
+        for (int i = 0; i < n; i++) {
+            transformedXs[i] = points[2 * i];
+            transformedYs[i] = points[2 * i + 1];
+        }
+        return new double[][] { transformedXs, transformedYs };
+    }
+
+    /**
+     * Finds the indices of a number of positions within a
+     * {@link HorizontalGrid}, by transforming them in a single operation and
+     * then finding each index with
+     * {@link HorizontalGrid#findIndexOf(HorizontalPosition)}. This is a
+     * general implementation of
+     * {@link HorizontalGrid#findIndicesOf(double[], double[], CoordinateReferenceSystem, int[], int[])}
+     * for grids which have no more efficient method.
+     */
+    public static void findIndicesIndividually(HorizontalGrid grid, double[] xs, double[] ys,
+            CoordinateReferenceSystem crs, int[] outI, int[] outJ) {
+        CoordinateReferenceSystem gridCrs = grid.getCoordinateReferenceSystem();
+        double[][] transformed = transformPositions(xs, ys, crs, gridCrs);
+        for (int p = 0; p < xs.length; p++) {
+            double x = transformed[0][p];
+            double y = transformed[1][p];
+            GridCoordinates2D indices = null;
+            if (!Double.isNaN(x) && !Double.isNaN(y)) {
+                indices = grid.findIndexOf(new HorizontalPosition(x, y, gridCrs));
+            }
+            if (indices != null && indices.getX() >= 0 && indices.getY() >= 0) {
+                outI[p] = indices.getX();
+                outJ[p] = indices.getY();
+            } else {
+                outI[p] = -1;
+                outJ[p] = -1;
+            }
+        }
+    }
+
+    /**
+     * Finds the indices of a number of positions within a
+     * {@link HorizontalGrid}, using
+     * {@link HorizontalGrid#findIndicesOf(double[], double[], CoordinateReferenceSystem, int[], int[])}
+     * for each run of consecutive positions which share a CRS.
+     * 
+     * @param grid
+     *            The {@link HorizontalGrid} to find indices within
+     * @param positions
+     *            The positions to find the indices of
+     * @param outI
+     *            An array to receive the x-indices of the positions, in
+     *            iteration order. Positions which are outside the grid will
+     *            have an x-index of -1.
+     * @param outJ
+     *            An array to receive the y-indices of the positions, in
+     *            iteration order. Positions which are outside the grid will
+     *            have a y-index of -1.
+     */
+    public static void findIndicesOf(HorizontalGrid grid,
+            Collection<HorizontalPosition> positions, int[] outI, int[] outJ) {
+        int n = positions.size();
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        CoordinateReferenceSystem[] crss = new CoordinateReferenceSystem[n];
+        int p = 0;
+        for (HorizontalPosition position : positions) {
+            xs[p] = position.getX();
+            ys[p] = position.getY();
+            crss[p] = position.getCoordinateReferenceSystem();
+            p++;
+        }
+        int start = 0;
+        while (start < n) {
+            int end = start + 1;
+            while (end < n && crss[end] == crss[start]) {
+                end++;
+            }
+            if (start == 0 && end == n) {
+                grid.findIndicesOf(xs, ys, crss[start], outI, outJ);
+            } else {
+                int runLength = end - start;
+                int[] runI = new int[runLength];
+                int[] runJ = new int[runLength];
+                grid.findIndicesOf(Arrays.copyOfRange(xs, start, end),
+                        Arrays.copyOfRange(ys, start, end), crss[start], runI, runJ);
+                System.arraycopy(runI, 0, outI, start, runLength);
+                System.arraycopy(runJ, 0, outJ, start, runLength);
+            }
+            start = end;
+        }
+    }
+
     /**
      * Transforms the given lat-lon heading to a different
      * {@link CoordinateReferenceSystem}
@@ -502,6 +658,33 @@ public final class GISUtils {
         return index;
     }
 
+    /**
+     * Finds the time at which the closest time on a {@link TimeAxis} to the
+     * current time will next change. This is useful for knowing how long the
+     * result of {@link #getClosestToCurrentTime(TemporalDomain)} is valid for.
+     * 
+     * @param targetTime
+     *            The current time
+     * @param timeAxis
+     *            The {@link TimeAxis} to check
+     * @return The earliest time after the target time at which
+     *         {@link #getClosestTimeTo(DateTime, TemporalDomain)} returns a
+     *         different value, or <code>null</code> if it never will
+     */
+    public static DateTime getNextClosestTimeChange(DateTime targetTime, TimeAxis timeAxis) {
+        int index = getIndexOfClosestTimeTo(targetTime, timeAxis);
+        if (index >= timeAxis.size() - 1) {
+            return null;
+        }
+        /*
+         * Ties go to the later time, so the change happens at the midpoint
+         * (rounded up) of this time and the next
+         */
+        long t1 = timeAxis.getCoordinateValue(index).getMillis();
+        long t2 = timeAxis.getCoordinateValue(index + 1).getMillis();
+        return new DateTime(t1 + (t2 - t1 + 1) / 2, targetTime.getChronology());
+    }
+
     /**
      * Returns the closest elevation to the surface of the given
      * {@link VerticalDomain}
@@ -632,15 +815,24 @@ public final class GISUtils {
             /*
              * Work out how many grid points will be sampled by this transect
              */
-            Set<GridCoordinates2D> gridCoords = new HashSet<GridCoordinates2D>();
-            for (HorizontalPosition pos : points) {
-                GridCoordinates2D gridCoord = hGrid.findIndexOf(pos);
-                if (gridCoord != null) {
-                    gridCoords.add(gridCoord);
+            int[] xIndices = new int[points.size()];
+            int[] yIndices = new int[points.size()];
+            findIndicesOf(hGrid, points, xIndices, yIndices);
+            long[] gridCoords = new long[points.size()];
+            int numGridPointsSampled = 0;
+            for (int i = 0; i < xIndices.length; i++) {
+                if (xIndices[i] >= 0 && yIndices[i] >= 0) {
+                    gridCoords[numGridPointsSampled++] = (long) yIndices[i] * hGrid.getXSize()
+                            + xIndices[i];
+                }
+            }
+            Arrays.sort(gridCoords, 0, numGridPointsSampled);
+            int numUniqueGridPointsSampled = 0;
+            for (int i = 0; i < numGridPointsSampled; i++) {
+                if (i == 0 || gridCoords[i] != gridCoords[i - 1]) {
+                    numUniqueGridPointsSampled++;
                 }
             }
-
-            int numUniqueGridPointsSampled = gridCoords.size();
 
             /*
              * If this increase in resolution results in at least 10% more
@@ -28,19 +28,17 @@
 
 package uk.ac.rdg.resc.edal.util;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Path2D;
-import java.awt.geom.Point2D;
-import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.DataBuffer;
-import java.awt.image.DirectColorModel;
-import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import uk.ac.rdg.resc.edal.geometry.BoundingBox;
-import uk.ac.rdg.resc.edal.util.CurvilinearCoords.Cell;
 
 /**
  * An object that provides an approximate means for mapping from
@@ -52,36 +50,29 @@ import uk.ac.rdg.resc.edal.util.CurvilinearCoords.Cell;
  */
 public final class LookUpTable {
     /*
-     * The contents of the look-up table: i.e. the i and j indices of each
-     * lon-lat point in the LUT. These are flattened from a 2D to a 1D array. We
-     * store these as shorts to save disk space. The LUT would need to be
-     * extremely large before we would have to worry about overflows. Each array
-     * has the size nLon * nLat
+     * The contents of the look-up table: i.e. the index (j * ni + i) of the
+     * cell containing each lon-lat point in the LUT, or -1 if there is no such
+     * cell. This is flattened from a 2D to a 1D array, and has the size nLon *
+     * nLat. It may either be held on the heap or be memory-mapped from a file
+     * written by writeTo()
      */
-    private DataBuffer iIndices;
-    private DataBuffer jIndices;
+    private final IntBuffer cellIndices;
 
+    /* The number of cells in the i-direction of the curvilinear grid */
+    private final int ni;
     private final int nLon;
     private final int nLat;
 
     // Converts from lat-lon coordinates to index space in the LUT.
-    private final AffineTransform transform = new AffineTransform();
+    private final AffineTransform transform;
 
-    /**
-     * A {@link DirectColorModel} that holds data as unsigned shorts, ignoring
-     * the red and alpha components. (int value = green &lt;&lt; 8 | blue)
-     */
-    private static final ColorModel COLOR_MODEL = new DirectColorModel(16, 0x00000000, 0x0000ff00,
-            0x000000ff, 0x00000000);
-
-    /** This value in the look-up table means "missing value" */
-    private static final int MISSING_VALUE = 65535;
-
-    /** This is the maximum index that can be stored in the LUT */
-    private static final int MAX_INDEX = 65534;
+    /** Identifies a file written by {@link #writeTo(File)} */
+    private static final int FILE_MAGIC = 0x4c555432;
+    /** The size of the file header: magic, ni, nLon, nLat and the transform */
+    private static final int HEADER_SIZE = 4 * 4 + 6 * 8;
 
     /**
-     * Creates an empty look-up table (with all indices set to -1).
+     * Creates a look-up table for the given {@link CurvilinearCoords}
      * 
      * @param curvCoords
      *            The {@link CurvilinearCoords} which this LUT will approximate
@@ -105,6 +96,11 @@ public final class LookUpTable {
                     nLat);
             throw new IllegalStateException(msg);
         }
+        if ((long) nLon * nLat > Integer.MAX_VALUE) {
+            String msg = String.format("Look-up table of size %d x %d is too large", nLon, nLat);
+            throw new IllegalStateException(msg);
+        }
+        ni = curvCoords.getNi();
 
         /*
          * This ensures that the highest value of longitude (corresponding with
@@ -114,84 +110,102 @@ public final class LookUpTable {
         double latStride = latDiff / (nLat - 1);
 
         /* Create the transform. We scale by the inverse of the stride length */
+        transform = new AffineTransform();
         transform.scale(1.0 / lonStride, 1.0 / latStride);
         /* Then we translate by the minimum coordinate values */
         transform.translate(-bbox.getMinX(), -bbox.getMinY());
 
-        /* Populate the look-up tables */
-        makeLuts(curvCoords);
+        /* Populate the look-up table */
+        cellIndices = IntBuffer.wrap(LookUpTableRasteriser.rasterise(curvCoords, nLon, nLat,
+                transform.getScaleX(), transform.getTranslateX(), transform.getScaleY(),
+                transform.getTranslateY()));
+    }
+
+    private LookUpTable(int ni, int nLon, int nLat, AffineTransform transform,
+            IntBuffer cellIndices) {
+        this.ni = ni;
+        this.nLon = nLon;
+        this.nLat = nLat;
+        this.transform = transform;
+        this.cellIndices = cellIndices;
     }
 
     /**
-     * Generates the data for the look-up tables
+     * Writes this look-up table to a file, which can later be read with
+     * {@link #readFrom(File)}
+     * 
+     * @param file
+     *            The file to write to. This will be overwritten if it exists.
+     * @throws IOException
+     *             If there is a problem writing the file
      */
-    private void makeLuts(CurvilinearCoords curvCoords) {
-        /*
-         * Create BufferedImages on which we will paint the i and j indices of
-         * cells
-         */
-        BufferedImage iIm = createBufferedImage();
-        BufferedImage jIm = createBufferedImage();
-
-        /* Get graphics contexts onto which we'll paint */
-        Graphics2D ig2d = iIm.createGraphics();
-        Graphics2D jg2d = jIm.createGraphics();
-
-        /* Apply a transform so that we can paint in lat-lon coordinates */
-        ig2d.setTransform(transform);
-        jg2d.setTransform(transform);
-
-        /*
-         * Populate the BufferedImages using the information from the
-         * curvilinear grid Iterate over all the cells in the grid, painting the
-         * i and j indices of the cell onto the BufferedImage
-         */
-        for (Cell cell : curvCoords.getCells()) {
-            /* Get a Path representing the boundary of the cell */
-            Path2D path = cell.getBoundaryPath();
-            /*
-             * Paint the path onto the BufferedImages as polygons Use the i and
-             * j indices of the cell as the colours
-             */
-            if (cell.getI() > MAX_INDEX || cell.getJ() > MAX_INDEX) {
-                /* Very unlikely to happen! */
-                throw new IllegalStateException("Can't store indices greater than " + MAX_INDEX);
+    public void writeTo(File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file);
+                FileChannel channel = out.getChannel()) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            buf.putInt(FILE_MAGIC);
+            buf.putInt(ni);
+            buf.putInt(nLon);
+            buf.putInt(nLat);
+            double[] matrix = new double[6];
+            transform.getMatrix(matrix);
+            for (double d : matrix) {
+                buf.putDouble(d);
             }
-            ig2d.setPaint(new Color(cell.getI()));
-            jg2d.setPaint(new Color(cell.getJ()));
-            ig2d.fill(path);
-            jg2d.fill(path);
-
-            /*
-             * We paint a second copy of the cell, shifted by 360 degrees, to
-             * handle the anti-meridian
-             */
-            double shiftLon = cell.getCentre().getLongitude() > 0.0 ? -360.0 : 360.0;
-            path.transform(AffineTransform.getTranslateInstance(shiftLon, 0.0));
-            ig2d.fill(path);
-            jg2d.fill(path);
+            int size = nLon * nLat;
+            for (int i = 0; i < size; i++) {
+                if (buf.remaining() < 4) {
+                    writeFully(channel, buf);
+                }
+                buf.putInt(cellIndices.get(i));
+            }
+            writeFully(channel, buf);
         }
+    }
 
-        /* We only need to store the data buffers, not the whole BufferedImages */
-        iIndices = iIm.getRaster().getDataBuffer();
-        jIndices = jIm.getRaster().getDataBuffer();
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
     }
 
     /**
-     * Creates and returns a new {@link BufferedImage} that stores pixel data as
-     * unsigned shorts. Initializes all pixel values to {@link #MISSING_VALUE}.
+     * Reads a look-up table from a file written by {@link #writeTo(File)}.
+     * The index data is memory-mapped rather than read onto the heap, so this
+     * is fast even for very large look-up tables.
      * 
-     * @return
+     * @param file
+     *            The file to read from
+     * @return The {@link LookUpTable}
+     * @throws IOException
+     *             If the file cannot be read or is not a valid look-up table
      */
-    private BufferedImage createBufferedImage() {
-        WritableRaster raster = COLOR_MODEL.createCompatibleWritableRaster(nLon, nLat);
-        BufferedImage im = new BufferedImage(COLOR_MODEL, raster, true, null);
-        for (int y = 0; y < im.getHeight(); y++) {
-            for (int x = 0; x < im.getWidth(); x++) {
-                im.setRGB(x, y, MISSING_VALUE);
+    public static LookUpTable readFrom(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + " is not a valid look-up table");
+            }
+            /* The mapping remains valid after the channel is closed */
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int ni = buf.getInt(4);
+            int nLon = buf.getInt(8);
+            int nLat = buf.getInt(12);
+            if (buf.getInt(0) != FILE_MAGIC || ni <= 0 || nLon <= 0 || nLat <= 0
+                    || channel.size() != HEADER_SIZE + 4L * nLon * nLat) {
+                throw new IOException(file + " is not a valid look-up table");
+            }
+            buf.position(16);
+            double[] matrix = new double[6];
+            for (int i = 0; i < 6; i++) {
+                matrix[i] = buf.getDouble();
             }
+            buf.position(HEADER_SIZE);
+            IntBuffer cellIndices = buf.slice().asIntBuffer();
+            return new LookUpTable(ni, nLon, nLat, new AffineTransform(matrix), cellIndices);
         }
-        return im;
     }
 
     /**
@@ -209,10 +223,12 @@ public final class LookUpTable {
      *         domain of this LUT.
      */
     public int[] getGridCoordinates(double longitude, double latitude) {
-        /* Convert from longitude-latitude to index space in this LUT */
-        Point2D indexPoint = transform.transform(new Point2D.Double(longitude, latitude), null);
-        int iLon = (int) Math.round(indexPoint.getX());
-        int iLat = (int) Math.round(indexPoint.getY());
+        /*
+         * Convert from longitude-latitude to index space in this LUT. The
+         * transform is only ever a scale and a translation.
+         */
+        int iLon = (int) Math.round(longitude * transform.getScaleX() + transform.getTranslateX());
+        int iLat = (int) Math.round(latitude * transform.getScaleY() + transform.getTranslateY());
 
         if (iLon < 0 || iLat < 0 || iLon >= nLon || iLat >= nLat) {
             return null;
@@ -220,15 +236,14 @@ public final class LookUpTable {
 
         /* Find the index within the LUT */
         int index = iLon + (iLat * nLon);
-        /* Extract the i and j indices of the nearest grid point */
-        int iIndex = iIndices.getElem(index);
-        int jIndex = jIndices.getElem(index);
+        /* Extract the index of the nearest grid point */
+        int cellIndex = cellIndices.get(index);
 
         /* Check for missing values */
-        if (iIndex == MISSING_VALUE || jIndex == MISSING_VALUE) {
+        if (cellIndex < 0) {
             return null;
         }
-        return new int[] { iIndex, jIndex };
+        return new int[] { cellIndex % ni, cellIndex / ni };
     }
 
     /**
@@ -249,8 +264,7 @@ public final class LookUpTable {
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + ((iIndices == null) ? 0 : iIndices.hashCode());
-        result = prime * result + ((jIndices == null) ? 0 : jIndices.hashCode());
+        result = prime * result + ni;
         result = prime * result + nLat;
         result = prime * result + nLon;
         result = prime * result + ((transform == null) ? 0 : transform.hashCode());
@@ -266,26 +280,8 @@ public final class LookUpTable {
         if (getClass() != obj.getClass())
             return false;
         LookUpTable other = (LookUpTable) obj;
-        if (iIndices == null) {
-            if (other.iIndices != null)
-                return false;
-        } else {
-            for (int i = 0; i < iIndices.getSize(); i++) {
-                if (iIndices.getElem(i) != other.iIndices.getElem(i)) {
-                    return false;
-                }
-            }
-        }
-        if (jIndices == null) {
-            if (other.jIndices != null)
-                return false;
-        } else {
-            for (int i = 0; i < jIndices.getSize(); i++) {
-                if (jIndices.getElem(i) != other.jIndices.getElem(i)) {
-                    return false;
-                }
-            }
-        }
+        if (ni != other.ni)
+            return false;
         if (nLat != other.nLat)
             return false;
         if (nLon != other.nLon)
@@ -295,6 +291,11 @@ public final class LookUpTable {
                 return false;
         } else if (!transform.equals(other.transform))
             return false;
+        if (cellIndices == null) {
+            if (other.cellIndices != null)
+                return false;
+        } else if (!cellIndices.equals(other.cellIndices))
+            return false;
         return true;
     }
 
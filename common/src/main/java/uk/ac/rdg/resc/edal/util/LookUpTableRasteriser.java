@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Rasterises the cells of a {@link CurvilinearCoords} onto the regular grid of
+ * a {@link LookUpTable}, producing the index of the cell which contains each
+ * point of the look-up table.
+ * 
+ * The look-up table is split into bands of rows. Cells are first sorted into
+ * the bands which they overlap, and then each band is filled independently.
+ * Both stages run in parallel on a {@link ForkJoinPool}.
+ * 
+ * Where cells overlap, the cell with the highest index takes precedence. This
+ * means that the result does not depend on the order in which cells are
+ * rasterised.
+ * 
+ * @author Guy Griffiths
+ */
+final class LookUpTableRasteriser {
+    /** The number of rows of the look-up table in each band */
+    private static final int BAND_HEIGHT = 64;
+    /** The number of rows of cells which are sorted into bands in one task */
+    private static final int CELL_ROWS_PER_TASK = 32;
+    /**
+     * The maximum number of cells which can be rasterised. Cells are stored
+     * with a flag indicating whether they have been shifted by 360 degrees, so
+     * this is smaller than the maximum int value.
+     */
+    static final int MAX_CELLS = Integer.MAX_VALUE >> 1;
+
+    private final CurvilinearCoords curvCoords;
+    private final int nLon;
+    private final int nLat;
+    private final double scaleX;
+    private final double translateX;
+    private final double scaleY;
+    private final double translateY;
+
+    private final int[] cellIndices;
+    /*
+     * For each cell-sorting task, for each band, the (flagged) cells which
+     * need to be rasterised in that band
+     */
+    private final IntList[][] bandCells;
+
+    /**
+     * Rasterises the cells of a {@link CurvilinearCoords} onto a regular grid.
+     * 
+     * @param curvCoords
+     *            The {@link CurvilinearCoords} to rasterise
+     * @param nLon
+     *            The number of points in the x-direction of the regular grid
+     * @param nLat
+     *            The number of points in the y-direction of the regular grid
+     * @param scaleX
+     *            The scale factor from longitude to x-index
+     * @param translateX
+     *            The x-index of 0 degrees longitude
+     * @param scaleY
+     *            The scale factor from latitude to y-index
+     * @param translateY
+     *            The y-index of 0 degrees latitude
+     * @return An array of size nLon * nLat (with x varying fastest) containing
+     *         the index (j * ni + i) of the cell containing each point, or -1
+     *         if no cell contains the point
+     */
+    static int[] rasterise(CurvilinearCoords curvCoords, int nLon, int nLat, double scaleX,
+            double translateX, double scaleY, double translateY) {
+        if ((long) curvCoords.getNi() * curvCoords.getNj() > MAX_CELLS) {
+            throw new IllegalStateException("Can't create a look-up table for more than "
+                    + MAX_CELLS + " cells");
+        }
+        final LookUpTableRasteriser rasteriser = new LookUpTableRasteriser(curvCoords, nLon,
+                nLat, scaleX, translateX, scaleY, translateY);
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    rasteriser.run();
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+        return rasteriser.cellIndices;
+    }
+
+    private LookUpTableRasteriser(CurvilinearCoords curvCoords, int nLon, int nLat,
+            double scaleX, double translateX, double scaleY, double translateY) {
+        this.curvCoords = curvCoords;
+        this.nLon = nLon;
+        this.nLat = nLat;
+        this.scaleX = scaleX;
+        this.translateX = translateX;
+        this.scaleY = scaleY;
+        this.translateY = translateY;
+
+        cellIndices = new int[nLon * nLat];
+        int nTasks = (curvCoords.getNj() + CELL_ROWS_PER_TASK - 1) / CELL_ROWS_PER_TASK;
+        bandCells = new IntList[nTasks][];
+    }
+
+    /*
+     * Must be called from within a ForkJoinPool
+     */
+    private void run() {
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (int t = 0; t < bandCells.length; t++) {
+            final int task = t;
+            tasks.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    sortCells(task);
+                }
+            });
+        }
+        RecursiveAction.invokeAll(tasks);
+
+        tasks.clear();
+        int nBands = (nLat + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        for (int b = 0; b < nBands; b++) {
+            final int band = b;
+            tasks.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    fillBand(band);
+                }
+            });
+        }
+        RecursiveAction.invokeAll(tasks);
+    }
+
+    /**
+     * Sorts a range of cell rows into the bands which they overlap
+     */
+    private void sortCells(int task) {
+        int nBands = (nLat + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        IntList[] cellsInBands = new IntList[nBands];
+        double[] xs = new double[4];
+        double[] ys = new double[4];
+        int ni = curvCoords.getNi();
+        int maxJ = Math.min(curvCoords.getNj(), (task + 1) * CELL_ROWS_PER_TASK);
+        for (int j = task * CELL_ROWS_PER_TASK; j < maxJ; j++) {
+            for (int i = 0; i < ni; i++) {
+                int cellIndex = j * ni + i;
+                /*
+                 * We also rasterise a second copy of the cell, shifted by 360
+                 * degrees, to handle the anti-meridian
+                 */
+                for (int shifted = 0; shifted <= 1; shifted++) {
+                    if (!getCellPolygon(i, j, shifted == 1, xs, ys)) {
+                        break;
+                    }
+                    int[] rows = getRowRange(xs, ys);
+                    if (rows == null) {
+                        continue;
+                    }
+                    for (int b = rows[0] / BAND_HEIGHT; b <= rows[1] / BAND_HEIGHT; b++) {
+                        if (cellsInBands[b] == null) {
+                            cellsInBands[b] = new IntList();
+                        }
+                        cellsInBands[b].add((cellIndex << 1) | shifted);
+                    }
+                }
+            }
+        }
+        bandCells[task] = cellsInBands;
+    }
+
+    /**
+     * Rasterises all cells which overlap a band of rows
+     */
+    private void fillBand(int band) {
+        int minRow = band * BAND_HEIGHT;
+        int maxRow = Math.min(nLat, minRow + BAND_HEIGHT) - 1;
+        Arrays.fill(cellIndices, minRow * nLon, (maxRow + 1) * nLon, -1);
+
+        double[] xs = new double[4];
+        double[] ys = new double[4];
+        double[] crossings = new double[4];
+        int[] windings = new int[4];
+        int ni = curvCoords.getNi();
+        for (IntList[] cellsInBands : bandCells) {
+            IntList cells = cellsInBands[band];
+            if (cells == null) {
+                continue;
+            }
+            for (int c = 0; c < cells.size; c++) {
+                int flaggedIndex = cells.data[c];
+                int cellIndex = flaggedIndex >>> 1;
+                getCellPolygon(cellIndex % ni, cellIndex / ni, (flaggedIndex & 1) == 1, xs, ys);
+                int[] rows = getRowRange(xs, ys);
+                for (int row = Math.max(minRow, rows[0]); row <= Math.min(maxRow, rows[1]); row++) {
+                    fillRow(cellIndex, row, xs, ys, crossings, windings);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the look-up table points in the given row which are contained in
+     * the given polygon, using the non-zero winding rule.
+     */
+    private void fillRow(int cellIndex, int row, double[] xs, double[] ys, double[] crossings,
+            int[] windings) {
+        /*
+         * Find where the polygon edges cross this row. Edges include their
+         * lower end and exclude their upper end, so that vertices lying
+         * exactly on the row are counted once.
+         */
+        int nCrossings = 0;
+        for (int k = 0; k < 4; k++) {
+            double x0 = xs[k];
+            double y0 = ys[k];
+            double x1 = xs[(k + 1) % 4];
+            double y1 = ys[(k + 1) % 4];
+            int winding;
+            if (y0 <= row && row < y1) {
+                winding = 1;
+            } else if (y1 <= row && row < y0) {
+                winding = -1;
+            } else {
+                continue;
+            }
+            double x = x0 + (row - y0) * (x1 - x0) / (y1 - y0);
+            /* Insertion sort by x */
+            int pos = nCrossings++;
+            while (pos > 0 && crossings[pos - 1] > x) {
+                crossings[pos] = crossings[pos - 1];
+                windings[pos] = windings[pos - 1];
+                pos--;
+            }
+            crossings[pos] = x;
+            windings[pos] = winding;
+        }
+
+        int rowOffset = row * nLon;
+        int winding = 0;
+        for (int k = 0; k < nCrossings - 1; k++) {
+            winding += windings[k];
+            if (winding != 0) {
+                int minX = Math.max(0, (int) Math.ceil(crossings[k]));
+                int maxX = Math.min(nLon - 1, (int) Math.ceil(crossings[k + 1]) - 1);
+                for (int x = minX; x <= maxX; x++) {
+                    if (cellIndex > cellIndices[rowOffset + x]) {
+                        cellIndices[rowOffset + x] = cellIndex;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates the corners of a cell in the index space of the look-up
+     * table. The longitudes of the corners are harmonised with the centre of
+     * the cell.
+     * 
+     * @return <code>false</code> if the cell is not defined (i.e. has NaN
+     *         coordinates)
+     */
+    private boolean getCellPolygon(int i, int j, boolean shifted, double[] xs, double[] ys) {
+        double centreLon = curvCoords.getMidpointLon(i, j);
+        if (Double.isNaN(centreLon) || Double.isNaN(curvCoords.getMidpointLat(i, j))) {
+            return false;
+        }
+        double shift = 0.0;
+        if (shifted) {
+            shift = centreLon > 0.0 ? -360.0 : 360.0;
+        }
+        for (int k = 0; k < 4; k++) {
+            /* Corners in the order (i,j), (i+1,j), (i+1,j+1), (i,j+1) */
+            int cornerI = (k == 1 || k == 2) ? i + 1 : i;
+            int cornerJ = k >= 2 ? j + 1 : j;
+            double lon = curvCoords.getCornerLon(cornerI, cornerJ);
+            double lat = curvCoords.getCornerLat(cornerI, cornerJ);
+            if (Double.isNaN(lon) || Double.isNaN(lat)) {
+                return false;
+            }
+            lon = GISUtils.getNearestEquivalentLongitude(centreLon, lon) + shift;
+            xs[k] = lon * scaleX + translateX;
+            ys[k] = lat * scaleY + translateY;
+        }
+        return true;
+    }
+
+    /**
+     * @return The first and last rows of the look-up table which the given
+     *         polygon may cover, or <code>null</code> if the polygon lies
+     *         entirely outside the look-up table
+     */
+    private int[] getRowRange(double[] xs, double[] ys) {
+        double minX = Math.min(Math.min(xs[0], xs[1]), Math.min(xs[2], xs[3]));
+        double maxX = Math.max(Math.max(xs[0], xs[1]), Math.max(xs[2], xs[3]));
+        double minY = Math.min(Math.min(ys[0], ys[1]), Math.min(ys[2], ys[3]));
+        double maxY = Math.max(Math.max(ys[0], ys[1]), Math.max(ys[2], ys[3]));
+        if (maxX < 0 || minX > nLon - 1) {
+            return null;
+        }
+        int minRow = Math.max(0, (int) Math.ceil(minY));
+        int maxRow = Math.min(nLat - 1, (int) Math.ceil(maxY) - 1);
+        if (minRow > maxRow) {
+            return null;
+        }
+        return new int[] { minRow, maxRow };
+    }
+
+    /**
+     * A minimal growable list of ints
+     */
+    private static final class IntList {
+        private int[] data = new int[16];
+        private int size = 0;
+
+        private void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+    }
+}
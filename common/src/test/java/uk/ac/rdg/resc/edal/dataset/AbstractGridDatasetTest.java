@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.plugins.VectorPlugin;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Attribution;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Scope;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.Array4D;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
+
+/**
+ * Test class for the map and point extraction of {@link AbstractGridDataset},
+ * checking that source variables shared between derived variables are only
+ * read once.
+ * 
+ * @author Guy Griffiths
+ */
+public class AbstractGridDatasetTest {
+    private static final String MAG_ID = "uv-" + VectorPlugin.MAG_ROLE;
+    private static final String DIR_ID = "uv-" + VectorPlugin.DIR_ROLE;
+    private static final String GROUP_ID = "uv-" + VectorPlugin.GROUP;
+
+    private CountingDataset dataset;
+    private PlottingDomainParams params;
+
+    @Before
+    public void setUp() throws EdalException {
+        /*
+         * Disable the chunk cache so that every read reaches the data source
+         */
+        SourceChunkCache.setMaxSizeMB(0);
+        dataset = new CountingDataset();
+        dataset.addVariablePlugin(new VectorPlugin("u", "v", "Test vectors", true));
+        params = new PlottingDomainParams(new RegularGridImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84, 36, 18), null, null, null, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        SourceChunkCache.setMaxSizeMB(64);
+    }
+
+    @Test
+    public void testVectorComponentsReadOnce() throws EdalException {
+        MapFeature feature = dataset.extractMapFeatures(CollectionUtils.setOf(MAG_ID, DIR_ID),
+                params).get(0);
+        assertEquals(1, dataset.getReadCount("u"));
+        assertEquals(1, dataset.getReadCount("v"));
+
+        /*
+         * The values should be the same as when each variable is read on its
+         * own
+         */
+        Array2D<Number> dir = feature.getValues(DIR_ID);
+        Array2D<Number> expectedDir = dataset
+                .extractMapFeatures(CollectionUtils.setOf(DIR_ID), params).get(0)
+                .getValues(DIR_ID);
+        Array2D<Number> mag = feature.getValues(MAG_ID);
+        for (int j = 0; j < 18; j++) {
+            for (int i = 0; i < 36; i++) {
+                assertEquals(5.0, mag.get(j, i).doubleValue(), 1e-5);
+                assertEquals(expectedDir.get(j, i).doubleValue(), dir.get(j, i).doubleValue(),
+                        1e-5);
+            }
+        }
+    }
+
+    @Test
+    public void testSharedSourcesReadOnce() throws EdalException {
+        /*
+         * The parent group expands to the magnitude and direction, and the
+         * u-component is also requested directly
+         */
+        MapFeature feature = dataset.extractMapFeatures(CollectionUtils.setOf(GROUP_ID, "u"),
+                params).get(0);
+        assertEquals(1, dataset.getReadCount("u"));
+        assertEquals(1, dataset.getReadCount("v"));
+        assertTrue(feature.getParameterIds().contains(MAG_ID));
+        assertTrue(feature.getParameterIds().contains(DIR_ID));
+        assertEquals(3.0, feature.getValues("u").get(0, 0).doubleValue(), 1e-5);
+    }
+
+    @Test
+    public void testSinglePointsReadOnce() throws EdalException {
+        HorizontalPosition pos = new HorizontalPosition(15.5, 25.5, DefaultGeographicCRS.WGS84);
+        Map<String, Number> values = dataset.readSinglePoints(
+                CollectionUtils.setOf(MAG_ID, DIR_ID, "u"), pos, null, null);
+        assertEquals(1, dataset.getReadCount("u"));
+        assertEquals(1, dataset.getReadCount("v"));
+        assertEquals(5.0, values.get(MAG_ID).doubleValue(), 1e-5);
+        assertEquals(3.0, values.get("u").doubleValue(), 1e-5);
+
+        /*
+         * The values should be the same as those in the corresponding map
+         */
+        MapFeature feature = dataset.extractMapFeatures(CollectionUtils.setOf(DIR_ID), params)
+                .get(0);
+        GridCoordinates2D index = feature.getDomain().findIndexOf(pos);
+        assertEquals(feature.getValues(DIR_ID).get(index.getY(), index.getX()).doubleValue(),
+                values.get(DIR_ID).doubleValue(), 1e-5);
+
+        /*
+         * Positions outside the domain have no value
+         */
+        HorizontalPosition outside = new HorizontalPosition(15.5, 95.5,
+                DefaultGeographicCRS.WGS84);
+        assertNull(dataset.readSinglePoint("u", outside, null, null));
+    }
+
+    @Test
+    public void testFewerDataSourcesThanReaders() throws Exception {
+        /*
+         * Each request holds one of the data sources whilst reading the other
+         * vector component in parallel. This must not wait for another data
+         * source to become free, since all of them may be held by requests
+         * doing the same thing.
+         */
+        final int nReaders = 8;
+        final CountingDataset boundedDataset = new CountingDataset(2);
+        boundedDataset.addVariablePlugin(new VectorPlugin("u", "v", "Test vectors", true));
+        ExecutorService executor = Executors.newFixedThreadPool(nReaders);
+        try {
+            List<Future<MapFeature>> features = new ArrayList<>();
+            for (int i = 0; i < nReaders * 4; i++) {
+                features.add(executor.submit(new Callable<MapFeature>() {
+                    @Override
+                    public MapFeature call() throws Exception {
+                        return boundedDataset.extractMapFeatures(
+                                CollectionUtils.setOf(MAG_ID, DIR_ID), params).get(0);
+                    }
+                }));
+            }
+            for (Future<MapFeature> feature : features) {
+                assertEquals(5.0, feature.get(30, TimeUnit.SECONDS).getValues(MAG_ID).get(0, 0)
+                        .doubleValue(), 1e-5);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(nReaders * 4, boundedDataset.getReadCount("u"));
+        assertEquals(nReaders * 4, boundedDataset.getReadCount("v"));
+    }
+
+    @Test
+    public void testParallelReadsAttributedToRequest() throws EdalException {
+        RequestMetrics.setEnabled(true);
+        try (Scope scope = RequestMetrics.attribute("counting", MAG_ID)) {
+            dataset.extractMapFeatures(CollectionUtils.setOf(MAG_ID, DIR_ID), params);
+        } finally {
+            RequestMetrics.setEnabled(false);
+            RequestMetrics.reset();
+        }
+        /*
+         * One of the components is read by the calling thread, and the other
+         * in parallel by the read executor
+         */
+        for (String varId : new String[] { "u", "v" }) {
+            Attribution attribution = dataset.getReadAttribution(varId);
+            assertNotNull(attribution);
+            assertEquals("counting", attribution.getDatasetId());
+            assertEquals(MAG_ID, attribution.getLayerName());
+        }
+    }
+
+    private static final class CountingDataset extends AbstractGridDataset {
+        private final Map<String, Integer> readCounts = new HashMap<>();
+        private final Map<String, Attribution> readAttributions = new HashMap<>();
+        /*
+         * Limits the number of data sources open at once, or null for no limit
+         */
+        private final Semaphore openSources;
+
+        public CountingDataset() {
+            super("counting", getVariables());
+            openSources = null;
+        }
+
+        public CountingDataset(int maxOpen) {
+            super("counting", getVariables());
+            openSources = new Semaphore(maxOpen);
+        }
+
+        private static List<GridVariableMetadata> getVariables() {
+            RegularGridImpl grid = new RegularGridImpl(-180, -90, 180, 90,
+                    DefaultGeographicCRS.WGS84, 360, 180);
+            List<GridVariableMetadata> vars = new ArrayList<>();
+            for (String varId : new String[] { "u", "v" }) {
+                vars.add(new GridVariableMetadata(varId, new Parameter(varId, varId, varId,
+                        "m/s", null), grid, null, null, true));
+            }
+            return vars;
+        }
+
+        public synchronized int getReadCount(String varId) {
+            Integer count = readCounts.get(varId);
+            return count == null ? 0 : count;
+        }
+
+        public synchronized Attribution getReadAttribution(String varId) {
+            return readAttributions.get(varId);
+        }
+
+        private synchronized void countRead(String varId) {
+            readCounts.put(varId, getReadCount(varId) + 1);
+            readAttributions.put(varId, RequestMetrics.getAttribution());
+        }
+
+        @Override
+        protected GridDataSource openGridDataSource() throws IOException {
+            if (openSources != null) {
+                try {
+                    openSources.acquire();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted waiting for a data source", e);
+                }
+            }
+            return newDataSource();
+        }
+
+        @Override
+        protected GridDataSource tryOpenGridDataSource() throws IOException {
+            if (openSources != null && !openSources.tryAcquire()) {
+                return null;
+            }
+            return newDataSource();
+        }
+
+        private GridDataSource newDataSource() {
+            return new AbstractGridDataSource() {
+                @Override
+                public Array4D<Number> read(final String variableId, int tmin, int tmax,
+                        int zmin, int zmax, int ymin, int ymax, int xmin, int xmax)
+                        throws IOException {
+                    countRead(variableId);
+                    return new Array4D<Number>(tmax - tmin + 1, zmax - zmin + 1, ymax - ymin
+                            + 1, xmax - xmin + 1) {
+                        @Override
+                        public Number get(int... coords) {
+                            return "u".equals(variableId) ? 3.0f : 4.0f;
+                        }
+
+                        @Override
+                        public void set(Number value, int... coords) {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (openSources != null) {
+                        openSources.release();
+                    }
+                }
+            };
+        }
+
+        @Override
+        protected DataReadingStrategy getDataReadingStrategy() {
+            return DataReadingStrategy.BOUNDING_BOX;
+        }
+    }
+}
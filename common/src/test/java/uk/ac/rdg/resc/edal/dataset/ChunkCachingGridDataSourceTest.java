@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * Test class for {@link ChunkCachingGridDataSource} and
+ * {@link SourceChunkCache}
+ */
+public class ChunkCachingGridDataSourceTest {
+    private static final int X_SIZE = 700;
+    private static final int Y_SIZE = 300;
+
+    private CountingDataSource source;
+
+    @Before
+    public void setUp() {
+        SourceChunkCache.clear();
+        SourceChunkCache.setMaxSizeMB(64);
+        source = new CountingDataSource();
+    }
+
+    @After
+    public void tearDown() {
+        SourceChunkCache.clear();
+    }
+
+    @Test
+    public void testReadMatchesSource() throws IOException, DataReadingException {
+        GridDataSource cached = new ChunkCachingGridDataSource(source, 1L, X_SIZE, Y_SIZE);
+        checkRead(cached, 3, 2, 0, Y_SIZE - 1, 0, X_SIZE - 1);
+        checkRead(cached, 3, 2, 250, 260, 200, 600);
+        checkRead(cached, 3, 2, 299, 299, 699, 699);
+        checkRead(cached, 3, 2, 10, 10, 255, 256);
+    }
+
+    @Test
+    public void testOverlappingReadsUseCache() throws IOException, DataReadingException {
+        GridDataSource cached = new ChunkCachingGridDataSource(source, 1L, X_SIZE, Y_SIZE);
+        checkRead(cached, 0, 0, 10, 100, 10, 100);
+        assertEquals(1, source.reads);
+        /* Overlaps the same chunk */
+        checkRead(cached, 0, 0, 20, 110, 20, 110);
+        assertEquals(1, source.reads);
+        /* Extends into the next chunk in the x direction */
+        checkRead(cached, 0, 0, 20, 110, 200, 300);
+        assertEquals(2, source.reads);
+        /* A different time index needs new data */
+        checkRead(cached, 1, 0, 20, 110, 20, 110);
+        assertEquals(3, source.reads);
+        /* As does a different source */
+        GridDataSource otherSource = new ChunkCachingGridDataSource(source, 2L, X_SIZE, Y_SIZE);
+        checkRead(otherSource, 0, 0, 20, 110, 20, 110);
+        assertEquals(4, source.reads);
+    }
+
+    @Test
+    public void testCacheIsBounded() throws IOException, DataReadingException {
+        /*
+         * Each full chunk is 256KB, so 1MB can hold 4 of them
+         */
+        SourceChunkCache.setMaxSizeMB(1);
+        GridDataSource cached = new ChunkCachingGridDataSource(source, 1L, X_SIZE, Y_SIZE);
+        for (int t = 0; t < 5; t++) {
+            checkRead(cached, t, 0, 0, 10, 0, 10);
+        }
+        assertEquals(5, source.reads);
+        /* The most recent chunk is still cached, the first is not */
+        checkRead(cached, 4, 0, 0, 10, 0, 10);
+        assertEquals(5, source.reads);
+        checkRead(cached, 0, 0, 0, 10, 0, 10);
+        assertEquals(6, source.reads);
+    }
+
+    private static void checkRead(GridDataSource dataSource, int t, int z, int ymin, int ymax,
+            int xmin, int xmax) throws IOException, DataReadingException {
+        int width = xmax - xmin + 1;
+        float[] values = new float[width * (ymax - ymin + 1)];
+        dataSource.readFloats("var", t, t, z, z, ymin, ymax, xmin, xmax, values);
+        for (int y = ymin; y <= ymax; y++) {
+            for (int x = xmin; x <= xmax; x++) {
+                assertEquals(getValue(t, z, y, x), values[(y - ymin) * width + x - xmin], 0f);
+            }
+        }
+    }
+
+    private static float getValue(int t, int z, int y, int x) {
+        return t * 1000000f + z * 100000f + y * 1000f + x;
+    }
+
+    private static class CountingDataSource extends AbstractGridDataSource {
+        private int reads = 0;
+
+        @Override
+        public Array4D<Number> read(String variableId, int tmin, int tmax, int zmin, int zmax,
+                int ymin, int ymax, int xmin, int xmax) {
+            reads++;
+            final int t0 = tmin;
+            final int z0 = zmin;
+            final int y0 = ymin;
+            final int x0 = xmin;
+            return new Array4D<Number>(tmax - tmin + 1, zmax - zmin + 1, ymax - ymin + 1, xmax
+                    - xmin + 1) {
+                @Override
+                public Number get(int... coords) {
+                    return getValue(t0 + coords[0], z0 + coords[1], y0 + coords[2], x0 + coords[3]);
+                }
+
+                @Override
+                public void set(Number value, int... coords) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
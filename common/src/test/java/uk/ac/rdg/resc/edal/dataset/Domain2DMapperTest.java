@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import uk.ac.rdg.resc.edal.dataset.DomainMapper.DomainMapperEntry;
+import uk.ac.rdg.resc.edal.exceptions.InvalidCrsException;
+import uk.ac.rdg.resc.edal.grid.GridCell2D;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+
+/**
+ * Test class for {@link Domain2DMapper}
+ * 
+ * @author Guy Griffiths
+ */
+public class Domain2DMapperTest {
+    private HorizontalGrid sourceGrid;
+    private CoordinateReferenceSystem mercator;
+
+    @Before
+    public void setUp() throws InvalidCrsException {
+        sourceGrid = new RegularGridImpl(-30.0, 20.0, 30.0, 70.0, DefaultGeographicCRS.WGS84,
+                240, 200);
+        mercator = GISUtils.getCrs("EPSG:3857");
+    }
+
+    @Test
+    public void testGeneralGridsMatchPointwiseMapping() {
+        HorizontalGrid targetGrid = new RegularGridImpl(-4000000.0, 2000000.0, 4000000.0,
+                12000000.0, mercator, 97, 83);
+        Domain2DMapper mapper = Domain2DMapper.forGrid(sourceGrid, targetGrid);
+
+        /*
+         * Calculate the mapping one point at a time, in the way it was done
+         * before transforms were done in bulk
+         */
+        List<String> expected = new ArrayList<>();
+        Array<GridCell2D> targetCells = targetGrid.getDomainObjects();
+        for (int j = 0; j < targetGrid.getYSize(); j++) {
+            for (int i = 0; i < targetGrid.getXSize(); i++) {
+                HorizontalPosition pos = GISUtils.transformPosition(targetCells.get(j, i)
+                        .getCentre(), sourceGrid.getCoordinateReferenceSystem());
+                GridCoordinates2D indices = sourceGrid.findIndexOf(pos);
+                if (indices != null) {
+                    expected.add(indices.getX() + "," + indices.getY() + "->" + i + "," + j);
+                }
+            }
+        }
+
+        List<String> actual = new ArrayList<>();
+        int lastI = -1;
+        int lastJ = -1;
+        for (DomainMapperEntry<int[]> entry : mapper) {
+            /*
+             * Entries must be sorted by source grid index
+             */
+            assertTrue(entry.getSourceGridJIndex() > lastJ
+                    || (entry.getSourceGridJIndex() == lastJ && entry.getSourceGridIIndex() > lastI));
+            lastI = entry.getSourceGridIIndex();
+            lastJ = entry.getSourceGridJIndex();
+            for (int[] target : entry.getTargetIndices()) {
+                actual.add(lastI + "," + lastJ + "->" + target[0] + "," + target[1]);
+            }
+        }
+
+        assertFalse(expected.isEmpty());
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testMapValuesMatchesEntries() {
+        HorizontalGrid targetGrid = new RegularGridImpl(-4000000.0, 2000000.0, 4000000.0,
+                12000000.0, mercator, 97, 83);
+        Domain2DMapper mapper = Domain2DMapper.forGrid(sourceGrid, targetGrid);
+        int targetSize = mapper.getTargetXSize() * mapper.getTargetYSize();
+
+        /*
+         * Use the source index as the value, so that every target point shows
+         * which source point it was mapped from
+         */
+        float[] expected = new float[targetSize];
+        Arrays.fill(expected, Float.NaN);
+        for (DomainMapperEntry<int[]> entry : mapper) {
+            for (int[] target : entry.getTargetIndices()) {
+                expected[target[1] * mapper.getTargetXSize() + target[0]] = sourceValue(
+                        entry.getSourceGridIIndex(), entry.getSourceGridJIndex());
+            }
+        }
+
+        int imin = mapper.getMinIIndex();
+        int imax = mapper.getMaxIIndex();
+        int jmin = mapper.getMinJIndex();
+        int jmax = mapper.getMaxJIndex();
+        float[] actual = new float[targetSize];
+        Arrays.fill(actual, Float.NaN);
+        mapper.mapValues(sourceValues(imin, imax, jmin, jmax), imin, imax, jmin, jmax, actual);
+        assertTrue(Arrays.equals(expected, actual));
+
+        /*
+         * The same, one scanline at a time
+         */
+        Arrays.fill(actual, Float.NaN);
+        int[] ranges = mapper.getScanlineRanges();
+        int lastJ = -1;
+        for (int r = 0; r < ranges.length; r += 3) {
+            int j = ranges[r];
+            assertTrue(j > lastJ);
+            lastJ = j;
+            mapper.mapValues(sourceValues(ranges[r + 1], ranges[r + 2], j, j), ranges[r + 1],
+                    ranges[r + 2], j, j, actual);
+        }
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    private static float sourceValue(int i, int j) {
+        return j * 1000 + i;
+    }
+
+    private static float[] sourceValues(int imin, int imax, int jmin, int jmax) {
+        float[] values = new float[(imax - imin + 1) * (jmax - jmin + 1)];
+        int index = 0;
+        for (int j = jmin; j <= jmax; j++) {
+            for (int i = imin; i <= imax; i++) {
+                values[index++] = sourceValue(i, j);
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void testMappersAreCached() {
+        HorizontalGrid targetGrid = new RegularGridImpl(-10.0, 30.0, 10.0, 50.0,
+                DefaultGeographicCRS.WGS84, 64, 64);
+        HorizontalGrid sameTargetGrid = new RegularGridImpl(-10.0, 30.0, 10.0, 50.0,
+                DefaultGeographicCRS.WGS84, 64, 64);
+        HorizontalGrid mercatorTargetGrid = new RegularGridImpl(-10.0, 30.0, 10.0, 50.0,
+                mercator, 64, 64);
+
+        Domain2DMapper mapper = Domain2DMapper.forGrid(sourceGrid, targetGrid);
+        assertSame(mapper, Domain2DMapper.forGrid(sourceGrid, sameTargetGrid));
+        assertNotSame(mapper, Domain2DMapper.forGrid(sourceGrid, mercatorTargetGrid));
+
+        /*
+         * An equal source grid which is a different object should not share
+         * the cached mapper, but should produce the same mapping
+         */
+        HorizontalGrid otherSourceGrid = new RegularGridImpl(-30.0, 20.0, 30.0, 70.0,
+                DefaultGeographicCRS.WGS84, 240, 200);
+        Domain2DMapper otherMapper = Domain2DMapper.forGrid(otherSourceGrid, targetGrid);
+        assertNotSame(mapper, otherMapper);
+        assertEquals(mapper.getNumUniqueIJPairs(), otherMapper.getNumUniqueIJPairs());
+        assertEquals(mapper.getBoundingBoxSize(), otherMapper.getBoundingBoxSize());
+    }
+}
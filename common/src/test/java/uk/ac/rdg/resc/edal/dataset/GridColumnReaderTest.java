@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.dataset;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * Test class for {@link GridColumnReader}
+ * 
+ * @author Guy Griffiths
+ */
+public class GridColumnReaderTest {
+    private static final int T = 0;
+    private static final int Z = 1;
+    private static final int Y = 2;
+    private static final int X = 3;
+
+    @Test
+    public void testDensePointsReadAsBlock() throws IOException, DataReadingException {
+        /*
+         * A 10x10 block of points, with one point outside the grid
+         */
+        int[] xIndices = new int[101];
+        int[] yIndices = new int[101];
+        for (int p = 0; p < 100; p++) {
+            xIndices[p] = 50 + p % 10;
+            yIndices[p] = 20 + p / 10;
+        }
+        xIndices[100] = -1;
+        yIndices[100] = -1;
+
+        assertEquals(1, readAndCheckColumns(3, 40, 1, 4, xIndices, yIndices));
+    }
+
+    @Test
+    public void testLargeReadsAreSplit() throws IOException, DataReadingException {
+        /*
+         * 1024x512 points with 3 z-levels is 1.5M values per time step, so
+         * only 2 time steps fit into each hyperslab
+         */
+        int[] xIndices = new int[1024 * 512];
+        int[] yIndices = new int[1024 * 512];
+        for (int p = 0; p < xIndices.length; p++) {
+            xIndices[p] = p % 1024;
+            yIndices[p] = p / 1024;
+        }
+        assertEquals(3, readAndCheckColumns(0, 4, 0, 2, xIndices, yIndices));
+    }
+
+    @Test
+    public void testSparsePointsReadIndividually() throws IOException, DataReadingException {
+        int[] xIndices = new int[] { 0, 500, 999 };
+        int[] yIndices = new int[] { 0, 300, 700 };
+        assertEquals(3, readAndCheckColumns(0, 9, 2, 2, xIndices, yIndices));
+    }
+
+    @Test
+    public void testTransectReadInRuns() throws IOException, DataReadingException {
+        /*
+         * A diagonal transect of 500 points is too sparse to read as a single
+         * block, but runs of consecutive points can each be read as one
+         */
+        int[] xIndices = new int[500];
+        int[] yIndices = new int[500];
+        for (int p = 0; p < 500; p++) {
+            xIndices[p] = 100 + p;
+            yIndices[p] = 600 - p;
+        }
+        int reads = readAndCheckColumns(2, 2, 0, 49, xIndices, yIndices);
+        assertTrue(reads > 1);
+        assertTrue(reads <= 10);
+    }
+
+    @Test
+    public void testPointsReadInRuns() throws IOException, DataReadingException {
+        /*
+         * Two separate diagonal tracks, with changing z-indices, and some
+         * points outside the grid
+         */
+        int nPoints = 400;
+        int[] tIndices = new int[nPoints];
+        int[] zIndices = new int[nPoints];
+        int[] xIndices = new int[nPoints];
+        int[] yIndices = new int[nPoints];
+        for (int p = 0; p < nPoints; p++) {
+            int offset = p < nPoints / 2 ? 0 : 5000;
+            tIndices[p] = 7;
+            zIndices[p] = (p / 50) % 3;
+            xIndices[p] = offset + p;
+            yIndices[p] = offset + 2 * p;
+        }
+        xIndices[10] = -1;
+        tIndices[250] = -1;
+
+        int reads = -1;
+        for (int dim = T; dim <= X; dim++) {
+            CountingDataSource source = new CountingDataSource(dim);
+            float[] values = GridColumnReader.readPoints(source, "var", tIndices, zIndices,
+                    xIndices, yIndices);
+            for (int p = 0; p < nPoints; p++) {
+                if (p == 10 || p == 250) {
+                    assertTrue(Float.isNaN(values[p]));
+                } else {
+                    int[] coords = new int[] { tIndices[p], zIndices[p], yIndices[p],
+                            xIndices[p] };
+                    assertEquals(coords[dim], values[p], 0f);
+                }
+            }
+            reads = checkReads(reads, source);
+        }
+        assertEquals(2, reads);
+    }
+
+    @Test
+    public void testSparseIndicesReadInRuns() throws IOException, DataReadingException {
+        /*
+         * Two groups of times far apart, and two groups of nearby z-levels,
+         * in no particular order and with some ignored
+         */
+        int[] tIndices = new int[] { 3, 900, -1, 1, 2, 905 };
+        int[] zIndices = new int[] { 40, 2, -1, 0, 45 };
+        int[] xIndices = new int[] { 10, 11, 12 };
+        int[] yIndices = new int[] { 20, 20, -1 };
+        assertEquals(4, readAndCheckColumns(tIndices, zIndices, xIndices, yIndices));
+    }
+
+    /**
+     * Reads columns covering ranges of t- and z-indices
+     * 
+     * @return The number of reads which were needed each time
+     */
+    private static int readAndCheckColumns(int tMin, int tMax, int zMin, int zMax,
+            int[] xIndices, int[] yIndices) throws IOException, DataReadingException {
+        return readAndCheckColumns(range(tMin, tMax), range(zMin, zMax), xIndices, yIndices);
+    }
+
+    private static int[] range(int min, int max) {
+        int[] indices = new int[max - min + 1];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = min + i;
+        }
+        return indices;
+    }
+
+    /**
+     * Reads columns once for each of the t, z, y and x dimensions, with the
+     * value at each point being its index along that dimension. These values
+     * are all exactly representable as floats, so any value taken from the
+     * wrong point is detected.
+     * 
+     * @return The number of reads which were needed each time
+     */
+    private static int readAndCheckColumns(int[] tIndices, int[] zIndices, int[] xIndices,
+            int[] yIndices) throws IOException, DataReadingException {
+        int nZ = zIndices.length;
+        int reads = -1;
+        for (int dim = T; dim <= X; dim++) {
+            CountingDataSource source = new CountingDataSource(dim);
+            float[][] columns = GridColumnReader.readColumns(source, "var", tIndices, zIndices,
+                    xIndices, yIndices);
+            for (int p = 0; p < columns.length; p++) {
+                if (xIndices[p] < 0 || yIndices[p] < 0) {
+                    assertNull(columns[p]);
+                    continue;
+                }
+                assertEquals(tIndices.length * nZ, columns[p].length);
+                for (int i = 0; i < tIndices.length; i++) {
+                    for (int j = 0; j < nZ; j++) {
+                        float value = columns[p][i * nZ + j];
+                        if (tIndices[i] < 0 || zIndices[j] < 0) {
+                            assertTrue(Float.isNaN(value));
+                        } else {
+                            int[] coords = new int[] { tIndices[i], zIndices[j], yIndices[p],
+                                    xIndices[p] };
+                            assertEquals(coords[dim], value, 0f);
+                        }
+                    }
+                }
+            }
+            reads = checkReads(reads, source);
+        }
+        return reads;
+    }
+
+    /*
+     * The number of reads should not depend on the values read
+     */
+    private static int checkReads(int expectedReads, CountingDataSource source) {
+        if (expectedReads >= 0) {
+            assertEquals(expectedReads, source.reads);
+        }
+        return source.reads;
+    }
+
+    /**
+     * A data source whose value at each point is its index along one
+     * dimension
+     */
+    private static class CountingDataSource extends AbstractGridDataSource {
+        private final int dim;
+        private int reads = 0;
+
+        public CountingDataSource(int dim) {
+            this.dim = dim;
+        }
+
+        @Override
+        public Array4D<Number> read(String variableId, final int tmin, int tmax, final int zmin,
+                int zmax, final int ymin, int ymax, final int xmin, int xmax) {
+            reads++;
+            return new Array4D<Number>(tmax - tmin + 1, zmax - zmin + 1, ymax - ymin + 1, xmax
+                    - xmin + 1) {
+                @Override
+                public Number get(int... coords) {
+                    int[] origin = new int[] { tmin, zmin, ymin, xmin };
+                    return (float) (origin[dim] + coords[dim]);
+                }
+
+                @Override
+                public void set(Number value, int... coords) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
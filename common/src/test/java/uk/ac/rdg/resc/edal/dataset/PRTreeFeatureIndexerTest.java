@@ -30,9 +30,13 @@ package uk.ac.rdg.resc.edal.dataset;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeSet;
 
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
@@ -48,6 +52,7 @@ import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.GISUtils;
 
 /**
  * Test class for {@link PRTreeFeatureIndexer}. For
@@ -183,6 +188,86 @@ public class PRTreeFeatureIndexerTest {
         findFeatureIds(bbox, verticalExtent, timeExtent, fIDs);
     }
 
+    /**
+     * Test {@link PRTreeFeatureIndexer#findNearestFeatureIds}.
+     */
+    @Test
+    public void testFindNearestFeatureIds() {
+        HorizontalPosition pos = new HorizontalPosition(100.37, 20.11, crs);
+
+        // unconstrained, searching the tree outwards from the position
+        assertEquals(findNearestFeatureIds(pos, null, 5),
+                featureindexer.findNearestFeatureIds(pos, null, null, null, varIDs, 5));
+
+        // constrained to a bounding box which the position is near the edge of
+        BoundingBox bbox = new BoundingBoxImpl(Extents.newExtent(100.4, 102.5),
+                Extents.newExtent(15.0, 25.0), crs);
+        assertEquals(findNearestFeatureIds(pos, bbox, 5), featureindexer.findNearestFeatureIds(
+                pos, bbox, verticalExtent, timeExtent, varIDs, 5));
+
+        // a time range containing no features
+        Extent<DateTime> tExtent = Extents.newExtent(dt.minusDays(3), dt.minusDays(2));
+        assertTrue(featureindexer.findNearestFeatureIds(pos, null, null, tExtent, varIDs, 5)
+                .isEmpty());
+        assertTrue(featureindexer.findNearestFeatureIds(pos, bbox, null, tExtent, varIDs, 5)
+                .isEmpty());
+    }
+
+    /**
+     * Test that {@link PRTreeFeatureIndexer#findNearestFeatureIds} measures
+     * distances across the date line.
+     */
+    @Test
+    public void testFindNearestFeatureIdsAcrossDateLine() {
+        PRTreeFeatureIndexer indexer = new PRTreeFeatureIndexer();
+        List<FeatureIndexer.FeatureBounds> dateLineFeatures = new ArrayList<>();
+        double[] longitudes = new double[] { 179.5, -179.8, 178.0, -175.0, 170.0 };
+        for (int i = 0; i < longitudes.length; i++) {
+            dateLineFeatures.add(new FeatureIndexer.FeatureBounds("f" + i, new HorizontalPosition(
+                    longitudes[i], 0.0, crs), verticalExtent, timeExtent, varIDs));
+        }
+        indexer.addFeatures(dateLineFeatures);
+
+        // searching from either side of the date line
+        assertEquals(Arrays.asList("f1", "f0", "f2"), indexer.findNearestFeatureIds(
+                new HorizontalPosition(-179.9, 0.0, crs), null, null, null, varIDs, 3));
+        assertEquals(Arrays.asList("f0", "f1", "f2"), indexer.findNearestFeatureIds(
+                new HorizontalPosition(179.7, 0.0, crs), null, null, null, varIDs, 3));
+        assertEquals(Arrays.asList("f3", "f1", "f0"), indexer.findNearestFeatureIds(
+                new HorizontalPosition(185.5, 0.0, crs), null, null, null, varIDs, 3));
+
+        // constrained to a bounding box which crosses the date line
+        BoundingBox bbox = new BoundingBoxImpl(Extents.newExtent(175.0, 182.0),
+                Extents.newExtent(-5.0, 5.0), crs);
+        assertEquals(Arrays.asList("f1", "f0", "f2"), indexer.findNearestFeatureIds(
+                new HorizontalPosition(-179.9, 0.0, crs), bbox, null, null, varIDs, 5));
+    }
+
+    /**
+     * Finds the nearest features to a position by brute force
+     */
+    private List<String> findNearestFeatureIds(final HorizontalPosition pos, BoundingBox bbox,
+            int maxFeatures) {
+        List<FeatureIndexer.FeatureBounds> candidates = new ArrayList<>();
+        for (FeatureIndexer.FeatureBounds feature : features) {
+            if (bbox == null || bbox.contains(feature.horizontalPosition)) {
+                candidates.add(feature);
+            }
+        }
+        Collections.sort(candidates, new Comparator<FeatureIndexer.FeatureBounds>() {
+            @Override
+            public int compare(FeatureIndexer.FeatureBounds f1, FeatureIndexer.FeatureBounds f2) {
+                return Double.compare(GISUtils.getDistSquared(f1.horizontalPosition, pos),
+                        GISUtils.getDistSquared(f2.horizontalPosition, pos));
+            }
+        });
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < maxFeatures && i < candidates.size(); i++) {
+            ids.add(candidates.get(i).id);
+        }
+        return ids;
+    }
+
     /**
      * Help method to do the real business of testing findFeatureIds
      * 
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.grid;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.position.HorizontalPosition;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.CurvilinearCoords;
+import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
+import uk.ac.rdg.resc.edal.util.LookUpTable;
+import uk.ac.rdg.resc.edal.util.ValuesArray2D;
+
+/**
+ * Test class for {@link LookUpTableGrid} and the storage of its
+ * {@link LookUpTable}s
+ * 
+ * @author Guy Griffiths
+ */
+public class LookUpTableGridTest {
+    private static final int NI = 60;
+    private static final int NJ = 50;
+
+    private Array2D<Number> lonVals;
+    private Array2D<Number> latVals;
+    private File lutDir;
+
+    @Before
+    public void setUp() throws IOException {
+        /*
+         * A regular grid, rotated by 30 degrees
+         */
+        lonVals = new ValuesArray2D(NJ, NI);
+        latVals = new ValuesArray2D(NJ, NI);
+        double angle = Math.toRadians(30.0);
+        for (int j = 0; j < NJ; j++) {
+            for (int i = 0; i < NI; i++) {
+                lonVals.set(-10.0 + 0.1 * i * Math.cos(angle) - 0.1 * j * Math.sin(angle), j, i);
+                latVals.set(40.0 + 0.1 * i * Math.sin(angle) + 0.1 * j * Math.cos(angle), j, i);
+            }
+        }
+        lutDir = File.createTempFile("luts", "");
+        lutDir.delete();
+        LookUpTableGrid.clearCache();
+        LookUpTableGrid.setLutDirectory(lutDir);
+    }
+
+    @After
+    public void tearDown() {
+        LookUpTableGrid.clearCache();
+        LookUpTableGrid.setLutDirectory(null);
+        File[] files = lutDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        lutDir.delete();
+    }
+
+    @Test
+    public void testLutReadWrite() throws IOException {
+        CurvilinearCoords coords = new CurvilinearCoords(lonVals, latVals);
+        LookUpTable lut = new LookUpTable(coords, Math.sqrt(coords.getMeanCellArea()) / 3.0);
+        lutDir.mkdirs();
+        File lutFile = new File(lutDir, "test.lut");
+        lut.writeTo(lutFile);
+        LookUpTable readLut = LookUpTable.readFrom(lutFile);
+
+        assertEquals(lut, readLut);
+        assertEquals(lut.getNumLonPoints(), readLut.getNumLonPoints());
+        assertEquals(lut.getNumLatPoints(), readLut.getNumLatPoints());
+        for (double lon = -16.0; lon < 0.0; lon += 0.037) {
+            for (double lat = 39.0; lat < 50.0; lat += 0.041) {
+                assertArrayEquals(lut.getGridCoordinates(lon, lat),
+                        readLut.getGridCoordinates(lon, lat));
+            }
+        }
+    }
+
+    @Test
+    public void testGridsAreReused() {
+        LookUpTableGrid grid = LookUpTableGrid.generate(lonVals, latVals);
+        assertSame(grid, LookUpTableGrid.generate(lonVals, latVals));
+
+        String key = new CurvilinearCoords(lonVals, latVals).getContentHash();
+        assertTrue(new File(lutDir, key + ".lut").exists());
+
+        /*
+         * Clearing the in-memory cache means that the look-up table must be
+         * read from disk. The result should be equal but not identical.
+         */
+        LookUpTableGrid.clearCache();
+        LookUpTableGrid readGrid = LookUpTableGrid.generate(lonVals, latVals);
+        assertNotSame(grid, readGrid);
+        assertEquals(grid, readGrid);
+        for (int j = 0; j < NJ; j += 7) {
+            for (int i = 0; i < NI; i += 7) {
+                HorizontalPosition pos = new HorizontalPosition(lonVals.get(j, i).doubleValue(),
+                        latVals.get(j, i).doubleValue(), DefaultGeographicCRS.WGS84);
+                GridCoordinates2D expected = new GridCoordinates2D(i, j);
+                assertEquals(expected, grid.findIndexOf(pos));
+                assertEquals(expected, readGrid.findIndexOf(pos));
+            }
+        }
+    }
+
+    @Test
+    public void testLargeGridDimensions() {
+        /*
+         * Grids with dimensions larger than 65534 could not previously be
+         * represented in a look-up table
+         */
+        int ni = 70000;
+        int nj = 3;
+        Array2D<Number> lons = new ValuesArray2D(nj, ni);
+        Array2D<Number> lats = new ValuesArray2D(nj, ni);
+        for (int j = 0; j < nj; j++) {
+            for (int i = 0; i < ni; i++) {
+                lons.set(-175.0 + 0.005 * i, j, i);
+                lats.set(0.005 * j + 0.0001 * i / ni, j, i);
+            }
+        }
+        LookUpTableGrid grid = LookUpTableGrid.generate(lons, lats);
+        for (int i = 0; i < ni; i += 9999) {
+            HorizontalPosition pos = new HorizontalPosition(lons.get(1, i).doubleValue(), lats
+                    .get(1, i).doubleValue(), DefaultGeographicCRS.WGS84);
+            assertEquals(new GridCoordinates2D(i, 1), grid.findIndexOf(pos));
+        }
+    }
+
+    @Test
+    public void testFindIndicesOf() {
+        LookUpTableGrid grid = LookUpTableGrid.generate(lonVals, latVals);
+        int n = 0;
+        double[] xs = new double[100 * 100];
+        double[] ys = new double[xs.length];
+        for (int x = 0; x < 100; x++) {
+            for (int y = 0; y < 100; y++) {
+                xs[n] = -16.0 + 0.16 * x;
+                ys[n] = 39.0 + 0.11 * y;
+                n++;
+            }
+        }
+        int[] is = new int[n];
+        int[] js = new int[n];
+        grid.findIndicesOf(xs, ys, DefaultGeographicCRS.WGS84, is, js);
+        int found = 0;
+        for (int k = 0; k < n; k++) {
+            GridCoordinates2D coords = grid.findIndexOf(new HorizontalPosition(xs[k], ys[k],
+                    DefaultGeographicCRS.WGS84));
+            if (coords == null) {
+                assertEquals(-1, is[k]);
+                assertEquals(-1, js[k]);
+            } else {
+                assertEquals(coords.getX(), is[k]);
+                assertEquals(coords.getY(), js[k]);
+                found++;
+            }
+        }
+        assertTrue(found > 0 && found < n);
+    }
+}
@@ -32,6 +32,7 @@ import static org.junit.Assert.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import org.geotoolkit.metadata.iso.extent.DefaultGeographicBoundingBox;
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
@@ -152,4 +153,76 @@ public class RectilinearGridImplTest {
         GridCoordinates2D coord = new GridCoordinates2D(11, 15);
         assertEquals(coord, rGrid.findIndexOf(position));
     }
+
+    /**
+     * Test that {@link RectilinearGridImpl#findIndicesOf} gives the same
+     * results as repeated calls to {@link RectilinearGridImpl#findIndexOf},
+     * for regular and (reversed) irregular axes, and for positions in a
+     * different CRS.
+     * 
+     * @throws InvalidCrsException
+     *             if a wrong epsg code is provided.
+     */
+    @Test
+    public void testFindIndicesOf() throws InvalidCrsException {
+        List<Double> lats = new ArrayList<>();
+        double lat = 41.0;
+        for (int i = 0; i < ySize; i++) {
+            lats.add(lat);
+            lat -= 0.25 + 0.05 * i;
+        }
+        RectilinearGrid irregularGrid = new RectilinearGridImpl(longAxis,
+                new ReferenceableAxisImpl("latitude", lats, false), crs);
+
+        Random random = new Random(42L);
+        int n = 500;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int k = 0; k < n; k++) {
+            xs[k] = 93.0 + 10.0 * random.nextDouble();
+            ys[k] = 25.0 + 18.0 * random.nextDouble();
+        }
+        /* Check exact cell centres and NaNs as well */
+        xs[0] = 95.0;
+        ys[0] = 33.0;
+        xs[1] = Double.NaN;
+
+        checkFindIndicesOf(rGrid, xs, ys, crs);
+        checkFindIndicesOf(irregularGrid, xs, ys, crs);
+        checkFindIndicesOf(rGrid, xs, ys, null);
+
+        CoordinateReferenceSystem mercator = GISUtils.getCrs("EPSG:3857");
+        double[][] projected = GISUtils.transformPositions(xs, ys, crs, mercator);
+        checkFindIndicesOf(rGrid, projected[0], projected[1], mercator);
+        checkFindIndicesOf(irregularGrid, projected[0], projected[1], mercator);
+    }
+
+    private static void checkFindIndicesOf(HorizontalGrid grid, double[] xs, double[] ys,
+            CoordinateReferenceSystem positionCrs) {
+        int[] is = new int[xs.length];
+        int[] js = new int[xs.length];
+        grid.findIndicesOf(xs, ys, positionCrs, is, js);
+        CoordinateReferenceSystem crs = positionCrs == null ? grid.getCoordinateReferenceSystem()
+                : positionCrs;
+        int found = 0;
+        for (int k = 0; k < xs.length; k++) {
+            /*
+             * findIndexOf() expects positions in the grid's CRS, whereas
+             * findIndicesOf() transforms them itself
+             */
+            HorizontalPosition pos = GISUtils.transformPosition(new HorizontalPosition(xs[k],
+                    ys[k], crs), grid.getCoordinateReferenceSystem());
+            GridCoordinates2D coords = grid.findIndexOf(pos);
+            if (coords == null) {
+                assertEquals(-1, is[k]);
+                assertEquals(-1, js[k]);
+            } else {
+                assertEquals(coords.getX(), is[k]);
+                assertEquals(coords.getY(), js[k]);
+                found++;
+            }
+        }
+        /* Make sure that we are actually testing something */
+        assertTrue(found > 0 && found < xs.length);
+    }
 }
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.metrics;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Scope;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Series;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Stage;
+
+/**
+ * Test class for {@link RequestMetrics} and {@link LatencyHistogram}
+ */
+public class RequestMetricsTest {
+    @Before
+    public void setUp() {
+        RequestMetrics.reset();
+        RequestMetrics.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        RequestMetrics.setEnabled(false);
+        RequestMetrics.reset();
+    }
+
+    @Test
+    public void testDisabled() {
+        RequestMetrics.setEnabled(false);
+        long start = RequestMetrics.start();
+        assertEquals(0L, start);
+        RequestMetrics.stop(Stage.READ, start);
+        RequestMetrics.cacheAccess("test", true);
+        RequestMetrics.addBytesRead(100);
+        try (Scope scope = RequestMetrics.attribute("dataset", "layer")) {
+            assertNull(RequestMetrics.getAttribution());
+        }
+        assertTrue(RequestMetrics.getStageLatencies().isEmpty());
+        assertTrue(RequestMetrics.getCaches().isEmpty());
+        assertTrue(RequestMetrics.getBytesRead().isEmpty());
+    }
+
+    @Test
+    public void testAttribution() {
+        RequestMetrics.stop(Stage.RENDER, RequestMetrics.start());
+        try (Scope outer = RequestMetrics.attribute("dataset", null)) {
+            try (Scope inner = RequestMetrics.attribute("dataset", "dataset/var")) {
+                RequestMetrics.stop(Stage.READ, RequestMetrics.start());
+                RequestMetrics.addBytesRead(400);
+            }
+            assertEquals("", RequestMetrics.getAttribution().getLayerName());
+            RequestMetrics.stop(Stage.RENDER, RequestMetrics.start());
+        }
+        assertNull(RequestMetrics.getAttribution());
+
+        Map<Series, LatencyHistogram> latencies = RequestMetrics.getStageLatencies();
+        assertEquals(3, latencies.size());
+        for (Series series : latencies.keySet()) {
+            assertEquals(1L, latencies.get(series).getCount());
+            if (series.getStage() == Stage.READ) {
+                assertEquals("dataset", series.getDatasetId());
+                assertEquals("dataset/var", series.getLayerName());
+            } else {
+                assertEquals(Stage.RENDER, series.getStage());
+                assertEquals("", series.getLayerName());
+            }
+        }
+        assertEquals(2L, RequestMetrics.getStageTotals().get(Stage.RENDER).getCount());
+        assertEquals(Long.valueOf(400L), RequestMetrics.getBytesRead().get("dataset"));
+    }
+
+    @Test
+    public void testRequests() {
+        long start = RequestMetrics.requestStarted("GetMap");
+        assertEquals(Integer.valueOf(1), RequestMetrics.getActiveRequests().get("GetMap"));
+        RequestMetrics.requestFinished("GetMap", start);
+        assertEquals(Integer.valueOf(0), RequestMetrics.getActiveRequests().get("GetMap"));
+        assertEquals(1L, RequestMetrics.getRequestLatencies().get("GetMap").getCount());
+    }
+
+    @Test
+    public void testCacheAccess() {
+        RequestMetrics.cacheAccess("test", true);
+        RequestMetrics.cacheAccess("test", true);
+        RequestMetrics.cacheAccess("test", true);
+        RequestMetrics.cacheAccess("test", false);
+        CacheCounter counter = RequestMetrics.getCaches().get("test");
+        assertEquals(3L, counter.getHits());
+        assertEquals(1L, counter.getMisses());
+        assertEquals(0.75, counter.getHitRatio(), 1e-10);
+    }
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0.0, histogram.getPercentileMillis(50.0), 1e-10);
+        for (int i = 0; i < 100; i++) {
+            /*
+             * 100 durations evenly spread between 10 and 25ms
+             */
+            histogram.record(10000000L + 150000L * (i + 1));
+        }
+        histogram.record(60000000000L);
+        assertEquals(101L, histogram.getCount());
+        assertEquals(17.5, histogram.getPercentileMillis(50.0), 0.5);
+        assertEquals(30000.0, histogram.getPercentileMillis(100.0), 1e-10);
+
+        long[] counts = histogram.getBucketCounts();
+        assertEquals(LatencyHistogram.getBucketBoundsMillis().length + 1, counts.length);
+        assertEquals(1L, counts[counts.length - 1]);
+    }
+}
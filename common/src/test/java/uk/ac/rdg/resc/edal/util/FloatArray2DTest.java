@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for {@link FloatArray2D}.
+ * 
+ * @author Guy Griffiths
+ */
+public class FloatArray2DTest {
+
+    private FloatArray2D data;
+
+    private static final int XSIZE = 5;
+    private static final int YSIZE = 7;
+
+    @Before
+    public void setUp() {
+        data = new FloatArray2D(YSIZE, XSIZE);
+        for (int i = 0; i < YSIZE; i++) {
+            for (int j = 0; j < XSIZE; j++) {
+                data.setFloat(10 * i + j, i, j);
+            }
+        }
+    }
+
+    @Test
+    public void testInitiallyMissing() {
+        FloatArray2D empty = new FloatArray2D(YSIZE, XSIZE);
+        for (Number value : empty) {
+            assertNull(value);
+        }
+        assertTrue(Float.isNaN(empty.getFloat(3, 2)));
+    }
+
+    @Test
+    public void testGetSet() {
+        assertEquals(32f, data.getFloat(3, 2), 1e-6);
+        assertEquals(32f, data.get(3, 2).floatValue(), 1e-6);
+
+        data.set(129.5, 2, 4);
+        assertEquals(129.5f, data.getFloat(2, 4), 1e-6);
+
+        /*
+         * Missing values are stored as NaN and returned as null
+         */
+        data.set(null, 6, 4);
+        assertNull(data.get(6, 4));
+        assertTrue(Float.isNaN(data.getFloat(6, 4)));
+
+        data.setFloat(Float.NaN, 1, 1);
+        assertNull(data.get(1, 1));
+    }
+
+    @Test
+    public void testIterator() {
+        Iterator<Number> iterator = data.iterator();
+        for (int i = 0; i < YSIZE; i++) {
+            for (int j = 0; j < XSIZE; j++) {
+                assertEquals(10 * i + j, iterator.next().floatValue(), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testFillAndBackingArray() {
+        float[] backing = data.getData();
+        assertEquals(XSIZE * YSIZE, backing.length);
+        assertEquals(data.getFloat(4, 3), backing[4 * XSIZE + 3], 1e-6);
+
+        data.fill(Float.NaN);
+        for (Number value : data) {
+            assertNull(value);
+        }
+        data.fill(1.5f);
+        assertEquals(1.5f, data.get(6, 4).floatValue(), 1e-6);
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void testOutOfBounds() {
+        data.getFloat(0, XSIZE);
+    }
+}
@@ -29,6 +29,7 @@
 package uk.ac.rdg.resc.edal.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 
 import java.util.ArrayList;
@@ -209,6 +210,36 @@ public class GISUtilsTest {
         assertEquals(new DateTime(100L), GISUtils.getClosestTimeTo(new DateTime(1000L), tAxis));
     }
 
+    /**
+     * Test the method of {@link GISUtils#getNextClosestTimeChange}.
+     */
+    @Test
+    public void testGetNextClosestTimeChange() {
+        List<DateTime> tValues = new ArrayList<DateTime>();
+        for (long t = 0L; t <= 100; t += 10) {
+            tValues.add(new DateTime(t));
+        }
+        TimeAxis tAxis = new TimeAxisImpl("time", tValues);
+        assertEquals(new DateTime(5L), GISUtils.getNextClosestTimeChange(new DateTime(-1000L),
+                tAxis));
+        assertEquals(new DateTime(5L), GISUtils.getNextClosestTimeChange(new DateTime(4L), tAxis));
+        assertEquals(new DateTime(15L), GISUtils.getNextClosestTimeChange(new DateTime(5L), tAxis));
+        assertEquals(new DateTime(95L), GISUtils.getNextClosestTimeChange(new DateTime(90L),
+                tAxis));
+        assertNull(GISUtils.getNextClosestTimeChange(new DateTime(95L), tAxis));
+        assertNull(GISUtils.getNextClosestTimeChange(new DateTime(1000L), tAxis));
+
+        /*
+         * The closest time should be the same up until the change
+         */
+        for (long t = -20L; t < 95L; t++) {
+            DateTime closest = GISUtils.getClosestTimeTo(new DateTime(t), tAxis);
+            DateTime change = GISUtils.getNextClosestTimeChange(new DateTime(t), tAxis);
+            assertEquals(closest, GISUtils.getClosestTimeTo(change.minus(1L), tAxis));
+            assertFalse(closest.equals(GISUtils.getClosestTimeTo(change, tAxis)));
+        }
+    }
+
     /**
      * Test the method of {@link GISUtils#getClosestElevationToSurface}.
      */
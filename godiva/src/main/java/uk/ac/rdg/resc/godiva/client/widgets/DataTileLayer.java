@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.godiva.client.widgets;
+
+import org.gwtopenmaps.openlayers.client.layer.WMS;
+import org.gwtopenmaps.openlayers.client.layer.WMSOptions;
+import org.gwtopenmaps.openlayers.client.layer.WMSParams;
+import org.gwtopenmaps.openlayers.client.util.JSObject;
+
+/**
+ * A {@link WMS} layer which requests raw data tiles with GetData requests and
+ * colours them in the browser. The colouring is controlled by a separate set
+ * of parameters, so that restyling the layer does not need any new data to be
+ * fetched.
+ * 
+ * This wraps the OpenLayers.Layer.EdalData class defined in EdalDataLayer.js
+ * 
+ * @author Guy Griffiths
+ */
+public class DataTileLayer extends WMS {
+    private final String dataKey;
+
+    /**
+     * @param name
+     *            The name of the layer
+     * @param url
+     *            The URL of the WMS server
+     * @param dataParams
+     *            The parameters for the GetData requests
+     * @param styleParams
+     *            The parameters which control how the data is coloured
+     * @param options
+     *            The layer options
+     * @param dataKey
+     *            A key identifying the data which this layer displays. Layers
+     *            with the same key can be restyled rather than replaced.
+     */
+    public DataTileLayer(String name, String url, WMSParams dataParams, WMSParams styleParams,
+            WMSOptions options, String dataKey) {
+        super(create(name, url, dataParams.getJSObject(), options.getJSObject()));
+        this.dataKey = dataKey;
+        setStyleParamsImpl(getJSObject(), styleParams.getJSObject());
+    }
+
+    /**
+     * @return A key identifying the data which this layer displays
+     */
+    public String getDataKey() {
+        return dataKey;
+    }
+
+    /**
+     * Changes the parameters which control how the data is coloured, and
+     * recolours the layer
+     * 
+     * @param styleParams
+     *            The new style parameters
+     */
+    public void setStyleParams(WMSParams styleParams) {
+        setStyleParamsImpl(getJSObject(), styleParams.getJSObject());
+    }
+
+    private static native JSObject create(String name, String url, JSObject params,
+            JSObject options)/*-{
+        return new $wnd.OpenLayers.Layer.EdalData(name, url, params, options);
+    }-*/;
+
+    private static native void setStyleParamsImpl(JSObject layer, JSObject styleParams)/*-{
+        layer.setStyleParams(styleParams);
+    }-*/;
+}
@@ -28,9 +28,12 @@
 
 package uk.ac.rdg.resc.godiva.client.widgets;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Set;
 
 import org.gwtopenmaps.openlayers.client.Bounds;
 import org.gwtopenmaps.openlayers.client.LonLat;
@@ -129,6 +132,31 @@ public class MapArea extends MapWidget implements OpacitySelectionHandler, Centr
      */
     public int maxFeatures = 5;
 
+    /*
+     * Whether to colour layers in the browser from raw data tiles where
+     * possible, rather than requesting images from the server. This is public
+     * so that classes which use MapArea can always use server-rendered images
+     * if they want to
+     */
+    public boolean useDataTiles = true;
+
+    /*
+     * The styles which the browser can reproduce from raw data tiles
+     */
+    protected static final Set<String> DATA_TILE_STYLES = new HashSet<String>(Arrays.asList(
+            "default-scalar", "raster"));
+    /*
+     * The parameters which determine which data is in a data tile
+     */
+    protected static final String[] DATA_TILE_PARAMS = new String[] { "LAYERS", "TIME",
+            "TARGETTIME", "ELEVATION", "TARGETELEVATION" };
+    /*
+     * The parameters which determine how a data tile is coloured
+     */
+    protected static final String[] DATA_TILE_STYLE_PARAMS = new String[] { "STYLES",
+            "COLORSCALERANGE", "NUMCOLORBANDS", "ABOVEMAXCOLOR", "BELOWMINCOLOR", "BGCOLOR",
+            "LOGSCALE" };
+
     protected Map map;
     protected java.util.Map<String, WmsDetails> wmsLayers;
     protected Image animLayer;
@@ -362,6 +390,7 @@ public class MapArea extends MapWidget implements OpacitySelectionHandler, Centr
             String scaleRange, int nColourBands, boolean logScale, boolean multipleElevations,
             boolean multipleTimes) {
         WMSParams params = new WMSParams();
+        params.setParameter("REQUEST", "GetMap");
         params.setFormat("image/png");
         params.setTransparent(true);
         params.setStyles(style + "/" + palette);
@@ -408,24 +437,44 @@ public class MapArea extends MapWidget implements OpacitySelectionHandler, Centr
         WmsDetails wmsAndParams = wmsLayers.get(internalLayerId);
         WMS wmsLayer;
 
-        if (wmsAndParams != null) {
+        String dataKey = getDataTileKey(wmsUrl, params);
+        if (wmsAndParams != null && dataKey != null && wmsAndParams.wms instanceof DataTileLayer
+                && dataKey.equals(((DataTileLayer) wmsAndParams.wms).getDataKey())) {
             /*
-             * If we already have an existing layer, we remove it and re-add it.
-             * 
-             * New parameters can be merged, but this can cause problems if the
-             * new layer doesn't require some parameters which the old layer
-             * had, so this is simpler.
+             * Only the styling has changed, so the existing layer can just
+             * recolour the data it already has
              */
-            map.removeLayer(wmsLayers.get(internalLayerId).wms);
-        }
+            wmsLayer = wmsAndParams.wms;
+            ((DataTileLayer) wmsLayer).setStyleParams(copyParams(params, DATA_TILE_STYLE_PARAMS));
+        } else {
+            if (wmsAndParams != null) {
+                /*
+                 * If we already have an existing layer, we remove it and re-add
+                 * it.
+                 * 
+                 * New parameters can be merged, but this can cause problems if
+                 * the new layer doesn't require some parameters which the old
+                 * layer had, so this is simpler.
+                 */
+                map.removeLayer(wmsLayers.get(internalLayerId).wms);
+            }
 
-        wmsLayer = new WMS("WMS Layer", wmsUrl, params, options);
-        wmsLayer.addLayerLoadStartListener(loadStartListener);
-        wmsLayer.addLayerLoadCancelListener(loadCancelListener);
-        wmsLayer.addLayerLoadEndListener(loadEndListener);
-        wmsLayer.setIsBaseLayer(false);
-        wmsLayer.setOpacity(opacity);
-        map.addLayer(wmsLayer);
+            if (dataKey != null) {
+                WMSParams dataParams = copyParams(params, DATA_TILE_PARAMS);
+                dataParams.setParameter("REQUEST", "GetData");
+                dataParams.setFormat("application/x-int16");
+                wmsLayer = new DataTileLayer("WMS Layer", wmsUrl, dataParams, copyParams(params,
+                        DATA_TILE_STYLE_PARAMS), options, dataKey);
+            } else {
+                wmsLayer = new WMS("WMS Layer", wmsUrl, params, options);
+            }
+            wmsLayer.addLayerLoadStartListener(loadStartListener);
+            wmsLayer.addLayerLoadCancelListener(loadCancelListener);
+            wmsLayer.addLayerLoadEndListener(loadEndListener);
+            wmsLayer.setIsBaseLayer(false);
+            wmsLayer.setOpacity(opacity);
+            map.addLayer(wmsLayer);
+        }
 
         WmsDetails newWmsAndParams = new WmsDetails(wmsUrl, wmsLayer, params, multipleElevations,
                 multipleTimes);
@@ -436,6 +485,44 @@ public class MapArea extends MapWidget implements OpacitySelectionHandler, Centr
         }
     }
 
+    /*
+     * Gets a key identifying the data needed to display a layer in the browser
+     * from raw data tiles, or null if the layer needs to be rendered by the
+     * server
+     */
+    protected String getDataTileKey(String wmsUrl, WMSParams params) {
+        if (!useDataTiles) {
+            return null;
+        }
+        String layers = params.getLayers();
+        String styles = params.getStyles();
+        if (layers == null || layers.contains(",") || styles == null
+                || !DATA_TILE_STYLES.contains(styles.split("/")[0])
+                || params.getJSObject().getPropertyAsString("COLORSCALERANGE") == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(wmsUrl);
+        key.append("|" + currentProjection);
+        for (String name : DATA_TILE_PARAMS) {
+            key.append("|" + params.getJSObject().getPropertyAsString(name));
+        }
+        return key.toString();
+    }
+
+    /*
+     * Copies the named parameters (where they are set) to a new WMSParams
+     */
+    private static WMSParams copyParams(WMSParams params, String[] names) {
+        WMSParams copy = new WMSParams();
+        for (String name : names) {
+            String value = params.getJSObject().getPropertyAsString(name);
+            if (value != null) {
+                copy.setParameter(name, value);
+            }
+        }
+        return copy;
+    }
+
     public void removeLayer(String layerId) {
         if (wmsLayers.containsKey(layerId)) {
             map.removeLayer(wmsLayers.get(layerId).wms);
@@ -1174,7 +1261,12 @@ public class MapArea extends MapWidget implements OpacitySelectionHandler, Centr
             public void onHandle(EventObject eventObject) {
                 WmsDetails wmsAndParams = wmsLayers.get(getTransectLayerId());
                 if (wmsAndParams != null) {
-                    WMS wmsLayer = wmsAndParams.wms;
+                    /*
+                     * Use the full parameters rather than those of the map
+                     * layer, since layers using data tiles don't include the
+                     * style parameters
+                     */
+                    WMSParams layerParams = wmsAndParams.params;
                     JSObject featureJs = eventObject.getJSObject().getProperty("feature");
                     JSObject lineStringJs = VectorFeature.narrowToVectorFeature(featureJs)
                             .getGeometry().getJSObject();
@@ -1195,21 +1287,21 @@ public class MapArea extends MapWidget implements OpacitySelectionHandler, Centr
                         projection = "CRS:84";
                     }
                     String transectParams = "REQUEST=GetTransect" + "&LAYERS="
-                            + wmsLayer.getParams().getLayers() + "&CRS=" + projection
+                            + layerParams.getLayers() + "&CRS=" + projection
                             + "&LINESTRING=" + lineStringBuilder + "&FORMAT=image/png";
 
-                    transectParams = addParameterValue(wmsLayer, transectParams, "ELEVATION");
-                    transectParams = addParameterValue(wmsLayer, transectParams, "TARGETELEVATION");
-                    transectParams = addParameterValue(wmsLayer, transectParams, "TIME");
-                    transectParams = addParameterValue(wmsLayer, transectParams, "TARGETTIME");
-                    transectParams = addParameterValue(wmsLayer, transectParams, "COLORSCALERANGE");
-                    transectParams = addParameterValue(wmsLayer, transectParams, "NUMCOLORBANDS");
-                    transectParams = addParameterValue(wmsLayer, transectParams, "LOGSCALE");
-                    transectParams = addParameterValue(wmsLayer, transectParams, "ABOVEMAXCOLOR");
-                    transectParams = addParameterValue(wmsLayer, transectParams, "BELOWMINCOLOR");
-                    transectParams = addParameterValue(wmsLayer, transectParams, "BGCOLOR");
-
-                    String stylesStr = wmsLayer.getParams().getStyles();
+                    transectParams = addParameterValue(layerParams, transectParams, "ELEVATION");
+                    transectParams = addParameterValue(layerParams, transectParams, "TARGETELEVATION");
+                    transectParams = addParameterValue(layerParams, transectParams, "TIME");
+                    transectParams = addParameterValue(layerParams, transectParams, "TARGETTIME");
+                    transectParams = addParameterValue(layerParams, transectParams, "COLORSCALERANGE");
+                    transectParams = addParameterValue(layerParams, transectParams, "NUMCOLORBANDS");
+                    transectParams = addParameterValue(layerParams, transectParams, "LOGSCALE");
+                    transectParams = addParameterValue(layerParams, transectParams, "ABOVEMAXCOLOR");
+                    transectParams = addParameterValue(layerParams, transectParams, "BELOWMINCOLOR");
+                    transectParams = addParameterValue(layerParams, transectParams, "BGCOLOR");
+
+                    String stylesStr = layerParams.getStyles();
                     if (stylesStr != null && !stylesStr.equals("")) {
                         String[] styles = stylesStr.split(",");
                         String palette = null;
@@ -1242,11 +1334,12 @@ public class MapArea extends MapWidget implements OpacitySelectionHandler, Centr
 
             /*
              * Adds the value of the requested parameter to the URL string if it
-             * exists on the WMS layer
+             * exists in the layer parameters
              */
-            private String addParameterValue(WMS wmsLayer, String transectUrl, String parameterName) {
-                String parameterValue = wmsLayer.getParams().getJSObject()
-                        .getPropertyAsString(parameterName);
+            private String addParameterValue(WMSParams layerParams, String transectUrl,
+                    String parameterName) {
+                String parameterValue = layerParams.getJSObject().getPropertyAsString(
+                        parameterName);
                 if (parameterValue != null && !parameterValue.equals("")) {
                     return transectUrl + "&" + parameterName + "=" + parameterValue;
                 } else {
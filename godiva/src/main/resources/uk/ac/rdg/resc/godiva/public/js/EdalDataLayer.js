@@ -0,0 +1,413 @@
+/*
+ * An OpenLayers WMS layer which fetches raw data tiles from an EDAL WMS server
+ * (using the non-standard GetData request) and colours them in the browser.
+ *
+ * Changing the colour scale range, palette etc. (with setStyleParams) only
+ * needs the tiles to be recoloured, so it doesn't need another round trip to
+ * the server for each tile.
+ *
+ * If the browser cannot colour tiles, or the server does not support GetData,
+ * this falls back to requesting normal GetMap images.
+ *
+ * Author: Guy Griffiths
+ */
+OpenLayers.Layer.EdalData = OpenLayers.Class(OpenLayers.Layer.WMS, {
+    async : true,
+
+    /*
+     * The maximum number of decoded data tiles to keep in memory
+     */
+    maxCachedTiles : 100,
+
+    /*
+     * The parameters which control how the data is coloured (STYLES,
+     * COLORSCALERANGE, NUMCOLORBANDS etc.) These are not sent with GetData
+     * requests
+     */
+    styleParams : null,
+
+    /*
+     * Whether we have given up on colouring data locally
+     */
+    fallback : false,
+
+    tileCache : null,
+    tileCacheOrder : null,
+    pendingTiles : null,
+    palettes : null,
+    canvas : null,
+
+    initialize : function(name, url, params, options) {
+        OpenLayers.Layer.WMS.prototype.initialize.apply(this, arguments);
+        this.styleParams = {};
+        this.tileCache = {};
+        this.tileCacheOrder = [];
+        this.pendingTiles = {};
+        this.palettes = {};
+        this.canvas = document.createElement('canvas');
+        this.fallback = !(window.XMLHttpRequest && window.ArrayBuffer && window.DataView
+                && this.canvas.getContext);
+    },
+
+    clone : function(obj) {
+        if (obj == null) {
+            obj = new OpenLayers.Layer.EdalData(this.name, this.url, this.params, this
+                    .getOptions());
+        }
+        obj = OpenLayers.Layer.WMS.prototype.clone.apply(this, [ obj ]);
+        obj.styleParams = OpenLayers.Util.extend({}, this.styleParams);
+        return obj;
+    },
+
+    /*
+     * Sets the parameters which control how the data is coloured, and
+     * recolours all of the tiles
+     */
+    setStyleParams : function(styleParams) {
+        this.styleParams = OpenLayers.Util.upperCaseObject(styleParams);
+        this.redraw();
+    },
+
+    getURLasync : function(bounds, scope, prop, callback) {
+        var layer = this;
+        var requestedBounds = bounds.clone();
+        var done = function(url) {
+            /*
+             * Tiles get reused when the map is panned, so check that this one
+             * still wants the image we've just generated
+             */
+            if (scope.bounds && scope.bounds.equals(requestedBounds)) {
+                scope[prop] = url;
+                callback.apply(scope);
+            }
+        };
+
+        var scale = this.getScale();
+        if (this.fallback || scale == null) {
+            done(this.getMapURL(bounds));
+            return;
+        }
+        var dataUrl = this.getURL(bounds);
+        this.getPalette(function(palette) {
+            if (palette == null) {
+                done(layer.getMapURL(requestedBounds));
+                return;
+            }
+            layer.getDataTile(dataUrl, function(tile) {
+                if (tile == null) {
+                    done(layer.getMapURL(requestedBounds));
+                } else {
+                    done(layer.colourTile(tile, palette, scale));
+                }
+            });
+        });
+    },
+
+    /*
+     * Gets the URL of a GetMap request for the given bounds, with the same
+     * parameters as this layer
+     */
+    getMapURL : function(bounds) {
+        bounds = this.adjustBounds(bounds);
+        var imageSize = this.getImageSize();
+        var reverseAxisOrder = this.reverseAxisOrder();
+        var newParams = OpenLayers.Util.extend({}, this.styleParams);
+        newParams.REQUEST = 'GetMap';
+        newParams.FORMAT = 'image/png';
+        newParams.TRANSPARENT = 'TRUE';
+        newParams.BBOX = this.encodeBBOX ? bounds.toBBOX(null, reverseAxisOrder) : bounds
+                .toArray(reverseAxisOrder);
+        newParams.WIDTH = imageSize.w;
+        newParams.HEIGHT = imageSize.h;
+        return this.getFullRequestString(newParams);
+    },
+
+    /*
+     * Parses the colour scale from the style parameters. Returns null if it
+     * cannot be parsed, in which case the server must colour the data.
+     */
+    getScale : function() {
+        var range = this.styleParams.COLORSCALERANGE;
+        if (!range) {
+            return null;
+        }
+        var parts = String(range).split(',');
+        if (parts.length != 2) {
+            return null;
+        }
+        var min = parseFloat(parts[0]);
+        var max = parseFloat(parts[1]);
+        if (isNaN(min) || isNaN(max)) {
+            return null;
+        }
+        var scale = {
+            min : min,
+            width : max - min,
+            log : String(this.styleParams.LOGSCALE).toLowerCase() == 'true'
+        };
+        if (scale.log) {
+            if (min <= 0 || max <= 0) {
+                return null;
+            }
+            scale.logMin = Math.log(min);
+            scale.logRange = Math.log(max) - scale.logMin;
+        }
+        return scale;
+    },
+
+    /*
+     * Gets the palette for the current style parameters from the server, and
+     * passes it to the callback (or null if it couldn't be retrieved)
+     */
+    getPalette : function(callback) {
+        var styles = String(this.styleParams.STYLES || '');
+        var params = {
+            REQUEST : 'GetMetadata',
+            ITEM : 'palette',
+            PALETTE : styles.indexOf('/') >= 0 ? styles.substring(styles.indexOf('/') + 1) : ''
+        };
+        var names = [ 'NUMCOLORBANDS', 'ABOVEMAXCOLOR', 'BELOWMINCOLOR', 'BGCOLOR' ];
+        for (var i = 0; i < names.length; i++) {
+            if (this.styleParams[names[i]] != null) {
+                params[names[i]] = this.styleParams[names[i]];
+            }
+        }
+        var url = OpenLayers.Util.urlAppend(this.url, OpenLayers.Util.getParameterString(params));
+
+        var palette = this.palettes[url];
+        if (palette instanceof Array) {
+            /*
+             * A request for this palette is in progress
+             */
+            palette.push(callback);
+            return;
+        } else if (palette !== undefined) {
+            callback(palette);
+            return;
+        }
+
+        var callbacks = [ callback ];
+        this.palettes[url] = callbacks;
+        var layer = this;
+        var finished = function(result) {
+            layer.palettes[url] = result;
+            for (var i = 0; i < callbacks.length; i++) {
+                callbacks[i](result);
+            }
+        };
+        OpenLayers.Request.GET({
+            url : url,
+            success : function(request) {
+                try {
+                    finished(JSON.parse(request.responseText));
+                } catch (e) {
+                    finished(null);
+                }
+            },
+            failure : function() {
+                finished(null);
+            }
+        });
+    },
+
+    /*
+     * Gets a decoded data tile, either from the cache or from the server, and
+     * passes it to the callback (or null if it couldn't be retrieved)
+     */
+    getDataTile : function(url, callback) {
+        var tile = this.tileCache[url];
+        if (tile) {
+            /*
+             * Move this tile to the most-recently-used end of the cache
+             */
+            OpenLayers.Util.removeItem(this.tileCacheOrder, url);
+            this.tileCacheOrder.push(url);
+            callback(tile);
+            return;
+        }
+        if (this.pendingTiles[url]) {
+            this.pendingTiles[url].push(callback);
+            return;
+        }
+
+        var callbacks = [ callback ];
+        this.pendingTiles[url] = callbacks;
+        var layer = this;
+        var xhr = new XMLHttpRequest();
+        xhr.open('GET', url, true);
+        xhr.responseType = 'arraybuffer';
+        xhr.onreadystatechange = function() {
+            if (xhr.readyState != 4) {
+                return;
+            }
+            delete layer.pendingTiles[url];
+            var tile = null;
+            if (xhr.status == 200 && xhr.response) {
+                tile = layer.decodeTile(xhr.response);
+                if (tile == null && layer.isUnsupportedResponse(xhr.response)) {
+                    /*
+                     * GetData will never work for this layer. Don't keep
+                     * trying.
+                     */
+                    layer.fallback = true;
+                }
+            }
+            /*
+             * Otherwise, a tile which couldn't be retrieved (e.g. because of
+             * a network problem) is requested as a normal image this time,
+             * and GetData is tried again for the next one
+             */
+            if (tile != null) {
+                layer.tileCache[url] = tile;
+                layer.tileCacheOrder.push(url);
+                while (layer.tileCacheOrder.length > layer.maxCachedTiles) {
+                    delete layer.tileCache[layer.tileCacheOrder.shift()];
+                }
+            }
+            for (var i = 0; i < callbacks.length; i++) {
+                callbacks[i](tile);
+            }
+        };
+        xhr.send();
+    },
+
+    /*
+     * Whether a response which couldn't be decoded as a data tile shows that
+     * GetData is not supported for this layer, rather than that this tile
+     * could not be produced
+     */
+    isUnsupportedResponse : function(buffer) {
+        var bytes = new Uint8Array(buffer, 0, Math.min(buffer.byteLength, 4096));
+        if (bytes.length == 0) {
+            /*
+             * Probably an interrupted response
+             */
+            return false;
+        }
+        if (bytes.length >= 5 && bytes[0] == 69 && bytes[1] == 68 && bytes[2] == 65
+                && bytes[3] == 84) {
+            /*
+             * A data tile, which is either truncated or in a version we
+             * can't read
+             */
+            return bytes[4] != 1;
+        }
+        var text = String.fromCharCode.apply(null, bytes);
+        if (text.indexOf('ServiceException') >= 0) {
+            return text.indexOf('OperationNotSupported') >= 0
+                    || text.indexOf('InvalidFormat') >= 0;
+        }
+        /*
+         * Neither a data tile nor an exception
+         */
+        return true;
+    },
+
+    /*
+     * Decodes a data tile, as written by uk.ac.rdg.resc.edal.wms.util.DataTile
+     */
+    decodeTile : function(buffer) {
+        if (buffer.byteLength < 24) {
+            return null;
+        }
+        var view = new DataView(buffer);
+        if (view.getUint8(0) != 69 || view.getUint8(1) != 68 || view.getUint8(2) != 65
+                || view.getUint8(3) != 84 || view.getUint8(4) != 1) {
+            /*
+             * Not "EDAT", version 1
+             */
+            return null;
+        }
+        var type = view.getUint8(5);
+        var width = view.getInt32(8, true);
+        var height = view.getInt32(12, true);
+        var offset = view.getFloat32(16, true);
+        var scale = view.getFloat32(20, true);
+        var n = width * height;
+        var values = new Float32Array(n);
+        var i;
+        if (type == 0) {
+            if (buffer.byteLength < 24 + 4 * n) {
+                return null;
+            }
+            for (i = 0; i < n; i++) {
+                values[i] = view.getFloat32(24 + 4 * i, true);
+            }
+        } else if (type == 1) {
+            var maskStart = 24 + 2 * n;
+            if (buffer.byteLength < maskStart + Math.ceil(n / 8)) {
+                return null;
+            }
+            for (i = 0; i < n; i++) {
+                if (view.getUint8(maskStart + (i >> 3)) & (1 << (i & 7))) {
+                    values[i] = NaN;
+                } else {
+                    values[i] = offset + scale * view.getInt16(24 + 2 * i, true);
+                }
+            }
+        } else {
+            return null;
+        }
+        return {
+            width : width,
+            height : height,
+            values : values
+        };
+    },
+
+    /*
+     * Colours a data tile, returning it as a data URL. This follows the same
+     * rules as the server's SegmentColourScheme.
+     */
+    colourTile : function(tile, palette, scale) {
+        var colours = palette.colours;
+        var nColours = colours.length;
+        var noData = palette.noDataColour;
+        var belowMin = palette.belowMinColour !== undefined ? palette.belowMinColour
+                : colours[0];
+        var aboveMax = palette.aboveMaxColour !== undefined ? palette.aboveMaxColour
+                : colours[nColours - 1];
+
+        this.canvas.width = tile.width;
+        this.canvas.height = tile.height;
+        var context = this.canvas.getContext('2d');
+        var image = context.createImageData(tile.width, tile.height);
+        var pixels = image.data;
+        var values = tile.values;
+        for (var i = 0; i < values.length; i++) {
+            var value = values[i];
+            var argb;
+            var zeroToOne;
+            if (isNaN(value)) {
+                argb = noData;
+            } else if (scale.log && value <= 0) {
+                argb = belowMin;
+            } else {
+                if (scale.log) {
+                    zeroToOne = (Math.log(value) - scale.logMin) / scale.logRange;
+                } else {
+                    zeroToOne = (value - scale.min) / scale.width;
+                }
+                if (isNaN(zeroToOne)) {
+                    argb = noData;
+                } else if (zeroToOne < 0) {
+                    argb = belowMin;
+                } else if (zeroToOne > 1) {
+                    argb = aboveMax;
+                } else {
+                    var index = Math.floor(zeroToOne * nColours);
+                    argb = colours[index == nColours ? index - 1 : index];
+                }
+            }
+            var p = 4 * i;
+            pixels[p] = (argb >> 16) & 255;
+            pixels[p + 1] = (argb >> 8) & 255;
+            pixels[p + 2] = argb & 255;
+            pixels[p + 3] = (argb >>> 24) & 255;
+        }
+        context.putImageData(image, 0, 0);
+        return this.canvas.toDataURL('image/png');
+    },
+
+    CLASS_NAME : "OpenLayers.Layer.EdalData"
+});
@@ -155,13 +155,84 @@ class AnimatedGifEncoder {
      */
     public void addFrame(byte[] bgrPalette, byte[] indexedPixels, int transparentIndex)
             throws IOException {
-        if (bgrPalette.length != 256 * 3) {
-            throw new IllegalArgumentException("Palette must be 256 * 3 bytes long");
-        }
         if (this.width * this.height != indexedPixels.length) {
             throw new IllegalArgumentException("Image dimensions are "
                     + "inconsistent with length of array of pixel indices");
         }
+        writeFrameHeaders(bgrPalette, transparentIndex);
+        this.indexedPixels = indexedPixels;
+        writePixels(); // encode and write pixel data
+        firstFrame = false;
+    }
+
+    /**
+     * Add a frame whose pixel indices have already been compressed with
+     * {@link #compress(int, int, byte[])}. This allows frames to be compressed
+     * in parallel, and then written in order.
+     * 
+     * @param bgrPalette
+     *            Array of 256*3 bytes representing the colour palette of 256
+     *            colours in BGR order
+     * @param frameWidth
+     *            The width of the frame, which must match that of the image
+     * @param frameHeight
+     *            The height of the frame, which must match that of the image
+     * @param compressedPixels
+     *            The compressed pixel indices
+     * @param transparentIndex
+     *            Index of transparent colour in the palette, or -1 if no colour
+     *            is to be transparent
+     * @throws IOException
+     *             if the frame could not be written
+     * @throws IllegalArgumentException
+     *             if the frame dimensions do not match the image or
+     *             bgrPalette.length != 256 * 3 or transparentIndex > 255
+     */
+    public void addCompressedFrame(byte[] bgrPalette, int frameWidth, int frameHeight,
+            byte[] compressedPixels, int transparentIndex) throws IOException {
+        if (frameWidth != this.width || frameHeight != this.height) {
+            throw new IllegalArgumentException("Frame dimensions are inconsistent with the image");
+        }
+        writeFrameHeaders(bgrPalette, transparentIndex);
+        out.write(compressedPixels);
+        firstFrame = false;
+    }
+
+    /**
+     * Compresses an array of pixel indices in the form required by
+     * {@link #addCompressedFrame(byte[], int, int, byte[], int)}. This does not
+     * depend on the state of any encoder, so can be called from any thread.
+     * 
+     * @param width
+     *            The width of the frame
+     * @param height
+     *            The height of the frame
+     * @param indexedPixels
+     *            Array of (width * height) pixel indices
+     * @return The compressed pixel data
+     */
+    public static byte[] compress(int width, int height, byte[] indexedPixels) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(1024,
+                indexedPixels.length / 4));
+        try {
+            new LZWEncoder(width, height, indexedPixels, 8).encode(compressed);
+        } catch (IOException e) {
+            /*
+             * Cannot happen when writing to a ByteArrayOutputStream
+             */
+            throw new IllegalStateException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    /*
+     * Writes everything for a frame of pre-indexed pixels apart from the pixel
+     * data itself
+     */
+    private void writeFrameHeaders(byte[] bgrPalette, int transparentIndex) throws IOException {
+        if (bgrPalette.length != 256 * 3) {
+            throw new IllegalArgumentException("Palette must be 256 * 3 bytes long");
+        }
         if (transparentIndex > 255) {
             throw new IllegalArgumentException("transparentIndex must be less than 256");
         }
@@ -172,7 +243,6 @@ class AnimatedGifEncoder {
                                              // writeGraphicCtrlExt()
         }
         this.colorTab = bgrPalette;
-        this.indexedPixels = indexedPixels;
         if (!sizeSet)
             this.setSize(width, height); // first frame
         this.colorDepth = 8;
@@ -190,8 +260,6 @@ class AnimatedGifEncoder {
         if (!firstFrame) {
             writePalette(); // local color table
         }
-        writePixels(); // encode and write pixel data
-        firstFrame = false;
     }
 
     /**
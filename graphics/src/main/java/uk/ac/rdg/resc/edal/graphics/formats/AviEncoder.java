@@ -0,0 +1,419 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.formats;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes uncompressed 24-bit AVI video one frame at a time, so that only a
+ * single frame is ever held in memory.
+ * 
+ * Every frame of an uncompressed AVI is the same size, so if the number of
+ * frames is known in advance, the headers and index can be calculated before
+ * any frames are written, and each frame is written straight to the output.
+ * Otherwise the frames are written to a temporary file, and copied to the
+ * output once the headers (which precede them) are known.
+ * 
+ * Transparent pixels are composited onto black.
+ * 
+ * This is not thread-safe.
+ * 
+ * @author Guy Griffiths
+ */
+final class AviEncoder {
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+    /* The size of everything before the first frame chunk */
+    private static final int HEADER_SIZE = 224;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final long MAX_RIFF_SIZE = 0xffffffffL;
+
+    private final OutputStream out;
+    private final int width;
+    private final int height;
+    private final int frameScale;
+    private final int frameRate;
+    /* The number of frames declared in advance, or -1 if not known */
+    private final int nFramesDeclared;
+
+    private final int rowSize;
+    private final int frameSize;
+    private final byte[] frameBuffer;
+    private final int[] rowBuffer;
+
+    /* Where the frame chunks are written before the headers are known */
+    private File tempFile = null;
+    private OutputStream chunkOut;
+    private int nFrames = 0;
+
+    /**
+     * Creates a new {@link AviEncoder}
+     * 
+     * @param out
+     *            The {@link OutputStream} to write to. This is not closed.
+     * @param width
+     *            The width of each frame
+     * @param height
+     *            The height of each frame
+     * @param frameScale
+     *            The denominator of the frame rate. The frame rate is
+     *            frameRate / frameScale frames per second
+     * @param frameRate
+     *            The numerator of the frame rate
+     * @param nFrames
+     *            The number of frames which will be written, or a negative
+     *            number if this is not known
+     * @throws IOException
+     *             If there is a problem writing to the output, or creating the
+     *             temporary file
+     */
+    AviEncoder(OutputStream out, int width, int height, int frameScale, int frameRate,
+            int nFrames) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Frame dimensions must be positive");
+        }
+        if (frameScale <= 0 || frameRate <= 0) {
+            throw new IllegalArgumentException("Frame rate must be positive");
+        }
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.frameScale = frameScale;
+        this.frameRate = frameRate;
+        this.nFramesDeclared = nFrames < 0 ? -1 : nFrames;
+
+        /*
+         * Rows of a DIB are padded to a multiple of 4 bytes
+         */
+        rowSize = (width * 3 + 3) & ~3;
+        long frameSizeLong = (long) rowSize * height;
+        if (frameSizeLong + 8 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Frames are too large to write to AVI");
+        }
+        frameSize = (int) frameSizeLong;
+        frameBuffer = new byte[frameSize + 8];
+        rowBuffer = new int[width];
+
+        /*
+         * Chunk header: "00db" is an uncompressed video frame in stream 0
+         */
+        ByteBuffer chunkHeader = ByteBuffer.wrap(frameBuffer, 0, 8).order(ByteOrder.LITTLE_ENDIAN);
+        putFourCC(chunkHeader, "00db");
+        chunkHeader.putInt(frameSize);
+
+        if (nFramesDeclared >= 0) {
+            checkSize(nFramesDeclared);
+            writeHeaders(out, nFramesDeclared);
+            chunkOut = out;
+        } else {
+            tempFile = File.createTempFile("edal-avi", ".tmp");
+            tempFile.deleteOnExit();
+            chunkOut = new BufferedOutputStream(new FileOutputStream(tempFile), 65536);
+        }
+    }
+
+    /**
+     * Writes the next frame
+     * 
+     * @param frame
+     *            The frame to write. This must be the size given at
+     *            construction
+     * @throws IOException
+     *             If there is a problem writing the frame
+     */
+    void writeFrame(BufferedImage frame) throws IOException {
+        if (frame.getWidth() != width || frame.getHeight() != height) {
+            throw new IllegalArgumentException("All frames of an AVI must be the same size");
+        }
+        if (nFramesDeclared >= 0 && nFrames >= nFramesDeclared) {
+            throw new IllegalArgumentException("Only " + nFramesDeclared
+                    + " frames were declared for this AVI");
+        }
+        if (nFramesDeclared < 0) {
+            checkSize(nFrames + 1);
+        }
+
+        int[] data = getDirectRgbData(frame);
+        boolean hasAlpha = frame.getColorModel().hasAlpha();
+        int pos = 8;
+        /*
+         * DIB rows are stored bottom-up
+         */
+        for (int y = height - 1; y >= 0; y--) {
+            int[] row;
+            int offset;
+            if (data != null) {
+                row = data;
+                offset = y * width;
+            } else {
+                frame.getRGB(0, y, width, 1, rowBuffer, 0, width);
+                row = rowBuffer;
+                offset = 0;
+            }
+            int rowStart = pos;
+            for (int x = 0; x < width; x++) {
+                int argb = row[offset + x];
+                int alpha = hasAlpha ? argb >>> 24 : 0xff;
+                int r = (argb >> 16) & 0xff;
+                int g = (argb >> 8) & 0xff;
+                int b = argb & 0xff;
+                if (alpha != 0xff) {
+                    r = r * alpha / 255;
+                    g = g * alpha / 255;
+                    b = b * alpha / 255;
+                }
+                frameBuffer[pos++] = (byte) b;
+                frameBuffer[pos++] = (byte) g;
+                frameBuffer[pos++] = (byte) r;
+            }
+            /*
+             * Padding bytes are always left as zero
+             */
+            pos = rowStart + rowSize;
+        }
+        chunkOut.write(frameBuffer);
+        nFrames++;
+    }
+
+    /**
+     * Writes the index and finishes the file. If the number of frames was not
+     * known in advance, this is where the whole file is written.
+     * 
+     * @throws IOException
+     *             If there is a problem writing the output, or if fewer frames
+     *             were written than were declared
+     */
+    void finish() throws IOException {
+        try {
+            if (nFramesDeclared < 0) {
+                chunkOut.close();
+                writeHeaders(out, nFrames);
+                try (InputStream in = new BufferedInputStream(new FileInputStream(tempFile))) {
+                    byte[] buffer = new byte[65536];
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+            } else if (nFrames != nFramesDeclared) {
+                throw new IOException(nFramesDeclared + " frames were declared for this AVI, but "
+                        + nFrames + " were written");
+            }
+            writeIndex(out, nFrames);
+            out.flush();
+        } finally {
+            dispose();
+        }
+    }
+
+    /**
+     * Releases any temporary storage without finishing the file
+     */
+    void dispose() {
+        if (tempFile != null) {
+            try {
+                chunkOut.close();
+            } catch (IOException e) {
+                /*
+                 * We are discarding the file anyway
+                 */
+            }
+            tempFile.delete();
+            tempFile = null;
+        }
+    }
+
+    /**
+     * Checks that a file with the given number of frames is small enough to be
+     * written as a RIFF file
+     */
+    private void checkSize(int nFrames) throws IOException {
+        if (getRiffSize(nFrames) > MAX_RIFF_SIZE) {
+            throw new IOException("Animation is too large to be written as an AVI");
+        }
+    }
+
+    private long getMoviSize(int nFrames) {
+        return 4 + (long) nFrames * (frameSize + 8);
+    }
+
+    private long getRiffSize(int nFrames) {
+        return HEADER_SIZE - 8 + getMoviSize(nFrames) - 4 + 8 + (long) nFrames * INDEX_ENTRY_SIZE;
+    }
+
+    private void writeHeaders(OutputStream out, int nFrames) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        putFourCC(header, "RIFF");
+        header.putInt((int) getRiffSize(nFrames));
+        putFourCC(header, "AVI ");
+
+        putFourCC(header, "LIST");
+        header.putInt(192);
+        putFourCC(header, "hdrl");
+
+        /*
+         * Main AVI header
+         */
+        putFourCC(header, "avih");
+        header.putInt(56);
+        /* Microseconds per frame */
+        header.putInt((int) (1000000L * frameScale / frameRate));
+        /* Maximum bytes per second */
+        header.putInt((int) Math.min(Integer.MAX_VALUE, (long) (frameSize + 8) * frameRate
+                / frameScale));
+        /* Padding granularity */
+        header.putInt(0);
+        header.putInt(AVIF_HASINDEX);
+        /* Total frames */
+        header.putInt(nFrames);
+        /* Initial frames */
+        header.putInt(0);
+        /* Number of streams */
+        header.putInt(1);
+        /* Suggested buffer size */
+        header.putInt(frameSize + 8);
+        header.putInt(width);
+        header.putInt(height);
+        /* Reserved */
+        header.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        putFourCC(header, "LIST");
+        header.putInt(116);
+        putFourCC(header, "strl");
+
+        /*
+         * Stream header
+         */
+        putFourCC(header, "strh");
+        header.putInt(56);
+        putFourCC(header, "vids");
+        putFourCC(header, "DIB ");
+        /* Flags */
+        header.putInt(0);
+        /* Priority and language */
+        header.putShort((short) 0).putShort((short) 0);
+        /* Initial frames */
+        header.putInt(0);
+        header.putInt(frameScale);
+        header.putInt(frameRate);
+        /* Start */
+        header.putInt(0);
+        /* Length */
+        header.putInt(nFrames);
+        /* Suggested buffer size */
+        header.putInt(frameSize + 8);
+        /* Quality: default */
+        header.putInt(-1);
+        /* Sample size: varies (i.e. one frame per chunk) */
+        header.putInt(0);
+        /* Frame rectangle */
+        header.putShort((short) 0).putShort((short) 0);
+        header.putShort((short) width).putShort((short) height);
+
+        /*
+         * Stream format: a BITMAPINFOHEADER
+         */
+        putFourCC(header, "strf");
+        header.putInt(40);
+        header.putInt(40);
+        header.putInt(width);
+        header.putInt(height);
+        /* Planes */
+        header.putShort((short) 1);
+        /* Bits per pixel */
+        header.putShort((short) 24);
+        /* Compression: BI_RGB */
+        header.putInt(0);
+        header.putInt(frameSize);
+        /* Pixels per metre, and palette sizes */
+        header.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        putFourCC(header, "LIST");
+        header.putInt((int) getMoviSize(nFrames));
+        putFourCC(header, "movi");
+
+        out.write(header.array());
+    }
+
+    private void writeIndex(OutputStream out, int nFrames) throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(256 * INDEX_ENTRY_SIZE).order(
+                ByteOrder.LITTLE_ENDIAN);
+        putFourCC(index, "idx1");
+        index.putInt(nFrames * INDEX_ENTRY_SIZE);
+        for (int i = 0; i < nFrames; i++) {
+            if (index.remaining() < INDEX_ENTRY_SIZE) {
+                out.write(index.array(), 0, index.position());
+                index.clear();
+            }
+            putFourCC(index, "00db");
+            index.putInt(AVIIF_KEYFRAME);
+            /*
+             * Offsets are relative to the start of the "movi" FourCC
+             */
+            index.putInt((int) (4 + (long) i * (frameSize + 8)));
+            index.putInt(frameSize);
+        }
+        out.write(index.array(), 0, index.position());
+    }
+
+    /**
+     * @return The backing array of a frame whose pixels are stored as one
+     *         (A)RGB int per pixel in row-major order, or <code>null</code> if
+     *         the frame is stored differently
+     */
+    private static int[] getDirectRgbData(BufferedImage frame) {
+        WritableRaster raster = frame.getRaster();
+        int type = frame.getType();
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+                && raster.getParent() == null && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getDataBuffer().getSize() == frame.getWidth() * frame.getHeight()
+                && raster.getDataBuffer().getNumBanks() == 1) {
+            return ((DataBufferInt) raster.getDataBuffer()).getData();
+        }
+        return null;
+    }
+
+    private static void putFourCC(ByteBuffer buffer, String fourCC) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) fourCC.charAt(i));
+        }
+    }
+}
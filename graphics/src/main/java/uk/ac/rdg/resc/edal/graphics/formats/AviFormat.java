@@ -33,49 +33,117 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
 
-import javax.imageio.stream.MemoryCacheImageOutputStream;
-
-import org.monte.media.Format;
-import org.monte.media.FormatKeys.MediaType;
-import org.monte.media.VideoFormatKeys;
-import org.monte.media.avi.AVIWriter;
-import org.monte.media.math.Rational;
-
 /**
- * "Image" format for outputting to AVI.  Uses the
- * <a href="http://www.randelshofer.ch/monte/">Monte Media Library</a>
- * by Werner Randelshofer to do the rendering to AVI.
+ * "Image" format for outputting to uncompressed AVI. Frames are written to the
+ * output as they are supplied, so the memory needed does not depend on the
+ * length of the animation.
  * 
  * @author Guy Griffiths
  *
  */
 public class AviFormat extends SimpleFormat {
-    
+    /*
+     * The frame rate to use if none is given: 20 frames every 3 seconds, which
+     * matches the default delay between the frames of an animated GIF
+     */
+    private static final int DEFAULT_FRAME_RATE = 20;
+    private static final int DEFAULT_FRAME_SCALE = 3;
+
     @Override
-    public void writeImage(List<BufferedImage> frames, OutputStream out, Integer frameRate) throws IOException {
+    public void writeImage(List<BufferedImage> frames, OutputStream out, Integer frameRate)
+            throws IOException {
         if (frames == null || frames.size() == 0) {
             throw new IllegalArgumentException("Cannot create an animation with no images");
         }
-        try{
-        int width = frames.get(0).getWidth();
-        int height = frames.get(0).getHeight();
-        Format format = new Format(VideoFormatKeys.EncodingKey, VideoFormatKeys.ENCODING_AVI_DIB,
-                VideoFormatKeys.DepthKey, 24, VideoFormatKeys.MediaTypeKey, MediaType.VIDEO,
-                VideoFormatKeys.FrameRateKey, new Rational(frameRate), VideoFormatKeys.WidthKey, width,
-                VideoFormatKeys.HeightKey, height);
-
-        AVIWriter writer = new AVIWriter(new MemoryCacheImageOutputStream(out));
-        writer.addTrack(format);
-        writer.setPalette(0, frames.get(0).getColorModel());
-        
-        for(BufferedImage frame : frames){
-            writer.write(0, frame, 1);
+        FrameSink frameSink = openFrameSink(out, frameRate, frames.size());
+        for (BufferedImage frame : frames) {
+            frameSink.addFrame(frame);
+        }
+        frameSink.close();
+    }
+
+    /**
+     * Opens a {@link FrameSink} for an unknown number of frames. The frames
+     * are written to a temporary file until the {@link FrameSink} is closed,
+     * since the AVI headers must be written first. Use
+     * {@link #openFrameSink(OutputStream, Integer, int)} where possible.
+     */
+    @Override
+    public FrameSink openFrameSink(OutputStream out, Integer frameRate) throws IOException {
+        return new AviFrameSink(out, frameRate, -1);
+    }
+
+    /**
+     * Opens a {@link FrameSink} which writes each frame straight to the output
+     */
+    @Override
+    public FrameSink openFrameSink(OutputStream out, Integer frameRate, int nFrames)
+            throws IOException {
+        return new AviFrameSink(out, frameRate, nFrames);
+    }
+
+    private static final class AviFrameSink implements FrameSink {
+        private final OutputStream out;
+        private final Integer frameRate;
+        private final int nFrames;
+        private AviEncoder encoder = null;
+        private BufferedImage lastFrame = null;
+        private int nFramesAdded = 0;
+
+        public AviFrameSink(OutputStream out, Integer frameRate, int nFrames) {
+            if (frameRate != null && frameRate <= 0) {
+                throw new IllegalArgumentException("Frame rate must be positive");
+            }
+            this.out = out;
+            this.frameRate = frameRate;
+            this.nFrames = nFrames;
+        }
+
+        @Override
+        public void addFrame(BufferedImage frame) throws IOException {
+            if (nFrames >= 0 && nFramesAdded == nFrames) {
+                throw new IllegalArgumentException("Only " + nFrames
+                        + " frames were declared for this animation");
+            }
+            if (encoder == null) {
+                /*
+                 * The final frame is written twice, so there is one more frame
+                 * than will be supplied
+                 */
+                encoder = new AviEncoder(out, frame.getWidth(), frame.getHeight(),
+                        frameRate == null ? DEFAULT_FRAME_SCALE : 1,
+                        frameRate == null ? DEFAULT_FRAME_RATE : frameRate,
+                        nFrames < 0 ? -1 : nFrames + 1);
+            }
+            try {
+                encoder.writeFrame(frame);
+            } catch (IOException | RuntimeException e) {
+                encoder.dispose();
+                throw e;
+            }
+            lastFrame = frame;
+            nFramesAdded++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (encoder == null) {
+                throw new IllegalArgumentException("Cannot create an animation with no images");
+            }
+            try {
+                encoder.writeFrame(lastFrame);
+            } catch (IOException | RuntimeException e) {
+                encoder.dispose();
+                throw e;
+            }
+            encoder.finish();
         }
-        writer.write(0, frames.get(frames.size()-1), 1);
-        writer.close();
-        
-        } catch(Exception e){
-            e.printStackTrace();
+
+        @Override
+        public void abort() {
+            if (encoder != null) {
+                encoder.dispose();
+            }
         }
     }
 
@@ -30,21 +30,55 @@ package uk.ac.rdg.resc.edal.graphics.formats;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import uk.ac.rdg.resc.edal.util.DaemonThreadFactory;
 
 /**
  * Creates (possibly animated) GIFs. Only one instance of this class will ever
  * be created, so this class contains no member variables to ensure thread
  * safety.
  * 
+ * Each frame is written with its own palette. Frames which are already indexed
+ * with a suitable palette (e.g. they have been rendered directly to palette
+ * indices) are written without any conversion. Frames are compressed in
+ * parallel, and written in order as soon as they are ready.
+ * 
  * @author Jon Blower
  */
 public class GifFormat extends SimpleFormat {
+    private static final int N_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    /*
+     * The maximum number of frames of a single GIF which can be waiting to be
+     * written at once
+     */
+    private static final int MAX_PENDING_FRAMES = 2 * N_THREADS;
+
+    /*
+     * Used to index and compress frames in parallel
+     */
+    private static final ExecutorService executor = Executors.newFixedThreadPool(N_THREADS,
+            new DaemonThreadFactory("gif-encode-"));
+
+    /*
+     * The maximum number of colours (excluding the transparent colour) which a
+     * frame can have for its palette to be used exactly
+     */
+    private static final int MAX_EXACT_COLOURS = 255;
+    private static final int TRANSPARENT_INDEX = 0;
 
     protected GifFormat() {
     }
@@ -52,67 +86,396 @@ public class GifFormat extends SimpleFormat {
     @Override
     public void writeImage(List<BufferedImage> frames, OutputStream out, Integer frameRate)
             throws IOException {
-        AnimatedGifEncoder e = new AnimatedGifEncoder();
-        e.start(out);
-        if (frames.size() > 1) {
-            // this is an animated GIF. Set to loop infinitely.
-            e.setRepeat(0);
-            if (frameRate != null) {
-                e.setDelay(1000 / frameRate);
-            } else {
-                e.setDelay(150); // delay between frames in milliseconds
+        FrameSink frameSink = openFrameSink(out, frameRate);
+        for (BufferedImage frame : frames) {
+            frameSink.addFrame(frame);
+        }
+        frameSink.close();
+    }
+
+    @Override
+    public FrameSink openFrameSink(OutputStream out, Integer frameRate) throws IOException {
+        return new GifFrameSink(out, frameRate);
+    }
+
+    /**
+     * Writes frames to an {@link AnimatedGifEncoder}. Frames are indexed and
+     * compressed in the background.
+     */
+    private static final class GifFrameSink implements FrameSink {
+        private final AnimatedGifEncoder encoder = new AnimatedGifEncoder();
+        private final Integer frameRate;
+        private final Deque<Future<EncodedFrame>> pendingFrames = new ArrayDeque<>();
+        /*
+         * The first frame is not written until we know whether or not this is
+         * an animation
+         */
+        private EncodedFrame firstFrame = null;
+        private int nFramesWritten = 0;
+        private boolean sizeSet = false;
+
+        public GifFrameSink(OutputStream out, Integer frameRate) throws IOException {
+            this.frameRate = frameRate;
+            if (!encoder.start(out)) {
+                throw new IOException("Problem writing GIF header");
             }
         }
-        boolean sizeSet = false;
-        IndexColorModel icm = getBestColorModel(frames);
-        byte[] rgbPalette = getRGBPalette(icm);
-        for (BufferedImage frame : frames) {
-            BufferedImage gifFrame = new BufferedImage(frame.getWidth(), frame.getHeight(),
-                    BufferedImage.TYPE_BYTE_INDEXED, icm);
+
+        @Override
+        public void addFrame(final BufferedImage frame) throws IOException {
+            pendingFrames.add(executor.submit(new Callable<EncodedFrame>() {
+                @Override
+                public EncodedFrame call() {
+                    return encodeFrame(frame);
+                }
+            }));
             /*
-             * Set each pixel individually. the createGraphics().drawImage()
-             * method uses dithering even though it's not necessary, but this
-             * seems to work properly.
+             * Write any frames which are ready, and wait for the oldest if too
+             * many frames are outstanding
              */
-            for (int i = 0; i < frame.getWidth(); i++) {
-                for (int j = 0; j < frame.getHeight(); j++) {
-                    gifFrame.setRGB(i, j, frame.getRGB(i, j));
+            while (!pendingFrames.isEmpty()
+                    && (pendingFrames.peek().isDone() || pendingFrames.size() > MAX_PENDING_FRAMES)) {
+                writeFrame(getEncodedFrame(pendingFrames.poll()));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                while (!pendingFrames.isEmpty()) {
+                    writeFrame(getEncodedFrame(pendingFrames.poll()));
+                }
+            } finally {
+                for (Future<EncodedFrame> pendingFrame : pendingFrames) {
+                    pendingFrame.cancel(false);
+                }
+            }
+            if (firstFrame != null) {
+                /*
+                 * There was only one frame
+                 */
+                writeToEncoder(firstFrame);
+            }
+            if (nFramesWritten > 0 && !encoder.finish()) {
+                throw new IOException("Problem writing GIF trailer");
+            }
+        }
+
+        @Override
+        public void abort() {
+            for (Future<EncodedFrame> pendingFrame : pendingFrames) {
+                pendingFrame.cancel(false);
+            }
+            pendingFrames.clear();
+            firstFrame = null;
+        }
+
+        private void writeFrame(EncodedFrame frame) throws IOException {
+            nFramesWritten++;
+            if (nFramesWritten == 1) {
+                firstFrame = frame;
+                return;
+            }
+            if (nFramesWritten == 2) {
+                // this is an animated GIF. Set to loop infinitely.
+                encoder.setRepeat(0);
+                if (frameRate != null) {
+                    encoder.setDelay(1000 / frameRate);
+                } else {
+                    encoder.setDelay(150); // delay between frames in milliseconds
                 }
+                writeToEncoder(firstFrame);
+                firstFrame = null;
             }
+            writeToEncoder(frame);
+        }
 
+        private void writeToEncoder(EncodedFrame frame) throws IOException {
             if (!sizeSet) {
-                e.setSize(frame.getWidth(), frame.getHeight());
+                encoder.setSize(frame.width, frame.height);
                 sizeSet = true;
             }
-            // Get the indices of each pixel in the image. We do this after the
-            // frames have been created because we might have added a label to
-            // the image.
-            byte[] indices = ((DataBufferByte) gifFrame.getRaster().getDataBuffer()).getData();
-            e.addFrame(rgbPalette, indices, icm.getTransparentPixel());
+            encoder.addCompressedFrame(frame.rgbPalette, frame.width, frame.height,
+                    frame.compressedPixels, frame.transparentIndex);
         }
-        e.finish();
     }
 
-    private static IndexColorModel getBestColorModel(List<BufferedImage> frames) {
-        Set<Integer> rgbs = new HashSet<>();
-        for (BufferedImage frame : frames) {
-            for (int i = 0; i < frame.getWidth(); i++) {
-                for (int j = 0; j < frame.getHeight(); j++) {
-                    int rgb = frame.getRGB(i, j);
-                    rgbs.add(rgb);
+    private static EncodedFrame getEncodedFrame(Future<EncodedFrame> pendingFrame)
+            throws IOException {
+        try {
+            return pendingFrame.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted whilst encoding GIF", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Problem encoding GIF frame", cause);
+        }
+    }
+
+    /**
+     * A single frame, with its pixels indexed and compressed
+     */
+    private static final class EncodedFrame {
+        final int width;
+        final int height;
+        final byte[] rgbPalette;
+        final byte[] compressedPixels;
+        final int transparentIndex;
+
+        EncodedFrame(int width, int height, byte[] rgbPalette, byte[] compressedPixels,
+                int transparentIndex) {
+            this.width = width;
+            this.height = height;
+            this.rgbPalette = rgbPalette;
+            this.compressedPixels = compressedPixels;
+            this.transparentIndex = transparentIndex;
+        }
+    }
+
+    private static EncodedFrame encodeFrame(BufferedImage frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        IndexColorModel icm = getDirectColorModel(frame);
+        if (icm != null) {
+            /*
+             * The frame is already indexed with a suitable palette, so we can
+             * write its indices without any conversion
+             */
+            byte[] indices = ((DataBufferByte) frame.getRaster().getDataBuffer()).getData();
+            return new EncodedFrame(width, height, getRGBPalette(icm),
+                    AnimatedGifEncoder.compress(width, height, indices), icm.getTransparentPixel());
+        }
+
+        int[] argb = getARGB(frame);
+        byte[] indices = new byte[argb.length];
+        byte[] rgbPalette = indexExactly(argb, indices);
+        if (rgbPalette == null) {
+            /*
+             * Too many colours for an exact palette
+             */
+            IndexColorModel generalIcm = getGeneralIndexedColorModelWithTransparency();
+            indexToNearest(argb, indices, generalIcm);
+            rgbPalette = getRGBPalette(generalIcm);
+        }
+        return new EncodedFrame(width, height, rgbPalette, AnimatedGifEncoder.compress(width,
+                height, indices), TRANSPARENT_INDEX);
+    }
+
+    /**
+     * Checks whether a frame is an indexed image whose palette can be written
+     * directly to a GIF. That is, it stores exactly one byte per pixel, and its
+     * palette contains only opaque colours plus at most one fully-transparent
+     * colour.
+     * 
+     * @return The frame's {@link IndexColorModel}, or <code>null</code> if the
+     *         frame cannot be written directly
+     */
+    private static IndexColorModel getDirectColorModel(BufferedImage frame) {
+        WritableRaster raster = frame.getRaster();
+        if (frame.getType() != BufferedImage.TYPE_BYTE_INDEXED || raster.getParent() != null
+                || raster.getDataBuffer().getSize() != frame.getWidth() * frame.getHeight()
+                || raster.getDataBuffer().getNumBanks() != 1) {
+            return null;
+        }
+        IndexColorModel icm = (IndexColorModel) frame.getColorModel();
+        int transparentPixel = icm.getTransparentPixel();
+        for (int i = 0; i < icm.getMapSize(); i++) {
+            int alpha = icm.getAlpha(i);
+            if (alpha != 255 && (alpha != 0 || i != transparentPixel)) {
+                return null;
+            }
+        }
+        return icm;
+    }
+
+    /**
+     * @return The non-premultiplied ARGB values of a frame, in row-major order.
+     *         This may be the frame's own data, so must not be modified.
+     */
+    private static int[] getARGB(BufferedImage frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        WritableRaster raster = frame.getRaster();
+        if (frame.getType() == BufferedImage.TYPE_INT_ARGB && raster.getParent() == null
+                && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getDataBuffer().getSize() == width * height
+                && raster.getDataBuffer().getNumBanks() == 1) {
+            return ((DataBufferInt) raster.getDataBuffer()).getData();
+        }
+        return frame.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    /**
+     * Indexes pixels using a palette which contains each of their colours
+     * exactly. Fully-transparent pixels are given the transparent index.
+     * Partially-transparent pixels are treated as opaque, since GIFs do not
+     * support them.
+     * 
+     * @param argb
+     *            The ARGB values of the pixels
+     * @param indices
+     *            An array to receive the index of each pixel
+     * @return The RGB palette, or <code>null</code> if the pixels contain too
+     *         many colours to be indexed exactly
+     */
+    private static byte[] indexExactly(int[] argb, byte[] indices) {
+        ColourTable colours = new ColourTable(MAX_EXACT_COLOURS * 4);
+        byte[] rgbPalette = new byte[256 * 3];
+        /*
+         * Transparent pixels are white, as they always have been
+         */
+        rgbPalette[0] = (byte) 255;
+        rgbPalette[1] = (byte) 255;
+        rgbPalette[2] = (byte) 255;
+        int nColours = 0;
+        /*
+         * Consecutive pixels are usually the same colour
+         */
+        int lastArgb = 0;
+        byte lastIndex = TRANSPARENT_INDEX;
+        for (int i = 0; i < argb.length; i++) {
+            int pixel = argb[i];
+            if (pixel == lastArgb) {
+                indices[i] = lastIndex;
+                continue;
+            }
+            int index;
+            if ((pixel >>> 24) == 0) {
+                index = TRANSPARENT_INDEX;
+            } else {
+                int rgb = pixel & 0xffffff;
+                index = colours.get(rgb);
+                if (index < 0) {
+                    if (nColours == MAX_EXACT_COLOURS) {
+                        return null;
+                    }
+                    index = ++nColours;
+                    colours.put(rgb, index);
+                    rgbPalette[index * 3] = (byte) (rgb >> 16);
+                    rgbPalette[index * 3 + 1] = (byte) (rgb >> 8);
+                    rgbPalette[index * 3 + 2] = (byte) rgb;
                 }
             }
+            lastArgb = pixel;
+            lastIndex = (byte) index;
+            indices[i] = lastIndex;
         }
-        if (rgbs.size() < 254) {
-            Integer[] colours = rgbs.toArray(new Integer[0]);
-            int[] cmap = new int[256];
-            cmap[0] = 255 << 32 | (255 << 16) | (255 << 8) | (255);
-            for (int i = 1; i < colours.length + 1; i++) {
-                cmap[i] = colours[i - 1];
+        return rgbPalette;
+    }
+
+    /**
+     * Indexes pixels using the nearest colour in a fixed palette whose first
+     * entry is transparent
+     */
+    private static void indexToNearest(int[] argb, byte[] indices, IndexColorModel icm) {
+        int[] paletteRgbs = new int[icm.getMapSize()];
+        icm.getRGBs(paletteRgbs);
+        ColourTable nearest = new ColourTable(4096);
+        for (int i = 0; i < argb.length; i++) {
+            int pixel = argb[i];
+            if ((pixel >>> 24) == 0) {
+                indices[i] = TRANSPARENT_INDEX;
+                continue;
             }
-            return new IndexColorModel(8, 256, cmap, 0, true, 0, DataBuffer.TYPE_BYTE);
-        } else {
-            return getGeneralIndexedColorModelWithTransparency();
+            int rgb = pixel & 0xffffff;
+            int index = nearest.get(rgb);
+            if (index < 0) {
+                index = findNearest(rgb, paletteRgbs);
+                nearest.put(rgb, index);
+            }
+            indices[i] = (byte) index;
+        }
+    }
+
+    private static int findNearest(int rgb, int[] paletteRgbs) {
+        int r = (rgb >> 16) & 0xff;
+        int g = (rgb >> 8) & 0xff;
+        int b = rgb & 0xff;
+        int nearest = TRANSPARENT_INDEX + 1;
+        int minDist = Integer.MAX_VALUE;
+        for (int i = TRANSPARENT_INDEX + 1; i < paletteRgbs.length; i++) {
+            int dr = r - ((paletteRgbs[i] >> 16) & 0xff);
+            int dg = g - ((paletteRgbs[i] >> 8) & 0xff);
+            int db = b - (paletteRgbs[i] & 0xff);
+            int dist = dr * dr + dg * dg + db * db;
+            if (dist < minDist) {
+                minDist = dist;
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * A map of 24-bit RGB values to palette indices, using open addressing so
+     * that no objects are created per colour
+     */
+    private static final class ColourTable {
+        private static final int EMPTY = -1;
+        private int[] keys;
+        private int[] values;
+        private int size = 0;
+
+        ColourTable(int initialCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(16, initialCapacity) - 1) << 1;
+            keys = new int[capacity];
+            values = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        /**
+         * @return The index of the given colour, or -1 if it is not present
+         */
+        int get(int rgb) {
+            int mask = keys.length - 1;
+            for (int slot = hash(rgb) & mask;; slot = (slot + 1) & mask) {
+                if (keys[slot] == rgb) {
+                    return values[slot];
+                } else if (keys[slot] == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(int rgb, int index) {
+            if (2 * (size + 1) > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int slot = hash(rgb) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != rgb) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == EMPTY) {
+                size++;
+            }
+            keys[slot] = rgb;
+            values[slot] = index;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(int rgb) {
+            int h = rgb * 0x9e3779b9;
+            return h ^ (h >>> 16);
         }
     }
 
@@ -61,7 +61,7 @@ public abstract class ImageFormat {
         ImageIO.setUseCache(false);
         // We pre-create all the ImageFormat objects
         for (ImageFormat format : new ImageFormat[] { new PngFormat(), new Png32Format(),
-                new GifFormat(), new JpegFormat(), new KmzFormat() }) {
+                new GifFormat(), new JpegFormat(), new KmzFormat(), new AviFormat() }) {
             formats.put(format.getMimeType(), format);
         }
     }
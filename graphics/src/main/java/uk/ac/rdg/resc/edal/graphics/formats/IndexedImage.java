@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.formats;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+
+/**
+ * An image represented as an array of palette indices along with an ARGB
+ * palette. This is the natural representation for image formats such as
+ * indexed PNG and GIF.
+ * 
+ * @author Guy Griffiths
+ */
+public final class IndexedImage {
+    /*
+     * Size of the hash table used to find distinct colours. This must be a
+     * power of 2, and at least 4 times the maximum palette size.
+     */
+    private static final int HASH_SIZE = 1024;
+    private static final int HASH_SHIFT = 32 - Integer.numberOfTrailingZeros(HASH_SIZE);
+
+    private final int width;
+    private final int height;
+    private final byte[] indices;
+    private final int[] palette;
+
+    /**
+     * @param width
+     *            The width of the image
+     * @param height
+     *            The height of the image
+     * @param indices
+     *            The palette index of each pixel, row by row starting at the
+     *            top-left
+     * @param palette
+     *            The ARGB colours of the palette. This can contain at most 256
+     *            colours.
+     */
+    public IndexedImage(int width, int height, byte[] indices, int[] palette) {
+        if (indices.length < width * height) {
+            throw new IllegalArgumentException("Not enough indices for a " + width + "x"
+                    + height + " image");
+        }
+        if (palette.length == 0 || palette.length > 256) {
+            throw new IllegalArgumentException("Palette must contain between 1 and 256 colours");
+        }
+        this.width = width;
+        this.height = height;
+        this.indices = indices;
+        this.palette = palette;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The palette index of each pixel, row by row starting at the
+     *         top-left
+     */
+    public byte[] getIndices() {
+        return indices;
+    }
+
+    /**
+     * @return The ARGB colours of the palette
+     */
+    public int[] getPalette() {
+        return palette;
+    }
+
+    /**
+     * Converts a {@link BufferedImage} to an {@link IndexedImage}, if it
+     * contains few enough distinct colours. This is lossless - colours are not
+     * quantised. Pixels which are fully transparent are all mapped to the same
+     * palette entry.
+     * 
+     * @param image
+     *            The image to convert
+     * @param maxColours
+     *            The maximum number of colours allowed in the palette (at most
+     *            256)
+     * @return The equivalent {@link IndexedImage}, or <code>null</code> if the
+     *         image contains more than <code>maxColours</code> distinct
+     *         colours
+     */
+    public static IndexedImage fromImage(BufferedImage image, int maxColours) {
+        maxColours = Math.min(maxColours, 256);
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        if (image.getColorModel() instanceof IndexColorModel) {
+            /*
+             * We can use the existing palette indices directly
+             */
+            IndexColorModel icm = (IndexColorModel) image.getColorModel();
+            Raster raster = image.getRaster();
+            if (raster.getTransferType() == DataBuffer.TYPE_BYTE && raster.getNumBands() == 1
+                    && icm.getPixelSize() == 8 && icm.getMapSize() <= maxColours) {
+                byte[] indices;
+                if (image.getType() == BufferedImage.TYPE_BYTE_INDEXED
+                        && raster.getParent() == null
+                        && raster.getDataBuffer().getSize() == width * height) {
+                    /*
+                     * The backing array is exactly what we want - no need to
+                     * copy it
+                     */
+                    indices = ((DataBufferByte) raster.getDataBuffer()).getData();
+                } else {
+                    indices = (byte[]) raster.getDataElements(0, 0, width, height,
+                            new byte[width * height]);
+                }
+                int[] palette = new int[icm.getMapSize()];
+                icm.getRGBs(palette);
+                return new IndexedImage(width, height, indices, palette);
+            }
+        }
+
+        byte[] indices = new byte[width * height];
+        int[] palette = new int[maxColours];
+        int numColours = 0;
+        /*
+         * Open-addressed hash table mapping colours to (palette index + 1). 0
+         * represents an empty slot.
+         */
+        int[] hashColours = new int[HASH_SIZE];
+        int[] hashIndices = new int[HASH_SIZE];
+
+        int[] row = new int[width];
+        int lastColour = 0;
+        int lastIndex = -1;
+        int pixel = 0;
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int argb = row[x];
+                if ((argb >>> 24) == 0) {
+                    argb = 0;
+                }
+                /*
+                 * Neighbouring pixels are very often the same colour
+                 */
+                if (argb != lastColour || lastIndex < 0) {
+                    int slot = (argb * 0x9E3779B9) >>> HASH_SHIFT;
+                    while (hashIndices[slot] != 0 && hashColours[slot] != argb) {
+                        slot = (slot + 1) & (HASH_SIZE - 1);
+                    }
+                    if (hashIndices[slot] == 0) {
+                        if (numColours == maxColours) {
+                            return null;
+                        }
+                        palette[numColours] = argb;
+                        numColours++;
+                        hashColours[slot] = argb;
+                        hashIndices[slot] = numColours;
+                    }
+                    lastColour = argb;
+                    lastIndex = hashIndices[slot] - 1;
+                }
+                indices[pixel++] = (byte) lastIndex;
+            }
+        }
+        if (numColours == 0) {
+            /*
+             * Zero-sized image
+             */
+            numColours = 1;
+        }
+        int[] trimmedPalette = new int[numColours];
+        System.arraycopy(palette, 0, trimmedPalette, 0, numColours);
+        return new IndexedImage(width, height, indices, trimmedPalette);
+    }
+}
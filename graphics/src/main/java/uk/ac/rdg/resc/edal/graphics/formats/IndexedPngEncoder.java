@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.formats;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8-bit indexed PNG images directly from an {@link IndexedImage}.
+ * Transparency is written as a tRNS chunk, so each palette entry may have any
+ * alpha value.
+ * 
+ * This is thread-safe. Each thread keeps its own {@link Deflater} and buffers,
+ * which are reused between images.
+ * 
+ * @author Guy Griffiths
+ */
+public final class IndexedPngEncoder {
+    private static final byte[] SIGNATURE = new byte[] { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+    private static final byte[] IHDR = "IHDR".getBytes();
+    private static final byte[] PLTE = "PLTE".getBytes();
+    private static final byte[] TRNS = "tRNS".getBytes();
+    private static final byte[] IDAT = "IDAT".getBytes();
+    private static final byte[] IEND = "IEND".getBytes();
+
+    /* The maximum size of each IDAT chunk */
+    private static final int IDAT_SIZE = 32768;
+
+    private static volatile int compressionLevel = 6;
+
+    private static final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    private IndexedPngEncoder() {
+    }
+
+    /**
+     * Sets the zlib compression level used for all subsequently-written images.
+     * Lower levels are faster but produce larger images.
+     * 
+     * @param level
+     *            The compression level, from 0 (no compression) to 9 (best
+     *            compression). The default is 6.
+     */
+    public static void setCompressionLevel(int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9");
+        }
+        compressionLevel = level;
+    }
+
+    /**
+     * @return The zlib compression level used to write images
+     */
+    public static int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Writes an {@link IndexedImage} as an 8-bit indexed PNG
+     * 
+     * @param image
+     *            The image to write
+     * @param out
+     *            The {@link OutputStream} to write to. This is not closed.
+     * @throws IOException
+     *             If there is a problem writing to the {@link OutputStream}
+     */
+    public static void write(IndexedImage image, OutputStream out) throws IOException {
+        Workspace ws = workspaces.get();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] palette = image.getPalette();
+
+        out.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        setInt(header, 0, width);
+        setInt(header, 4, height);
+        /* Bit depth */
+        header[8] = 8;
+        /* Colour type: indexed */
+        header[9] = 3;
+        /* Compression, filter and interlace methods are all 0 */
+        ws.writeChunk(out, IHDR, header, 0, header.length);
+
+        byte[] plte = new byte[palette.length * 3];
+        int lastTranslucent = -1;
+        for (int i = 0; i < palette.length; i++) {
+            plte[i * 3] = (byte) (palette[i] >>> 16);
+            plte[i * 3 + 1] = (byte) (palette[i] >>> 8);
+            plte[i * 3 + 2] = (byte) palette[i];
+            if ((palette[i] >>> 24) != 0xff) {
+                lastTranslucent = i;
+            }
+        }
+        ws.writeChunk(out, PLTE, plte, 0, plte.length);
+
+        if (lastTranslucent >= 0) {
+            /*
+             * Palette entries after the last translucent one are implicitly
+             * opaque
+             */
+            byte[] trns = new byte[lastTranslucent + 1];
+            for (int i = 0; i <= lastTranslucent; i++) {
+                trns[i] = (byte) (palette[i] >>> 24);
+            }
+            ws.writeChunk(out, TRNS, trns, 0, trns.length);
+        }
+
+        ws.writeImageData(out, image.getIndices(), width, height);
+
+        ws.writeChunk(out, IEND, new byte[0], 0, 0);
+        out.flush();
+    }
+
+    private static void setInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * The reusable objects needed to write a PNG
+     */
+    private static final class Workspace {
+        private final Deflater deflater = new Deflater();
+        private final CRC32 crc = new CRC32();
+        private final byte[] chunkBuffer = new byte[IDAT_SIZE];
+        private final byte[] intBuffer = new byte[4];
+        private byte[] rowBuffer = new byte[0];
+
+        private void writeImageData(OutputStream out, byte[] indices, int width, int height)
+                throws IOException {
+            if (rowBuffer.length < width + 1) {
+                rowBuffer = new byte[width + 1];
+            }
+            deflater.reset();
+            deflater.setLevel(compressionLevel);
+
+            int pos = 0;
+            for (int y = 0; y < height; y++) {
+                /*
+                 * Filter type "none" is recommended for indexed images
+                 */
+                rowBuffer[0] = 0;
+                System.arraycopy(indices, y * width, rowBuffer, 1, width);
+                deflater.setInput(rowBuffer, 0, width + 1);
+                while (!deflater.needsInput()) {
+                    pos += deflater.deflate(chunkBuffer, pos, chunkBuffer.length - pos);
+                    if (pos == chunkBuffer.length) {
+                        writeChunk(out, IDAT, chunkBuffer, 0, pos);
+                        pos = 0;
+                    }
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                pos += deflater.deflate(chunkBuffer, pos, chunkBuffer.length - pos);
+                if (pos == chunkBuffer.length) {
+                    writeChunk(out, IDAT, chunkBuffer, 0, pos);
+                    pos = 0;
+                }
+            }
+            if (pos > 0) {
+                writeChunk(out, IDAT, chunkBuffer, 0, pos);
+            }
+        }
+
+        private void writeChunk(OutputStream out, byte[] type, byte[] data, int offset,
+                int length) throws IOException {
+            setInt(intBuffer, 0, length);
+            out.write(intBuffer);
+            out.write(type);
+            out.write(data, offset, length);
+            crc.reset();
+            crc.update(type);
+            crc.update(data, offset, length);
+            setInt(intBuffer, 0, (int) crc.getValue());
+            out.write(intBuffer);
+        }
+    }
+}
@@ -31,9 +31,10 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.List;
 
+import javax.imageio.ImageIO;
+
 /**
  * Writes 32-bit (ARGB) PNG images using the ImageIO class. Only one instance of
  * this class will ever be created, so this class contains no member variables
@@ -57,11 +58,12 @@ public class Png32Format extends PngFormat {
 
     @Override
     public void writeImage(List<BufferedImage> frames, OutputStream out, Integer frameRate) throws IOException {
-        List<BufferedImage> frames32bit = new ArrayList<BufferedImage>(frames.size());
-        for (BufferedImage source : frames) {
-            frames32bit.add(convertARGB(source));
+        if (frames.size() > 1) {
+            throw new IllegalArgumentException("Cannot render animations in PNG format");
+        }
+        if (frames.size() > 0) {
+            ImageIO.write(convertARGB(frames.get(0)), "png", out);
         }
-        super.writeImage(frames32bit, out, frameRate);
     }
 
     /**
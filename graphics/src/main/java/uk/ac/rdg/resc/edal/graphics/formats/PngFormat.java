@@ -35,9 +35,11 @@ import java.util.List;
 import javax.imageio.ImageIO;
 
 /**
- * Writes PNG images using the ImageIO class. Only one instance of this class
- * will ever be created, so this class contains no member variables to ensure
- * thread safety.
+ * Writes PNG images. Images with at most 256 distinct colours (which includes
+ * most images generated from palettes) are written as 8-bit indexed PNGs using
+ * the {@link IndexedPngEncoder}. Other images are written using the ImageIO
+ * class. Only one instance of this class will ever be created, so this class
+ * contains no member variables to ensure thread safety.
  * 
  * @author Jon Blower
  */
@@ -69,12 +71,18 @@ public class PngFormat extends SimpleFormat {
     }
 
     @Override
-    public synchronized void writeImage(List<BufferedImage> frames, OutputStream out, Integer frameRate) throws IOException {
+    public void writeImage(List<BufferedImage> frames, OutputStream out, Integer frameRate) throws IOException {
         if (frames.size() > 1) {
             throw new IllegalArgumentException("Cannot render animations in PNG format");
         }
         if(frames.size() > 0){
-            ImageIO.write(frames.get(0), "png", out);
+            BufferedImage frame = frames.get(0);
+            IndexedImage indexedImage = IndexedImage.fromImage(frame, 256);
+            if (indexedImage != null) {
+                IndexedPngEncoder.write(indexedImage, out);
+            } else {
+                ImageIO.write(frame, "png", out);
+            }
         }
     }
 }
@@ -30,6 +30,7 @@ package uk.ac.rdg.resc.edal.graphics.formats;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.joda.time.DateTime;
@@ -81,4 +82,108 @@ public abstract class SimpleFormat extends ImageFormat {
      */
     public abstract void writeImage(List<BufferedImage> frames, OutputStream out, Integer frameRate)
             throws IOException;
+
+    /**
+     * Opens a {@link FrameSink} which writes an image to the given
+     * OutputStream as its frames are supplied. This allows the frames of an
+     * animation to be encoded as they are generated, rather than all having
+     * to be held in memory at once.
+     * 
+     * The default implementation collects all of the frames and passes them
+     * to {@link #writeImage(List, OutputStream, Integer)} when the
+     * {@link FrameSink} is closed. Formats which can encode frames
+     * individually should override this.
+     * 
+     * @param out
+     *            The OutputStream to which the image will be written
+     * @param frameRate
+     *            The frame rate to use if this is an animation.
+     * @return A {@link FrameSink} to supply the frames to
+     * @throws IOException
+     *             if there was an error writing to the output stream
+     */
+    public FrameSink openFrameSink(final OutputStream out, final Integer frameRate)
+            throws IOException {
+        return new FrameSink() {
+            private final List<BufferedImage> frames = new ArrayList<>();
+
+            @Override
+            public void addFrame(BufferedImage frame) throws IOException {
+                frames.add(frame);
+            }
+
+            @Override
+            public void close() throws IOException {
+                writeImage(frames, out, frameRate);
+            }
+
+            @Override
+            public void abort() {
+                frames.clear();
+            }
+        };
+    }
+
+    /**
+     * Opens a {@link FrameSink} for an image whose number of frames is known
+     * in advance. Some formats need to write the number of frames before the
+     * frames themselves, and can use this to avoid buffering the frames.
+     *
+     * The default implementation ignores the number of frames and delegates
+     * to {@link #openFrameSink(OutputStream, Integer)}.
+     *
+     * @param out
+     *            The OutputStream to which the image will be written
+     * @param frameRate
+     *            The frame rate to use if this is an animation.
+     * @param nFrames
+     *            The number of frames which will be added to the
+     *            {@link FrameSink}
+     * @return A {@link FrameSink} to supply the frames to
+     * @throws IOException
+     *             if there was an error writing to the output stream
+     */
+    public FrameSink openFrameSink(OutputStream out, Integer frameRate, int nFrames)
+            throws IOException {
+        return openFrameSink(out, frameRate);
+    }
+
+    /**
+     * Receives the frames of an image, one at a time and in order, and writes
+     * them to an OutputStream. The image is complete once {@link #close()} has
+     * been called.
+     * 
+     * @author Guy Griffiths
+     */
+    public interface FrameSink {
+        /**
+         * Adds the next frame to the image
+         * 
+         * @param frame
+         *            The frame to add
+         * @throws IOException
+         *             if there was an error writing to the output stream
+         * @throws IllegalArgumentException
+         *             if the image format cannot render the frame (e.g. it
+         *             doesn't support animations and this is not the first
+         *             frame)
+         */
+        public void addFrame(BufferedImage frame) throws IOException;
+
+        /**
+         * Finishes writing the image. This does not close the underlying
+         * OutputStream.
+         * 
+         * @throws IOException
+         *             if there was an error writing to the output stream
+         */
+        public void close() throws IOException;
+
+        /**
+         * Abandons the image, e.g. because one of its frames could not be
+         * rendered. Any resources are released, but nothing more is written
+         * to the output stream.
+         */
+        public void abort();
+    }
 }
@@ -126,6 +126,54 @@ public abstract class ColourScheme {
      */
     public abstract Color getColor(Number value);
 
+    /**
+     * Returns the colour associated with the given value as an ARGB integer.
+     * This avoids creating any objects, so should be used when colouring large
+     * numbers of values. Subclasses should override this if they can do so
+     * more efficiently than {@link #getColor(Number)}.
+     * 
+     * @param value
+     *            The value to get a colour for. {@link Float#NaN} represents
+     *            missing data
+     * @return The ARGB value of the colour according to this
+     *         {@link ColourScheme}
+     */
+    public int getColorARGB(float value) {
+        return getColor(Float.isNaN(value) ? null : value).getRGB();
+    }
+
+    /**
+     * Gets the fixed set of colours which this {@link ColourScheme} maps
+     * values onto, if it has one. If this returns a non-<code>null</code>
+     * value, {@link #getPaletteIndex(float)} can be used to find the colour of
+     * each value as an index into the palette, which allows images to be
+     * generated directly as indexed-colour rasters.
+     * 
+     * @return The ARGB values of every colour which this {@link ColourScheme}
+     *         can return (at most 256), or <code>null</code> if this
+     *         {@link ColourScheme} does not map values onto a fixed palette.
+     */
+    public int[] getIndexedPalette() {
+        return null;
+    }
+
+    /**
+     * Returns the colour associated with the given value as an index into the
+     * array returned by {@link #getIndexedPalette()}. Subclasses which
+     * override {@link #getIndexedPalette()} must also override this.
+     * 
+     * @param value
+     *            The value to get a colour for. {@link Float#NaN} represents
+     *            missing data
+     * @return The index of the colour in the palette, or -1 if this
+     *         {@link ColourScheme} cannot map the value onto its palette. In
+     *         this case callers should colour values with
+     *         {@link #getColorARGB(float)} instead.
+     */
+    public int getPaletteIndex(float value) {
+        return -1;
+    }
+
     /**
      * @return The minimum value of this colour scale
      */
@@ -128,6 +128,11 @@ public abstract class GriddedImageLayer extends ImageLayer {
                 public Number get(int... coords) {
                     return values.get(params.getHeight() - coords[0] - 1, coords[1]);
                 }
+
+                @Override
+                public float getFloat(int y, int x) {
+                    return values.getFloat(params.getHeight() - y - 1, x);
+                }
             };
         };
 
@@ -47,6 +47,8 @@ import javax.imageio.ImageIO;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.style.util.FeatureCatalogue;
 import uk.ac.rdg.resc.edal.graphics.style.util.LegendDataGenerator;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Stage;
 import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
 
 public class MapImage extends Drawable {
@@ -56,9 +58,35 @@ public class MapImage extends Drawable {
         return layers;
     }
 
+    /**
+     * If this {@link MapImage} consists of a single {@link RasterLayer} whose
+     * {@link ColourScheme} uses a fixed palette, the returned image will be of
+     * type {@link BufferedImage#TYPE_BYTE_INDEXED}. Anything subsequently drawn
+     * onto such an image will be restricted to the colours in its palette.
+     */
     @Override
     public BufferedImage drawImage(PlottingDomainParams params, FeatureCatalogue catalogue)
             throws EdalException {
+        long start = RequestMetrics.start();
+        BufferedImage image = drawLayers(params, catalogue);
+        RequestMetrics.stop(Stage.RENDER, start);
+        return image;
+    }
+
+    private BufferedImage drawLayers(PlottingDomainParams params, FeatureCatalogue catalogue)
+            throws EdalException {
+        if (layers.size() == 1 && layers.get(0) instanceof RasterLayer
+                && layers.get(0).getOpacityTransform() == null && getOpacityTransform() == null) {
+            /*
+             * A single raster layer can be drawn directly as an indexed image,
+             * with no compositing required
+             */
+            BufferedImage indexedImage = ((RasterLayer) layers.get(0)).drawIndexedImage(params,
+                    catalogue);
+            if (indexedImage != null) {
+                return indexedImage;
+            }
+        }
         BufferedImage finalImage = new BufferedImage(params.getWidth(), params.getHeight(),
                 BufferedImage.TYPE_INT_ARGB);
         Graphics2D graphics = finalImage.createGraphics();
@@ -212,6 +240,16 @@ public class MapImage extends Drawable {
                     componentHeight, null, extraAmountOutOfRange);
             BufferedImage colourbar = drawImage(dataGenerator.getPlottingDomainParams(),
                     dataGenerator.getFeatureCatalogue(null, nameAndRange));
+            if (colourbar.getType() != BufferedImage.TYPE_INT_ARGB) {
+                /*
+                 * We may have an indexed image, but we want to draw an outline
+                 * which may not be in its palette
+                 */
+                BufferedImage argbColourbar = new BufferedImage(colourbar.getWidth(),
+                        colourbar.getHeight(), BufferedImage.TYPE_INT_ARGB);
+                argbColourbar.createGraphics().drawImage(colourbar, 0, 0, null);
+                colourbar = argbColourbar;
+            }
             Graphics2D graphics = colourbar.createGraphics();
             graphics.setColor(textColour);
             graphics.drawRect(0, 0, colourbar.getWidth() - 1, colourbar.getHeight() - 1);
@@ -30,7 +30,6 @@ package uk.ac.rdg.resc.edal.graphics.style;
 
 import java.awt.image.BufferedImage;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
 
 import javax.naming.OperationNotSupportedException;
@@ -64,11 +63,13 @@ public class OpacityMap extends OpacityTransform {
         Array2D<Number> values = dataReader.getDataForLayerName(dataFieldName);
         
         int index = 0;
-        Iterator<Number> iterator = values.iterator();
-        while(iterator.hasNext()) {
-            int alpha = ((int) (getOpacityForValue(iterator.next()) * 255));
-            imagePixels[index] = blendPixel(imagePixels[index], alpha);
-            index++;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                float value = values.getFloat(j, i);
+                int alpha = ((int) (getOpacityForValue(Float.isNaN(value) ? null : value) * 255));
+                imagePixels[index] = blendPixel(imagePixels[index], alpha);
+                index++;
+            }
         }
         image.setRGB(0, 0, width, height, imagePixels, 0, width);
         } catch (OperationNotSupportedException onse) {
@@ -29,12 +29,17 @@
 package uk.ac.rdg.resc.edal.graphics.style;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
 import java.util.HashSet;
 import java.util.Set;
 
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.style.util.FeatureCatalogue;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.Extents;
+import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
 
 public class RasterLayer extends GriddedImageLayer {
 
@@ -67,17 +72,73 @@ public class RasterLayer extends GriddedImageLayer {
         Array2D<Number> values = dataReader.getDataForLayerName(dataFieldName);
 
         /*
-         * The iterator iterates over the x-dimension first, which is the same
-         * convention as expected for the colour-values array in image.setRGB
-         * below
+         * Loop over the x-dimension first, which is the same convention as
+         * expected for the colour-values array in image.setRGB below.
+         * 
+         * Values are read as primitives to avoid creating an object for every
+         * pixel
          */
+        int width = values.getXSize();
+        int height = values.getYSize();
         int index = 0;
-        for (Number value : values) {
-            pixels[index++] = colourScheme.getColor(value).getRGB();
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                pixels[index++] = colourScheme.getColorARGB(values.getFloat(j, i));
+            }
         }
         image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
     }
 
+    /**
+     * Draws this layer directly as an indexed-colour image, if the
+     * {@link ColourScheme} maps values onto a fixed palette. This is much
+     * faster than drawing into an ARGB image, and the result can be written
+     * directly by indexed image formats.
+     * 
+     * @param params
+     *            The {@link PlottingDomainParams} describing the image
+     * @param catalogue
+     *            The {@link FeatureCatalogue} to read data from
+     * @return A {@link BufferedImage} of type
+     *         {@link BufferedImage#TYPE_BYTE_INDEXED}, or <code>null</code> if
+     *         the {@link ColourScheme} of this layer cannot map every value
+     *         onto a fixed palette
+     * @throws EdalException
+     *             If there is a problem reading the data
+     */
+    public BufferedImage drawIndexedImage(PlottingDomainParams params, FeatureCatalogue catalogue)
+            throws EdalException {
+        int[] palette = colourScheme.getIndexedPalette();
+        if (palette == null || palette.length > 256) {
+            return null;
+        }
+        IndexColorModel colorModel = new IndexColorModel(8, palette.length, palette, 0, true, -1,
+                DataBuffer.TYPE_BYTE);
+        BufferedImage image = new BufferedImage(params.getWidth(), params.getHeight(),
+                BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+        byte[] indices = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+
+        Array2D<Number> values = new MapFeatureDataReader(params, catalogue)
+                .getDataForLayerName(dataFieldName);
+        int width = values.getXSize();
+        int height = values.getYSize();
+        int index = 0;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int paletteIndex = colourScheme.getPaletteIndex(values.getFloat(j, i));
+                if (paletteIndex < 0 || paletteIndex >= palette.length) {
+                    /*
+                     * The colour scheme can't index this value, so the caller
+                     * must draw an ARGB image instead
+                     */
+                    return null;
+                }
+                indices[index++] = (byte) paletteIndex;
+            }
+        }
+        return image;
+    }
+
     @Override
     public Set<NameAndRange> getFieldsWithScales() {
         Set<NameAndRange> ret = new HashSet<Drawable.NameAndRange>();
@@ -56,6 +56,24 @@ public class SegmentColourScheme extends ColourScheme {
 
     private ColourPalette palette = null;
 
+    /*
+     * Every colour which this scheme can return, as ARGB values. This is
+     * generated on first use. The no-data colour is at index 0, followed by
+     * the palette colours, then the below-min and above-max colours (if set).
+     */
+    private volatile int[] argbPalette = null;
+    private int belowMinIndex;
+    private int aboveMaxIndex;
+    private int numPaletteColours;
+    /*
+     * The scale parameters, stored as primitives for use in getPaletteIndex
+     */
+    private float scaleMin;
+    private float scaleWidth;
+    private boolean logarithmic;
+    private double logScaleMin;
+    private double logScaleRange;
+
     public SegmentColourScheme(ColourScale scaleRange, Color belowMinColour, Color aboveMaxColour,
             Color noDataColour, Color[] palette, Integer nColourBands) {
         super();
@@ -107,6 +125,94 @@ public class SegmentColourScheme extends ColourScheme {
         return palette.getColor(val);
     }
 
+    @Override
+    public int getColorARGB(float value) {
+        int[] argb = getIndexedPalette();
+        return argb[getPaletteIndex(value)];
+    }
+
+    @Override
+    public int[] getIndexedPalette() {
+        if (argbPalette == null) {
+            synchronized (this) {
+                if (argbPalette == null) {
+                    if (palette == null) {
+                        palette = ColourPalette.fromString(paletteString, nColourBands);
+                    }
+                    scaleMin = scaleRange.getScaleMin();
+                    scaleWidth = scaleRange.getScaleMax() - scaleMin;
+                    logarithmic = scaleRange.isLogarithmic();
+                    if (logarithmic) {
+                        if (scaleMin <= 0.0 || scaleRange.getScaleMax() <= 0.0) {
+                            throw new IllegalArgumentException(
+                                    "Cannot log-scale zero/negative numbers");
+                        }
+                        logScaleMin = Math.log(scaleMin);
+                        logScaleRange = Math.log(scaleRange.getScaleMax()) - logScaleMin;
+                    }
+
+                    int[] colours = palette.getARGBColours();
+                    numPaletteColours = colours.length;
+                    int size = colours.length + 1;
+                    belowMinIndex = belowMinColour == null ? 1 : size++;
+                    aboveMaxIndex = aboveMaxColour == null ? colours.length : size++;
+
+                    int[] argb = new int[size];
+                    argb[0] = noDataColour.getRGB();
+                    System.arraycopy(colours, 0, argb, 1, colours.length);
+                    if (belowMinColour != null) {
+                        argb[belowMinIndex] = belowMinColour.getRGB();
+                    }
+                    if (aboveMaxColour != null) {
+                        argb[aboveMaxIndex] = aboveMaxColour.getRGB();
+                    }
+                    argbPalette = argb;
+                }
+            }
+        }
+        return argbPalette;
+    }
+
+    @Override
+    public int getPaletteIndex(float value) {
+        if (argbPalette == null) {
+            getIndexedPalette();
+        }
+        /*
+         * This performs the same calculation as getColor(Number), but without
+         * creating any objects
+         */
+        if (Float.isNaN(value)) {
+            return 0;
+        }
+        float zeroToOne;
+        if (logarithmic) {
+            if (value <= 0.0f) {
+                return belowMinIndex;
+            }
+            zeroToOne = (float) ((Math.log(value) - logScaleMin) / logScaleRange);
+        } else {
+            zeroToOne = (value - scaleMin) / scaleWidth;
+        }
+        if (Float.isNaN(zeroToOne)) {
+            return 0;
+        }
+        if (zeroToOne < 0.0f) {
+            return belowMinIndex;
+        }
+        if (zeroToOne > 1.0f) {
+            return aboveMaxIndex;
+        }
+        int index = (int) (zeroToOne * numPaletteColours);
+        if (index == numPaletteColours) {
+            index--;
+        }
+        /*
+         * Palette colours start at index 1
+         */
+        return index + 1;
+    }
+
     @Override
     public Float getScaleMin() {
         return scaleRange.getScaleMin();
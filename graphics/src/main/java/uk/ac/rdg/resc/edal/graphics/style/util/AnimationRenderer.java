@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.style.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.formats.SimpleFormat.FrameSink;
+import uk.ac.rdg.resc.edal.graphics.style.MapImage;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Attribution;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Scope;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Stage;
+import uk.ac.rdg.resc.edal.util.DaemonThreadFactory;
+import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
+
+/**
+ * Renders the frames of an animation in parallel, passing them in order to a
+ * {@link FrameSink} as soon as they are ready.
+ * 
+ * Frames are rendered on a shared pool of threads. Only a limited number of
+ * frames for each animation are rendered ahead of the frame which is next to
+ * be written, so that the memory used by an animation does not depend upon
+ * the number of frames it contains.
+ * 
+ * @author Guy Griffiths
+ */
+public class AnimationRenderer {
+    private static final int N_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    /*
+     * The maximum number of frames of a single animation which can be rendered
+     * (or waiting to be written) at once
+     */
+    private static final int MAX_FRAMES_IN_FLIGHT = 2 * N_THREADS;
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(N_THREADS,
+            N_THREADS, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+            new DaemonThreadFactory("animation-render-"));
+
+    static {
+        RequestMetrics.registerQueue("animationFrames", executor.getQueue());
+    }
+
+    private AnimationRenderer() {
+    }
+
+    /**
+     * Renders a number of frames and passes them to a {@link FrameSink}. This
+     * does not close the {@link FrameSink}.
+     * 
+     * @param image
+     *            The {@link MapImage} to render each frame with
+     * @param frameParams
+     *            The {@link PlottingDomainParams} for each frame, in order
+     * @param catalogue
+     *            The {@link FeatureCatalogue} to read features from
+     * @param sink
+     *            The {@link FrameSink} to add the rendered frames to
+     * @throws EdalException
+     *             If there is a problem rendering any of the frames
+     * @throws IOException
+     *             If there is a problem writing frames to the
+     *             {@link FrameSink}
+     */
+    public static void renderFrames(final MapImage image, List<PlottingDomainParams> frameParams,
+            final FeatureCatalogue catalogue, FrameSink sink) throws EdalException, IOException {
+        if (frameParams.size() == 1) {
+            /*
+             * Nothing to gain from using another thread
+             */
+            addFrame(sink, image.drawImage(frameParams.get(0), catalogue));
+            return;
+        }
+
+        /*
+         * Frames are attributed to the same dataset and layer as the request
+         */
+        final Attribution attribution = RequestMetrics.getAttribution();
+        Deque<Future<BufferedImage>> inFlight = new ArrayDeque<>();
+        int nextFrame = 0;
+        try {
+            while (nextFrame < frameParams.size() || !inFlight.isEmpty()) {
+                while (nextFrame < frameParams.size() && inFlight.size() < MAX_FRAMES_IN_FLIGHT) {
+                    final PlottingDomainParams params = frameParams.get(nextFrame++);
+                    inFlight.add(executor.submit(new Callable<BufferedImage>() {
+                        @Override
+                        public BufferedImage call() throws Exception {
+                            try (Scope scope = RequestMetrics.attribute(attribution)) {
+                                return image.drawImage(params, catalogue);
+                            }
+                        }
+                    }));
+                }
+                addFrame(sink, getFrame(inFlight.poll()));
+            }
+        } finally {
+            /*
+             * If anything went wrong, don't render frames which will never be
+             * written
+             */
+            for (Future<BufferedImage> frame : inFlight) {
+                frame.cancel(false);
+            }
+        }
+    }
+
+    private static void addFrame(FrameSink sink, BufferedImage frame) throws IOException {
+        long start = RequestMetrics.start();
+        sink.addFrame(frame);
+        RequestMetrics.stop(Stage.ENCODE, start);
+    }
+
+    private static BufferedImage getFrame(Future<BufferedImage> frame) throws EdalException {
+        try {
+            return frame.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EdalException("Interrupted whilst rendering animation", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof EdalException) {
+                throw (EdalException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new EdalException("Problem rendering animation frame", cause);
+        }
+    }
+}
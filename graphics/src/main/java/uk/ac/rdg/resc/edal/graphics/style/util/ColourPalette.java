@@ -248,6 +248,18 @@ public class ColourPalette {
         return this.colours[i];
     }
 
+    /**
+     * @return The colours of this palette as ARGB values, from the colour for
+     *         the lowest values to the colour for the highest values
+     */
+    public int[] getARGBColours() {
+        int[] argb = new int[colours.length];
+        for (int i = 0; i < colours.length; i++) {
+            argb[i] = colours[i].getRGB();
+        }
+        return argb;
+    }
+
     public static ColourPalette fromString(String paletteString, int nColourBands) {
         if (paletteString == null || "".equals(paletteString)) {
             paletteString = DEFAULT_PALETTE_NAME;
@@ -0,0 +1,386 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.style.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.util.DaemonThreadFactory;
+import uk.ac.rdg.resc.edal.util.Extents;
+
+/**
+ * Stores estimated value ranges for variables, so that
+ * {@link GraphicsUtils#estimateValueRange(Dataset, String)} (which needs to
+ * read data) only needs to be called once per variable rather than whenever a
+ * value range is needed.
+ * 
+ * Each stored range is tagged with a signature of the variable's vertical and
+ * temporal domains. When these change (e.g. new timesteps are added to a
+ * dataset) the range for that variable is recalculated, but ranges for
+ * unchanged variables are kept.
+ * 
+ * Ranges can optionally be persisted to a file so that they survive restarts.
+ * 
+ * @author Guy Griffiths
+ */
+public class ValueRangeCache {
+    private static final Logger log = LoggerFactory.getLogger(ValueRangeCache.class);
+
+    /*
+     * Used to calculate value ranges in the background. Each calculation reads
+     * a small map from a variable, so these are I/O-bound and we can use
+     * rather more threads than we have processors.
+     */
+    private static final ExecutorService executor = Executors.newFixedThreadPool(Math.max(4,
+            Runtime.getRuntime().availableProcessors()), new DaemonThreadFactory("value-range-"));
+
+    private final File cacheFile;
+    private final AtomicBoolean persistPending = new AtomicBoolean(false);
+    /* Maps dataset ID to a map of variable ID to value range */
+    private final Map<String, Map<String, ValueRange>> ranges;
+    /* Calculations which are currently in progress */
+    private final Map<String, FutureTask<ValueRange>> inProgress = new HashMap<>();
+
+    /**
+     * Creates a new {@link ValueRangeCache}
+     * 
+     * @param cacheFile
+     *            The file to persist value ranges to. If this exists, ranges
+     *            will be read from it. If it is <code>null</code> ranges are
+     *            only stored in memory.
+     */
+    public ValueRangeCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+        Map<String, Map<String, ValueRange>> storedRanges = read(cacheFile);
+        if (storedRanges == null) {
+            storedRanges = new HashMap<>();
+        }
+        this.ranges = storedRanges;
+    }
+
+    /**
+     * Gets the value range of a variable. If a range is already stored for the
+     * current domain of the variable it is returned immediately. Otherwise it
+     * is calculated (reading data) and stored.
+     * 
+     * @param dataset
+     *            The {@link Dataset} containing the variable
+     * @param varId
+     *            The ID of the variable
+     * @return The estimated value range of the variable
+     * @throws VariableNotFoundException
+     *             If the variable does not exist in the given {@link Dataset}
+     */
+    public Extent<Float> getValueRange(Dataset dataset, String varId)
+            throws VariableNotFoundException {
+        /*
+         * Calculate this in the calling thread, so that we don't need to wait
+         * for any background calculations to finish first. This includes
+         * calculations which have been queued in the background but not yet
+         * started.
+         */
+        Future<ValueRange> future = calculateIfNecessary(dataset, varId, false);
+        return waitForRange(future, dataset.getId(), varId);
+    }
+
+    /**
+     * Gets the value ranges of several variables in a {@link Dataset}. Any
+     * which are not already stored will be calculated in parallel.
+     * 
+     * @param dataset
+     *            The {@link Dataset} containing the variables
+     * @param varIds
+     *            The IDs of the variables
+     * @return A {@link Map} of variable ID to value range
+     * @throws VariableNotFoundException
+     *             If any of the variables do not exist in the given
+     *             {@link Dataset}
+     */
+    public Map<String, Extent<Float>> getValueRanges(Dataset dataset, Collection<String> varIds)
+            throws VariableNotFoundException {
+        Map<String, Future<ValueRange>> futures = new HashMap<>();
+        for (String varId : varIds) {
+            futures.put(varId, calculateIfNecessary(dataset, varId, true));
+        }
+        Map<String, Extent<Float>> ret = new HashMap<>();
+        for (String varId : varIds) {
+            ret.put(varId, waitForRange(futures.get(varId), dataset.getId(), varId));
+        }
+        return ret;
+    }
+
+    /**
+     * Calculates the value range of every variable in a {@link Dataset} which
+     * does not have an up-to-date stored range. This returns immediately - the
+     * calculations are done in the background.
+     * 
+     * @param dataset
+     *            The {@link Dataset} to calculate value ranges for
+     */
+    public void updateValueRanges(Dataset dataset) {
+        /*
+         * Variables which have been removed from the dataset should be removed
+         * from the cache
+         */
+        synchronized (this) {
+            Map<String, ValueRange> datasetRanges = ranges.get(dataset.getId());
+            if (datasetRanges != null) {
+                datasetRanges.keySet().retainAll(dataset.getVariableIds());
+            }
+        }
+        for (String varId : dataset.getVariableIds()) {
+            try {
+                calculateIfNecessary(dataset, varId, true);
+            } catch (VariableNotFoundException e) {
+                /*
+                 * Can't happen - we got the variable ID from the dataset
+                 */
+            }
+        }
+    }
+
+    /**
+     * Removes all stored value ranges for a dataset
+     * 
+     * @param datasetId
+     *            The ID of the dataset to remove
+     */
+    public void removeDataset(String datasetId) {
+        synchronized (this) {
+            ranges.remove(datasetId);
+        }
+        schedulePersist();
+    }
+
+    /**
+     * Returns a {@link Future} which will provide the value range for the
+     * given variable. This will either be already complete (if we have a
+     * stored range), a calculation which is already in progress, or a new
+     * calculation.
+     * 
+     * @param runInBackground
+     *            Whether a new calculation should be run in the background.
+     *            If <code>false</code> it (or a queued calculation which has
+     *            not yet started) is run in the calling thread and will be
+     *            complete when this method returns.
+     */
+    private Future<ValueRange> calculateIfNecessary(final Dataset dataset, final String varId,
+            boolean runInBackground) throws VariableNotFoundException {
+        final String signature = getSignature(dataset.getVariableMetadata(varId));
+        final String key = dataset.getId() + "/" + varId;
+        FutureTask<ValueRange> task;
+        synchronized (this) {
+            Map<String, ValueRange> datasetRanges = ranges.get(dataset.getId());
+            if (datasetRanges != null) {
+                final ValueRange range = datasetRanges.get(varId);
+                if (range != null && range.signature.equals(signature)) {
+                    task = new FutureTask<>(new Callable<ValueRange>() {
+                        @Override
+                        public ValueRange call() {
+                            return range;
+                        }
+                    });
+                    task.run();
+                    return task;
+                }
+            }
+            task = inProgress.get(key);
+            if (task == null) {
+                task = new FutureTask<>(new Callable<ValueRange>() {
+                    @Override
+                    public ValueRange call() throws Exception {
+                        try {
+                            Extent<Float> extent = GraphicsUtils.estimateValueRange(dataset, varId);
+                            ValueRange range = new ValueRange(extent.getLow(), extent.getHigh(),
+                                    signature);
+                            synchronized (ValueRangeCache.this) {
+                                Map<String, ValueRange> datasetRanges = ranges.get(dataset.getId());
+                                if (datasetRanges == null) {
+                                    datasetRanges = new HashMap<>();
+                                    ranges.put(dataset.getId(), datasetRanges);
+                                }
+                                datasetRanges.put(varId, range);
+                            }
+                            schedulePersist();
+                            return range;
+                        } finally {
+                            synchronized (ValueRangeCache.this) {
+                                inProgress.remove(key);
+                            }
+                        }
+                    }
+                });
+                inProgress.put(key, task);
+            } else if (runInBackground) {
+                /*
+                 * Already queued or running
+                 */
+                return task;
+            }
+        }
+        if (runInBackground) {
+            executor.execute(task);
+        } else {
+            /*
+             * If this task is queued in the background, it does nothing when
+             * the executor reaches it. If it is already running, this returns
+             * immediately and the caller waits for it to finish.
+             */
+            task.run();
+        }
+        return task;
+    }
+
+    private Extent<Float> waitForRange(Future<ValueRange> future, String datasetId, String varId) {
+        try {
+            ValueRange range = future.get();
+            return Extents.newExtent(range.min, range.max);
+        } catch (InterruptedException | ExecutionException e) {
+            /*
+             * estimateValueRange handles data reading problems itself, so we
+             * should only get here in exceptional circumstances. A bad range is
+             * better than no image at all.
+             */
+            log.error("Problem calculating value range for " + varId + " in dataset " + datasetId,
+                    e);
+            return Extents.newExtent(0f, 100f);
+        }
+    }
+
+    /**
+     * Gets a string which will change if the parts of a variable's domain used
+     * to estimate its value range change
+     */
+    private static String getSignature(VariableMetadata variableMetadata) {
+        StringBuilder signature = new StringBuilder();
+        if (variableMetadata.getVerticalDomain() != null) {
+            signature.append(variableMetadata.getVerticalDomain().getExtent());
+        }
+        signature.append("/");
+        if (variableMetadata.getTemporalDomain() != null) {
+            signature.append(variableMetadata.getTemporalDomain().getExtent());
+        }
+        return signature.toString();
+    }
+
+    /**
+     * Persists the cache in the background. If a write is already pending,
+     * this does nothing, so that several value ranges calculated together
+     * result in a single write.
+     */
+    private void schedulePersist() {
+        if (cacheFile != null && persistPending.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    persistPending.set(false);
+                    persist();
+                }
+            });
+        }
+    }
+
+    private void persist() {
+        Map<String, Map<String, ValueRange>> rangesCopy = new HashMap<>();
+        synchronized (this) {
+            for (Map.Entry<String, Map<String, ValueRange>> entry : ranges.entrySet()) {
+                rangesCopy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+            }
+        }
+        /*
+         * Write to a temporary file first so that a partially-written cache
+         * never replaces a good one
+         */
+        synchronized (cacheFile) {
+            File tempFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+            try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(tempFile))) {
+                out.writeObject(rangesCopy);
+            } catch (IOException e) {
+                log.warn("Problem writing value range cache", e);
+                tempFile.delete();
+                return;
+            }
+            cacheFile.delete();
+            if (!tempFile.renameTo(cacheFile)) {
+                log.warn("Problem writing value range cache to " + cacheFile);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Map<String, ValueRange>> read(File cacheFile) {
+        if (cacheFile == null || !cacheFile.exists()) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(cacheFile))) {
+            return (Map<String, Map<String, ValueRange>>) in.readObject();
+        } catch (ClassNotFoundException | IOException | ClassCastException e) {
+            /*
+             * Ignore this error - the value ranges will just be recalculated
+             */
+            log.warn("Problem reading value range cache", e);
+            return null;
+        }
+    }
+
+    private static class ValueRange implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final float min;
+        private final float max;
+        private final String signature;
+
+        public ValueRange(float min, float max, String signature) {
+            this.min = min;
+            this.max = max;
+            this.signature = signature;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.formats;
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.graphics.formats.SimpleFormat.FrameSink;
+
+public class AviFormatTest {
+    /* Deliberately not a multiple of 4, so that rows are padded */
+    private static final int WIDTH = 13;
+    private static final int HEIGHT = 7;
+    private static final int ROW_SIZE = 40;
+    private static final int FRAME_SIZE = ROW_SIZE * HEIGHT;
+
+    @Test
+    public void testStructure() throws IOException, InvalidFormatException {
+        List<BufferedImage> frames = getFrames(5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((SimpleFormat) ImageFormat.get("video/avi")).writeImage(frames, out, 10);
+        ByteBuffer avi = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+
+        /* The final frame is repeated */
+        int nChunks = frames.size() + 1;
+
+        assertEquals("RIFF", getFourCC(avi, 0));
+        assertEquals(avi.capacity() - 8, avi.getInt(4));
+        assertEquals("AVI ", getFourCC(avi, 8));
+        assertEquals("hdrl", getFourCC(avi, 20));
+        assertEquals("avih", getFourCC(avi, 24));
+        /* Microseconds per frame */
+        assertEquals(100000, avi.getInt(32));
+        /* Total frames */
+        assertEquals(nChunks, avi.getInt(48));
+        assertEquals(WIDTH, avi.getInt(64));
+        assertEquals(HEIGHT, avi.getInt(68));
+        assertEquals("strh", getFourCC(avi, 100));
+        /* Scale, rate and length */
+        assertEquals(1, avi.getInt(128));
+        assertEquals(10, avi.getInt(132));
+        assertEquals(nChunks, avi.getInt(140));
+        assertEquals("strf", getFourCC(avi, 164));
+        /* Bits per pixel */
+        assertEquals(24, avi.getShort(186));
+
+        assertEquals("LIST", getFourCC(avi, 212));
+        int moviSize = avi.getInt(216);
+        assertEquals(4 + nChunks * (FRAME_SIZE + 8), moviSize);
+        int moviStart = 220;
+        assertEquals("movi", getFourCC(avi, moviStart));
+
+        for (int f = 0; f < nChunks; f++) {
+            int chunkStart = moviStart + 4 + f * (FRAME_SIZE + 8);
+            assertEquals("00db", getFourCC(avi, chunkStart));
+            assertEquals(FRAME_SIZE, avi.getInt(chunkStart + 4));
+            BufferedImage frame = frames.get(Math.min(f, frames.size() - 1));
+            for (int j = 0; j < HEIGHT; j++) {
+                /* Rows are stored bottom-up, as BGR */
+                int rowStart = chunkStart + 8 + (HEIGHT - 1 - j) * ROW_SIZE;
+                for (int i = 0; i < WIDTH; i++) {
+                    int argb = frame.getRGB(i, j);
+                    int expected = (argb >>> 24) == 0 ? 0 : argb & 0xffffff;
+                    int actual = (avi.get(rowStart + i * 3) & 0xff)
+                            | (avi.get(rowStart + i * 3 + 1) & 0xff) << 8
+                            | (avi.get(rowStart + i * 3 + 2) & 0xff) << 16;
+                    assertEquals(expected, actual);
+                }
+            }
+        }
+
+        int indexStart = moviStart + moviSize;
+        assertEquals("idx1", getFourCC(avi, indexStart));
+        assertEquals(nChunks * 16, avi.getInt(indexStart + 4));
+        for (int f = 0; f < nChunks; f++) {
+            int entry = indexStart + 8 + f * 16;
+            assertEquals("00db", getFourCC(avi, entry));
+            assertEquals(4 + f * (FRAME_SIZE + 8), avi.getInt(entry + 8));
+            assertEquals(FRAME_SIZE, avi.getInt(entry + 12));
+        }
+        assertEquals(avi.capacity(), indexStart + 8 + nChunks * 16);
+    }
+
+    @Test
+    public void testUnknownFrameCount() throws IOException, InvalidFormatException {
+        SimpleFormat format = (SimpleFormat) ImageFormat.get("video/avi");
+        List<BufferedImage> frames = getFrames(4);
+
+        ByteArrayOutputStream known = new ByteArrayOutputStream();
+        format.writeImage(frames, known, null);
+
+        ByteArrayOutputStream unknown = new ByteArrayOutputStream();
+        FrameSink frameSink = format.openFrameSink(unknown, null);
+        for (BufferedImage frame : frames) {
+            frameSink.addFrame(frame);
+        }
+        /* Nothing can be written until the number of frames is known */
+        assertEquals(0, unknown.size());
+        frameSink.close();
+
+        assertArrayEquals(known.toByteArray(), unknown.toByteArray());
+    }
+
+    @Test
+    public void testStreaming() throws IOException, InvalidFormatException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameSink frameSink = ((SimpleFormat) ImageFormat.get("video/avi")).openFrameSink(out,
+                5, 3);
+        List<BufferedImage> frames = getFrames(3);
+        frameSink.addFrame(frames.get(0));
+        /* Each frame is written as soon as it is supplied */
+        int afterFirstFrame = out.size();
+        assertTrue(afterFirstFrame >= FRAME_SIZE);
+        frameSink.addFrame(frames.get(1));
+        assertEquals(afterFirstFrame + FRAME_SIZE + 8, out.size());
+        frameSink.addFrame(frames.get(2));
+        try {
+            frameSink.addFrame(frames.get(0));
+            fail("More frames than declared should not be accepted");
+        } catch (IllegalArgumentException e) {
+            /* Expected */
+        }
+        frameSink.close();
+    }
+
+    private static List<BufferedImage> getFrames(int nFrames) {
+        List<BufferedImage> frames = new ArrayList<>();
+        for (int f = 0; f < nFrames; f++) {
+            BufferedImage frame = new BufferedImage(WIDTH, HEIGHT, f % 2 == 0
+                    ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_4BYTE_ABGR);
+            for (int j = 0; j < HEIGHT; j++) {
+                for (int i = 0; i < WIDTH; i++) {
+                    frame.setRGB(i, j, i == j ? 0 : 0xff000000 | (f * 40) << 16 | (i * 19) << 8
+                            | j * 36);
+                }
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static String getFourCC(ByteBuffer buffer, int offset) {
+        StringBuilder fourCC = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            fourCC.append((char) buffer.get(offset + i));
+        }
+        return fourCC.toString();
+    }
+}
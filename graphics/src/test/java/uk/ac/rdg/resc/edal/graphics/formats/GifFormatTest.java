@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.formats;
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.graphics.formats.SimpleFormat.FrameSink;
+
+public class GifFormatTest {
+    @Test
+    public void testFewColours() throws IOException, InvalidFormatException {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        for (int j = 0; j < image.getHeight(); j++) {
+            for (int i = 0; i < image.getWidth(); i++) {
+                int argb;
+                if (i < 10) {
+                    /* Fully transparent */
+                    argb = 0;
+                } else {
+                    argb = 0xff000000 | ((i * 31 + j * 17) % 200) << 8;
+                }
+                image.setRGB(i, j, argb);
+            }
+        }
+        List<BufferedImage> frames = writeAndRead(Arrays.asList(image), null);
+        assertEquals(1, frames.size());
+        assertImagesEqual(image, frames.get(0));
+    }
+
+    @Test
+    public void testIndexedFrame() throws IOException, InvalidFormatException {
+        byte[] reds = new byte[] { 0, (byte) 255, 0, 0 };
+        byte[] greens = new byte[] { 0, 0, (byte) 255, 0 };
+        byte[] blues = new byte[] { 0, 0, 0, (byte) 255 };
+        IndexColorModel icm = new IndexColorModel(8, 4, reds, greens, blues, 0);
+        BufferedImage image = new BufferedImage(50, 40, BufferedImage.TYPE_BYTE_INDEXED, icm);
+        for (int j = 0; j < image.getHeight(); j++) {
+            for (int i = 0; i < image.getWidth(); i++) {
+                image.getRaster().setSample(i, j, 0, (i + j) % 4);
+            }
+        }
+        List<BufferedImage> frames = writeAndRead(Arrays.asList(image), null);
+        assertEquals(1, frames.size());
+        assertImagesEqual(image, frames.get(0));
+    }
+
+    @Test
+    public void testTooManyColours() throws IOException, InvalidFormatException {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        for (int j = 0; j < image.getHeight(); j++) {
+            for (int i = 0; i < image.getWidth(); i++) {
+                image.setRGB(i, j, i < 5 ? 0 : 0xff000000 | (i << 8) | j);
+            }
+        }
+        BufferedImage readImage = writeAndRead(Arrays.asList(image), null).get(0);
+        for (int j = 0; j < image.getHeight(); j++) {
+            for (int i = 0; i < image.getWidth(); i++) {
+                int expected = image.getRGB(i, j);
+                int actual = readImage.getRGB(i, j);
+                if (i < 5) {
+                    assertEquals(0, actual >>> 24);
+                } else {
+                    /* Colours should be close to the originals */
+                    assertEquals(0xff, actual >>> 24);
+                    for (int shift = 0; shift < 24; shift += 8) {
+                        int diff = ((expected >> shift) & 0xff) - ((actual >> shift) & 0xff);
+                        assertTrue(Math.abs(diff) <= 26);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAnimation() throws IOException, InvalidFormatException {
+        List<BufferedImage> images = new ArrayList<>();
+        for (int f = 0; f < 20; f++) {
+            BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_ARGB);
+            for (int j = 0; j < image.getHeight(); j++) {
+                for (int i = 0; i < image.getWidth(); i++) {
+                    image.setRGB(i, j, i == f ? 0 : 0xff000000 | (f * 10) << 16 | (i + j));
+                }
+            }
+            images.add(image);
+        }
+        List<BufferedImage> frames = writeAndRead(images, 5);
+        assertEquals(images.size(), frames.size());
+        for (int f = 0; f < images.size(); f++) {
+            assertImagesEqual(images.get(f), frames.get(f));
+        }
+    }
+
+    @Test
+    public void testAbortWritesNoTrailer() throws IOException, InvalidFormatException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameSink frameSink = ((SimpleFormat) ImageFormat.get("image/gif")).openFrameSink(out,
+                null);
+        for (int f = 0; f < 3; f++) {
+            frameSink.addFrame(new BufferedImage(64, 48, BufferedImage.TYPE_INT_ARGB));
+        }
+        frameSink.abort();
+        byte[] written = out.toByteArray();
+        /*
+         * A complete GIF ends with a ';' trailer
+         */
+        assertTrue(written.length > 0);
+        assertFalse(written[written.length - 1] == 0x3b);
+    }
+
+    private static List<BufferedImage> writeAndRead(List<BufferedImage> images, Integer frameRate)
+            throws IOException, InvalidFormatException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((SimpleFormat) ImageFormat.get("image/gif")).writeImage(images, out, frameRate);
+
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(
+                out.toByteArray()))) {
+            reader.setInput(in);
+            List<BufferedImage> frames = new ArrayList<>();
+            int nFrames = reader.getNumImages(true);
+            for (int i = 0; i < nFrames; i++) {
+                frames.add(reader.read(i));
+            }
+            return frames;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static void assertImagesEqual(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int j = 0; j < expected.getHeight(); j++) {
+            for (int i = 0; i < expected.getWidth(); i++) {
+                int expectedRgb = expected.getRGB(i, j);
+                int actualRgb = actual.getRGB(i, j);
+                if ((expectedRgb >>> 24) == 0) {
+                    assertEquals(0, actualRgb >>> 24);
+                } else {
+                    assertEquals(expectedRgb, actualRgb);
+                }
+            }
+        }
+    }
+}
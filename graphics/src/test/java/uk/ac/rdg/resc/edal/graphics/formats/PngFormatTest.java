@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.formats;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class PngFormatTest {
+    @Test
+    public void testIndexedRoundTrip() throws IOException, InvalidFormatException {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        for (int j = 0; j < image.getHeight(); j++) {
+            for (int i = 0; i < image.getWidth(); i++) {
+                int argb;
+                if (i < 10) {
+                    /* Fully transparent */
+                    argb = 0;
+                } else if (i < 20) {
+                    /* Partially transparent */
+                    argb = 0x80ff0000;
+                } else {
+                    argb = 0xff000000 | ((i * 31 + j * 17) % 200) << 8;
+                }
+                image.setRGB(i, j, argb);
+            }
+        }
+
+        BufferedImage readImage = writeAndRead(image, "image/png");
+        /* The PNG should have been written with a palette */
+        assertTrue(readImage.getColorModel().getPixelSize() <= 8);
+        assertImagesEqual(image, readImage);
+    }
+
+    @Test
+    public void testTooManyColours() throws IOException, InvalidFormatException {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+        for (int j = 0; j < image.getHeight(); j++) {
+            for (int i = 0; i < image.getWidth(); i++) {
+                image.setRGB(i, j, 0xff000000 | (i << 8) | j);
+            }
+        }
+        assertNull(IndexedImage.fromImage(image, 256));
+        assertImagesEqual(image, writeAndRead(image, "image/png"));
+    }
+
+    @Test
+    public void testCompressionLevel() throws IOException, InvalidFormatException {
+        BufferedImage image = new BufferedImage(100, 100, BufferedImage.TYPE_INT_ARGB);
+        for (int j = 0; j < image.getHeight(); j++) {
+            for (int i = 0; i < image.getWidth(); i++) {
+                image.setRGB(i, j, (i + j) % 2 == 0 ? 0xff0000ff : 0);
+            }
+        }
+        int level = IndexedPngEncoder.getCompressionLevel();
+        try {
+            IndexedPngEncoder.setCompressionLevel(0);
+            assertImagesEqual(image, writeAndRead(image, "image/png"));
+        } finally {
+            IndexedPngEncoder.setCompressionLevel(level);
+        }
+    }
+
+    private static BufferedImage writeAndRead(BufferedImage image, String mimeType)
+            throws IOException, InvalidFormatException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((SimpleFormat) ImageFormat.get(mimeType)).writeImage(Arrays.asList(image), out, null);
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static void assertImagesEqual(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int j = 0; j < expected.getHeight(); j++) {
+            for (int i = 0; i < expected.getWidth(); i++) {
+                int expectedRgb = expected.getRGB(i, j);
+                int actualRgb = actual.getRGB(i, j);
+                if ((expectedRgb >>> 24) == 0) {
+                    assertEquals(0, actualRgb >>> 24);
+                } else {
+                    assertEquals(expectedRgb, actualRgb);
+                }
+            }
+        }
+    }
+}
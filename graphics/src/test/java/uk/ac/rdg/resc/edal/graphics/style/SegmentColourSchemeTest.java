@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.style;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+
+import org.junit.Test;
+
+public class SegmentColourSchemeTest {
+    private static final float[] TEST_VALUES = new float[] { Float.NaN, -1000f, -1f, 0f,
+            0.001f, 0.5f, 1f, 3.3f, 9.999f, 10f, 10.001f, 50f, 99.9f, 100f, 100.1f, 1e6f };
+
+    @Test
+    public void testLinearIndicesMatchColours() {
+        checkConsistency(new SegmentColourScheme(new ColourScale(0f, 100f, false), Color.black,
+                Color.white, new Color(0, true), "default", 250));
+        checkConsistency(new SegmentColourScheme(new ColourScale(0f, 100f, false), null, null,
+                null, "default", 20));
+    }
+
+    @Test
+    public void testLogarithmicIndicesMatchColours() {
+        checkConsistency(new SegmentColourScheme(new ColourScale(0.1f, 100f, true), Color.black,
+                Color.white, new Color(0, true), "default", 250));
+        checkConsistency(new SegmentColourScheme(new ColourScale(0.1f, 100f, true), null, null,
+                Color.red, "default", 7));
+    }
+
+    @Test
+    public void testDefaultPaletteIndex() {
+        ColourScheme colourScheme = new ColourScheme() {
+            @Override
+            public Color getColor(Number value) {
+                return Color.red;
+            }
+
+            @Override
+            public Float getScaleMin() {
+                return 0f;
+            }
+
+            @Override
+            public Float getScaleMax() {
+                return 1f;
+            }
+        };
+        assertNull(colourScheme.getIndexedPalette());
+        assertEquals(-1, colourScheme.getPaletteIndex(0.5f));
+        assertEquals(Color.red.getRGB(), colourScheme.getColorARGB(0.5f));
+    }
+
+    private static void checkConsistency(SegmentColourScheme colourScheme) {
+        int[] palette = colourScheme.getIndexedPalette();
+        assertNotNull(palette);
+        for (float value : TEST_VALUES) {
+            int expected = colourScheme.getColor(value).getRGB();
+            assertEquals(expected, colourScheme.getColorARGB(value));
+            assertEquals(expected, palette[colourScheme.getPaletteIndex(value)]);
+        }
+        for (int i = 0; i <= 10000; i++) {
+            float value = i * 0.01f;
+            assertEquals(colourScheme.getColor(value).getRGB(), colourScheme.getColorARGB(value));
+        }
+    }
+}
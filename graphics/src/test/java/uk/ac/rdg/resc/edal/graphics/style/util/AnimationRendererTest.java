@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.style.util;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.formats.SimpleFormat.FrameSink;
+import uk.ac.rdg.resc.edal.graphics.style.MapImage;
+import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
+
+/**
+ * Test class for {@link AnimationRenderer}
+ * 
+ * @author Guy Griffiths
+ */
+public class AnimationRendererTest {
+    private static final int N_FRAMES = 50;
+
+    @Test
+    public void testFramesWrittenInOrder() throws Exception {
+        List<PlottingDomainParams> frameParams = getFrameParams();
+        final List<Integer> writtenFrames = new ArrayList<>();
+        AnimationRenderer.renderFrames(new FrameNumberImage(-1), frameParams, null,
+                new FrameSink() {
+                    @Override
+                    public void addFrame(BufferedImage frame) {
+                        writtenFrames.add(frame.getRGB(0, 0));
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+
+                    @Override
+                    public void abort() {
+                    }
+                });
+        assertEquals(N_FRAMES, writtenFrames.size());
+        for (int i = 0; i < N_FRAMES; i++) {
+            assertEquals(i, writtenFrames.get(i).intValue() & 0xffffff);
+        }
+    }
+
+    @Test
+    public void testRenderingErrorsArePropagated() throws Exception {
+        final List<Integer> writtenFrames = new ArrayList<>();
+        try {
+            AnimationRenderer.renderFrames(new FrameNumberImage(7), getFrameParams(), null,
+                    new FrameSink() {
+                        @Override
+                        public void addFrame(BufferedImage frame) {
+                            writtenFrames.add(frame.getRGB(0, 0));
+                        }
+
+                        @Override
+                        public void close() {
+                        }
+
+                        @Override
+                        public void abort() {
+                        }
+                    });
+            fail("Expected an EdalException");
+        } catch (EdalException e) {
+            assertEquals("Cannot render frame 7", e.getMessage());
+        }
+        /* Frames before the failing one were still written */
+        assertEquals(7, writtenFrames.size());
+    }
+
+    private static List<PlottingDomainParams> getFrameParams() {
+        List<PlottingDomainParams> frameParams = new ArrayList<>();
+        DateTime start = new DateTime(2000, 1, 1, 0, 0);
+        for (int i = 0; i < N_FRAMES; i++) {
+            frameParams.add(new PlottingDomainParams(2, 2, null, null, null, null, null, start
+                    .plusDays(i)));
+        }
+        return frameParams;
+    }
+
+    /**
+     * Draws images whose first pixel is the number of days since the first
+     * frame, taking a varying amount of time to do so
+     */
+    private static final class FrameNumberImage extends MapImage {
+        private final int failingFrame;
+
+        public FrameNumberImage(int failingFrame) {
+            this.failingFrame = failingFrame;
+        }
+
+        @Override
+        public BufferedImage drawImage(PlottingDomainParams params, FeatureCatalogue catalogue)
+                throws EdalException {
+            int frame = params.getTargetT().getDayOfYear() - 1;
+            if (frame == failingFrame) {
+                throw new EdalException("Cannot render frame " + frame);
+            }
+            try {
+                Thread.sleep((frame * 7) % 5);
+            } catch (InterruptedException e) {
+                throw new EdalException("Interrupted", e);
+            }
+            BufferedImage image = new BufferedImage(params.getWidth(), params.getHeight(),
+                    BufferedImage.TYPE_INT_ARGB);
+            image.setRGB(0, 0, 0xff000000 | frame);
+            return image;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.graphics.style.util;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.util.Extents;
+
+/**
+ * Test class for {@link ValueRangeCache}
+ * 
+ * @author Guy Griffiths
+ */
+public class ValueRangeCacheTest {
+    @Test
+    public void testRangesAreStored() throws Exception {
+        TestDataset dataset = new TestDataset("stored", 0, new CountDownLatch(0));
+        ValueRangeCache cache = new ValueRangeCache(null);
+        assertEquals(Extents.newExtent(0f, 100f), cache.getValueRange(dataset.proxy(), "target"));
+        assertEquals(Extents.newExtent(0f, 100f), cache.getValueRange(dataset.proxy(), "target"));
+        assertEquals(1, dataset.reads.get());
+    }
+
+    @Test
+    public void testGetValueRangeDoesNotWaitForQueue() throws Exception {
+        /*
+         * Enough slow variables to occupy every background thread, so that
+         * the target variable stays queued behind them
+         */
+        int nSlow = Math.max(4, Runtime.getRuntime().availableProcessors()) + 1;
+        CountDownLatch release = new CountDownLatch(1);
+        final TestDataset dataset = new TestDataset("queued", nSlow, release);
+        final ValueRangeCache cache = new ValueRangeCache(null);
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            cache.updateValueRanges(dataset.proxy());
+            Future<Extent<Float>> range = caller.submit(new Callable<Extent<Float>>() {
+                @Override
+                public Extent<Float> call() throws Exception {
+                    return cache.getValueRange(dataset.proxy(), "target");
+                }
+            });
+            assertEquals(Extents.newExtent(0f, 100f), range.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            caller.shutdown();
+        }
+    }
+
+    /**
+     * A {@link Dataset} whose variables have no data. Reading any variable
+     * other than "target" blocks until a latch is released.
+     */
+    private static final class TestDataset implements InvocationHandler {
+        private final String id;
+        private final Set<String> varIds = new LinkedHashSet<>();
+        private final CountDownLatch release;
+        private final AtomicInteger reads = new AtomicInteger();
+
+        public TestDataset(String id, int nSlow, CountDownLatch release) {
+            this.id = id;
+            for (int i = 0; i < nSlow; i++) {
+                varIds.add("slow" + i);
+            }
+            varIds.add("target");
+            this.release = release;
+        }
+
+        Dataset proxy() {
+            return (Dataset) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { Dataset.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+            switch (method.getName()) {
+            case "getId":
+                return id;
+            case "getVariableIds":
+                return varIds;
+            case "getVariableMetadata":
+                return new VariableMetadata((String) args[0], new Parameter(null, null, null,
+                        null, null), new RegularGridImpl(0, 0, 10, 10, null, 10, 10), null, null);
+            case "extractMapFeatures":
+                reads.incrementAndGet();
+                if (!((Set<?>) args[0]).contains("target")) {
+                    release.await();
+                }
+                return Collections.emptyList();
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+}
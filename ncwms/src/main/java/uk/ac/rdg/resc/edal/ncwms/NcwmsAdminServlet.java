@@ -29,6 +29,7 @@
 package uk.ac.rdg.resc.edal.ncwms;
 
 import java.io.IOException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -36,6 +37,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -53,15 +56,21 @@ import org.apache.velocity.app.event.implement.EscapeHtmlReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.style.util.ColourPalette;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsCacheInfo;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsContact;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsDataset;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsDynamicService;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsServerInfo;
+import uk.ac.rdg.resc.edal.ncwms.config.NcwmsTileCacheInfo;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsVariable;
+import uk.ac.rdg.resc.edal.util.DaemonThreadFactory;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.TimeUtils;
+import uk.ac.rdg.resc.edal.wms.WmsServlet;
+import uk.ac.rdg.resc.edal.wms.util.MetricsWriter;
+import uk.ac.rdg.resc.edal.wms.util.TileMatrixSet;
 
 /**
  * An {@link HttpServlet} which deals with the admin pages of ncWMS -
@@ -76,6 +85,19 @@ public class NcwmsAdminServlet extends HttpServlet {
 
     private VelocityEngine velocityEngine;
     private NcwmsCatalogue catalogue;
+    /*
+     * Seeding the tile cache can take a long time, so is done in the
+     * background, one request at a time
+     */
+    private final ExecutorService tileSeeder = Executors
+            .newSingleThreadExecutor(new DaemonThreadFactory("tile-cache-seed-"));
+    /*
+     * Limits on the tiles which can be seeded by a single request. Each zoom
+     * level has four times as many tiles as the one before, so these stop a
+     * mistyped level from queueing an effectively endless task.
+     */
+    private static final int MAX_SEED_LEVEL = 20;
+    private static final long MAX_SEED_TILES = 100000L;
 
     public NcwmsAdminServlet() throws IOException, Exception {
         super();
@@ -107,6 +129,12 @@ public class NcwmsAdminServlet extends HttpServlet {
         }
     }
 
+    @Override
+    public void destroy() {
+        super.destroy();
+        tileSeeder.shutdownNow();
+    }
+
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
@@ -134,6 +162,8 @@ public class NcwmsAdminServlet extends HttpServlet {
             displayStatusPage(request, response);
         } else if ("/editVariables".equals(path)) {
             displayEditVariablesPage(request, response);
+        } else if ("/metrics".equals(path)) {
+            displayMetrics(request, response);
         } else {
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
         }
@@ -149,6 +179,7 @@ public class NcwmsAdminServlet extends HttpServlet {
         context.put("catalogue", catalogue);
         context.put("config", catalogue.getConfig());
         context.put("TimeUtils", TimeUtils.class);
+        context.put("seedError", request.getParameter("seedError"));
         try {
             template.merge(context, response.getWriter());
         } catch (Exception e) {
@@ -201,6 +232,24 @@ public class NcwmsAdminServlet extends HttpServlet {
         }
     }
 
+    /*
+     * Writes the collected request metrics, as JSON or (with
+     * format=prometheus) in the Prometheus text format
+     */
+    private void displayMetrics(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        String metrics;
+        if ("prometheus".equalsIgnoreCase(request.getParameter("format"))) {
+            response.setContentType(MetricsWriter.PROMETHEUS_CONTENT_TYPE);
+            metrics = MetricsWriter.toPrometheusText();
+        } else {
+            response.setContentType("application/json");
+            metrics = MetricsWriter.toJson();
+        }
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(metrics);
+    }
+
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
@@ -229,6 +278,11 @@ public class NcwmsAdminServlet extends HttpServlet {
              * Update the individual variables
              */
             updateVariables(request, response);
+        } else if ("/seedTileCache".equals(path)) {
+            /*
+             * Start rendering tiles into the tile cache
+             */
+            seedTileCache(request, response);
         } else {
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
         }
@@ -242,6 +296,7 @@ public class NcwmsAdminServlet extends HttpServlet {
         NcwmsContact contact = catalogue.getConfig().getContactInfo();
         NcwmsServerInfo server = catalogue.getConfig().getServerInfo();
         NcwmsCacheInfo cache = catalogue.getConfig().getCacheSettings();
+        NcwmsTileCacheInfo tileCache = catalogue.getConfig().getTileCacheSettings();
 
         contact.setName(request.getParameter("contact.name"));
         contact.setOrganisation(request.getParameter("contact.org"));
@@ -257,6 +312,10 @@ public class NcwmsAdminServlet extends HttpServlet {
         server.setMaxImageHeight(Integer.parseInt(request.getParameter("server.maximageheight")));
         server.setAllowFeatureInfo(request.getParameter("server.allowfeatureinfo") != null);
         server.setAllowGlobalCapabilities(request.getParameter("server.allowglobalcapabilities") != null);
+        catalogue.getConfig().setDatasetLoaderThreads(
+                Integer.parseInt(request.getParameter("server.datasetloaderthreads")));
+        catalogue.getConfig().setCollectMetrics(
+                request.getParameter("server.collectmetrics") != null);
 
         /*
          * Save the dataset information, checking for removals First look
@@ -454,6 +513,15 @@ public class NcwmsAdminServlet extends HttpServlet {
          */
         catalogue.setCache(cache);
 
+        /* Set the properties of the tile cache */
+        tileCache.setEnabled(request.getParameter("tileCache.enable") != null);
+        tileCache.setInMemorySizeMB(Integer.parseInt(request
+                .getParameter("tileCache.inMemorySizeMB")));
+        tileCache.setOnDiskSizeMB(Integer.parseInt(request
+                .getParameter("tileCache.onDiskSizeMB")));
+        catalogue.updateTileCache();
+        catalogue.metadataUpdated();
+
         /* Save the updated config information to disk */
         try {
             catalogue.getConfig().save();
@@ -515,6 +583,7 @@ public class NcwmsAdminServlet extends HttpServlet {
                 var.setScaling(request.getParameter(variableId + ".scaling"));
                 var.setDisabled(request.getParameter(variableId + ".disabled") != null);
             }
+            catalogue.datasetMetadataUpdated(dataset.getId());
             /* Saves the new configuration information to disk */
             try {
                 catalogue.getConfig().save();
@@ -540,4 +609,133 @@ public class NcwmsAdminServlet extends HttpServlet {
         }
     }
 
+    private void seedTileCache(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException {
+        Object servlet = getServletContext().getAttribute("NcwmsServlet");
+        if (!(servlet instanceof WmsServlet)) {
+            throw new ServletException("The WMS servlet is not available to seed the tile cache");
+        }
+        final WmsServlet wmsServlet = (WmsServlet) servlet;
+
+        final Map<String, String> mapParams;
+        final TileMatrixSet tileMatrixSet;
+        final int minLevel;
+        final int maxLevel;
+        try {
+            mapParams = getSeedMapParams(request);
+            tileMatrixSet = "GoogleMapsCompatible".equals(request
+                    .getParameter("seed.tileMatrixSet")) ? TileMatrixSet.GOOGLE_MAPS_COMPATIBLE
+                    : TileMatrixSet.WORLD_CRS84_QUAD;
+            minLevel = getSeedLevel(request, "seed.minLevel");
+            maxLevel = getSeedLevel(request, "seed.maxLevel");
+            if (minLevel > maxLevel) {
+                throw new IllegalArgumentException("The first zoom level (" + minLevel
+                        + ") must not be greater than the last (" + maxLevel + ")");
+            }
+            long nTiles = 0L;
+            for (int level = minLevel; level <= maxLevel; level++) {
+                nTiles += (long) tileMatrixSet.getRows(level) * tileMatrixSet.getColumns(level);
+            }
+            if (nTiles > MAX_SEED_TILES) {
+                throw new IllegalArgumentException("Zoom levels " + minLevel + " to " + maxLevel
+                        + " contain " + nTiles + " tiles, but at most " + MAX_SEED_TILES
+                        + " can be seeded at once");
+            }
+        } catch (IllegalArgumentException e) {
+            /*
+             * Show the problem on the admin page
+             */
+            try {
+                response.sendRedirect("./?seedError=" + URLEncoder.encode(e.getMessage(), "UTF-8"));
+            } catch (IOException ioe) {
+                log.error("Problem redirecting user after invalid tile cache seeding request");
+            }
+            return;
+        }
+
+        tileSeeder.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int nRendered = wmsServlet.seedTileCache(mapParams, tileMatrixSet, minLevel,
+                            maxLevel);
+                    log.info("Seeded " + nRendered + " tiles of " + mapParams.get("LAYERS")
+                            + " into the tile cache");
+                } catch (EdalException | RuntimeException e) {
+                    log.error("Problem seeding the tile cache with " + mapParams.get("LAYERS"), e);
+                }
+            }
+        });
+
+        /*
+         * This causes a client-side redirect, meaning that the user can safely
+         * press refresh in their browser without seeding the tiles again.
+         */
+        try {
+            response.sendRedirect("");
+        } catch (IOException e) {
+            /*
+             * This error isn't really important
+             */
+            log.error("Problem redirecting user after seeding tile cache");
+        }
+    }
+
+    /*
+     * Gets the GetMap parameters which are common to every tile to be seeded
+     */
+    private static Map<String, String> getSeedMapParams(HttpServletRequest request) {
+        String layers = request.getParameter("seed.layers");
+        if (StringUtils.isBlank(layers)) {
+            throw new IllegalArgumentException(
+                    "Must supply the \"seed.layers\" parameter to seed the tile cache");
+        }
+        Map<String, String> mapParams = new HashMap<String, String>();
+        /*
+         * Any additional parameters (e.g. TRANSPARENT) must match those of the
+         * requests which will use the tiles
+         */
+        String otherParams = request.getParameter("seed.params");
+        if (!StringUtils.isBlank(otherParams)) {
+            for (String param : otherParams.trim().split("&")) {
+                String[] keyValue = param.split("=", 2);
+                if (keyValue.length != 2) {
+                    throw new IllegalArgumentException("Invalid parameter for seeding: " + param);
+                }
+                mapParams.put(keyValue[0].trim(), keyValue[1].trim());
+            }
+        }
+        mapParams.put("LAYERS", layers.trim());
+        mapParams.put("STYLES", StringUtils.defaultString(request.getParameter("seed.styles"))
+                .trim());
+        mapParams.put("FORMAT", StringUtils.defaultIfEmpty(request.getParameter("seed.format"),
+                "image/png").trim());
+        if (!StringUtils.isBlank(request.getParameter("seed.time"))) {
+            mapParams.put("TIME", request.getParameter("seed.time").trim());
+        }
+        if (!StringUtils.isBlank(request.getParameter("seed.elevation"))) {
+            mapParams.put("ELEVATION", request.getParameter("seed.elevation").trim());
+        }
+        return mapParams;
+    }
+
+    /*
+     * Gets a zoom level to seed, checking that it is within the allowed range
+     */
+    private static int getSeedLevel(HttpServletRequest request, String paramName) {
+        String value = StringUtils.defaultString(request.getParameter(paramName)).trim();
+        int level;
+        try {
+            level = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Zoom levels must be whole numbers (\"" + value
+                    + "\" was supplied)");
+        }
+        if (level < 0 || level > MAX_SEED_LEVEL) {
+            throw new IllegalArgumentException("Zoom levels must be between 0 and "
+                    + MAX_SEED_LEVEL + " (" + level + " was supplied)");
+        }
+        return level;
+    }
+
 }
@@ -29,6 +29,7 @@
 package uk.ac.rdg.resc.edal.ncwms;
 
 import java.awt.Color;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -38,6 +39,7 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.JAXBException;
 
@@ -55,25 +57,39 @@ import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.style.util.ColourPalette;
+import uk.ac.rdg.resc.edal.graphics.style.util.ValueRangeCache;
+import uk.ac.rdg.resc.edal.grid.LookUpTableGrid;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsConfig;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsConfig.DatasetStorage;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsDataset;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsDynamicService;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsVariable;
+import uk.ac.rdg.resc.edal.util.HashUtils;
+import uk.ac.rdg.resc.edal.util.cdm.CdmUtils;
 import uk.ac.rdg.resc.edal.wms.WmsCatalogue;
 import uk.ac.rdg.resc.edal.wms.WmsLayerMetadata;
 import uk.ac.rdg.resc.edal.wms.exceptions.EdalLayerNotFoundException;
 import uk.ac.rdg.resc.edal.wms.util.ContactInfo;
 import uk.ac.rdg.resc.edal.wms.util.ServerInfo;
+import uk.ac.rdg.resc.edal.wms.util.TileCache;
 
 public class NcwmsCatalogue extends WmsCatalogue implements DatasetStorage {
     private static final String DYNAMIC_DATASET_CACHE_NAME = "dynamicDatasetCache";
+    private static final String VALUE_RANGE_CACHE_FILE = "valueRanges.cache";
+    private static final String LUT_DIRECTORY = "lutCache";
+    private static final String TILE_CACHE_DIRECTORY = "tileCache";
 
     protected NcwmsConfig config;
     protected Map<String, Dataset> datasets;
     protected Map<String, WmsLayerMetadata> layerMetadata;
 
-    private DateTime lastUpdateTime = new DateTime();
+    private volatile DateTime lastUpdateTime = new DateTime();
+    /*
+     * The last update time of each loaded dataset, used to decide which parts
+     * of cached Capabilities documents are still current
+     */
+    private final Map<String, DateTime> datasetUpdateTimes = new ConcurrentHashMap<>();
 
     public NcwmsCatalogue(NcwmsConfig config) throws IOException {
         /*
@@ -83,6 +99,29 @@ public class NcwmsCatalogue extends WmsCatalogue implements DatasetStorage {
         layerMetadata = new HashMap<String, WmsLayerMetadata>();
 
         this.config = config;
+
+        /*
+         * Store estimated value ranges alongside the config, so that they
+         * don't need recalculating on restart
+         */
+        File configDir = config.getConfigDirectory();
+        if (configDir != null) {
+            setValueRangeCache(new ValueRangeCache(new File(configDir, VALUE_RANGE_CACHE_FILE)));
+            /*
+             * Likewise look-up tables for curvilinear grids, which can take a
+             * long time to generate
+             */
+            LookUpTableGrid.setLutDirectory(new File(configDir, LUT_DIRECTORY));
+        }
+
+        /*
+         * The tile cache must be set up before any datasets are loaded, so
+         * that their versions are set
+         */
+        updateTileCache();
+
+        RequestMetrics.setEnabled(config.getServerInfo().isCollectMetrics());
+
         this.config.setDatasetLoadedHandler(this);
         this.config.loadDatasets();
 
@@ -130,6 +169,13 @@ public class NcwmsCatalogue extends WmsCatalogue implements DatasetStorage {
      */
     public void removeDataset(String id) {
         datasets.remove(id);
+        datasetUpdateTimes.remove(id);
+        TileCache tileCache = getTileCache();
+        if (tileCache != null) {
+            tileCache.removeDataset(id);
+        }
+        lastUpdateTime = getNewUpdateTime();
+        getValueRangeCache().removeDataset(id);
         config.removeDataset(config.getDatasetInfo(id));
     }
 
@@ -146,7 +192,15 @@ public class NcwmsCatalogue extends WmsCatalogue implements DatasetStorage {
         Dataset dataset = datasets.get(oldId);
         datasets.remove(oldId);
         datasets.put(newId, dataset);
+        datasetUpdateTimes.remove(oldId);
+        lastUpdateTime = getNewUpdateTime();
+        datasetUpdateTimes.put(newId, lastUpdateTime);
         config.changeDatasetId(config.getDatasetInfo(oldId), newId);
+        TileCache tileCache = getTileCache();
+        if (tileCache != null) {
+            tileCache.removeDataset(oldId);
+            tileCache.setDatasetVersion(newId, getTileVersion(config.getDatasetInfo(newId)));
+        }
     }
 
     @Override
@@ -157,6 +211,13 @@ public class NcwmsCatalogue extends WmsCatalogue implements DatasetStorage {
          */
         datasets.put(dataset.getId(), dataset);
 
+        /*
+         * Calculate value ranges for any variables which don't have up-to-date
+         * ones in the background, so that auto-scaled GetMap requests don't
+         * need to read data to do so.
+         */
+        getValueRangeCache().updateValueRanges(dataset);
+
         /*
          * Re-sort the datasets map according to the titles of the datasets, so
          * that they appear in the menu in this order.
@@ -183,7 +244,18 @@ public class NcwmsCatalogue extends WmsCatalogue implements DatasetStorage {
                     ncwmsVariable.getId());
             layerMetadata.put(layerName, ncwmsVariable);
         }
-        lastUpdateTime = new DateTime();
+        lastUpdateTime = getNewUpdateTime();
+        datasetUpdateTimes.put(dataset.getId(), lastUpdateTime);
+
+        /*
+         * Cached tiles are kept if neither the data nor the default styles
+         * have changed since they were rendered
+         */
+        TileCache tileCache = getTileCache();
+        if (tileCache != null) {
+            tileCache.setDatasetVersion(dataset.getId(),
+                    getTileVersion(config.getDatasetInfo(dataset.getId())));
+        }
 
         /*
          * The config has changed, so we save it.
@@ -217,6 +289,123 @@ public class NcwmsCatalogue extends WmsCatalogue implements DatasetStorage {
         return lastUpdateTime;
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * Dynamic datasets are not tracked, so <code>null</code> is returned for
+     * them.
+     */
+    @Override
+    public DateTime getDatasetLastUpdate(String datasetId) {
+        return datasetUpdateTimes.get(datasetId);
+    }
+
+    /**
+     * Records that the server-wide metadata (e.g. the server or dataset
+     * titles) has been changed, so that it is reflected in future
+     * Capabilities documents
+     */
+    public synchronized void metadataUpdated() {
+        lastUpdateTime = getNewUpdateTime();
+        for (String datasetId : datasetUpdateTimes.keySet()) {
+            datasetUpdateTimes.put(datasetId, lastUpdateTime);
+        }
+    }
+
+    /**
+     * Records that the metadata of a single dataset (e.g. its variable titles)
+     * has been changed, so that it is reflected in future Capabilities
+     * documents
+     * 
+     * @param datasetId
+     *            The ID of the dataset which has changed
+     */
+    public synchronized void datasetMetadataUpdated(String datasetId) {
+        lastUpdateTime = getNewUpdateTime();
+        if (datasetUpdateTimes.containsKey(datasetId)) {
+            datasetUpdateTimes.put(datasetId, lastUpdateTime);
+            /*
+             * Default styles are part of the version of cached tiles
+             */
+            TileCache tileCache = getTileCache();
+            if (tileCache != null) {
+                tileCache.setDatasetVersion(datasetId,
+                        getTileVersion(config.getDatasetInfo(datasetId)));
+            }
+        }
+    }
+
+    /**
+     * Applies the tile cache settings from the config. Tiles of any datasets
+     * which have already been loaded will be cached from now on.
+     */
+    public synchronized void updateTileCache() {
+        File configDir = config.getConfigDirectory();
+        setTileCache(config.getTileCacheSettings(), configDir == null ? null : new File(
+                configDir, TILE_CACHE_DIRECTORY));
+        TileCache tileCache = getTileCache();
+        if (tileCache != null) {
+            for (String datasetId : datasets.keySet()) {
+                tileCache.setDatasetVersion(datasetId,
+                        getTileVersion(config.getDatasetInfo(datasetId)));
+            }
+        }
+    }
+
+    /*
+     * Identifies the data and default styles of a dataset, so that its cached
+     * tiles are discarded whenever either changes. Changes to the data can
+     * only be detected cheaply for local data files (using their sizes and
+     * modification times), so tiles of datasets at any other location are not
+     * cached. Nor are NcML files, since the files they refer to can change
+     * without the NcML changing.
+     */
+    private static String getTileVersion(NcwmsDataset datasetInfo) {
+        if (datasetInfo == null || datasetInfo.getLocation() == null
+                || !new File(datasetInfo.getLocation()).isAbsolute()) {
+            return null;
+        }
+        List<File> files = CdmUtils.expandGlobExpression(datasetInfo.getLocation());
+        if (files.isEmpty()) {
+            return null;
+        }
+        for (File file : files) {
+            if (CdmUtils.isNcmlAggregation(file.getName())) {
+                return null;
+            }
+        }
+        StringBuilder version = new StringBuilder();
+        version.append(datasetInfo.getLocation()).append('\n');
+        version.append(datasetInfo.getDataReaderClass()).append('\n');
+        for (NcwmsVariable variable : datasetInfo.getVariables()) {
+            version.append(variable.getId()).append(',').append(variable.getColorScaleRange())
+                    .append(',').append(variable.getPalette()).append(',')
+                    .append(variable.getBelowMinColour()).append(',')
+                    .append(variable.getAboveMaxColour()).append(',')
+                    .append(variable.getNoDataColour()).append(',')
+                    .append(variable.getNumColorBands()).append(',')
+                    .append(variable.isLogScaling()).append('\n');
+        }
+        for (File file : files) {
+            version.append(file.getPath()).append(',').append(file.lastModified()).append(',')
+                    .append(file.length()).append('\n');
+        }
+
+        return HashUtils.sha1Hex(version.toString());
+    }
+
+    /*
+     * Update times are used to identify versions of cached documents, so two
+     * updates must never share the same time
+     */
+    private DateTime getNewUpdateTime() {
+        DateTime now = new DateTime();
+        if (!now.isAfter(lastUpdateTime)) {
+            now = lastUpdateTime.plusMillis(1);
+        }
+        return now;
+    }
+
     @Override
     public Collection<Dataset> getAllDatasets() {
         /*
@@ -245,6 +434,8 @@ public class NcwmsCatalogue extends WmsCatalogue implements DatasetStorage {
 
     @Override
     public Dataset getDatasetFromId(String datasetId) {
+        /* Requested datasets get priority when they next need loading */
+        config.datasetRequested(datasetId);
         if (datasets.containsKey(datasetId)) {
             return datasets.get(datasetId);
         } else {
@@ -37,6 +37,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsConfig;
 import uk.ac.rdg.resc.edal.wms.RequestParams;
 import uk.ac.rdg.resc.edal.wms.WmsServlet;
@@ -57,6 +58,7 @@ public class NcwmsServlet extends WmsServlet implements Servlet {
     @Override
     public void destroy() {
         super.destroy();
+        RequestMetrics.unregisterMXBean();
         NcwmsConfig.shutdown();
     }
 
@@ -70,6 +72,11 @@ public class NcwmsServlet extends WmsServlet implements Servlet {
         if (config instanceof NcwmsCatalogue) {
             NcwmsCatalogue ncwmsCatalogue = (NcwmsCatalogue) config;
             setCatalogue(ncwmsCatalogue);
+            RequestMetrics.registerMXBean();
+            /*
+             * The admin servlet uses this to seed the tile cache
+             */
+            servletConfig.getServletContext().setAttribute("NcwmsServlet", this);
         } else {
             throw new ServletException(
                     "ncWMS configuration object is incorrect type.  The \"NcwmsConfig\" attribute of the ServletContext has been incorrectly set.");
@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.ncwms.config;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.ncwms.config.NcwmsConfig.DatasetStorage;
+import uk.ac.rdg.resc.edal.util.DaemonThreadFactory;
+
+/**
+ * Schedules the background (re)loading of {@link NcwmsDataset}s.
+ * 
+ * A single timer thread checks once a second which datasets are due to be
+ * refreshed, and queues them to be loaded by a fixed-size pool of threads.
+ * When more datasets are due than there are threads to load them, datasets
+ * which have recently been requested are loaded first, followed by the
+ * smallest datasets, so that as many datasets as possible become available
+ * quickly.
+ * 
+ * @author Guy Griffiths
+ */
+final class DatasetLoader {
+    private static final Logger log = LoggerFactory.getLogger(DatasetLoader.class);
+
+    /** How often we check whether datasets need refreshing */
+    private static final long TICK_MILLIS = 1000L;
+    /**
+     * How long after a request for a dataset it is given priority when
+     * loading
+     */
+    private static final long RECENT_REQUEST_MILLIS = 10 * 60 * 1000L;
+
+    private final DatasetStorage datasetStorage;
+    private final ScheduledExecutorService timer;
+    private final ThreadPoolExecutor loaders;
+
+    /** Maps dataset IDs to the datasets which are scheduled for loading */
+    private final Map<String, NcwmsDataset> datasets = new ConcurrentHashMap<>();
+    /** IDs of datasets which are currently queued or being loaded */
+    private final Set<String> pending = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /** The loads currently in progress, so that they can be cancelled */
+    private final Map<NcwmsDataset, RunningLoad> running = new ConcurrentHashMap<>();
+    /** The time at which each dataset was last requested */
+    private final Map<String, Long> lastRequested = new ConcurrentHashMap<>();
+    /** Used to load equal-priority datasets in the order they were queued */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Creates a new {@link DatasetLoader} and starts its timer.
+     * 
+     * @param datasetStorage
+     *            The {@link DatasetStorage} to pass loaded datasets to
+     * @param nThreads
+     *            The number of datasets which may be loaded at once
+     */
+    DatasetLoader(DatasetStorage datasetStorage, int nThreads) {
+        this.datasetStorage = datasetStorage;
+        nThreads = Math.max(1, nThreads);
+        loaders = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new DaemonThreadFactory("load-metadata-"));
+        timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+                "dataset-refresh-timer-"));
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                /*
+                 * Any exception would stop all future refreshes, so catch
+                 * everything
+                 */
+                try {
+                    queueDueDatasets();
+                } catch (Throwable e) {
+                    log.error("Problem checking datasets for refresh", e);
+                }
+            }
+        }, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a dataset to be loaded, and then refreshed whenever required.
+     */
+    void add(NcwmsDataset dataset) {
+        datasets.put(dataset.getId(), dataset);
+        queueIfDue(dataset);
+    }
+
+    /**
+     * Stops loading the dataset with the given ID, interrupting any load
+     * which is currently in progress.
+     */
+    void remove(String datasetId) {
+        NcwmsDataset dataset = datasets.remove(datasetId);
+        lastRequested.remove(datasetId);
+        if (dataset != null) {
+            /*
+             * Loads are tracked by dataset rather than ID, so that we can't
+             * interrupt the load of a different dataset with the same ID
+             */
+            RunningLoad load = running.get(dataset);
+            if (load != null) {
+                load.cancel();
+            }
+        }
+    }
+
+    /**
+     * Updates the ID under which a dataset is scheduled. This should be
+     * called before the dataset itself has its ID changed.
+     */
+    void changeId(String oldId, String newId) {
+        NcwmsDataset dataset = datasets.remove(oldId);
+        if (dataset != null) {
+            datasets.put(newId, dataset);
+        }
+        Long requested = lastRequested.remove(oldId);
+        if (requested != null) {
+            lastRequested.put(newId, requested);
+        }
+    }
+
+    /**
+     * Records that a dataset has been requested, so that it will be given
+     * priority the next time it needs loading.
+     */
+    void datasetRequested(String datasetId) {
+        if (datasets.containsKey(datasetId)) {
+            lastRequested.put(datasetId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Sets the number of datasets which may be loaded at once
+     */
+    void setThreads(int nThreads) {
+        nThreads = Math.max(1, nThreads);
+        /*
+         * The core pool size may never exceed the maximum, so the order we set
+         * them in depends on whether we are growing or shrinking
+         */
+        if (nThreads > loaders.getMaximumPoolSize()) {
+            loaders.setMaximumPoolSize(nThreads);
+            loaders.setCorePoolSize(nThreads);
+        } else {
+            loaders.setCorePoolSize(nThreads);
+            loaders.setMaximumPoolSize(nThreads);
+        }
+    }
+
+    /**
+     * Stops the timer and all loads which are in progress
+     */
+    void shutdown() {
+        timer.shutdownNow();
+        loaders.shutdownNow();
+    }
+
+    private void queueDueDatasets() {
+        for (NcwmsDataset dataset : datasets.values()) {
+            queueIfDue(dataset);
+        }
+    }
+
+    private void queueIfDue(NcwmsDataset dataset) {
+        String id = dataset.getId();
+        if (!dataset.needsRefresh() || !pending.add(id)) {
+            return;
+        }
+        Long requested = lastRequested.get(id);
+        long now = System.currentTimeMillis();
+        if (requested != null && now - requested > RECENT_REQUEST_MILLIS) {
+            requested = null;
+        }
+        try {
+            loaders.execute(new LoadTask(dataset, requested, estimateSize(dataset.getLocation()),
+                    sequence.getAndIncrement()));
+        } catch (RuntimeException e) {
+            /* We are shutting down */
+            pending.remove(id);
+        }
+    }
+
+    /**
+     * Estimates the size of a dataset so that smaller datasets can be loaded
+     * first. Only single local files can be sized cheaply: anything else is
+     * treated as larger than any file.
+     */
+    private static long estimateSize(String location) {
+        if (location != null) {
+            File file = new File(location);
+            if (file.isFile()) {
+                return file.length();
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Loads a single dataset. The priority of a load is fixed at the time it
+     * is queued.
+     */
+    private final class LoadTask implements Runnable, Comparable<LoadTask> {
+        private final NcwmsDataset dataset;
+        private final String id;
+        /* The time of the most recent request, or null if not recent */
+        private final Long requested;
+        private final long size;
+        private final long sequenceNumber;
+
+        private LoadTask(NcwmsDataset dataset, Long requested, long size, long sequenceNumber) {
+            this.dataset = dataset;
+            this.id = dataset.getId();
+            this.requested = requested;
+            this.size = size;
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        @Override
+        public void run() {
+            try {
+                /*
+                 * The dataset may have been removed (or replaced) whilst it was
+                 * waiting to be loaded
+                 */
+                if (datasets.get(id) != dataset) {
+                    return;
+                }
+                RunningLoad load = new RunningLoad();
+                running.put(dataset, load);
+                try {
+                    /*
+                     * This will check to see if the metadata need reloading,
+                     * then go ahead if so.
+                     */
+                    dataset.refresh(datasetStorage);
+                } finally {
+                    running.remove(dataset);
+                    load.finish();
+                }
+            } finally {
+                pending.remove(id);
+            }
+        }
+
+        @Override
+        public int compareTo(LoadTask other) {
+            /* Recently-requested datasets first, most recent first */
+            if (requested != null || other.requested != null) {
+                if (other.requested == null) {
+                    return -1;
+                } else if (requested == null) {
+                    return 1;
+                } else if (!requested.equals(other.requested)) {
+                    return requested > other.requested ? -1 : 1;
+                }
+            }
+            /* Then smaller datasets first */
+            if (size != other.size) {
+                return size < other.size ? -1 : 1;
+            }
+            /* Then in the order they were queued */
+            return sequenceNumber < other.sequenceNumber ? -1
+                    : (sequenceNumber == other.sequenceNumber ? 0 : 1);
+        }
+    }
+
+    /**
+     * A load which is in progress on a particular thread. Once the load has
+     * finished, cancelling it has no effect, so the thread can't be
+     * interrupted whilst it is loading a different dataset.
+     */
+    private static final class RunningLoad {
+        private final Thread thread = Thread.currentThread();
+        private boolean finished = false;
+
+        private synchronized void cancel() {
+            if (!finished) {
+                thread.interrupt();
+            }
+        }
+
+        private synchronized void finish() {
+            finished = true;
+            /* Clear any interrupt from a cancellation we didn't respond to */
+            Thread.interrupted();
+        }
+    }
+}
@@ -34,14 +34,11 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -60,6 +57,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.graphics.style.util.ValueRangeCache;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
 import uk.ac.rdg.resc.edal.wms.util.WmsUtils;
 
 /**
@@ -71,7 +70,7 @@ import uk.ac.rdg.resc.edal.wms.util.WmsUtils;
  * @author Guy Griffiths
  */
 @XmlType(name = "config", propOrder = { "datasets", "dynamicServices", "contact", "serverInfo",
-        "cacheInfo" })
+        "cacheInfo", "tileCacheInfo" })
 @XmlRootElement(name = "config")
 public class NcwmsConfig {
     private static final Logger log = LoggerFactory.getLogger(NcwmsConfig.class);
@@ -86,6 +85,8 @@ public class NcwmsConfig {
     private NcwmsServerInfo serverInfo = new NcwmsServerInfo();
     @XmlElement(name = "cache")
     private NcwmsCacheInfo cacheInfo = new NcwmsCacheInfo();
+    @XmlElement(name = "tileCache")
+    private NcwmsTileCacheInfo tileCacheInfo = new NcwmsTileCacheInfo();
     @XmlTransient
     private DatasetStorage datasetStorage = null;
     @XmlTransient
@@ -93,13 +94,11 @@ public class NcwmsConfig {
     @XmlTransient
     private File configBackup;
 
-    /** The scheduler that will handle the background (re)loading of datasets */
-    private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
-    /**
-     * Contains handles to background threads that can be used to cancel
-     * reloading of datasets. Maps dataset IDs to Future objects
-     */
-    private static Map<String, ScheduledFuture<?>> futures = new HashMap<String, ScheduledFuture<?>>();
+    /** Handles the background (re)loading of datasets */
+    @XmlTransient
+    private volatile DatasetLoader datasetLoader = null;
+    /** All active {@link DatasetLoader}s, so that they can be shut down */
+    private static final List<DatasetLoader> loaders = new ArrayList<DatasetLoader>();
 
     /*
      * Used for JAX-B
@@ -129,16 +128,13 @@ public class NcwmsConfig {
         this.datasetStorage = datasetStorage;
     }
 
-    public void loadDatasets() {
+    public synchronized void loadDatasets() {
         /*
-         * Loop through all NcwmsDatasets and load Datasets from each.
+         * Schedule all NcwmsDatasets to be loaded in the background.
          * 
-         * Do this in a manner which means that they are "reloaded" every second
-         * (and checked as to whether they need to actually have anything done
-         * to them)
-         * 
-         * Also during the load, return WmsLayerMetadatas (these are just the
-         * NcwmsVariables...)
+         * The loader checks every second whether each dataset actually needs
+         * anything doing to it, and loads those which do on a pool of threads
+         * whose size is set in the server settings.
          */
         for (final NcwmsDataset dataset : datasets.values()) {
             scheduleReload(dataset);
@@ -150,23 +146,51 @@ public class NcwmsConfig {
             throw new IllegalStateException(
                     "You need to set something to handle loaded datasets before loading them.");
         }
-        Runnable reloader = new Runnable() {
-            @Override
-            public void run() {
-                /*
-                 * This will check to see if the metadata need reloading, then
-                 * go ahead if so.
-                 */
-                dataset.refresh(datasetStorage);
+        if (datasetLoader == null) {
+            datasetLoader = new DatasetLoader(datasetStorage, serverInfo.getDatasetLoaderThreads());
+            synchronized (loaders) {
+                loaders.add(datasetLoader);
             }
-        };
-        /*
-         * Run the task immediately, and then redo it every 1s
-         */
-        ScheduledFuture<?> future = scheduler.scheduleWithFixedDelay(reloader, 0, 1,
-                TimeUnit.SECONDS);
-        /* We need to keep a handle to the Future object so we can cancel it */
-        futures.put(dataset.getId(), future);
+        }
+        datasetLoader.add(dataset);
+    }
+
+    /**
+     * Records that a dataset has been requested, so that it is given priority
+     * the next time it needs (re)loading.
+     * 
+     * @param datasetId
+     *            The ID of the requested dataset
+     */
+    public void datasetRequested(String datasetId) {
+        DatasetLoader loader = datasetLoader;
+        if (loader != null) {
+            loader.datasetRequested(datasetId);
+        }
+    }
+
+    /**
+     * Sets the maximum number of datasets which will be loaded at once.
+     * 
+     * @param datasetLoaderThreads
+     *            The number of threads used for loading datasets
+     */
+    public synchronized void setDatasetLoaderThreads(int datasetLoaderThreads) {
+        serverInfo.setDatasetLoaderThreads(datasetLoaderThreads);
+        if (datasetLoader != null) {
+            datasetLoader.setThreads(serverInfo.getDatasetLoaderThreads());
+        }
+    }
+
+    /**
+     * Sets whether timings and other metrics of requests are collected.
+     * 
+     * @param collectMetrics
+     *            Whether to collect metrics
+     */
+    public synchronized void setCollectMetrics(boolean collectMetrics) {
+        serverInfo.setCollectMetrics(collectMetrics);
+        RequestMetrics.setEnabled(collectMetrics);
     }
 
     public NcwmsContact getContactInfo() {
@@ -181,6 +205,10 @@ public class NcwmsConfig {
         return cacheInfo;
     }
 
+    public NcwmsTileCacheInfo getTileCacheSettings() {
+        return tileCacheInfo;
+    }
+
     public NcwmsDataset getDatasetInfo(String datasetId) {
         return datasets.get(datasetId);
     }
@@ -233,17 +261,19 @@ public class NcwmsConfig {
 
     public synchronized void removeDataset(NcwmsDataset dataset) {
         datasets.remove(dataset.getId());
-        futures.get(dataset.getId()).cancel(true);
-        futures.remove(dataset.getId());
+        if (datasetLoader != null) {
+            datasetLoader.remove(dataset.getId());
+        }
     }
 
     public synchronized void changeDatasetId(NcwmsDataset dataset, String newId) {
         datasets.remove(dataset.getId());
-        ScheduledFuture<?> removedScheduler = futures.remove(dataset.getId());
+        if (datasetLoader != null) {
+            datasetLoader.changeId(dataset.getId(), newId);
+        }
         dataset.setId(newId);
 
         datasets.put(newId, dataset);
-        futures.put(dataset.getId(), removedScheduler);
     }
 
     public synchronized void addDynamicService(NcwmsDynamicService dynamicService) {
@@ -286,8 +316,24 @@ public class NcwmsConfig {
         serialise(this, new FileWriter(configFile));
     }
 
+    /**
+     * @return The directory containing the config file, or <code>null</code>
+     *         if no location has been set for the config file
+     */
+    public File getConfigDirectory() {
+        if (configFile == null) {
+            return null;
+        }
+        return configFile.getAbsoluteFile().getParentFile();
+    }
+
     public static void shutdown() {
-        scheduler.shutdownNow();
+        synchronized (loaders) {
+            for (DatasetLoader loader : loaders) {
+                loader.shutdown();
+            }
+            loaders.clear();
+        }
     }
 
     @Override
@@ -316,6 +362,12 @@ public class NcwmsConfig {
 
     public interface DatasetStorage {
         public void datasetLoaded(Dataset dataset, Collection<NcwmsVariable> variables);
+
+        /**
+         * @return The {@link ValueRangeCache} to use when estimating default
+         *         colour scale ranges for new variables
+         */
+        public ValueRangeCache getValueRangeCache();
     }
 
     public static void serialise(NcwmsConfig config, Writer writer) throws JAXBException {
@@ -54,7 +54,6 @@ import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.graphics.style.util.ColourPalette;
-import uk.ac.rdg.resc.edal.graphics.style.util.GraphicsUtils;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.ncwms.config.NcwmsConfig.DatasetStorage;
 import uk.ac.rdg.resc.edal.wms.WmsLayerMetadata;
@@ -136,10 +135,11 @@ public class NcwmsDataset {
      */
 
     /*
-     * State of this dataset.
+     * State of this dataset. This is checked from the thread which schedules
+     * refreshes, and is always written after the other state information.
      */
     @XmlTransient
-    private DatasetState state = DatasetState.NEEDS_REFRESH;
+    private volatile DatasetState state = DatasetState.NEEDS_REFRESH;
     /* Set if there is an error loading the dataset */
     @XmlTransient
     private Exception err;
@@ -206,12 +206,12 @@ public class NcwmsDataset {
              */
             err = null;
             numErrorsInARow = 0;
-            state = DatasetState.READY;
             lastSuccessfulUpdateTime = new DateTime();
+            state = DatasetState.READY;
         } catch (Exception e) {
-            state = DatasetState.ERROR;
             numErrorsInARow++;
             lastFailedUpdateTime = new DateTime();
+            state = DatasetState.ERROR;
             /*
              * Reduce logging volume by only logging the error if it's a new
              * type of exception.
@@ -259,13 +259,25 @@ public class NcwmsDataset {
         /*
          * Now create any new variable objects which are needed.
          */
+        List<String> newVariableIds = new ArrayList<String>();
+        for (String varId : variableIds) {
+            if (!variables.containsKey(varId)) {
+                newVariableIds.add(varId);
+            }
+        }
+        /*
+         * Estimating the value ranges requires reading data, so we do it for
+         * all new variables in parallel
+         */
+        Map<String, Extent<Float>> colorScaleRanges = datasetStorage.getValueRangeCache()
+                .getValueRanges(dataset, newVariableIds);
         for (String varId : variableIds) {
             if (!variables.containsKey(varId)) {
                 loadingProgress.add("Creating default metadata for variable: " + varId);
                 /*
                  * Create a new variable object with default values.
                  */
-                Extent<Float> colorScaleRange = GraphicsUtils.estimateValueRange(dataset, varId);
+                Extent<Float> colorScaleRange = colorScaleRanges.get(varId);
                 VariableMetadata variableMetadata = dataset.getVariableMetadata(varId);
                 NcwmsVariable variable = new NcwmsVariable(varId, varId, variableMetadata
                         .getParameter().getDescription(), colorScaleRange,
@@ -282,7 +294,10 @@ public class NcwmsDataset {
         loadingProgress.add("Finished loading dataset metadata");
     }
 
-    private boolean needsRefresh() {
+    /**
+     * @return Whether this dataset is due to be (re)loaded
+     */
+    boolean needsRefresh() {
         if (disabled || state == DatasetState.LOADING || state == DatasetState.UPDATING) {
             return false;
         } else if (state == DatasetState.NEEDS_REFRESH) {
@@ -61,6 +61,12 @@ public class NcwmsServerInfo implements ServerInfo {
     private String url = "";
     @XmlElement(name = "allowglobalcapabilities")
     private boolean globalCapabilities = true;
+    /* The maximum number of datasets which will be loaded at once */
+    @XmlElement(name = "datasetLoaderThreads")
+    private int datasetLoaderThreads = 4;
+    /* Whether to collect timings and other metrics of requests */
+    @XmlElement(name = "collectMetrics")
+    private boolean collectMetrics = false;
 
     NcwmsServerInfo() {
     }
@@ -120,6 +126,14 @@ public class NcwmsServerInfo implements ServerInfo {
     public boolean allowsGlobalCapabilities() {
         return globalCapabilities;
     }
+
+    public int getDatasetLoaderThreads() {
+        return Math.max(1, datasetLoaderThreads);
+    }
+
+    public boolean isCollectMetrics() {
+        return collectMetrics;
+    }
     
     public void setTitle(String title) {
         this.title = title;
@@ -154,6 +168,14 @@ public class NcwmsServerInfo implements ServerInfo {
         this.globalCapabilities = globalCapabilities;
     }
 
+    void setDatasetLoaderThreads(int datasetLoaderThreads) {
+        this.datasetLoaderThreads = datasetLoaderThreads;
+    }
+
+    void setCollectMetrics(boolean collectMetrics) {
+        this.collectMetrics = collectMetrics;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -173,6 +195,10 @@ public class NcwmsServerInfo implements ServerInfo {
         sb.append(url);
         sb.append("\nGlobal Capabilities: ");
         sb.append(globalCapabilities);
+        sb.append("\nDataset loader threads: ");
+        sb.append(datasetLoaderThreads);
+        sb.append("\nCollect metrics: ");
+        sb.append(collectMetrics);
         return sb.toString();
     }
     
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.ncwms.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.ncwms.config.NcwmsConfig.DatasetStorage;
+
+/**
+ * Tests the order in which {@link DatasetLoader} loads datasets, its timer,
+ * and the cancellation of loads.
+ * 
+ * @author Guy Griffiths
+ */
+public class DatasetLoaderTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private DatasetLoader loader;
+    private final List<String> loadOrder = new CopyOnWriteArrayList<>();
+    private final List<File> files = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        loader = new DatasetLoader(null, 1);
+    }
+
+    @After
+    public void tearDown() {
+        loader.shutdown();
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLoadsRequestedThenSmallestFirst() throws Exception {
+        TestDataset blocker = new TestDataset("blocker", null, true);
+        blocker.block();
+        loader.add(blocker);
+        assertTrue(blocker.started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        /*
+         * Whilst the only loader thread is busy, queue datasets in the
+         * opposite order to that in which they should be loaded
+         */
+        TestDataset requested = new TestDataset("requested", createFile(1000), false);
+        loader.add(requested);
+        loader.datasetRequested("requested");
+        loader.add(new TestDataset("remote", "http://localhost/remote.nc", true));
+        loader.add(new TestDataset("large", createFile(100), true));
+        loader.add(new TestDataset("small", createFile(10), true));
+        loader.add(new TestDataset("small-later", createFile(10), true));
+
+        /*
+         * The requested dataset is only queued by the timer, once it becomes
+         * due
+         */
+        requested.setDue();
+        assertTrue(requested.queued.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        blocker.unblock();
+        waitForLoads(6);
+        assertEquals(Arrays.asList("blocker", "requested", "small", "small-later", "large",
+                "remote"), loadOrder);
+    }
+
+    @Test
+    public void testTimerLoadsDatasetsWhenDue() throws Exception {
+        TestDataset dataset = new TestDataset("dataset", null, false);
+        loader.add(dataset);
+        assertFalse(dataset.started.await(1500, TimeUnit.MILLISECONDS));
+
+        dataset.setDue();
+        assertTrue(dataset.started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        waitForLoads(1);
+        assertEquals(Arrays.asList("dataset"), loadOrder);
+    }
+
+    @Test
+    public void testRemoveCancelsOnlyItsOwnLoad() throws Exception {
+        TestDataset running = new TestDataset("running", null, true);
+        running.block();
+        loader.add(running);
+        assertTrue(running.started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        /* Removing a queued dataset must not interrupt the running load */
+        loader.add(new TestDataset("queued", null, true));
+        loader.remove("queued");
+        loader.remove("unknown");
+        assertFalse(running.finished.await(200, TimeUnit.MILLISECONDS));
+
+        /* A dataset which has replaced the running one is a different load */
+        loader.changeId("running", "renamed");
+        TestDataset replacement = new TestDataset("running", null, false);
+        loader.add(replacement);
+        loader.remove("running");
+        assertFalse(running.finished.await(200, TimeUnit.MILLISECONDS));
+
+        loader.remove("renamed");
+        assertTrue(running.finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(running.interrupted);
+
+        /* The removed datasets are never loaded */
+        Thread.sleep(500);
+        assertEquals(Arrays.asList("running"), loadOrder);
+    }
+
+    private void waitForLoads(int nLoads) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+        while (loadOrder.size() < nLoads && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+    }
+
+    private String createFile(int size) throws IOException {
+        File file = File.createTempFile("dataset-loader", ".nc");
+        files.add(file);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        return file.getPath();
+    }
+
+    /**
+     * A dataset which records when it is loaded, rather than reading any
+     * data. Each dataset only needs loading once.
+     */
+    private final class TestDataset extends NcwmsDataset {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch finished = new CountDownLatch(1);
+        /* Counted down once the timer has finished the tick which queued us */
+        private final CountDownLatch queued = new CountDownLatch(1);
+        private CountDownLatch blocker = new CountDownLatch(0);
+        private volatile boolean due;
+        private volatile boolean loaded = false;
+        private volatile int checksWhilstDue = 0;
+        private volatile boolean interrupted = false;
+
+        private TestDataset(String id, String location, boolean due) {
+            setId(id);
+            setLocation(location);
+            this.due = due;
+        }
+
+        private void block() {
+            blocker = new CountDownLatch(1);
+        }
+
+        private void unblock() {
+            blocker.countDown();
+        }
+
+        private void setDue() {
+            due = true;
+        }
+
+        @Override
+        boolean needsRefresh() {
+            if (due && !loaded && ++checksWhilstDue == 2) {
+                /*
+                 * We have been checked again, so the check which queued us
+                 * has completed
+                 */
+                queued.countDown();
+            }
+            return due && !loaded;
+        }
+
+        @Override
+        public void refresh(DatasetStorage datasetStorage) {
+            loaded = true;
+            loadOrder.add(getId());
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            finished.countDown();
+        }
+    }
+}
@@ -34,6 +34,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import uk.ac.rdg.resc.edal.dataset.AbstractGridDataSource;
 import uk.ac.rdg.resc.edal.dataset.AbstractGridDataset;
 import uk.ac.rdg.resc.edal.dataset.DataReadingStrategy;
 import uk.ac.rdg.resc.edal.dataset.GridDataSource;
@@ -165,7 +166,7 @@ public class InMemoryNorthPolarStereographicDataset extends AbstractGridDataset
 
     @Override
     protected GridDataSource openGridDataSource() throws IOException {
-        return new GridDataSource() {
+        return new AbstractGridDataSource() {
             @Override
             public Array4D<Number> read(final String variableId, int tmin, int tmax, int zmin,
                     int zmax, int ymin, int ymax, int xmin, int xmax) throws IOException {
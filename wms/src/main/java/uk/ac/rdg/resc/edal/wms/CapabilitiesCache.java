@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.wms.util.CachedDocument;
+
+/**
+ * Caches rendered Capabilities documents, and the rendered layers of each
+ * dataset which make them up.
+ * 
+ * Each entry records the update time it was rendered for, and is re-rendered
+ * if that has changed. Entries which depend on the current time (e.g. the
+ * default time of a layer) are also re-rendered once they expire. Only one
+ * thread renders any given entry - other threads requesting it at the same
+ * time wait for the result.
+ * 
+ * @author Guy Griffiths
+ */
+class CapabilitiesCache {
+    private static final int MAX_DOCUMENTS = 256;
+    private static final int MAX_DATASET_LAYERS = 4096;
+
+    private final Map<Key, Entry<CachedDocument>> documents = createLruMap(MAX_DOCUMENTS);
+    private final Map<Key, Entry<String>> datasetLayers = createLruMap(MAX_DATASET_LAYERS);
+
+    /**
+     * Gets a complete Capabilities document, rendering it if necessary
+     * 
+     * @param key
+     *            The {@link Key} identifying the document. The dataset ID is
+     *            <code>null</code> for a document containing all datasets
+     * @param lastUpdate
+     *            The time at which the server was last updated
+     * @param renderer
+     *            Renders the document if it is not cached
+     */
+    CachedDocument getDocument(Key key, long lastUpdate,
+            Callable<Rendered<CachedDocument>> renderer) throws EdalException {
+        return get(documents, key, lastUpdate, renderer).value;
+    }
+
+    /**
+     * Gets the rendered layers of a single dataset, rendering them if
+     * necessary
+     * 
+     * @param key
+     *            The {@link Key} identifying the dataset layers
+     * @param lastUpdate
+     *            The time at which the dataset was last updated
+     * @param renderer
+     *            Renders the layers if they are not cached
+     * @return The rendered layers, along with the time at which they expire
+     */
+    Rendered<String> getDatasetLayers(Key key, long lastUpdate,
+            Callable<Rendered<String>> renderer) throws EdalException {
+        return get(datasetLayers, key, lastUpdate, renderer);
+    }
+
+    /**
+     * Removes everything from the cache
+     */
+    void clear() {
+        synchronized (documents) {
+            documents.clear();
+        }
+        synchronized (datasetLayers) {
+            datasetLayers.clear();
+        }
+    }
+
+    private static <T> Rendered<T> get(Map<Key, Entry<T>> cache, Key key, long lastUpdate,
+            Callable<Rendered<T>> renderer) throws EdalException {
+        Entry<T> entry;
+        boolean render = false;
+        long now = System.currentTimeMillis();
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry == null || entry.lastUpdate != lastUpdate || entry.hasExpired(now)) {
+                entry = new Entry<>(lastUpdate, new FutureTask<>(renderer));
+                cache.put(key, entry);
+                render = true;
+            }
+        }
+        if (render) {
+            entry.task.run();
+        }
+        try {
+            return entry.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EdalException("Interrupted whilst generating Capabilities document", e);
+        } catch (ExecutionException e) {
+            /*
+             * Don't cache failures
+             */
+            synchronized (cache) {
+                if (cache.get(key) == entry) {
+                    cache.remove(key);
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof EdalException) {
+                throw (EdalException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new EdalException("Problem generating Capabilities document", cause);
+        }
+    }
+
+    private static <T> Map<Key, Entry<T>> createLruMap(final int maxEntries) {
+        return new LinkedHashMap<Key, Entry<T>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry<T>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private static final class Entry<T> {
+        final long lastUpdate;
+        final FutureTask<Rendered<T>> task;
+
+        Entry(long lastUpdate, FutureTask<Rendered<T>> task) {
+            this.lastUpdate = lastUpdate;
+            this.task = task;
+        }
+
+        /*
+         * Entries which are still being rendered have not expired
+         */
+        boolean hasExpired(long now) {
+            if (!task.isDone()) {
+                return false;
+            }
+            try {
+                return task.get().expires <= now;
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A rendered value, along with the time at which it expires
+     */
+    static final class Rendered<T> {
+        /**
+         * The expiry time of values which don't depend on the current time
+         */
+        static final long NEVER = Long.MAX_VALUE;
+
+        final T value;
+        final long expires;
+
+        /**
+         * @param value
+         *            The rendered value
+         * @param expires
+         *            The time (in milliseconds since the epoch) after which
+         *            the value must be rendered again, or {@link #NEVER}
+         */
+        Rendered(T value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Identifies a rendered document, or part of one
+     */
+    static final class Key {
+        private final String wmsVersion;
+        private final String datasetId;
+        private final boolean verbose;
+        private final String baseUrl;
+
+        Key(String wmsVersion, String datasetId, boolean verbose, String baseUrl) {
+            this.wmsVersion = wmsVersion;
+            this.datasetId = datasetId;
+            this.verbose = verbose;
+            this.baseUrl = baseUrl;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((baseUrl == null) ? 0 : baseUrl.hashCode());
+            result = prime * result + ((datasetId == null) ? 0 : datasetId.hashCode());
+            result = prime * result + (verbose ? 1231 : 1237);
+            result = prime * result + ((wmsVersion == null) ? 0 : wmsVersion.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Key other = (Key) obj;
+            if (baseUrl == null) {
+                if (other.baseUrl != null)
+                    return false;
+            } else if (!baseUrl.equals(other.baseUrl))
+                return false;
+            if (datasetId == null) {
+                if (other.datasetId != null)
+                    return false;
+            } else if (!datasetId.equals(other.datasetId))
+                return false;
+            if (verbose != other.verbose)
+                return false;
+            if (wmsVersion == null) {
+                if (other.wmsVersion != null)
+                    return false;
+            } else if (!wmsVersion.equals(other.wmsVersion))
+                return false;
+            return true;
+        }
+    }
+}
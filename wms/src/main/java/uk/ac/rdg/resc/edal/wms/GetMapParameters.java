@@ -63,6 +63,7 @@ import uk.ac.rdg.resc.edal.wms.util.WmsUtils;
 public class GetMapParameters {
     protected String wmsVersion;
     private String imageFormatString;
+    private String crsCode;
     private boolean animation;
     private List<DateTime> animationTimesteps = new ArrayList<>();
 
@@ -121,6 +122,7 @@ public class GetMapParameters {
             }
         }
         plottingDomainParams = parsePlottingParams(params, chronology, wmsVersion);
+        crsCode = parseCrsCode(params, wmsVersion);
         if (animation) {
             animationTimesteps = parseAnimationTimesteps(params, chronology, catalogue,
                     styleParameters);
@@ -139,6 +141,15 @@ public class GetMapParameters {
         return wmsVersion;
     }
 
+    /**
+     * @return The code of the requested CRS. EPSG:4326 is returned as CRS:84,
+     *         since the axis order of the bounding box has already been taken
+     *         into account.
+     */
+    public String getCrsCode() {
+        return crsCode;
+    }
+
     public boolean isAnimation() {
         return animation;
     }
@@ -241,21 +252,12 @@ public class GetMapParameters {
             targetDepth = zExtent.getHigh();
         }
 
-        String crsCode;
+        String crsCode = parseCrsCode(params, wmsVersion);
         BoundingBox bbox;
-        if (wmsVersion.equals("1.3.0")) {
-            crsCode = params.getMandatoryString("CRS");
-            if (crsCode.equalsIgnoreCase("EPSG:4326")) {
-                crsCode = "CRS:84";
-                bbox = GISUtils.parseBbox(params.getMandatoryString("bbox"), false, crsCode);
-            } else {
-                bbox = GISUtils.parseBbox(params.getMandatoryString("bbox"), true, crsCode);
-            }
+        if (wmsVersion.equals("1.3.0")
+                && params.getMandatoryString("CRS").equalsIgnoreCase("EPSG:4326")) {
+            bbox = GISUtils.parseBbox(params.getMandatoryString("bbox"), false, crsCode);
         } else {
-            crsCode = params.getMandatoryString("SRS");
-            if (crsCode.equalsIgnoreCase("EPSG:4326")) {
-                crsCode = "CRS:84";
-            }
             bbox = GISUtils.parseBbox(params.getMandatoryString("bbox"), true, crsCode);
         }
 
@@ -264,6 +266,19 @@ public class GetMapParameters {
                 targetDepth, targetTime);
     }
 
+    /*
+     * EPSG:4326 is treated as CRS:84, with the axis order handled when the
+     * bounding box is parsed
+     */
+    private static String parseCrsCode(RequestParams params, String wmsVersion)
+            throws EdalException {
+        String crsCode = params.getMandatoryString(wmsVersion.equals("1.3.0") ? "CRS" : "SRS");
+        if (crsCode.equalsIgnoreCase("EPSG:4326")) {
+            crsCode = "CRS:84";
+        }
+        return crsCode;
+    }
+
     private List<DateTime> parseAnimationTimesteps(RequestParams params, Chronology chronology,
             WmsCatalogue catalogue, GetMapStyleParams styleParameters)
             throws EdalLayerNotFoundException, BadTimeFormatException,
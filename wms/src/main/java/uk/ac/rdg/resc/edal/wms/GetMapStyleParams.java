@@ -30,6 +30,8 @@ package uk.ac.rdg.resc.edal.wms;
 
 import java.awt.Color;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -41,11 +43,14 @@ import org.apache.velocity.app.VelocityEngine;
 
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.exceptions.EdalParseException;
 import uk.ac.rdg.resc.edal.graphics.style.MapImage;
 import uk.ac.rdg.resc.edal.graphics.style.sld.SLDException;
 import uk.ac.rdg.resc.edal.graphics.style.sld.StyleSLDParser;
 import uk.ac.rdg.resc.edal.graphics.style.util.ColourPalette;
 import uk.ac.rdg.resc.edal.graphics.style.util.GraphicsUtils;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Stage;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.wms.exceptions.EdalLayerNotFoundException;
 import uk.ac.rdg.resc.edal.wms.exceptions.EdalUnsupportedOperationException;
@@ -84,6 +89,22 @@ public class GetMapStyleParams {
     /* Velocity templating engine used for reading fixed styles */
     private static VelocityEngine velocityEngine;
 
+    /*
+     * Compiled MapImages. Generating these involves merging a Velocity
+     * template and parsing the resulting XML, which is expensive compared to
+     * the lookup. The MapImages themselves hold no per-request state, so they
+     * can safely be shared between requests.
+     * 
+     * Named styles are keyed on all of the parameters which go into the
+     * template. XML styles are keyed on the XML itself.
+     */
+    private static final int MAX_CACHED_STYLES = 256;
+    private static final int MAX_CACHED_XML_STYLES = 64;
+    private static final Map<List<Object>, MapImage> styleCache = new MapImageCache<List<Object>>(
+            MAX_CACHED_STYLES);
+    private static final Map<String, MapImage> xmlStyleCache = new MapImageCache<String>(
+            MAX_CACHED_XML_STYLES);
+
     static {
         initVelocity();
     }
@@ -125,27 +146,8 @@ public class GetMapStyleParams {
         String bgcStr = params.getString("bgcolor", "0x00000000");
         backgroundColour = GraphicsUtils.parseColour(bgcStr);
 
-        String bmcStr = params.getString("belowmincolor");
-        if (bmcStr == null) {
-            belowMinColour = Color.black;
-        } else if (bmcStr.equalsIgnoreCase("extend")) {
-            belowMinColour = null;
-        } else if (bmcStr.equalsIgnoreCase("transparent")) {
-            belowMinColour = new Color(0, 0, 0, 0);
-        } else {
-            belowMinColour = GraphicsUtils.parseColour(bmcStr);
-        }
-
-        String amcStr = params.getString("abovemaxcolor");
-        if (amcStr == null) {
-            aboveMaxColour = Color.black;
-        } else if (amcStr.equalsIgnoreCase("extend")) {
-            aboveMaxColour = null;
-        } else if (amcStr.equalsIgnoreCase("transparent")) {
-            aboveMaxColour = new Color(0, 0, 0, 0);
-        } else {
-            aboveMaxColour = GraphicsUtils.parseColour(amcStr);
-        }
+        belowMinColour = parseOutOfRangeColour(params.getString("belowmincolor"));
+        aboveMaxColour = parseOutOfRangeColour(params.getString("abovemaxcolor"));
 
         opacity = params.getPositiveInt("opacity", 100);
         if (opacity > 100) {
@@ -212,9 +214,27 @@ public class GetMapStyleParams {
      *             issues with generating a {@link MapImage} object
      */
     public MapImage getImageGenerator(WmsCatalogue catalogue) throws EdalException {
+        long start = RequestMetrics.start();
+        MapImage mapImage = createImageGenerator(catalogue);
+        RequestMetrics.stop(Stage.STYLE, start);
+        return mapImage;
+    }
+
+    private MapImage createImageGenerator(WmsCatalogue catalogue) throws EdalException {
         if (xmlStyle != null) {
+            synchronized (xmlStyleCache) {
+                MapImage mapImage = xmlStyleCache.get(xmlStyle);
+                RequestMetrics.cacheAccess("style", mapImage != null);
+                if (mapImage != null) {
+                    return mapImage;
+                }
+            }
             try {
-                return StyleSLDParser.createImage(xmlStyle);
+                MapImage mapImage = StyleSLDParser.createImage(xmlStyle);
+                synchronized (xmlStyleCache) {
+                    xmlStyleCache.put(xmlStyle, mapImage);
+                }
+                return mapImage;
             } catch (SLDException e) {
                 e.printStackTrace();
                 throw new EdalException("Problem parsing XML style.  Check logs for stack trace");
@@ -399,6 +419,28 @@ public class GetMapStyleParams {
         return xmlSpecified;
     }
 
+    /**
+     * Parses the value of a BELOWMINCOLOR or ABOVEMAXCOLOR parameter
+     * 
+     * @param colourStr
+     *            The value of the parameter. May be <code>null</code>
+     * @return The colour to use for out-of-range values, or <code>null</code>
+     *         if the extreme colours of the palette should be extended
+     * @throws EdalParseException
+     *             If the colour cannot be parsed
+     */
+    public static Color parseOutOfRangeColour(String colourStr) throws EdalParseException {
+        if (colourStr == null) {
+            return Color.black;
+        } else if (colourStr.equalsIgnoreCase("extend")) {
+            return null;
+        } else if (colourStr.equalsIgnoreCase("transparent")) {
+            return new Color(0, 0, 0, 0);
+        } else {
+            return GraphicsUtils.parseColour(colourStr);
+        }
+    }
+
     public String[] getLayerNames() {
         return layers;
     }
@@ -419,6 +461,34 @@ public class GetMapStyleParams {
             Extent<Float> colourScaleRange, boolean logarithmic, int numColourBands,
             Color backgroundColour, Color belowMinColour, Color aboveMaxColour)
             throws EdalException {
+        if (colourScaleRange == null) {
+            /*
+             * This will generally have been calculated in advance, so won't
+             * need to read any data
+             */
+            colourScaleRange = catalogue.getValueRangeCache().getValueRange(
+                    catalogue.getDatasetFromLayerName(layerName),
+                    catalogue.getVariableFromId(layerName));
+        }
+        /*
+         * The layer names can change if a dataset is reloaded, so they form
+         * part of the cache key
+         */
+        Map<String, String> layerKeysToLayerNames = catalogue.getStyleTemplateLayerNames(layerName,
+                plotStyleName);
+
+        List<Object> cacheKey = Arrays.<Object> asList(plotStyleName, paletteName,
+                colourScaleRange.getLow(), colourScaleRange.getHigh(), logarithmic,
+                numColourBands, backgroundColour, belowMinColour, aboveMaxColour,
+                layerKeysToLayerNames);
+        synchronized (styleCache) {
+            MapImage mapImage = styleCache.get(cacheKey);
+            RequestMetrics.cacheAccess("style", mapImage != null);
+            if (mapImage != null) {
+                return mapImage;
+            }
+        }
+
         /*
          * Now that we have all the URL parameters + any server defined
          * defaults, we get the style XML template
@@ -431,11 +501,6 @@ public class GetMapStyleParams {
          */
         VelocityContext context = new VelocityContext();
         context.put("paletteName", paletteName);
-        if (colourScaleRange == null) {
-            colourScaleRange = GraphicsUtils.estimateValueRange(
-                    catalogue.getDatasetFromLayerName(layerName),
-                    catalogue.getVariableFromId(layerName));
-        }
         context.put("scaleMin", colourScaleRange.getLow());
         context.put("scaleMax", colourScaleRange.getHigh());
         context.put("logarithmic", logarithmic ? "logarithmic" : "linear");
@@ -449,8 +514,6 @@ public class GetMapStyleParams {
          * 
          * TODO: handle multiple/derived layers
          */
-        Map<String, String> layerKeysToLayerNames = catalogue.getStyleTemplateLayerNames(layerName,
-                plotStyleName);
         for (Entry<String, String> keyToLayerName : layerKeysToLayerNames.entrySet()) {
             context.put(keyToLayerName.getKey(), keyToLayerName.getValue());
         }
@@ -466,7 +529,11 @@ public class GetMapStyleParams {
              * We now have an XML description of the style for this request.
              * Parse it into a MapImage and return the result.
              */
-            return StyleSLDParser.createImage(xmlStringWriter.toString());
+            MapImage mapImage = StyleSLDParser.createImage(xmlStringWriter.toString());
+            synchronized (styleCache) {
+                styleCache.put(cacheKey, mapImage);
+            }
+            return mapImage;
         } catch (SLDException e) {
             e.printStackTrace();
             /*
@@ -475,4 +542,24 @@ public class GetMapStyleParams {
             throw new EdalException("Problem parsing XML template for style " + plotStyleName);
         }
     }
+
+    /**
+     * A {@link LinkedHashMap} in access order which discards the least
+     * recently used {@link MapImage} once it reaches a maximum size. Not
+     * thread-safe.
+     */
+    private static class MapImageCache<K> extends LinkedHashMap<K, MapImage> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+        public MapImageCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, MapImage> eldest) {
+            return size() > maxSize;
+        }
+    }
 }
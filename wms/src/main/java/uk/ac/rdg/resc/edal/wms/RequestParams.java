@@ -30,9 +30,11 @@ package uk.ac.rdg.resc.edal.wms;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -256,6 +258,13 @@ public class RequestParams {
                     + " must be a valid floating-point number");
         }
     }
+
+    /**
+     * @return The names of all of the parameters, in lower case
+     */
+    public Set<String> getParameterNames() {
+        return Collections.unmodifiableSet(paramMap.keySet());
+    }
     
     @Override
     public String toString() {
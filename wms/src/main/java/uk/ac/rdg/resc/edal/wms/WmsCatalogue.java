@@ -86,7 +86,10 @@ import uk.ac.rdg.resc.edal.graphics.style.MapImage;
 import uk.ac.rdg.resc.edal.graphics.style.sld.SLDException;
 import uk.ac.rdg.resc.edal.graphics.style.sld.StyleSLDParser;
 import uk.ac.rdg.resc.edal.graphics.style.util.FeatureCatalogue;
+import uk.ac.rdg.resc.edal.graphics.style.util.ValueRangeCache;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Scope;
 import uk.ac.rdg.resc.edal.util.CollectionUtils;
 import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
 import uk.ac.rdg.resc.edal.wms.exceptions.EdalLayerNotFoundException;
@@ -94,6 +97,8 @@ import uk.ac.rdg.resc.edal.wms.util.CacheInfo;
 import uk.ac.rdg.resc.edal.wms.util.ContactInfo;
 import uk.ac.rdg.resc.edal.wms.util.ServerInfo;
 import uk.ac.rdg.resc.edal.wms.util.StyleDef;
+import uk.ac.rdg.resc.edal.wms.util.TileCache;
+import uk.ac.rdg.resc.edal.wms.util.TileCacheInfo;
 
 /**
  * This class encapsulates the elements needed to implement a specific WMS.
@@ -119,6 +124,17 @@ public abstract class WmsCatalogue implements FeatureCatalogue {
     protected final CacheManager cacheManager;
     private Cache featureCache = null;
 
+    /*
+     * Stores estimated value ranges for layers with no configured colour scale
+     * range. By default these are only stored in memory.
+     */
+    private ValueRangeCache valueRangeCache = new ValueRangeCache(null);
+
+    /*
+     * Stores rendered GetMap tiles. This is null if tile caching is disabled.
+     */
+    private volatile TileCache tileCache = null;
+
     private SortedMap<String, StyleDef> styleDefs = new TreeMap<String, StyleDef>(
             new Comparator<String>() {
                 /*
@@ -318,23 +334,35 @@ public abstract class WmsCatalogue implements FeatureCatalogue {
             CacheKey key = new CacheKey(id, params);
             Element element = featureCache.get(key);
             if (element != null && element.getObjectValue() != null) {
+                RequestMetrics.cacheAccess("feature", true);
                 /*
                  * This is why we added the SuppressWarnings("unchecked").
                  */
                 mapFeatures = (Collection<? extends DiscreteFeature<?, ?>>) element
                         .getObjectValue();
             } else {
-                Dataset dataset = getDatasetFromLayerName(id);
-                mapFeatures = dataset.extractMapFeatures(CollectionUtils.setOf(variable), params);
+                RequestMetrics.cacheAccess("feature", false);
+                mapFeatures = extractMapFeatures(id, variable, params);
                 featureCache.put(new Element(key, mapFeatures));
             }
         } else {
-            Dataset dataset = getDatasetFromLayerName(id);
-            mapFeatures = dataset.extractMapFeatures(CollectionUtils.setOf(variable), params);
+            mapFeatures = extractMapFeatures(id, variable, params);
         }
         return new FeaturesAndMemberName(mapFeatures, variable);
     }
 
+    private Collection<? extends DiscreteFeature<?, ?>> extractMapFeatures(String id,
+            String variable, PlottingDomainParams params) throws EdalException {
+        Dataset dataset = getDatasetFromLayerName(id);
+        /*
+         * Attribute the time spent reading to this layer, even if the request
+         * was for several layers
+         */
+        try (Scope scope = RequestMetrics.attribute(dataset.getId(), id)) {
+            return dataset.extractMapFeatures(CollectionUtils.setOf(variable), params);
+        }
+    }
+
     /**
      * Gets the {@link VariableMetadata} object corresponding to a named layer
      * 
@@ -733,6 +761,66 @@ public abstract class WmsCatalogue implements FeatureCatalogue {
         return styleDefs.get(styleName);
     }
 
+    /**
+     * @return The {@link ValueRangeCache} used to store estimated value ranges
+     *         for layers on this server
+     */
+    public ValueRangeCache getValueRangeCache() {
+        return valueRangeCache;
+    }
+
+    /**
+     * Sets the {@link ValueRangeCache} used to store estimated value ranges.
+     * Subclasses can use this to persist value ranges.
+     * 
+     * @param valueRangeCache
+     *            The {@link ValueRangeCache} to use. Must not be
+     *            <code>null</code>
+     */
+    protected void setValueRangeCache(ValueRangeCache valueRangeCache) {
+        this.valueRangeCache = valueRangeCache;
+    }
+
+    /**
+     * Configures the cache used to store rendered GetMap tiles. Tiles are only
+     * cached for datasets whose versions have been set on the
+     * {@link TileCache} - subclasses should do this whenever a dataset is
+     * loaded (including after calling this method).
+     * 
+     * @param tileCacheConfig
+     *            The (new) configuration to use for the tile cache. Must not
+     *            be <code>null</code>
+     * @param directory
+     *            The directory to store tiles in on disk, or <code>null</code>
+     *            to only store them in memory
+     */
+    public void setTileCache(TileCacheInfo tileCacheConfig, File directory) {
+        TileCache current = tileCache;
+        if (!tileCacheConfig.isEnabled()) {
+            tileCache = null;
+            return;
+        }
+        if (current != null && current.getInMemorySizeMB() == tileCacheConfig.getInMemorySizeMB()
+                && current.getOnDiskSizeMB() == tileCacheConfig.getOnDiskSizeMB()
+                && (directory == null ? current.getDirectory() == null : directory
+                        .equals(current.getDirectory()))) {
+            /*
+             * We are not changing anything about the cache.
+             */
+            return;
+        }
+        tileCache = new TileCache(directory, tileCacheConfig.getInMemorySizeMB(),
+                tileCacheConfig.getOnDiskSizeMB());
+    }
+
+    /**
+     * @return The {@link TileCache} used to store rendered GetMap tiles, or
+     *         <code>null</code> if tiles should not be cached
+     */
+    public TileCache getTileCache() {
+        return tileCache;
+    }
+
     /**
      * @return The main server metadata for this server
      */
@@ -754,6 +842,25 @@ public abstract class WmsCatalogue implements FeatureCatalogue {
      */
     public abstract DateTime getServerLastUpdate();
 
+    /**
+     * Gets the last time that a single dataset, or its metadata, was updated.
+     * This is used to decide which parts of a cached Capabilities document are
+     * still current, so must change whenever anything which appears in the
+     * dataset's layers changes.
+     *
+     * The default implementation returns {@link #getServerLastUpdate()}, so
+     * any update to the server is treated as an update to every dataset.
+     *
+     * @param datasetId
+     *            The ID of the dataset
+     * @return The last time that the dataset was updated, or <code>null</code>
+     *         if this is not known (in which case its layers will not be
+     *         cached)
+     */
+    public DateTime getDatasetLastUpdate(String datasetId) {
+        return getServerLastUpdate();
+    }
+
     /**
      * @return All available {@link Dataset}s on this server
      */
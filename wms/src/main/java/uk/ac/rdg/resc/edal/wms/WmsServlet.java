@@ -30,7 +30,11 @@ package uk.ac.rdg.resc.edal.wms;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.SocketException;
 import java.util.AbstractList;
 import java.util.ArrayList;
@@ -38,13 +42,25 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.imageio.ImageIO;
 import javax.naming.OperationNotSupportedException;
@@ -78,6 +94,7 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.rdg.resc.edal.dataset.AbstractContinuousDomainDataset;
 import uk.ac.rdg.resc.edal.dataset.AbstractGridDataset;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.domain.Extent;
@@ -104,10 +121,12 @@ import uk.ac.rdg.resc.edal.graphics.formats.ImageFormat;
 import uk.ac.rdg.resc.edal.graphics.formats.InvalidFormatException;
 import uk.ac.rdg.resc.edal.graphics.formats.KmzFormat;
 import uk.ac.rdg.resc.edal.graphics.formats.SimpleFormat;
+import uk.ac.rdg.resc.edal.graphics.formats.SimpleFormat.FrameSink;
 import uk.ac.rdg.resc.edal.graphics.style.ColourScale;
 import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
 import uk.ac.rdg.resc.edal.graphics.style.MapImage;
 import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.util.AnimationRenderer;
 import uk.ac.rdg.resc.edal.graphics.style.util.ColourPalette;
 import uk.ac.rdg.resc.edal.graphics.style.util.FeatureCatalogue.FeaturesAndMemberName;
 import uk.ac.rdg.resc.edal.graphics.style.util.GraphicsUtils;
@@ -115,22 +134,32 @@ import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.VerticalAxis;
 import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Scope;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Stage;
 import uk.ac.rdg.resc.edal.position.GeoPosition;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.position.VerticalPosition;
 import uk.ac.rdg.resc.edal.util.Array;
+import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.CollectionUtils;
+import uk.ac.rdg.resc.edal.util.DaemonThreadFactory;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
 import uk.ac.rdg.resc.edal.util.TimeUtils;
+import uk.ac.rdg.resc.edal.wms.CapabilitiesCache.Rendered;
 import uk.ac.rdg.resc.edal.wms.exceptions.CurrentUpdateSequence;
 import uk.ac.rdg.resc.edal.wms.exceptions.EdalLayerNotFoundException;
 import uk.ac.rdg.resc.edal.wms.exceptions.EdalUnsupportedOperationException;
 import uk.ac.rdg.resc.edal.wms.exceptions.InvalidUpdateSequence;
 import uk.ac.rdg.resc.edal.wms.exceptions.LayerNotQueryableException;
+import uk.ac.rdg.resc.edal.wms.util.CachedDocument;
+import uk.ac.rdg.resc.edal.wms.util.DataTile;
 import uk.ac.rdg.resc.edal.wms.util.StyleDef;
+import uk.ac.rdg.resc.edal.wms.util.TileCache;
+import uk.ac.rdg.resc.edal.wms.util.TileMatrixSet;
 import uk.ac.rdg.resc.edal.wms.util.WmsUtils;
 
 /**
@@ -165,8 +194,31 @@ public class WmsServlet extends HttpServlet {
             "EPSG:32761" // South Polar stereographic
     };
 
+    /*
+     * GetMap parameters which are replaced by their parsed values in the keys
+     * of cached tiles
+     */
+    private static final Set<String> TILE_KEY_PARSED_PARAMS = new HashSet<>(Arrays.asList(
+            "request", "service", "version", "crs", "srs", "bbox", "width", "height", "time",
+            "elevation"));
+
+    /*
+     * Used to render the layers of each dataset in a Capabilities document in
+     * parallel
+     */
+    private static final int N_CAPABILITIES_THREADS = Math.max(2, Runtime.getRuntime()
+            .availableProcessors());
+    private static final ThreadPoolExecutor CAPABILITIES_EXECUTOR = new ThreadPoolExecutor(
+            N_CAPABILITIES_THREADS, N_CAPABILITIES_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("capabilities-"));
+
+    static {
+        RequestMetrics.registerQueue("capabilities", CAPABILITIES_EXECUTOR.getQueue());
+    }
+
     private WmsCatalogue catalogue;
     private final VelocityEngine velocityEngine;
+    private final CapabilitiesCache capabilitiesCache = new CapabilitiesCache();
 
     /**
      * @see HttpServlet#HttpServlet()
@@ -190,6 +242,7 @@ public class WmsServlet extends HttpServlet {
 
     public void setCatalogue(WmsCatalogue catalogue) {
         this.catalogue = catalogue;
+        capabilitiesCache.clear();
     }
 
     /**
@@ -212,7 +265,12 @@ public class WmsServlet extends HttpServlet {
              * capabilities document, a map or a FeatureInfo
              */
             String request = params.getMandatoryString("request");
-            dispatchWmsRequest(request, params, httpServletRequest, httpServletResponse);
+            long start = RequestMetrics.requestStarted(request);
+            try (Scope scope = attributeRequest(params)) {
+                dispatchWmsRequest(request, params, httpServletRequest, httpServletResponse);
+            } finally {
+                RequestMetrics.requestFinished(request, start);
+            }
         } catch (EdalException wmse) {
             boolean v130;
             try {
@@ -253,14 +311,38 @@ public class WmsServlet extends HttpServlet {
         }
     }
 
+    /*
+     * Attributes the metrics recorded whilst handling a request to the dataset
+     * which all of its layers come from, and to the layer if there is only
+     * one
+     */
+    private Scope attributeRequest(RequestParams params) {
+        if (!RequestMetrics.isEnabled()) {
+            return RequestMetrics.attribute(null, null);
+        }
+        String layers = params.getString("layers");
+        if (layers == null) {
+            layers = params.getString("layerName");
+        }
+        if (layers == null) {
+            return RequestMetrics.attribute(null, null);
+        }
+        String[] layerNames = layers.split(",");
+        String datasetId = getSingleDatasetId(layerNames);
+        if (datasetId == null) {
+            return RequestMetrics.attribute(null, null);
+        }
+        return RequestMetrics.attribute(datasetId, layerNames.length == 1 ? layerNames[0] : null);
+    }
+
     protected void dispatchWmsRequest(String request, RequestParams params,
             HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
             throws Exception {
         if (request.equals("GetMap")) {
             getMap(params, httpServletResponse);
         } else if (request.equals("GetCapabilities")) {
-            getCapabilities(params, httpServletResponse, httpServletRequest.getRequestURL()
-                    .toString());
+            getCapabilities(params, httpServletRequest, httpServletResponse, httpServletRequest
+                    .getRequestURL().toString());
         } else if (request.equals("GetFeatureInfo")) {
             /* Look to see if we're requesting data from a remote server */
             String url = params.getString("url");
@@ -276,7 +358,13 @@ public class WmsServlet extends HttpServlet {
         /*
          * The REQUESTs below are non-standard
          */
-        else if (request.equals("GetMetadata")) {
+        else if (request.equals("GetData")) {
+            /*
+             * This is a request for the raw data values which would be used to
+             * generate a map image
+             */
+            getData(params, httpServletRequest, httpServletResponse);
+        } else if (request.equals("GetMetadata")) {
             /*
              * This is a request for non-standard metadata.
              */
@@ -353,30 +441,67 @@ public class WmsServlet extends HttpServlet {
 
         MapImage imageGenerator = styleParameters.getImageGenerator(catalogue);
 
-        List<BufferedImage> frames;
+        /*
+         * The plotting parameters for each frame of the image
+         */
+        List<PlottingDomainParams> frameParams;
         if (!getMapParams.isAnimation()) {
-            frames = Arrays.asList(imageGenerator.drawImage(plottingParameters, catalogue));
+            frameParams = Arrays.asList(plottingParameters);
         } else {
-            frames = new ArrayList<>();
+            frameParams = new ArrayList<>();
             for (DateTime timeStep : getMapParams.getAnimationTimesteps()) {
-                PlottingDomainParams timestepParameters = new PlottingDomainParams(
-                        plottingParameters.getWidth(), plottingParameters.getHeight(),
-                        plottingParameters.getBbox(), plottingParameters.getZExtent(), null,
-                        plottingParameters.getTargetHorizontalPosition(),
-                        plottingParameters.getTargetZ(), timeStep);
-                frames.add(imageGenerator.drawImage(timestepParameters, catalogue));
+                frameParams.add(new PlottingDomainParams(plottingParameters.getWidth(),
+                        plottingParameters.getHeight(), plottingParameters.getBbox(),
+                        plottingParameters.getZExtent(), null, plottingParameters
+                                .getTargetHorizontalPosition(), plottingParameters.getTargetZ(),
+                        timeStep));
             }
         }
 
         ImageFormat imageFormat = getMapParams.getImageFormat();
+        /*
+         * Single images from a single dataset can be served from the tile
+         * cache
+         */
+        TileCache tileCache = catalogue.getTileCache();
+        String tileDatasetId = null;
+        long tileGeneration = -1L;
+        if (tileCache != null && imageFormat instanceof SimpleFormat
+                && !getMapParams.isAnimation() && !styleParameters.isXmlDefined()) {
+            tileDatasetId = getSingleDatasetId(styleParameters.getLayerNames());
+            if (tileDatasetId != null) {
+                tileGeneration = tileCache.getGeneration(tileDatasetId);
+            }
+        }
+        /*
+         * The response is not opened until the image has been (at least
+         * partly) rendered, so that any problems rendering it can still be
+         * reported as a ServiceException
+         */
         try {
-            ServletOutputStream outputStream = httpServletResponse.getOutputStream();
-            if (imageFormat instanceof SimpleFormat) {
+            if (tileGeneration >= 0) {
+                String tileKey = getTileKey(params, getMapParams);
+                byte[] tile = tileCache.get(tileDatasetId, tileKey);
+                RequestMetrics.cacheAccess("tile", tile != null);
+                if (tile == null) {
+                    tile = renderTile(imageGenerator, plottingParameters,
+                            (SimpleFormat) imageFormat);
+                    ServletOutputStream outputStream = httpServletResponse.getOutputStream();
+                    outputStream.write(tile);
+                    outputStream.close();
+                    tileCache.put(tileDatasetId, tileKey, tile, tileGeneration);
+                } else {
+                    ServletOutputStream outputStream = httpServletResponse.getOutputStream();
+                    outputStream.write(tile);
+                    outputStream.close();
+                }
+            } else if (imageFormat instanceof SimpleFormat) {
                 /*
-                 * We have a normal image format
+                 * We have a normal image format. Frames are rendered in
+                 * parallel and encoded as soon as they are ready.
                  */
-                SimpleFormat simpleFormat = (SimpleFormat) getMapParams.getImageFormat();
-                simpleFormat.writeImage(frames, outputStream, null);
+                writeFrames(imageGenerator, frameParams, (SimpleFormat) imageFormat,
+                        httpServletResponse);
             } else {
                 /*
                  * We have KML (or another image format which needs additional
@@ -388,13 +513,6 @@ public class WmsServlet extends HttpServlet {
                             + layerNames.length + " have been supplied)");
                 }
                 String layerName = layerNames[0];
-                if (imageFormat instanceof KmzFormat) {
-                    /*
-                     * If this is a KMZ file, give it a sensible filename
-                     */
-                    httpServletResponse.setHeader("Content-Disposition", "inline; filename="
-                            + layerName.replaceAll("/", "-") + ".kmz");
-                }
                 WmsLayerMetadata layerMetadata = catalogue.getLayerMetadata(layerName);
                 String name = layerMetadata.getTitle();
                 String description = layerMetadata.getDescription();
@@ -404,10 +522,36 @@ public class WmsServlet extends HttpServlet {
                 BufferedImage legend = imageGenerator.getLegend(50, 200);
                 GeographicBoundingBox gbbox = GISUtils.toGeographicBoundingBox(plottingParameters
                         .getBbox());
+                final List<BufferedImage> frames = new ArrayList<>();
+                AnimationRenderer.renderFrames(imageGenerator, frameParams, catalogue,
+                        new FrameSink() {
+                            @Override
+                            public void addFrame(BufferedImage frame) {
+                                frames.add(frame);
+                            }
+
+                            @Override
+                            public void close() {
+                            }
+
+                            @Override
+                            public void abort() {
+                            }
+                        });
+                if (imageFormat instanceof KmzFormat) {
+                    /*
+                     * If this is a KMZ file, give it a sensible filename
+                     */
+                    httpServletResponse.setHeader("Content-Disposition", "inline; filename="
+                            + layerName.replaceAll("/", "-") + ".kmz");
+                }
+                ServletOutputStream outputStream = httpServletResponse.getOutputStream();
+                long start = RequestMetrics.start();
                 imageFormat.writeImage(frames, outputStream, name, description, gbbox, tValues,
                         zValue, legend, 24);
+                RequestMetrics.stop(Stage.ENCODE, start);
+                outputStream.close();
             }
-            outputStream.close();
         } catch (IOException e) {
             /*
              * The client can quite often cancel requests when loading tiled
@@ -419,8 +563,324 @@ public class WmsServlet extends HttpServlet {
         }
     }
 
-    private void getCapabilities(RequestParams params, HttpServletResponse httpServletResponse,
-            String baseUrl) throws EdalException {
+    /*
+     * Renders the frames of an image and writes them to the response. The
+     * response is not opened until the first frame has been rendered, so if
+     * that fails (which includes every failure of a single image) the
+     * exception can still be reported to the client.
+     */
+    void writeFrames(MapImage imageGenerator, List<PlottingDomainParams> frameParams,
+            SimpleFormat format, HttpServletResponse httpServletResponse) throws EdalException,
+            IOException {
+        final DeferredOutputStream outputStream = new DeferredOutputStream(httpServletResponse);
+        final FrameSink frameSink = format.openFrameSink(outputStream, null, frameParams.size());
+        renderFrames(imageGenerator, frameParams, new FrameSink() {
+            @Override
+            public void addFrame(BufferedImage frame) throws IOException {
+                frameSink.addFrame(frame);
+                outputStream.commit();
+            }
+
+            @Override
+            public void close() throws IOException {
+                frameSink.close();
+            }
+
+            @Override
+            public void abort() {
+                frameSink.abort();
+            }
+        });
+        outputStream.close();
+    }
+
+    /**
+     * Renders tiles into the tile cache, so that they can be served without
+     * any data being read. Tiles which are already cached are not rendered
+     * again, so seeding can be resumed if it is interrupted.
+     * 
+     * @param mapParams
+     *            The GetMap parameters which are common to every tile (e.g.
+     *            LAYERS, STYLES, FORMAT, TIME). The VERSION, SRS, BBOX, WIDTH
+     *            and HEIGHT are set for each tile.
+     * @param tileMatrixSet
+     *            The {@link TileMatrixSet} defining the tiles
+     * @param minLevel
+     *            The first zoom level to seed
+     * @param maxLevel
+     *            The last zoom level to seed
+     * @return The number of tiles rendered
+     * @throws EdalException
+     *             If the parameters are invalid, or the tiles cannot be
+     *             cached
+     */
+    public int seedTileCache(Map<String, String> mapParams, TileMatrixSet tileMatrixSet,
+            int minLevel, int maxLevel) throws EdalException {
+        TileCache tileCache = catalogue.getTileCache();
+        if (tileCache == null) {
+            throw new EdalException("The tile cache is not enabled");
+        }
+        Map<String, String[]> tileParams = new HashMap<>();
+        for (Entry<String, String> param : mapParams.entrySet()) {
+            tileParams.put(param.getKey().toLowerCase(), new String[] { param.getValue() });
+        }
+        tileParams.put("request", new String[] { "GetMap" });
+        tileParams.put("version", new String[] { "1.1.1" });
+        tileParams.put("srs", new String[] { tileMatrixSet.getCrsCode() });
+        tileParams.put("width", new String[] { String.valueOf(tileMatrixSet.getTileSize()) });
+        tileParams.put("height", new String[] { String.valueOf(tileMatrixSet.getTileSize()) });
+
+        int nRendered = 0;
+        for (int level = minLevel; level <= maxLevel; level++) {
+            for (int row = 0; row < tileMatrixSet.getRows(level); row++) {
+                for (int column = 0; column < tileMatrixSet.getColumns(level); column++) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return nRendered;
+                    }
+                    double[] bbox = tileMatrixSet.getTileBbox(level, column, row);
+                    tileParams.put("bbox", new String[] { bbox[0] + "," + bbox[1] + ","
+                            + bbox[2] + "," + bbox[3] });
+                    RequestParams params = new RequestParams(tileParams);
+                    GetMapParameters getMapParams = new GetMapParameters(params, catalogue);
+                    GetMapStyleParams styleParameters = getMapParams.getStyleParameters();
+                    ImageFormat imageFormat = getMapParams.getImageFormat();
+                    String datasetId = styleParameters.isXmlDefined() ? null
+                            : getSingleDatasetId(styleParameters.getLayerNames());
+                    long generation = datasetId == null ? -1L : tileCache
+                            .getGeneration(datasetId);
+                    if (generation < 0 || !(imageFormat instanceof SimpleFormat)
+                            || getMapParams.isAnimation()) {
+                        throw new EdalException(
+                                "Only single images of layers from one loaded dataset can be cached");
+                    }
+                    String tileKey = getTileKey(params, getMapParams);
+                    if (tileCache.get(datasetId, tileKey) == null) {
+                        try {
+                            byte[] tile = renderTile(
+                                    styleParameters.getImageGenerator(catalogue),
+                                    getMapParams.getPlottingDomainParameters(),
+                                    (SimpleFormat) imageFormat);
+                            tileCache.put(datasetId, tileKey, tile, generation);
+                        } catch (IOException e) {
+                            throw new EdalException("Problem rendering tile", e);
+                        }
+                        nRendered++;
+                    }
+                }
+            }
+        }
+        return nRendered;
+    }
+
+    /*
+     * Renders a single image to a byte array
+     */
+    private byte[] renderTile(MapImage imageGenerator, PlottingDomainParams plottingParameters,
+            SimpleFormat format) throws EdalException, IOException {
+        ByteArrayOutputStream tile = new ByteArrayOutputStream();
+        FrameSink frameSink = format.openFrameSink(tile, null, 1);
+        renderFrames(imageGenerator, Arrays.asList(plottingParameters), frameSink);
+        return tile.toByteArray();
+    }
+
+    /*
+     * Renders frames to a FrameSink and closes it. If rendering fails, the
+     * FrameSink is aborted instead, so that any resources it holds are
+     * released without an incomplete image being finished.
+     */
+    private void renderFrames(MapImage imageGenerator, List<PlottingDomainParams> frameParams,
+            FrameSink frameSink) throws EdalException, IOException {
+        boolean rendered = false;
+        try {
+            AnimationRenderer.renderFrames(imageGenerator, frameParams, catalogue, frameSink);
+            rendered = true;
+        } finally {
+            if (rendered) {
+                long start = RequestMetrics.start();
+                frameSink.close();
+                RequestMetrics.stop(Stage.ENCODE, start);
+            } else {
+                /*
+                 * Don't hide the original problem if the sink cannot be
+                 * aborted cleanly
+                 */
+                try {
+                    frameSink.abort();
+                } catch (RuntimeException e) {
+                    log.debug("Problem aborting frame sink after failed render", e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Finds the single dataset which all of the given layers come from, or
+     * returns null if there isn't one
+     */
+    private String getSingleDatasetId(String[] layerNames) {
+        String datasetId = null;
+        for (String layerName : layerNames) {
+            String layerDatasetId;
+            try {
+                layerDatasetId = catalogue.getDatasetFromLayerName(layerName).getId();
+            } catch (EdalLayerNotFoundException e) {
+                return null;
+            }
+            if (datasetId != null && !datasetId.equals(layerDatasetId)) {
+                return null;
+            }
+            datasetId = layerDatasetId;
+        }
+        return datasetId;
+    }
+
+    /*
+     * Generates a key which identifies a tile within its dataset. The
+     * spatial and temporal parameters are parsed first, so that equivalent
+     * requests (e.g. WMS 1.1.1 and 1.3.0 ones) share tiles. All other
+     * parameters are included verbatim.
+     */
+    private String getTileKey(RequestParams params, GetMapParameters getMapParams)
+            throws EdalException {
+        PlottingDomainParams plottingParams = getMapParams.getPlottingDomainParameters();
+        BoundingBox bbox = plottingParams.getBbox();
+        StringBuilder key = new StringBuilder();
+        key.append(getMapParams.getCrsCode()).append(';').append(bbox.getMinX()).append(',')
+                .append(bbox.getMinY()).append(',').append(bbox.getMaxX()).append(',')
+                .append(bbox.getMaxY()).append(';').append(plottingParams.getWidth())
+                .append('x').append(plottingParams.getHeight()).append(';')
+                .append(plottingParams.getZExtent()).append(';')
+                .append(plottingParams.getTargetZ()).append(';')
+                .append(plottingParams.getTExtent()).append(';');
+        if (plottingParams.getTargetT() != null) {
+            key.append(plottingParams.getTargetT().getMillis());
+        } else if (plottingParams.getTExtent() == null) {
+            /*
+             * Without a TIME parameter each layer is plotted at its default
+             * time. This changes with the current time, so must be part of the
+             * key.
+             */
+            for (String layerName : getMapParams.getStyleParameters().getLayerNames()) {
+                DateTime defaultTime = GISUtils.getClosestToCurrentTime(catalogue
+                        .getVariableMetadataFromId(layerName).getTemporalDomain());
+                if (defaultTime != null) {
+                    key.append(defaultTime.getMillis());
+                }
+                key.append(',');
+            }
+        }
+        List<String> names = new ArrayList<>(params.getParameterNames());
+        Collections.sort(names);
+        for (String name : names) {
+            if (!TILE_KEY_PARSED_PARAMS.contains(name)) {
+                String value = params.getString(name);
+                key.append(';').append(name).append('=').append(value.length()).append(':')
+                        .append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the raw data values of a single layer over the area of a GetMap
+     * request, so that clients can colour them locally. See {@link DataTile}
+     * for the format of the returned data.
+     * 
+     * @param params
+     *            The URL parameters. These are the same as for a GetMap
+     *            request, except that STYLES is ignored and FORMAT is one of
+     *            the {@link DataTile} formats.
+     * @param httpServletRequest
+     *            The request object, used to negotiate compression
+     * @param httpServletResponse
+     *            The response object to write out to
+     * @throws EdalException
+     *             If there is a problem reading the data
+     * @throws IOException
+     *             If there is a problem writing to the output stream
+     */
+    private void getData(RequestParams params, HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse) throws EdalException, IOException {
+        String format = params.getString("format", DataTile.FLOAT32_FORMAT);
+        if (!DataTile.isSupportedFormat(format)) {
+            throw new InvalidFormatException("The format " + format
+                    + " is not supported for GetData.  Use " + DataTile.FLOAT32_FORMAT + " or "
+                    + DataTile.INT16_FORMAT);
+        }
+
+        GetMapParameters getMapParams = new GetMapParameters(params, catalogue);
+        PlottingDomainParams plottingParameters = getMapParams.getPlottingDomainParameters();
+        String[] layerNames = getMapParams.getStyleParameters().getLayerNames();
+        if (layerNames == null || layerNames.length != 1) {
+            throw new EdalUnsupportedOperationException(
+                    "GetData requests must be for exactly one layer");
+        }
+        String layerName = layerNames[0];
+        if (catalogue.getLayerMetadata(layerName).isDisabled()) {
+            throw new EdalLayerNotFoundException("The layer " + layerName
+                    + " is not enabled on this server");
+        }
+
+        int width = plottingParameters.getWidth();
+        int height = plottingParameters.getHeight();
+        if (height > catalogue.getServerInfo().getMaxImageHeight()
+                || width > catalogue.getServerInfo().getMaxImageWidth()) {
+            throw new EdalException("Requested image size exceeds the maximum of "
+                    + catalogue.getServerInfo().getMaxImageWidth() + "x"
+                    + catalogue.getServerInfo().getMaxImageHeight());
+        }
+
+        FeaturesAndMemberName featuresAndMember = catalogue.getFeaturesForLayer(layerName,
+                plottingParameters);
+        MapFeature mapFeature = null;
+        for (DiscreteFeature<?, ?> feature : featuresAndMember.getFeatures()) {
+            if (feature instanceof MapFeature) {
+                if (mapFeature != null) {
+                    throw new EdalException("Expecting a single gridded feature for the layer "
+                            + layerName);
+                }
+                mapFeature = (MapFeature) feature;
+            }
+        }
+        if (mapFeature == null) {
+            throw new EdalUnsupportedOperationException(
+                    "GetData is only supported for gridded layers");
+        }
+
+        /*
+         * Map features are stored with the y-axis increasing upwards. Tiles are
+         * written from the top row down, as images are.
+         */
+        Array2D<Number> values = mapFeature.getValues(featuresAndMember.getMember());
+        float[] data = new float[width * height];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                data[j * width + i] = values.getFloat(height - 1 - j, i);
+            }
+        }
+        DataTile tile = new DataTile(width, height, data);
+
+        httpServletResponse.setContentType(format.toLowerCase());
+        httpServletResponse.setHeader("Vary", "Accept-Encoding");
+        String acceptEncoding = httpServletRequest.getHeader("Accept-Encoding");
+        OutputStream out = httpServletResponse.getOutputStream();
+        if (CachedDocument.acceptsEncoding(acceptEncoding, "gzip", "x-gzip")) {
+            httpServletResponse.setHeader("Content-Encoding", "gzip");
+            out = new GZIPOutputStream(out);
+        } else if (CachedDocument.acceptsEncoding(acceptEncoding, "deflate")) {
+            httpServletResponse.setHeader("Content-Encoding", "deflate");
+            out = new DeflaterOutputStream(out);
+        }
+        /*
+         * Closing a compressing stream finishes it and releases its Deflater
+         */
+        try (OutputStream tileOut = out) {
+            tile.write(tileOut, format);
+        }
+    }
+
+    private void getCapabilities(RequestParams params, HttpServletRequest httpServletRequest,
+            HttpServletResponse httpServletResponse, final String baseUrl) throws EdalException {
         /*
          * We only advertise text/xml as a GetCapabilities format. The spec says
          * we can return text/xml for unknown formats, so we don't even need to
@@ -455,13 +915,9 @@ public class WmsServlet extends HttpServlet {
             }
         }
 
-        String wmsVersion = params.getString("version", "1.3.0");
-        Template template;
-        if ("1.1.1".equals(wmsVersion)) {
-            template = velocityEngine.getTemplate("templates/capabilities-1.1.1.vm");
-        } else {
-            template = velocityEngine.getTemplate("templates/capabilities-1.3.0.vm");
-        }
+        final String wmsVersion = "1.1.1".equals(params.getString("version", "1.3.0")) ? "1.1.1"
+                : "1.3.0";
+        final boolean verbose = params.getBoolean("verbose", false);
 
         /*
          * The DATASET parameter is an optional parameter that allows a
@@ -469,7 +925,7 @@ public class WmsServlet extends HttpServlet {
          */
         String datasetId = params.getString("dataset");
 
-        Collection<Dataset> datasets;
+        final Collection<Dataset> datasets;
         if (datasetId == null || "".equals(datasetId.trim())) {
             /*
              * No specific dataset has been chosen so we create a Capabilities
@@ -484,6 +940,7 @@ public class WmsServlet extends HttpServlet {
                         + "that includes all datasets on this server. "
                         + "You must specify a dataset identifier with &amp;DATASET=");
             }
+            datasetId = null;
         } else {
             Dataset ds = catalogue.getDatasetFromId(datasetId);
             if (ds == null) {
@@ -493,33 +950,227 @@ public class WmsServlet extends HttpServlet {
             datasets.add(ds);
         }
 
+        /*
+         * Capabilities documents are expensive to generate, so they are cached
+         * until the server is updated, or until the default time of one of
+         * the layers changes. If any of the datasets cannot tell us when they
+         * were last updated, we cannot cache the document.
+         */
+        final long lastUpdate = catalogue.getServerLastUpdate().getMillis();
+        CachedDocument capabilities;
+        boolean cacheable = true;
+        for (Dataset dataset : datasets) {
+            if (catalogue.getDatasetLastUpdate(dataset.getId()) == null) {
+                cacheable = false;
+                break;
+            }
+        }
+        if (cacheable) {
+            capabilities = capabilitiesCache.getDocument(new CapabilitiesCache.Key(wmsVersion,
+                    datasetId, verbose, baseUrl), lastUpdate,
+                    new Callable<Rendered<CachedDocument>>() {
+                        @Override
+                        public Rendered<CachedDocument> call() throws EdalException {
+                            Rendered<String> document = renderCapabilities(wmsVersion,
+                                    datasets, verbose, baseUrl);
+                            /*
+                             * A document which depends on the current time
+                             * may have changed since the server was updated
+                             */
+                            long lastModified = lastUpdate;
+                            if (document.expires != Rendered.NEVER) {
+                                lastModified = Math.max(lastUpdate, System.currentTimeMillis());
+                            }
+                            return new Rendered<>(new CachedDocument(document.value,
+                                    lastModified), document.expires);
+                        }
+                    });
+        } else {
+            capabilities = new CachedDocument(renderCapabilities(wmsVersion, datasets, verbose,
+                    baseUrl).value);
+        }
+
+        try {
+            capabilities.write(httpServletRequest, httpServletResponse, "text/xml");
+        } catch (IOException e) {
+            log.error("Problem writing output to stream", e);
+        }
+    }
+
+    /**
+     * Renders a complete Capabilities document. The layers of each dataset are
+     * rendered (or retrieved from the cache) in parallel.
+     * 
+     * @return The rendered document, which expires when the layers of any of
+     *         its datasets do
+     */
+    private Rendered<String> renderCapabilities(final String wmsVersion,
+            Collection<Dataset> datasets, final boolean verbose, final String baseUrl)
+            throws EdalException {
+        List<Future<Rendered<String>>> renderedDatasets = new ArrayList<>();
+        List<String> datasetLayers = new ArrayList<>();
+        long expires = Rendered.NEVER;
+        try {
+            Iterator<Dataset> it = datasets.iterator();
+            while (it.hasNext()) {
+                final Dataset dataset = it.next();
+                Callable<Rendered<String>> datasetRenderer = new Callable<Rendered<String>>() {
+                    @Override
+                    public Rendered<String> call() throws EdalException {
+                        return getDatasetLayers(wmsVersion, dataset, verbose, baseUrl);
+                    }
+                };
+                if (it.hasNext()) {
+                    renderedDatasets.add(CAPABILITIES_EXECUTOR.submit(datasetRenderer));
+                } else {
+                    /*
+                     * Render the last dataset on this thread
+                     */
+                    FutureTask<Rendered<String>> task = new FutureTask<>(datasetRenderer);
+                    task.run();
+                    renderedDatasets.add(task);
+                }
+            }
+            for (Future<Rendered<String>> renderedDataset : renderedDatasets) {
+                Rendered<String> layers = getRenderedLayers(renderedDataset);
+                datasetLayers.add(layers.value);
+                expires = Math.min(expires, layers.expires);
+            }
+        } finally {
+            for (Future<Rendered<String>> renderedDataset : renderedDatasets) {
+                renderedDataset.cancel(false);
+            }
+        }
+
+        Template template = velocityEngine.getTemplate("templates/capabilities-" + wmsVersion
+                + ".vm");
         VelocityContext context = new VelocityContext();
         EventCartridge ec = new EventCartridge();
-        ec.addEventHandler(new EscapeXmlReference());
+        ec.addEventHandler(new CapabilitiesEscapeReference());
         ec.attachToContext(context);
         context.put("baseUrl", baseUrl);
         context.put("catalogue", catalogue);
-        context.put("datasets", datasets);
+        context.put("datasetLayers", datasetLayers);
         context.put("supportedImageFormats", ImageFormat.getSupportedMimeTypes());
         context.put("supportedFeatureInfoFormats", new String[] { FEATURE_INFO_PNG_FORMAT,
                 FEATURE_INFO_XML_FORMAT });
         context.put("supportedCrsCodes", SUPPORTED_CRS_CODES);
-        context.put("GISUtils", GISUtils.class);
-        context.put("TimeUtils", TimeUtils.class);
-        context.put("WmsUtils", WmsUtils.class);
-        context.put("verbose", params.getBoolean("verbose", false));
-        context.put("availablePalettes", ColourPalette.getPredefinedPalettes());
+        return new Rendered<>(mergeCapabilitiesTemplate(template, context), expires);
+    }
+
+    /**
+     * Gets the rendered layers of a single dataset, from the cache if they are
+     * still current
+     */
+    private Rendered<String> getDatasetLayers(final String wmsVersion, final Dataset dataset,
+            final boolean verbose, final String baseUrl) throws EdalException {
+        Callable<Rendered<String>> renderer = new Callable<Rendered<String>>() {
+            @Override
+            public Rendered<String> call() throws EdalException {
+                /*
+                 * Find the expiry time first, so that it can only be too early
+                 */
+                long expires = getDefaultTimeExpiry(dataset);
+                Template template = velocityEngine.getTemplate("templates/capabilities-dataset-"
+                        + wmsVersion + ".vm");
+                VelocityContext context = new VelocityContext();
+                EventCartridge ec = new EventCartridge();
+                ec.addEventHandler(new EscapeXmlReference());
+                ec.attachToContext(context);
+                context.put("baseUrl", baseUrl);
+                context.put("catalogue", catalogue);
+                context.put("dataset", dataset);
+                context.put("GISUtils", GISUtils.class);
+                context.put("TimeUtils", TimeUtils.class);
+                context.put("WmsUtils", WmsUtils.class);
+                context.put("verbose", verbose);
+                context.put("availablePalettes", ColourPalette.getPredefinedPalettes());
+                return new Rendered<>(mergeCapabilitiesTemplate(template, context), expires);
+            }
+        };
+        DateTime datasetLastUpdate = catalogue.getDatasetLastUpdate(dataset.getId());
+        if (datasetLastUpdate == null) {
+            try {
+                return renderer.call();
+            } catch (EdalException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new EdalException("Problem generating Capabilities document", e);
+            }
+        }
+        return capabilitiesCache.getDatasetLayers(new CapabilitiesCache.Key(wmsVersion,
+                dataset.getId(), verbose, baseUrl), datasetLastUpdate.getMillis(), renderer);
+    }
 
+    /*
+     * The default time of each layer is the closest to the current time, so
+     * the rendered layers of a dataset are only valid until one of these
+     * changes
+     */
+    private static long getDefaultTimeExpiry(Dataset dataset) throws EdalException {
+        DateTime now = new DateTime();
+        long expires = Rendered.NEVER;
+        for (String varId : dataset.getVariableIds()) {
+            TemporalDomain tDomain = dataset.getVariableMetadata(varId).getTemporalDomain();
+            if (tDomain instanceof TimeAxis) {
+                DateTime change = GISUtils.getNextClosestTimeChange(now, (TimeAxis) tDomain);
+                if (change != null) {
+                    expires = Math.min(expires, change.getMillis());
+                }
+            }
+        }
+        return expires;
+    }
+
+    private static Rendered<String> getRenderedLayers(Future<Rendered<String>> renderedDataset)
+            throws EdalException {
         try {
-            template.merge(context, httpServletResponse.getWriter());
+            return renderedDataset.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EdalException("Interrupted whilst generating Capabilities document", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof EdalException) {
+                throw (EdalException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new EdalException("Problem generating Capabilities document", cause);
+        }
+    }
+
+    private static String mergeCapabilitiesTemplate(Template template, VelocityContext context)
+            throws EdalException {
+        StringWriter writer = new StringWriter();
+        try {
+            template.merge(context, writer);
         } catch (ResourceNotFoundException e) {
             log.error("Cannot find capabilities template", e);
+            throw new EdalException("Problem generating Capabilities document", e);
         } catch (ParseErrorException e) {
             log.error("Cannot parse capabilities template", e);
+            throw new EdalException("Problem generating Capabilities document", e);
         } catch (MethodInvocationException e) {
             log.error("Capabilities template has incorrect method", e);
-        } catch (IOException e) {
-            log.error("Problem writing output to stream", e);
+            throw new EdalException("Problem generating Capabilities document", e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Escapes all references in a Capabilities document apart from the layers
+     * of each dataset, which have already been escaped as they were rendered
+     */
+    private static final class CapabilitiesEscapeReference extends EscapeXmlReference {
+        @Override
+        public Object referenceInsert(String reference, Object value) {
+            if ("$datasetLayer".equals(reference)) {
+                return value;
+            }
+            return super.referenceInsert(reference, value);
         }
     }
 
@@ -552,18 +1203,41 @@ public class WmsServlet extends HttpServlet {
             String variableId = catalogue.getVariableFromId(layerName);
             VariableMetadata metadata = catalogue.getVariableMetadataFromId(layerName);
             Set<VariableMetadata> children = metadata.getChildren();
+            /*
+             * We only want to return a layer name if there are more than one
+             */
+            String layerNameToSave = layerNames.length < 2 ? null : layerName;
+
+            if (dataset instanceof AbstractGridDataset) {
+                /*
+                 * For gridded data we only need to read the single cell under
+                 * the clicked position, rather than extracting a whole map
+                 * and picking out a single pixel from it
+                 */
+                featureInfos.addAll(getGridFeatureInfoValues((AbstractGridDataset) dataset,
+                        variableId, metadata, plottingParameters, layerNameToSave));
+                continue;
+            }
+
             /*
              * Extract the map features. Because of the way
              * GetFeatureInfoParameters works, features are searched for in a
              * 9-pixel box surrounding the clicked position on the map
              */
-            Collection<? extends DiscreteFeature<?, ?>> mapFeatures = dataset.extractMapFeatures(
-                    CollectionUtils.setOf(variableId), plottingParameters);
+            Collection<? extends DiscreteFeature<?, ?>> mapFeatures;
+            if (dataset instanceof AbstractContinuousDomainDataset) {
+                /*
+                 * Use the spatial index to pick out the nearest features, so
+                 * that we don't read any which would be discarded
+                 */
+                mapFeatures = ((AbstractContinuousDomainDataset) dataset)
+                        .extractNearestMapFeatures(CollectionUtils.setOf(variableId),
+                                plottingParameters, featureInfoParameters.getFeatureCount());
+            } else {
+                mapFeatures = dataset.extractMapFeatures(CollectionUtils.setOf(variableId),
+                        plottingParameters);
+            }
 
-            /*
-             * We only want to return a layer name if there are more than one
-             */
-            String layerNameToSave = layerNames.length < 2 ? null : layerName;
             for (DiscreteFeature<?, ?> feature : mapFeatures) {
                 if (metadata.isScalar()) {
                     /*
@@ -629,6 +1303,60 @@ public class WmsServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Reads the values of a gridded layer (or of its children) at the target
+     * position. All of the values are read in a single pass over the
+     * dataset.
+     * 
+     * @param dataset
+     *            The {@link AbstractGridDataset} containing the layer
+     * @param variableId
+     *            The ID of the variable to read
+     * @param metadata
+     *            The {@link VariableMetadata} of the variable
+     * @param plottingParameters
+     *            The {@link PlottingDomainParams} defining the target value to
+     *            extract
+     * @param layerName
+     *            The layer name to add to the {@link FeatureInfoPoint}s
+     * @return The values read, as {@link FeatureInfoPoint}s
+     */
+    private List<FeatureInfoPoint> getGridFeatureInfoValues(AbstractGridDataset dataset,
+            String variableId, VariableMetadata metadata, PlottingDomainParams plottingParameters,
+            String layerName) throws EdalException {
+        /*
+         * Maps the IDs of variables to read to the names used to identify their
+         * values. The names match those we would get by extracting a map
+         * feature.
+         */
+        Map<String, String> names = new LinkedHashMap<>();
+        if (metadata.isScalar()) {
+            names.put(variableId,
+                    AbstractGridDataset.getMapFeatureName(Collections.singletonList(variableId)));
+        }
+        for (VariableMetadata child : metadata.getChildren()) {
+            names.put(child.getId(),
+                    catalogue.getLayerMetadata(catalogue.getLayerName(dataset.getId(), child.getId()))
+                            .getTitle());
+        }
+
+        HorizontalPosition position = plottingParameters.getTargetHorizontalPosition();
+        DateTime time = plottingParameters.getTargetT();
+        Map<String, Number> values = dataset.readSinglePoints(names.keySet(), position,
+                plottingParameters.getTargetZ(), time);
+
+        String timeStr = time == null ? null : TimeUtils.dateTimeToISO8601(time);
+        List<FeatureInfoPoint> featureInfos = new ArrayList<FeatureInfoPoint>();
+        for (Entry<String, String> name : names.entrySet()) {
+            Number value = values.get(name.getKey());
+            if (value != null) {
+                featureInfos.add(new FeatureInfoPoint(layerName, name.getValue(), position,
+                        timeStr, value, new Properties()));
+            }
+        }
+        return featureInfos;
+    }
+
     /**
      * Extracts the target value from a feature
      * 
@@ -742,6 +1470,8 @@ public class WmsServlet extends HttpServlet {
             json = showMinMax(params);
         } else if (item.equals("animationTimesteps")) {
             json = showAnimationTimesteps(params);
+        } else if (item.equals("palette")) {
+            json = showPalette(params);
         }
         if (json != null) {
             httpServletResponse.setContentType("application/json");
@@ -1325,6 +2055,47 @@ public class WmsServlet extends HttpServlet {
         return response.toString();
     }
 
+    /**
+     * Gets the colours needed to colour the data returned by a GetData request
+     * in the same way as the default style would colour a map.
+     * 
+     * Colours are returned as ARGB integers. "belowMinColour" and
+     * "aboveMaxColour" are omitted if the palette should be extended.
+     */
+    private String showPalette(RequestParams params) throws MetadataException {
+        JSONObject response = new JSONObject();
+        try {
+            int numColourBands = params.getPositiveInt("numcolorbands",
+                    ColourPalette.MAX_NUM_COLOURS);
+            if (numColourBands > ColourPalette.MAX_NUM_COLOURS) {
+                numColourBands = ColourPalette.MAX_NUM_COLOURS;
+            }
+            ColourPalette palette = ColourPalette.fromString(params.getString("palette"),
+                    numColourBands);
+            JSONArray colours = new JSONArray();
+            for (int argb : palette.getARGBColours()) {
+                colours.add(argb);
+            }
+            response.put("colours", colours);
+            response.put("noDataColour",
+                    GraphicsUtils.parseColour(params.getString("bgcolor", "0x00000000"))
+                            .getRGB());
+            Color belowMinColour = GetMapStyleParams.parseOutOfRangeColour(params
+                    .getString("belowmincolor"));
+            if (belowMinColour != null) {
+                response.put("belowMinColour", belowMinColour.getRGB());
+            }
+            Color aboveMaxColour = GetMapStyleParams.parseOutOfRangeColour(params
+                    .getString("abovemaxcolor"));
+            if (aboveMaxColour != null) {
+                response.put("aboveMaxColour", aboveMaxColour.getRGB());
+            }
+        } catch (EdalException | IllegalArgumentException e) {
+            throw new MetadataException("Problem parsing palette parameters", e);
+        }
+        return response.toString();
+    }
+
     private String showMinMax(RequestParams params) throws MetadataException {
         JSONObject minmax = new JSONObject();
         GetMapParameters getMapParams;
@@ -1852,20 +2623,18 @@ public class WmsServlet extends HttpServlet {
                     GraphicsUtils.parseColour(params.getString("abovemaxcolor", "0x000000")),
                     GraphicsUtils.parseColour(params.getString("bgcolor", "transparent")),
                     paletteName, numColourBands);
-            List<ProfileFeature> profileFeatures = new ArrayList<ProfileFeature>();
             TemporalDomain temporalDomain = gridDataset.getVariableMetadata(varId)
                     .getTemporalDomain();
             DateTime time = null;
             if (timeStr != null) {
                 time = TimeUtils.iso8601ToDateTime(timeStr, temporalDomain.getChronology());
             }
-            for (HorizontalPosition pos : verticalSectionHorizontalPositions) {
-                PlottingDomainParams plottingParams = new PlottingDomainParams(1, 1, null, null,
-                        null, pos, null, time);
-                List<? extends ProfileFeature> features = gridDataset.extractProfileFeatures(
-                        CollectionUtils.setOf(varId), plottingParams);
-                profileFeatures.addAll(features);
-            }
+            /*
+             * Read the profiles at every point along the transect together, so
+             * that nearby profiles are read in a few blocks
+             */
+            List<ProfileFeature> profileFeatures = gridDataset.extractProfileFeatures(
+                    CollectionUtils.setOf(varId), verticalSectionHorizontalPositions, time);
             JFreeChart verticalSectionChart = Charting.createVerticalSectionChart(profileFeatures,
                     lineString, colourScheme, zValue);
             chart = Charting.addVerticalSectionChart(chart, verticalSectionChart);
@@ -1985,6 +2754,69 @@ public class WmsServlet extends HttpServlet {
         } else {
             template = velocityEngine.getTemplate("templates/exception-1.1.1.vm");
         }
-        template.merge(context, httpServletResponse.getWriter());
+        PrintWriter writer;
+        try {
+            writer = httpServletResponse.getWriter();
+        } catch (IllegalStateException e) {
+            /*
+             * Part of an image has already been sent (e.g. a later frame of an
+             * animation failed), so the only way to tell the client is to
+             * abandon the response
+             */
+            throw new IOException("Cannot report an error after the response has been started",
+                    exception);
+        }
+        template.merge(context, writer);
+    }
+
+    /**
+     * An {@link OutputStream} which holds everything written to it in memory
+     * until {@link #commit()} is called, and only then opens the
+     * {@link HttpServletResponse}'s output stream. Until then, the response
+     * can still be used to report an error.
+     */
+    private static final class DeferredOutputStream extends OutputStream {
+        private final HttpServletResponse response;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private OutputStream out = buffer;
+
+        public DeferredOutputStream(HttpServletResponse response) {
+            this.response = response;
+        }
+
+        /**
+         * Opens the response's output stream and writes any buffered data to
+         * it. Everything written afterwards goes straight to the response.
+         */
+        public void commit() throws IOException {
+            if (buffer != null) {
+                out = response.getOutputStream();
+                buffer.writeTo(out);
+                buffer = null;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer == null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            commit();
+            out.close();
+        }
     }
 }
@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A pre-rendered text document, stored gzipped, which can be written to any
+ * number of HTTP responses. Responses for documents with a modification time
+ * carry ETag and Last-Modified headers, and conditional requests for an
+ * unchanged document get a 304 (Not Modified) response.
+ * 
+ * This is immutable and thread-safe.
+ * 
+ * @author Guy Griffiths
+ */
+public final class CachedDocument {
+    private static final String GZIP_ETAG_SUFFIX = "-gzip";
+
+    private final byte[] gzippedContent;
+    private final int contentLength;
+    private final long lastModified;
+    /*
+     * null if validators should not be sent
+     */
+    private final String eTag;
+
+    /**
+     * Creates a new {@link CachedDocument}
+     * 
+     * @param content
+     *            The content of the document. This will be written as UTF-8.
+     * @param lastModified
+     *            The time at which the document was last modified, in
+     *            milliseconds since the epoch
+     */
+    public CachedDocument(String content, long lastModified) {
+        this(content, lastModified, true);
+    }
+
+    /**
+     * Creates a new {@link CachedDocument} with no modification time. This is
+     * for documents which are rendered afresh for each request, and so may
+     * change without notice. They are sent without ETag or Last-Modified
+     * headers, and conditional requests always get the whole document.
+     * 
+     * @param content
+     *            The content of the document. This will be written as UTF-8.
+     */
+    public CachedDocument(String content) {
+        this(content, -1L, false);
+    }
+
+    private CachedDocument(String content, long lastModified, boolean validators) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        contentLength = bytes.length;
+        if (validators) {
+            /*
+             * HTTP dates only have a precision of 1s
+             */
+            this.lastModified = lastModified - lastModified % 1000;
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            eTag = Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(contentLength);
+        } else {
+            this.lastModified = -1L;
+            eTag = null;
+        }
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream(bytes.length / 8 + 64);
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(gzipped, 65536)) {
+            gzipOut.write(bytes);
+        } catch (IOException e) {
+            /*
+             * Cannot happen when writing to a ByteArrayOutputStream
+             */
+            throw new IllegalStateException(e);
+        }
+        gzippedContent = gzipped.toByteArray();
+    }
+
+    /**
+     * @return The time at which the document was last modified, rounded down
+     *         to the nearest second, or -1 if it has no modification time
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return The size of the gzipped document, in bytes
+     */
+    public int getCompressedLength() {
+        return gzippedContent.length;
+    }
+
+    /**
+     * Writes this document to an HTTP response. The document will be sent
+     * gzipped if the client accepts it, and not at all if it has a
+     * modification time and the client already has the current version.
+     * 
+     * @param request
+     *            The request being responded to
+     * @param response
+     *            The response to write to
+     * @param contentType
+     *            The MIME type of the document
+     * @throws IOException
+     *             If there is a problem writing to the response
+     */
+    public void write(HttpServletRequest request, HttpServletResponse response,
+            String contentType) throws IOException {
+        boolean gzip = acceptsGzip(request.getHeader("Accept-Encoding"));
+        response.setHeader("Vary", "Accept-Encoding");
+        if (eTag != null) {
+            /*
+             * The gzipped and uncompressed documents are different
+             * representations, so need different ETags
+             */
+            response.setHeader("ETag", "\"" + eTag + (gzip ? GZIP_ETAG_SUFFIX : "") + "\"");
+            response.setDateHeader("Last-Modified", lastModified);
+            if (isNotModified(request)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+
+        response.setContentType(contentType);
+        response.setCharacterEncoding("UTF-8");
+        OutputStream out = response.getOutputStream();
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+            response.setContentLength(gzippedContent.length);
+            out.write(gzippedContent);
+        } else {
+            response.setContentLength(contentLength);
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzippedContent))) {
+                byte[] buffer = new byte[65536];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the conditional headers of a request. If-None-Match takes
+     * precedence over If-Modified-Since, as per RFC 7232.
+     * 
+     * @return <code>true</code> if the client already has the current version
+     *         of this document
+     */
+    private boolean isNotModified(HttpServletRequest request) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*")) {
+                    return true;
+                }
+                /*
+                 * Weak comparison is sufficient for GET requests
+                 */
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+                    tag = tag.substring(1, tag.length() - 1);
+                }
+                if (tag.endsWith(GZIP_ETAG_SUFFIX)) {
+                    tag = tag.substring(0, tag.length() - GZIP_ETAG_SUFFIX.length());
+                }
+                if (tag.equals(eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            /*
+             * Unparseable dates are ignored
+             */
+            return false;
+        }
+        return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * @param acceptEncoding
+     *            The value of an Accept-Encoding header
+     * @return Whether the header allows gzipped content
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        return acceptsEncoding(acceptEncoding, "gzip", "x-gzip");
+    }
+
+    /**
+     * @param acceptEncoding
+     *            The value of an Accept-Encoding header
+     * @param codings
+     *            The names of the content-codings to look for
+     * @return Whether the header allows content encoded with any of the given
+     *         content-codings
+     */
+    public static boolean acceptsEncoding(String acceptEncoding, String... codings) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            boolean matches = name.equals("*");
+            for (String wanted : codings) {
+                if (name.equalsIgnoreCase(wanted)) {
+                    matches = true;
+                }
+            }
+            if (matches) {
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            if (Double.parseDouble(param.substring(2)) <= 0.0) {
+                                return false;
+                            }
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
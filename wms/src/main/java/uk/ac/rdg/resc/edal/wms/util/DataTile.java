@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A tile of raw data values, as returned by a GetData request. Clients which
+ * have the colour palette can colour these themselves, so that changing the
+ * style of a layer does not need another round trip to the server.
+ * 
+ * The encoded tile is little-endian, and consists of a 24-byte header:
+ * <ul>
+ * <li>The 4 ASCII bytes "EDAT"</li>
+ * <li>A version byte (currently 1)</li>
+ * <li>A type byte: {@link #TYPE_FLOAT32} or {@link #TYPE_INT16}</li>
+ * <li>2 reserved bytes</li>
+ * <li>The width and height of the tile, as 32-bit integers</li>
+ * <li>The offset and scale of packed values, as 32-bit floats</li>
+ * </ul>
+ * followed by the values, row by row, starting at the top-left of the tile.
+ * 
+ * Float values are written directly, with NaN representing missing data.
+ * Infinite values are treated as missing data in both formats, so float
+ * values are always either finite or NaN.
+ * 16-bit values are packed as <code>value = offset + scale * raw</code>, and
+ * are followed by a bitmask with one bit per value (least-significant bit
+ * first) which is set where data is missing.
+ * 
+ * @author Guy Griffiths
+ */
+public final class DataTile {
+    public static final String FLOAT32_FORMAT = "application/x-float32";
+    public static final String INT16_FORMAT = "application/x-int16";
+
+    public static final byte TYPE_FLOAT32 = 0;
+    public static final byte TYPE_INT16 = 1;
+
+    private static final byte[] MAGIC = { 'E', 'D', 'A', 'T' };
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int MAX_PACKED = Short.MAX_VALUE;
+
+    private final int width;
+    private final int height;
+    private final float[] values;
+
+    /**
+     * @param width
+     *            The width of the tile, in pixels
+     * @param height
+     *            The height of the tile, in pixels
+     * @param values
+     *            The values of the tile, row by row from the top-left. NaN
+     *            (or an infinite value) represents missing data.
+     */
+    public DataTile(int width, int height, float[] values) {
+        if (values.length != width * height) {
+            throw new IllegalArgumentException("Expected " + (width * height)
+                    + " values for a " + width + "x" + height + " tile, but got "
+                    + values.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.values = values;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param format
+     *            A GetData FORMAT parameter
+     * @return Whether the format is one which a {@link DataTile} can be
+     *         written in
+     */
+    public static boolean isSupportedFormat(String format) {
+        return FLOAT32_FORMAT.equalsIgnoreCase(format) || INT16_FORMAT.equalsIgnoreCase(format);
+    }
+
+    /**
+     * Writes this tile to an {@link OutputStream}
+     * 
+     * @param out
+     *            The {@link OutputStream} to write to. This is not closed.
+     * @param format
+     *            The format to write in - either {@link #FLOAT32_FORMAT} or
+     *            {@link #INT16_FORMAT}
+     * @throws IOException
+     *             If there is a problem writing to the stream
+     */
+    public void write(OutputStream out, String format) throws IOException {
+        if (FLOAT32_FORMAT.equalsIgnoreCase(format)) {
+            writeFloat32(out);
+        } else if (INT16_FORMAT.equalsIgnoreCase(format)) {
+            writeInt16(out);
+        } else {
+            throw new IllegalArgumentException("Unsupported data tile format: " + format);
+        }
+    }
+
+    private void writeFloat32(OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 * values.length).order(
+                ByteOrder.LITTLE_ENDIAN);
+        putHeader(buffer, TYPE_FLOAT32, 0f, 1f);
+        for (float value : values) {
+            buffer.putFloat(isValid(value) ? value : Float.NaN);
+        }
+        out.write(buffer.array());
+    }
+
+    private void writeInt16(OutputStream out) throws IOException {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float value : values) {
+            if (isValid(value)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        float offset;
+        float scale;
+        if (min > max) {
+            /*
+             * No valid data
+             */
+            offset = 0f;
+            scale = 1f;
+        } else {
+            offset = (float) ((min + (double) max) / 2.0);
+            scale = (float) ((max - (double) min) / (2.0 * MAX_PACKED));
+            if (scale == 0f) {
+                scale = 1f;
+            }
+        }
+
+        byte[] mask = new byte[(values.length + 7) / 8];
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 2 * values.length + mask.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        putHeader(buffer, TYPE_INT16, offset, scale);
+        for (int i = 0; i < values.length; i++) {
+            float value = values[i];
+            if (isValid(value)) {
+                long raw = Math.round((value - (double) offset) / scale);
+                buffer.putShort((short) Math.max(-MAX_PACKED, Math.min(MAX_PACKED, raw)));
+            } else {
+                buffer.putShort((short) 0);
+                mask[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        buffer.put(mask);
+        out.write(buffer.array());
+    }
+
+    private void putHeader(ByteBuffer buffer, byte type, float offset, float scale) {
+        buffer.put(MAGIC);
+        buffer.put(VERSION);
+        buffer.put(type);
+        buffer.put((byte) 0);
+        buffer.put((byte) 0);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putFloat(offset);
+        buffer.putFloat(scale);
+    }
+
+    private static boolean isValid(float value) {
+        return !Float.isNaN(value) && !Float.isInfinite(value);
+    }
+}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import uk.ac.rdg.resc.edal.metrics.CacheCounter;
+import uk.ac.rdg.resc.edal.metrics.LatencyHistogram;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics;
+import uk.ac.rdg.resc.edal.metrics.RequestMetrics.Series;
+
+/**
+ * Writes the metrics collected by {@link RequestMetrics}, either as JSON (for
+ * people) or in the Prometheus text exposition format (for monitoring
+ * systems).
+ * 
+ * @author Guy Griffiths
+ */
+public final class MetricsWriter {
+    /**
+     * The content type of the output of {@link #toPrometheusText()}
+     */
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double MILLIS_PER_SECOND = 1e3;
+
+    private MetricsWriter() {
+    }
+
+    /**
+     * @return All collected metrics as a JSON document. Timings are in
+     *         milliseconds.
+     */
+    public static String toJson() {
+        JSONObject json = new JSONObject();
+        json.put("enabled", RequestMetrics.isEnabled());
+
+        JSONArray stages = new JSONArray();
+        for (Entry<Series, LatencyHistogram> entry : getSortedStageLatencies()) {
+            Series series = entry.getKey();
+            JSONObject stage = histogramToJson(entry.getValue());
+            stage.put("stage", series.getStage().getLabel());
+            stage.put("dataset", series.getDatasetId());
+            stage.put("layer", series.getLayerName());
+            stages.add(stage);
+        }
+        json.put("stages", stages);
+
+        JSONObject requests = new JSONObject();
+        for (Entry<String, LatencyHistogram> entry : new TreeMap<>(
+                RequestMetrics.getRequestLatencies()).entrySet()) {
+            requests.put(entry.getKey(), histogramToJson(entry.getValue()));
+        }
+        json.put("requests", requests);
+
+        json.put("activeRequests", new TreeMap<>(RequestMetrics.getActiveRequests()));
+        json.put("queuedTasks", new TreeMap<>(RequestMetrics.getQueuedTasks()));
+        json.put("bytesRead", new TreeMap<>(RequestMetrics.getBytesRead()));
+
+        JSONObject caches = new JSONObject();
+        for (Entry<String, CacheCounter> entry : new TreeMap<>(RequestMetrics.getCaches())
+                .entrySet()) {
+            CacheCounter counter = entry.getValue();
+            JSONObject cache = new JSONObject();
+            cache.put("hits", counter.getHits());
+            cache.put("misses", counter.getMisses());
+            putFinite(cache, "hitRatio", counter.getHitRatio());
+            caches.put(entry.getKey(), cache);
+        }
+        json.put("caches", caches);
+
+        return json.toString(4);
+    }
+
+    private static JSONObject histogramToJson(LatencyHistogram histogram) {
+        JSONObject json = new JSONObject();
+        json.put("count", histogram.getCount());
+        putFinite(json, "meanMillis", histogram.getMeanMillis());
+        putFinite(json, "medianMillis", histogram.getPercentileMillis(50.0));
+        putFinite(json, "95thPercentileMillis", histogram.getPercentileMillis(95.0));
+        putFinite(json, "99thPercentileMillis", histogram.getPercentileMillis(99.0));
+        return json;
+    }
+
+    /*
+     * JSON has no representation of NaN or infinity, so such values are
+     * omitted
+     */
+    private static void putFinite(JSONObject json, String key, double value) {
+        if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+            json.put(key, value);
+        }
+    }
+
+    /**
+     * @return All collected metrics in the Prometheus text exposition format.
+     *         Timings are in seconds.
+     */
+    public static String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+
+        text.append("# HELP edal_stage_duration_seconds Time spent in each stage of handling requests\n");
+        text.append("# TYPE edal_stage_duration_seconds histogram\n");
+        for (Entry<Series, LatencyHistogram> entry : getSortedStageLatencies()) {
+            Series series = entry.getKey();
+            appendHistogram(text, "edal_stage_duration_seconds", "stage=\""
+                    + escape(series.getStage().getLabel()) + "\",dataset=\""
+                    + escape(series.getDatasetId()) + "\",layer=\""
+                    + escape(series.getLayerName()) + "\"", entry.getValue());
+        }
+
+        text.append("# HELP edal_request_duration_seconds Time spent handling each type of request\n");
+        text.append("# TYPE edal_request_duration_seconds histogram\n");
+        for (Entry<String, LatencyHistogram> entry : new TreeMap<>(
+                RequestMetrics.getRequestLatencies()).entrySet()) {
+            appendHistogram(text, "edal_request_duration_seconds",
+                    "request=\"" + escape(entry.getKey()) + "\"", entry.getValue());
+        }
+
+        text.append("# HELP edal_active_requests Requests currently being handled\n");
+        text.append("# TYPE edal_active_requests gauge\n");
+        for (Entry<String, Integer> entry : new TreeMap<>(RequestMetrics.getActiveRequests())
+                .entrySet()) {
+            appendSample(text, "edal_active_requests", "request", entry.getKey(),
+                    entry.getValue());
+        }
+
+        text.append("# HELP edal_queued_tasks Tasks waiting for a worker thread\n");
+        text.append("# TYPE edal_queued_tasks gauge\n");
+        for (Entry<String, Integer> entry : new TreeMap<>(RequestMetrics.getQueuedTasks())
+                .entrySet()) {
+            appendSample(text, "edal_queued_tasks", "queue", entry.getKey(), entry.getValue());
+        }
+
+        text.append("# HELP edal_bytes_read_total Bytes of source data read\n");
+        text.append("# TYPE edal_bytes_read_total counter\n");
+        for (Entry<String, Long> entry : new TreeMap<>(RequestMetrics.getBytesRead()).entrySet()) {
+            appendSample(text, "edal_bytes_read_total", "dataset", entry.getKey(),
+                    entry.getValue());
+        }
+
+        Map<String, CacheCounter> caches = new TreeMap<>(RequestMetrics.getCaches());
+        text.append("# HELP edal_cache_hits_total Cache lookups which found the item\n");
+        text.append("# TYPE edal_cache_hits_total counter\n");
+        for (Entry<String, CacheCounter> entry : caches.entrySet()) {
+            appendSample(text, "edal_cache_hits_total", "cache", entry.getKey(), entry.getValue()
+                    .getHits());
+        }
+        text.append("# HELP edal_cache_misses_total Cache lookups which did not find the item\n");
+        text.append("# TYPE edal_cache_misses_total counter\n");
+        for (Entry<String, CacheCounter> entry : caches.entrySet()) {
+            appendSample(text, "edal_cache_misses_total", "cache", entry.getKey(), entry
+                    .getValue().getMisses());
+        }
+
+        return text.toString();
+    }
+
+    private static void appendHistogram(StringBuilder text, String name, String labels,
+            LatencyHistogram histogram) {
+        double[] bounds = LatencyHistogram.getBucketBoundsMillis();
+        long[] counts = histogram.getBucketCounts();
+        long cumulative = 0L;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += counts[i];
+            text.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(bounds[i] / MILLIS_PER_SECOND).append("\"} ").append(cumulative)
+                    .append('\n');
+        }
+        /*
+         * The overflow bucket
+         */
+        cumulative += counts[bounds.length];
+        text.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+                .append(cumulative).append('\n');
+        text.append(name).append("_sum{").append(labels).append("} ")
+                .append(histogram.getSumNanos() / NANOS_PER_SECOND).append('\n');
+        text.append(name).append("_count{").append(labels).append("} ").append(cumulative)
+                .append('\n');
+    }
+
+    private static void appendSample(StringBuilder text, String name, String label,
+            String labelValue, Number value) {
+        text.append(name).append('{').append(label).append("=\"").append(escape(labelValue))
+                .append("\"} ").append(value).append('\n');
+    }
+
+    /*
+     * Escapes a label value as required by the Prometheus text format
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static List<Entry<Series, LatencyHistogram>> getSortedStageLatencies() {
+        List<Entry<Series, LatencyHistogram>> entries = new ArrayList<>(RequestMetrics
+                .getStageLatencies().entrySet());
+        Collections.sort(entries, new Comparator<Entry<Series, LatencyHistogram>>() {
+            @Override
+            public int compare(Entry<Series, LatencyHistogram> entry1,
+                    Entry<Series, LatencyHistogram> entry2) {
+                Series series1 = entry1.getKey();
+                Series series2 = entry2.getKey();
+                int result = series1.getStage().compareTo(series2.getStage());
+                if (result == 0) {
+                    result = series1.getDatasetId().compareTo(series2.getDatasetId());
+                }
+                if (result == 0) {
+                    result = series1.getLayerName().compareTo(series2.getLayerName());
+                }
+                return result;
+            }
+        });
+        return entries;
+    }
+}
@@ -0,0 +1,540 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.util.HashUtils;
+
+/**
+ * A two-tier cache of encoded map tiles. Recently-used tiles are held in
+ * memory, and all tiles can also be stored on disk so that they survive a
+ * restart. Each tier is bounded in size, and evicts the least-recently-used
+ * tiles first.
+ * 
+ * Tiles are grouped by the dataset they are rendered from, and are only cached
+ * for datasets which have been given a version with
+ * {@link #setDatasetVersion(String, String)}. Whenever the version of a
+ * dataset changes, all of its tiles are discarded. The versions are stored
+ * alongside the tiles, so tiles on disk are only reused after a restart if
+ * their dataset has not changed.
+ * 
+ * This is thread-safe.
+ * 
+ * @author Guy Griffiths
+ */
+public class TileCache {
+    private static final Logger log = LoggerFactory.getLogger(TileCache.class);
+
+    private static final String VERSION_FILE = "version.properties";
+    private static final String TILE_SUFFIX = ".tile";
+
+    private final File directory;
+    private final int inMemorySizeMB;
+    private final int onDiskSizeMB;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+
+    /* Tiles held in memory, in access order */
+    private final LinkedHashMap<TileKey, byte[]> memoryTiles = new LinkedHashMap<>(16, 0.75f,
+            true);
+    private long memoryBytes = 0L;
+    /* The sizes of the tiles stored on disk, in access order */
+    private final LinkedHashMap<File, Long> diskTiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes = 0L;
+
+    /* The version of each dataset which has tiles stored */
+    private final Map<String, String> versions = new HashMap<>();
+    /* The datasets whose tiles can currently be cached */
+    private final Set<String> activeDatasets = new HashSet<>();
+    /*
+     * Incremented whenever tiles are discarded, so that tiles rendered before
+     * then are not stored
+     */
+    private long generation = 0L;
+
+    /**
+     * Creates a new {@link TileCache}. Any tiles already stored in the given
+     * directory will be reused, provided that the versions of their datasets
+     * have not changed.
+     * 
+     * @param directory
+     *            The directory to store tiles in, or <code>null</code> to only
+     *            cache tiles in memory
+     * @param inMemorySizeMB
+     *            The maximum size of the tiles held in memory, in MB
+     * @param onDiskSizeMB
+     *            The maximum size of the tiles stored on disk, in MB. If this
+     *            is 0, tiles are only cached in memory.
+     */
+    public TileCache(File directory, int inMemorySizeMB, int onDiskSizeMB) {
+        this.inMemorySizeMB = inMemorySizeMB;
+        this.onDiskSizeMB = onDiskSizeMB;
+        maxMemoryBytes = inMemorySizeMB * 1024L * 1024L;
+        maxDiskBytes = onDiskSizeMB * 1024L * 1024L;
+        if (directory == null || onDiskSizeMB <= 0) {
+            this.directory = null;
+        } else if (directory.isDirectory() || directory.mkdirs()) {
+            this.directory = directory;
+            loadDiskTiles();
+        } else {
+            log.error("Cannot create tile cache directory " + directory
+                    + ".  Tiles will only be cached in memory.");
+            this.directory = null;
+        }
+    }
+
+    /**
+     * @return The directory which tiles are stored in, or <code>null</code> if
+     *         tiles are only cached in memory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return The maximum size of the tiles held in memory, in MB
+     */
+    public int getInMemorySizeMB() {
+        return inMemorySizeMB;
+    }
+
+    /**
+     * @return The maximum size of the tiles stored on disk, in MB
+     */
+    public int getOnDiskSizeMB() {
+        return onDiskSizeMB;
+    }
+
+    /**
+     * Sets the version of a dataset. If this differs from the version its
+     * cached tiles were rendered from, they are discarded.
+     * 
+     * @param datasetId
+     *            The ID of the dataset
+     * @param version
+     *            A string which changes whenever anything which affects the
+     *            rendering of the dataset changes, or <code>null</code> if
+     *            this cannot be determined (in which case its tiles will not
+     *            be cached)
+     */
+    public void setDatasetVersion(String datasetId, String version) {
+        if (version == null) {
+            removeDataset(datasetId);
+            return;
+        }
+        List<File> discarded;
+        synchronized (this) {
+            activeDatasets.add(datasetId);
+            if (version.equals(versions.get(datasetId))) {
+                return;
+            }
+            discarded = discardTiles(datasetId);
+            versions.put(datasetId, version);
+            writeVersion(datasetId, version);
+        }
+        deleteFiles(discarded);
+    }
+
+    /**
+     * Discards all tiles of a dataset, and stops caching any more of them
+     * until a new version is set.
+     * 
+     * @param datasetId
+     *            The ID of the dataset
+     */
+    public void removeDataset(String datasetId) {
+        List<File> discarded;
+        synchronized (this) {
+            activeDatasets.remove(datasetId);
+            discarded = discardTiles(datasetId);
+            if (versions.remove(datasetId) != null && directory != null) {
+                new File(getDatasetDirectory(datasetId), VERSION_FILE).delete();
+            }
+        }
+        deleteFiles(discarded);
+        if (directory != null) {
+            /*
+             * This will fail if a new version has been set in the meantime
+             */
+            getDatasetDirectory(datasetId).delete();
+        }
+    }
+
+    /**
+     * Gets the current generation of the cache, which must be passed to
+     * {@link #put(String, String, byte[], long)} when storing a tile. This
+     * should be called before the tile is rendered.
+     * 
+     * @param datasetId
+     *            The ID of the dataset the tile will be rendered from
+     * @return The current generation, or -1 if tiles of the dataset are not
+     *         cached
+     */
+    public synchronized long getGeneration(String datasetId) {
+        return activeDatasets.contains(datasetId) ? generation : -1L;
+    }
+
+    /**
+     * Gets a tile from the cache
+     * 
+     * @param datasetId
+     *            The ID of the dataset the tile is rendered from
+     * @param key
+     *            A string which uniquely identifies the tile within the
+     *            dataset
+     * @return The encoded tile, or <code>null</code> if it is not cached
+     */
+    public byte[] get(String datasetId, String key) {
+        TileKey tileKey = new TileKey(datasetId, key);
+        File file;
+        synchronized (this) {
+            if (!activeDatasets.contains(datasetId)) {
+                return null;
+            }
+            byte[] tile = memoryTiles.get(tileKey);
+            if (tile != null || directory == null) {
+                return tile;
+            }
+            file = getTileFile(datasetId, key);
+            if (diskTiles.get(file) == null) {
+                return null;
+            }
+        }
+
+        byte[] tile;
+        try {
+            tile = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            synchronized (this) {
+                removeDiskTile(file);
+            }
+            return null;
+        }
+        /*
+         * The modification times of the files preserve the order in which they
+         * were used across restarts
+         */
+        file.setLastModified(System.currentTimeMillis());
+        synchronized (this) {
+            /*
+             * Only keep the tile in memory if it hasn't been discarded whilst
+             * we were reading it
+             */
+            if (diskTiles.containsKey(file)) {
+                putInMemory(tileKey, tile);
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Stores a tile in the cache. The tile is discarded if its dataset has
+     * changed since it began rendering.
+     * 
+     * @param datasetId
+     *            The ID of the dataset the tile is rendered from
+     * @param key
+     *            A string which uniquely identifies the tile within the
+     *            dataset
+     * @param tile
+     *            The encoded tile
+     * @param generation
+     *            The generation of the cache before the tile began rendering,
+     *            as returned by {@link #getGeneration(String)}
+     */
+    public void put(String datasetId, String key, byte[] tile, long generation) {
+        TileKey tileKey = new TileKey(datasetId, key);
+        synchronized (this) {
+            if (generation != this.generation || !activeDatasets.contains(datasetId)) {
+                return;
+            }
+            putInMemory(tileKey, tile);
+            if (directory == null || tile.length > maxDiskBytes) {
+                return;
+            }
+        }
+
+        File file = getTileFile(datasetId, key);
+        File tmpFile;
+        try {
+            File datasetDir = file.getParentFile();
+            datasetDir.mkdirs();
+            tmpFile = File.createTempFile("tile", ".tmp", datasetDir);
+            try (OutputStream out = new FileOutputStream(tmpFile)) {
+                out.write(tile);
+            }
+        } catch (IOException e) {
+            log.warn("Problem writing tile to disk", e);
+            return;
+        }
+
+        List<File> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (generation != this.generation) {
+                evicted.add(tmpFile);
+            } else {
+                try {
+                    Files.move(tmpFile.toPath(), file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    removeDiskTile(file);
+                    diskTiles.put(file, (long) tile.length);
+                    diskBytes += tile.length;
+                    evicted = evictDiskTiles();
+                } catch (IOException e) {
+                    log.warn("Problem writing tile to disk", e);
+                    evicted.add(tmpFile);
+                }
+            }
+        }
+        deleteFiles(evicted);
+    }
+
+    /*
+     * Must be called whilst holding the lock. Returns the files to delete once
+     * the lock has been released.
+     */
+    private List<File> discardTiles(String datasetId) {
+        generation++;
+        Iterator<Map.Entry<TileKey, byte[]>> memoryIterator = memoryTiles.entrySet().iterator();
+        while (memoryIterator.hasNext()) {
+            Map.Entry<TileKey, byte[]> entry = memoryIterator.next();
+            if (entry.getKey().datasetId.equals(datasetId)) {
+                memoryBytes -= entry.getValue().length;
+                memoryIterator.remove();
+            }
+        }
+
+        List<File> discarded = new ArrayList<>();
+        if (directory != null) {
+            File datasetDir = getDatasetDirectory(datasetId);
+            Iterator<Map.Entry<File, Long>> diskIterator = diskTiles.entrySet().iterator();
+            while (diskIterator.hasNext()) {
+                Map.Entry<File, Long> entry = diskIterator.next();
+                if (entry.getKey().getParentFile().equals(datasetDir)) {
+                    diskBytes -= entry.getValue();
+                    discarded.add(entry.getKey());
+                    diskIterator.remove();
+                }
+            }
+        }
+        return discarded;
+    }
+
+    /*
+     * Must be called whilst holding the lock
+     */
+    private void putInMemory(TileKey tileKey, byte[] tile) {
+        if (tile.length > maxMemoryBytes) {
+            return;
+        }
+        byte[] old = memoryTiles.put(tileKey, tile);
+        if (old != null) {
+            memoryBytes -= old.length;
+        }
+        memoryBytes += tile.length;
+        Iterator<byte[]> iterator = memoryTiles.values().iterator();
+        while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+            memoryBytes -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    /*
+     * Must be called whilst holding the lock
+     */
+    private void removeDiskTile(File file) {
+        Long size = diskTiles.remove(file);
+        if (size != null) {
+            diskBytes -= size;
+        }
+    }
+
+    /*
+     * Must be called whilst holding the lock. Returns the files to delete once
+     * the lock has been released.
+     */
+    private List<File> evictDiskTiles() {
+        List<File> evicted = new ArrayList<>();
+        Iterator<Map.Entry<File, Long>> iterator = diskTiles.entrySet().iterator();
+        while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+            Map.Entry<File, Long> entry = iterator.next();
+            diskBytes -= entry.getValue();
+            evicted.add(entry.getKey());
+            iterator.remove();
+        }
+        return evicted;
+    }
+
+    private static void deleteFiles(List<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    /*
+     * Must be called whilst holding the lock
+     */
+    private void writeVersion(String datasetId, String version) {
+        if (directory == null) {
+            return;
+        }
+        File datasetDir = getDatasetDirectory(datasetId);
+        datasetDir.mkdirs();
+        Properties props = new Properties();
+        props.setProperty("dataset", datasetId);
+        props.setProperty("version", version);
+        try (OutputStream out = new FileOutputStream(new File(datasetDir, VERSION_FILE))) {
+            props.store(out, null);
+        } catch (IOException e) {
+            log.warn("Problem writing tile cache version for dataset " + datasetId, e);
+        }
+    }
+
+    /*
+     * Indexes the tiles already on disk, using their modification times as
+     * the order in which they were last used.
+     */
+    private void loadDiskTiles() {
+        final Map<File, Long> lastModified = new HashMap<>();
+        List<File> tiles = new ArrayList<>();
+        File[] datasetDirs = directory.listFiles();
+        if (datasetDirs == null) {
+            return;
+        }
+        for (File datasetDir : datasetDirs) {
+            if (!datasetDir.isDirectory()) {
+                continue;
+            }
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(new File(datasetDir, VERSION_FILE))) {
+                props.load(in);
+            } catch (IOException e) {
+                /*
+                 * Without a version we cannot tell whether these tiles are
+                 * current
+                 */
+            }
+            String datasetId = props.getProperty("dataset");
+            String version = props.getProperty("version");
+            boolean valid = datasetId != null && version != null
+                    && datasetDir.equals(getDatasetDirectory(datasetId));
+            if (valid) {
+                versions.put(datasetId, version);
+            }
+            File[] files = datasetDir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (valid && file.getName().endsWith(TILE_SUFFIX)) {
+                    lastModified.put(file, file.lastModified());
+                    tiles.add(file);
+                } else if (!valid || !file.getName().equals(VERSION_FILE)) {
+                    /*
+                     * Partially-written tiles, or tiles we cannot use
+                     */
+                    file.delete();
+                }
+            }
+            if (!valid) {
+                datasetDir.delete();
+            }
+        }
+
+        Collections.sort(tiles, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(lastModified.get(f1), lastModified.get(f2));
+            }
+        });
+        for (File tile : tiles) {
+            long size = tile.length();
+            diskTiles.put(tile, size);
+            diskBytes += size;
+        }
+        deleteFiles(evictDiskTiles());
+        log.debug("Loaded " + diskTiles.size() + " tiles (" + diskBytes
+                + " bytes) from tile cache");
+    }
+
+    private File getDatasetDirectory(String datasetId) {
+        return new File(directory, HashUtils.sha1Hex(datasetId));
+    }
+
+    private File getTileFile(String datasetId, String key) {
+        return new File(getDatasetDirectory(datasetId), HashUtils.sha1Hex(key) + TILE_SUFFIX);
+    }
+
+    private static final class TileKey {
+        private final String datasetId;
+        private final String key;
+
+        TileKey(String datasetId, String key) {
+            this.datasetId = datasetId;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * datasetId.hashCode() + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof TileKey))
+                return false;
+            TileKey other = (TileKey) obj;
+            return datasetId.equals(other.datasetId) && key.equals(other.key);
+        }
+    }
+}
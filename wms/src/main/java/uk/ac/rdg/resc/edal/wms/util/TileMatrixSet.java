@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+/**
+ * A set of tile matrices covering a rectangular extent, in which each zoom
+ * level has twice as many tiles in each direction as the one before. This
+ * describes the tiles requested by tiled map clients, and is used to seed a
+ * {@link TileCache}.
+ * 
+ * Tiles are numbered from the top-left of the extent, as in WMTS.
+ * 
+ * @author Guy Griffiths
+ */
+public final class TileMatrixSet {
+    private static final double WEB_MERCATOR_EXTENT = 20037508.342789244;
+
+    /**
+     * The WMTS WorldCRS84Quad set: 2x1 tiles covering the globe at level 0
+     */
+    public static final TileMatrixSet WORLD_CRS84_QUAD = new TileMatrixSet("CRS:84", -180.0,
+            -90.0, 180.0, 90.0, 2, 1, 256);
+
+    /**
+     * The WMTS GoogleMapsCompatible set: a single web mercator tile at level 0
+     */
+    public static final TileMatrixSet GOOGLE_MAPS_COMPATIBLE = new TileMatrixSet("EPSG:3857",
+            -WEB_MERCATOR_EXTENT, -WEB_MERCATOR_EXTENT, WEB_MERCATOR_EXTENT,
+            WEB_MERCATOR_EXTENT, 1, 1, 256);
+
+    private final String crsCode;
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+    private final int level0Columns;
+    private final int level0Rows;
+    private final int tileSize;
+
+    /**
+     * @param crsCode
+     *            The code of the CRS of the tiles, as used in WMS 1.1.1
+     *            requests (i.e. with x/y axis order)
+     * @param minX
+     *            The minimum x-coordinate of the extent
+     * @param minY
+     *            The minimum y-coordinate of the extent
+     * @param maxX
+     *            The maximum x-coordinate of the extent
+     * @param maxY
+     *            The maximum y-coordinate of the extent
+     * @param level0Columns
+     *            The number of columns of tiles at zoom level 0
+     * @param level0Rows
+     *            The number of rows of tiles at zoom level 0
+     * @param tileSize
+     *            The width and height of each tile, in pixels
+     */
+    public TileMatrixSet(String crsCode, double minX, double minY, double maxX, double maxY,
+            int level0Columns, int level0Rows, int tileSize) {
+        if (minX >= maxX || minY >= maxY) {
+            throw new IllegalArgumentException("Invalid extent for tile matrix set");
+        }
+        if (level0Columns < 1 || level0Rows < 1 || tileSize < 1) {
+            throw new IllegalArgumentException(
+                    "Tile matrix sets must have at least one tile of at least one pixel");
+        }
+        this.crsCode = crsCode;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.level0Columns = level0Columns;
+        this.level0Rows = level0Rows;
+        this.tileSize = tileSize;
+    }
+
+    public String getCrsCode() {
+        return crsCode;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @param level
+     *            The zoom level
+     * @return The number of columns of tiles at the given zoom level
+     */
+    public int getColumns(int level) {
+        return level0Columns << level;
+    }
+
+    /**
+     * @param level
+     *            The zoom level
+     * @return The number of rows of tiles at the given zoom level
+     */
+    public int getRows(int level) {
+        return level0Rows << level;
+    }
+
+    /**
+     * Gets the bounding box of a single tile
+     * 
+     * @param level
+     *            The zoom level
+     * @param column
+     *            The column of the tile, counting from the left
+     * @param row
+     *            The row of the tile, counting from the top
+     * @return The bounding box of the tile, as {minX, minY, maxX, maxY}
+     */
+    public double[] getTileBbox(int level, int column, int row) {
+        double tileWidth = (maxX - minX) / getColumns(level);
+        double tileHeight = (maxY - minY) / getRows(level);
+        return new double[] { minX + column * tileWidth, maxY - (row + 1) * tileHeight,
+                minX + (column + 1) * tileWidth, maxY - row * tileHeight };
+    }
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.wms.CapabilitiesCache.Key;
+import uk.ac.rdg.resc.edal.wms.CapabilitiesCache.Rendered;
+import uk.ac.rdg.resc.edal.wms.util.CachedDocument;
+
+/**
+ * Test class for {@link CapabilitiesCache}
+ * 
+ * @author Guy Griffiths
+ */
+public class CapabilitiesCacheTest {
+    private static final Key KEY = new Key("1.3.0", "dataset", false, "http://localhost/wms");
+
+    private CapabilitiesCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new CapabilitiesCache();
+    }
+
+    @Test
+    public void testCachedUntilUpdated() throws EdalException {
+        CountingRenderer renderer = new CountingRenderer(Rendered.NEVER);
+        assertEquals("layers-1", cache.getDatasetLayers(KEY, 100L, renderer).value);
+        assertEquals("layers-1", cache.getDatasetLayers(KEY, 100L, renderer).value);
+        assertEquals(1, renderer.renders.get());
+
+        assertEquals("layers-2", cache.getDatasetLayers(KEY, 200L, renderer).value);
+        assertEquals(2, renderer.renders.get());
+    }
+
+    @Test
+    public void testKeys() throws EdalException {
+        CountingRenderer renderer = new CountingRenderer(Rendered.NEVER);
+        cache.getDatasetLayers(KEY, 100L, renderer);
+        cache.getDatasetLayers(new Key("1.3.0", "dataset", false, "http://localhost/wms"),
+                100L, renderer);
+        assertEquals(1, renderer.renders.get());
+
+        cache.getDatasetLayers(new Key("1.1.1", "dataset", false, "http://localhost/wms"),
+                100L, renderer);
+        cache.getDatasetLayers(new Key("1.3.0", "dataset", true, "http://localhost/wms"),
+                100L, renderer);
+        cache.getDatasetLayers(new Key("1.3.0", "dataset", false, "http://example.com/wms"),
+                100L, renderer);
+        cache.getDatasetLayers(new Key("1.3.0", null, false, "http://localhost/wms"), 100L,
+                renderer);
+        assertEquals(5, renderer.renders.get());
+    }
+
+    @Test
+    public void testExpiry() throws EdalException {
+        /*
+         * Entries which have already expired are rendered every time
+         */
+        CountingRenderer expired = new CountingRenderer(System.currentTimeMillis() - 1L);
+        cache.getDatasetLayers(KEY, 100L, expired);
+        cache.getDatasetLayers(KEY, 100L, expired);
+        assertEquals(2, expired.renders.get());
+
+        long expires = System.currentTimeMillis() + 60 * 60 * 1000L;
+        CountingRenderer unexpired = new CountingRenderer(expires);
+        Rendered<String> layers = cache.getDatasetLayers(KEY, 100L, unexpired);
+        assertEquals(expires, layers.expires);
+        cache.getDatasetLayers(KEY, 100L, unexpired);
+        assertEquals(1, unexpired.renders.get());
+    }
+
+    @Test
+    public void testDocuments() throws EdalException {
+        final AtomicInteger renders = new AtomicInteger(0);
+        Callable<Rendered<CachedDocument>> renderer = new Callable<Rendered<CachedDocument>>() {
+            @Override
+            public Rendered<CachedDocument> call() {
+                renders.incrementAndGet();
+                return new Rendered<>(new CachedDocument("<doc/>", 100000L), Rendered.NEVER);
+            }
+        };
+        CachedDocument document = cache.getDocument(KEY, 100L, renderer);
+        assertSame(document, cache.getDocument(KEY, 100L, renderer));
+        /*
+         * Documents and dataset layers are cached separately
+         */
+        CountingRenderer layersRenderer = new CountingRenderer(Rendered.NEVER);
+        cache.getDatasetLayers(KEY, 100L, layersRenderer);
+        assertEquals(1, layersRenderer.renders.get());
+
+        cache.clear();
+        cache.getDocument(KEY, 100L, renderer);
+        assertEquals(2, renders.get());
+    }
+
+    @Test
+    public void testFailuresNotCached() throws EdalException {
+        final AtomicInteger renders = new AtomicInteger(0);
+        Callable<Rendered<String>> renderer = new Callable<Rendered<String>>() {
+            @Override
+            public Rendered<String> call() throws EdalException {
+                if (renders.incrementAndGet() == 1) {
+                    throw new EdalException("Failed render");
+                }
+                return new Rendered<>("layers", Rendered.NEVER);
+            }
+        };
+        try {
+            cache.getDatasetLayers(KEY, 100L, renderer);
+            fail("Render should have failed");
+        } catch (EdalException e) {
+            assertEquals("Failed render", e.getMessage());
+        }
+        assertEquals("layers", cache.getDatasetLayers(KEY, 100L, renderer).value);
+        assertEquals(2, renders.get());
+    }
+
+    @Test
+    public void testConcurrentRequestsRenderOnce() throws Exception {
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger renders = new AtomicInteger(0);
+        final Callable<Rendered<String>> renderer = new Callable<Rendered<String>>() {
+            @Override
+            public Rendered<String> call() throws Exception {
+                renders.incrementAndGet();
+                rendering.countDown();
+                release.await();
+                return new Rendered<>("layers", Rendered.NEVER);
+            }
+        };
+        Callable<String> request = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return cache.getDatasetLayers(KEY, 100L, renderer).value;
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<String> first = executor.submit(request);
+            assertTrue(rendering.await(10, TimeUnit.SECONDS));
+            Future<String> second = executor.submit(request);
+            Future<String> third = executor.submit(request);
+            release.countDown();
+            assertEquals("layers", first.get(10, TimeUnit.SECONDS));
+            assertEquals("layers", second.get(10, TimeUnit.SECONDS));
+            assertEquals("layers", third.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, renders.get());
+    }
+
+    private static final class CountingRenderer implements Callable<Rendered<String>> {
+        private final AtomicInteger renders = new AtomicInteger(0);
+        private final long expires;
+
+        public CountingRenderer(long expires) {
+            this.expires = expires;
+        }
+
+        @Override
+        public Rendered<String> call() {
+            return new Rendered<>("layers-" + renders.incrementAndGet(), expires);
+        }
+    }
+}
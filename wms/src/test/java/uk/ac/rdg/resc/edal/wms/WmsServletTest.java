@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.formats.ImageFormat;
+import uk.ac.rdg.resc.edal.graphics.formats.SimpleFormat;
+import uk.ac.rdg.resc.edal.graphics.style.MapImage;
+import uk.ac.rdg.resc.edal.graphics.style.util.FeatureCatalogue;
+import uk.ac.rdg.resc.edal.util.PlottingDomainParams;
+
+/**
+ * Test class for the writing of images by {@link WmsServlet}
+ * 
+ * @author Guy Griffiths
+ */
+public class WmsServletTest {
+    @Test
+    public void testImageWritten() throws Exception {
+        Response response = getMap("image/png", 1, -1);
+        assertFalse(response.writerRequested);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(response.body
+                .toByteArray()));
+        assertEquals(4, image.getWidth());
+        assertEquals(0xff000000, image.getRGB(0, 0));
+    }
+
+    @Test
+    public void testFailedImageGivesServiceException() throws Exception {
+        Response response = getMap("image/png", 1, 0);
+        assertFalse(response.outputStreamRequested);
+        String exception = response.writer.toString();
+        assertTrue(exception.contains("<ServiceException"));
+        assertTrue(exception.contains("Cannot render frame 0"));
+    }
+
+    @Test
+    public void testFailedFirstFrameGivesServiceException() throws Exception {
+        Response response = getMap("image/gif", 5, 0);
+        assertFalse(response.outputStreamRequested);
+        assertTrue(response.writer.toString().contains("Cannot render frame 0"));
+    }
+
+    @Test
+    public void testFailedLaterFrameAbandonsResponse() throws Exception {
+        Response response = new Response();
+        try {
+            new TestServlet("image/gif", 5, 2).doGet(new Request().proxy(), response.proxy());
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("Cannot render frame 2", e.getCause().getMessage());
+        }
+        /*
+         * The first frames have been sent, but the image must not be finished
+         * with a ';' trailer
+         */
+        byte[] written = response.body.toByteArray();
+        assertEquals("GIF89a", new String(written, 0, 6, "US-ASCII"));
+        assertFalse(written[written.length - 1] == 0x3b);
+    }
+
+    private static Response getMap(String format, int nFrames, int failingFrame)
+            throws Exception {
+        Response response = new Response();
+        new TestServlet(format, nFrames, failingFrame).doGet(new Request().proxy(),
+                response.proxy());
+        return response;
+    }
+
+    /**
+     * A {@link WmsServlet} which answers every GetMap request by rendering a
+     * number of frames, one of which can be made to fail
+     */
+    private static final class TestServlet extends WmsServlet {
+        private static final long serialVersionUID = 1L;
+
+        private final String format;
+        private final int nFrames;
+        private final int failingFrame;
+
+        public TestServlet(String format, int nFrames, int failingFrame) {
+            this.format = format;
+            this.nFrames = nFrames;
+            this.failingFrame = failingFrame;
+        }
+
+        @Override
+        protected void dispatchWmsRequest(String request, RequestParams params,
+                HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+                throws Exception {
+            List<PlottingDomainParams> frameParams = new ArrayList<>();
+            DateTime start = new DateTime(2000, 1, 1, 0, 0);
+            for (int i = 0; i < nFrames; i++) {
+                frameParams.add(new PlottingDomainParams(4, 4, null, null, null, null, null,
+                        start.plusDays(i)));
+            }
+            writeFrames(new FrameNumberImage(failingFrame), frameParams,
+                    (SimpleFormat) ImageFormat.get(format), httpServletResponse);
+        }
+    }
+
+    /**
+     * A {@link MapImage} whose frames are coloured by their number
+     */
+    private static final class FrameNumberImage extends MapImage {
+        private final int failingFrame;
+
+        public FrameNumberImage(int failingFrame) {
+            this.failingFrame = failingFrame;
+        }
+
+        @Override
+        public BufferedImage drawImage(PlottingDomainParams params, FeatureCatalogue catalogue)
+                throws EdalException {
+            int frame = params.getTargetT().getDayOfYear() - 1;
+            if (frame == failingFrame) {
+                throw new EdalException("Cannot render frame " + frame);
+            }
+            BufferedImage image = new BufferedImage(params.getWidth(), params.getHeight(),
+                    BufferedImage.TYPE_INT_ARGB);
+            image.setRGB(0, 0, 0xff000000 | frame);
+            return image;
+        }
+    }
+
+    /**
+     * The parts of an {@link HttpServletRequest} which are used by
+     * {@link WmsServlet}
+     */
+    private static final class Request implements InvocationHandler {
+        private final Map<String, String[]> parameters = new HashMap<>();
+
+        HttpServletRequest proxy() {
+            parameters.put("REQUEST", new String[] { "GetMap" });
+            parameters.put("VERSION", new String[] { "1.3.0" });
+            return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletRequest.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+            case "getParameterMap":
+                return parameters;
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+
+    /**
+     * Records what is written to an {@link HttpServletResponse}. As with a
+     * real response, only one of the output stream and the writer can be used.
+     */
+    private static final class Response implements InvocationHandler {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final StringWriter writer = new StringWriter();
+        private boolean outputStreamRequested = false;
+        private boolean writerRequested = false;
+
+        HttpServletResponse proxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+            case "getOutputStream":
+                if (writerRequested) {
+                    throw new IllegalStateException("getWriter() has already been called");
+                }
+                outputStreamRequested = true;
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {
+                        body.write(b);
+                    }
+                };
+            case "getWriter":
+                if (outputStreamRequested) {
+                    throw new IllegalStateException("getOutputStream() has already been called");
+                }
+                writerRequested = true;
+                return new PrintWriter(writer);
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+/**
+ * Test class for {@link CachedDocument}
+ * 
+ * @author Guy Griffiths
+ */
+public class CachedDocumentTest {
+    private static final String CONTENT = "<?xml version=\"1.0\"?><doc>°C</doc>";
+    private static final long LAST_MODIFIED = 1400000000123L;
+
+    @Test
+    public void testUncompressed() throws IOException {
+        CachedDocument document = new CachedDocument(CONTENT, LAST_MODIFIED);
+        Response response = write(document, new Request());
+        assertEquals(HttpServletResponse.SC_OK, response.status);
+        assertNull(response.headers.get("Content-Encoding"));
+        assertEquals("text/xml", response.contentType);
+        assertEquals(CONTENT, new String(response.body.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(response.body.size(), response.contentLength);
+        /*
+         * HTTP dates only have a precision of 1s
+         */
+        assertEquals(1400000000000L, response.headers.get("Last-Modified"));
+        assertEquals(1400000000000L, document.getLastModified());
+    }
+
+    @Test
+    public void testGzipped() throws IOException {
+        CachedDocument document = new CachedDocument(CONTENT, LAST_MODIFIED);
+        Response response = write(document, new Request().header("Accept-Encoding",
+                "deflate, gzip;q=0.5"));
+        assertEquals("gzip", response.headers.get("Content-Encoding"));
+        assertEquals(document.getCompressedLength(), response.contentLength);
+        assertEquals(CONTENT, gunzip(response.body.toByteArray()));
+
+        /*
+         * The two representations must have different ETags
+         */
+        Response uncompressed = write(document, new Request());
+        assertFalse(response.headers.get("ETag").equals(uncompressed.headers.get("ETag")));
+    }
+
+    @Test
+    public void testIfNoneMatch() throws IOException {
+        CachedDocument document = new CachedDocument(CONTENT, LAST_MODIFIED);
+        String eTag = (String) write(document, new Request()).headers.get("ETag");
+        String gzipETag = (String) write(document,
+                new Request().header("Accept-Encoding", "gzip")).headers.get("ETag");
+
+        assertNotModified(write(document, new Request().header("If-None-Match", eTag)));
+        assertNotModified(write(document, new Request().header("If-None-Match", "W/" + eTag)));
+        assertNotModified(write(document, new Request().header("If-None-Match",
+                "\"other\", " + gzipETag)));
+        assertNotModified(write(document, new Request().header("If-None-Match", "*")));
+
+        Response response = write(document, new Request().header("If-None-Match", "\"other\""));
+        assertEquals(HttpServletResponse.SC_OK, response.status);
+        assertEquals(CONTENT, new String(response.body.toByteArray(), StandardCharsets.UTF_8));
+
+        /*
+         * Different content has a different ETag
+         */
+        CachedDocument changed = new CachedDocument(CONTENT + " ", LAST_MODIFIED);
+        assertEquals(HttpServletResponse.SC_OK,
+                write(changed, new Request().header("If-None-Match", eTag)).status);
+    }
+
+    @Test
+    public void testIfModifiedSince() throws IOException {
+        CachedDocument document = new CachedDocument(CONTENT, LAST_MODIFIED);
+        assertNotModified(write(document,
+                new Request().dateHeader("If-Modified-Since", 1400000000000L)));
+        assertEquals(HttpServletResponse.SC_OK, write(document,
+                new Request().dateHeader("If-Modified-Since", 1399999999000L)).status);
+        /*
+         * If-None-Match takes precedence
+         */
+        assertEquals(HttpServletResponse.SC_OK, write(document,
+                new Request().header("If-None-Match", "\"other\"").dateHeader(
+                        "If-Modified-Since", 1400000000000L)).status);
+    }
+
+    @Test
+    public void testNoValidators() throws IOException {
+        CachedDocument document = new CachedDocument(CONTENT);
+        assertEquals(-1L, document.getLastModified());
+        Response response = write(document, new Request().header("If-None-Match", "*")
+                .dateHeader("If-Modified-Since", Long.MAX_VALUE));
+        assertEquals(HttpServletResponse.SC_OK, response.status);
+        assertNull(response.headers.get("ETag"));
+        assertNull(response.headers.get("Last-Modified"));
+        assertEquals(CONTENT, new String(response.body.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAcceptsEncoding() {
+        assertFalse(CachedDocument.acceptsEncoding(null, "gzip"));
+        assertTrue(CachedDocument.acceptsEncoding("gzip", "gzip"));
+        assertTrue(CachedDocument.acceptsEncoding("deflate, GZIP", "gzip"));
+        assertTrue(CachedDocument.acceptsEncoding("x-gzip", "gzip", "x-gzip"));
+        assertTrue(CachedDocument.acceptsEncoding("*", "gzip"));
+        assertTrue(CachedDocument.acceptsEncoding("gzip;q=0.1", "gzip"));
+        assertFalse(CachedDocument.acceptsEncoding("gzip;q=0", "gzip"));
+        assertFalse(CachedDocument.acceptsEncoding("gzip;q=x", "gzip"));
+        assertFalse(CachedDocument.acceptsEncoding("deflate, identity", "gzip"));
+    }
+
+    private static void assertNotModified(Response response) {
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+        assertEquals(0, response.body.size());
+    }
+
+    private static Response write(CachedDocument document, Request request) throws IOException {
+        Response response = new Response();
+        document.write(request.proxy(), response.proxy(), "text/xml");
+        return response;
+    }
+
+    private static String gunzip(byte[] gzipped) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The parts of an {@link HttpServletRequest} which are used by
+     * {@link CachedDocument}
+     */
+    private static final class Request implements InvocationHandler {
+        private final Map<String, String> headers = new HashMap<>();
+        private final Map<String, Long> dateHeaders = new HashMap<>();
+
+        Request header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        Request dateHeader(String name, long value) {
+            dateHeaders.put(name, value);
+            return this;
+        }
+
+        HttpServletRequest proxy() {
+            return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletRequest.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+            case "getHeader":
+                return headers.get(args[0]);
+            case "getDateHeader":
+                Long date = dateHeaders.get(args[0]);
+                return date == null ? -1L : date;
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+
+    /**
+     * Records what is written to an {@link HttpServletResponse}
+     */
+    private static final class Response implements InvocationHandler {
+        private final Map<String, Object> headers = new HashMap<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private int status = HttpServletResponse.SC_OK;
+        private int contentLength = -1;
+        private String contentType = null;
+
+        HttpServletResponse proxy() {
+            return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+            case "setHeader":
+            case "setDateHeader":
+                headers.put((String) args[0], args[1]);
+                return null;
+            case "setStatus":
+                status = (Integer) args[0];
+                return null;
+            case "setContentLength":
+                contentLength = (Integer) args[0];
+                return null;
+            case "setContentType":
+                contentType = (String) args[0];
+                return null;
+            case "setCharacterEncoding":
+                assertEquals("UTF-8", args[0]);
+                return null;
+            case "getOutputStream":
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {
+                        body.write(b);
+                    }
+                };
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+}
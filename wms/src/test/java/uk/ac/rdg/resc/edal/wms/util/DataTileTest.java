@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * Test class for {@link DataTile}
+ * 
+ * @author Guy Griffiths
+ */
+public class DataTileTest {
+    private static final int HEADER_SIZE = 24;
+
+    @Test
+    public void testFloat32() throws IOException {
+        float[] values = new float[] { 1.5f, -2.25f, Float.NaN, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, 1e30f };
+        ByteBuffer buffer = write(new DataTile(3, 2, values), DataTile.FLOAT32_FORMAT);
+        assertEquals(HEADER_SIZE + 4 * values.length, buffer.remaining());
+        checkHeader(buffer, DataTile.TYPE_FLOAT32, 3, 2);
+        assertEquals(0f, buffer.getFloat(), 0f);
+        assertEquals(1f, buffer.getFloat(), 0f);
+
+        assertEquals(1.5f, buffer.getFloat(), 0f);
+        assertEquals(-2.25f, buffer.getFloat(), 0f);
+        /* All non-finite values are missing data */
+        assertTrue(Float.isNaN(buffer.getFloat()));
+        assertTrue(Float.isNaN(buffer.getFloat()));
+        assertTrue(Float.isNaN(buffer.getFloat()));
+        assertEquals(1e30f, buffer.getFloat(), 0f);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testInt16RoundTrip() throws IOException {
+        int width = 7;
+        int height = 5;
+        float[] values = new float[width * height];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = -273.15f + i * 13.7f + (i % 3) * 0.01f;
+        }
+        ByteBuffer buffer = write(new DataTile(width, height, values), DataTile.INT16_FORMAT);
+        assertEquals(HEADER_SIZE + 2 * values.length + 5, buffer.remaining());
+        checkHeader(buffer, DataTile.TYPE_INT16, width, height);
+        float offset = buffer.getFloat();
+        float scale = buffer.getFloat();
+
+        /* The full range of the data is packed into the full range of a short */
+        float min = values[0];
+        float max = values[values.length - 1];
+        assertEquals((max - min) / (2.0 * Short.MAX_VALUE), scale, 1e-9);
+        for (int i = 0; i < values.length; i++) {
+            double unpacked = offset + scale * (double) buffer.getShort();
+            assertEquals("Value " + i, values[i], unpacked, scale / 2.0 + 1e-4);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, buffer.get());
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testInt16ConstantValues() throws IOException {
+        float[] values = new float[] { 12.5f, 12.5f, 12.5f, 12.5f };
+        ByteBuffer buffer = write(new DataTile(2, 2, values), DataTile.INT16_FORMAT);
+        checkHeader(buffer, DataTile.TYPE_INT16, 2, 2);
+        float offset = buffer.getFloat();
+        float scale = buffer.getFloat();
+        assertEquals(1f, scale, 0f);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(12.5f, offset + scale * buffer.getShort(), 0f);
+        }
+        assertEquals(0, buffer.get());
+    }
+
+    @Test
+    public void testInt16MissingMask() throws IOException {
+        float[] values = new float[10];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        values[0] = Float.NaN;
+        values[3] = Float.POSITIVE_INFINITY;
+        values[7] = Float.NEGATIVE_INFINITY;
+        values[9] = Float.NaN;
+        ByteBuffer buffer = write(new DataTile(5, 2, values), DataTile.INT16_FORMAT);
+        assertEquals(HEADER_SIZE + 2 * values.length + 2, buffer.remaining());
+        checkHeader(buffer, DataTile.TYPE_INT16, 5, 2);
+        float offset = buffer.getFloat();
+        float scale = buffer.getFloat();
+
+        /* The packing only uses the valid values */
+        assertEquals(1f, offset + scale * -Short.MAX_VALUE, 1e-4);
+        assertEquals(8f, offset + scale * Short.MAX_VALUE, 1e-4);
+        short[] raw = new short[values.length];
+        for (int i = 0; i < values.length; i++) {
+            raw[i] = buffer.getShort();
+        }
+        /* Bits are least-significant first */
+        assertEquals((byte) 0x89, buffer.get());
+        assertEquals((byte) 0x02, buffer.get());
+        assertFalse(buffer.hasRemaining());
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || i == 3 || i == 7 || i == 9) {
+                assertEquals(0, raw[i]);
+            } else {
+                assertEquals(values[i], offset + scale * raw[i], scale);
+            }
+        }
+    }
+
+    @Test
+    public void testInt16AllMissing() throws IOException {
+        float[] values = new float[] { Float.NaN, Float.NaN, Float.POSITIVE_INFINITY };
+        ByteBuffer buffer = write(new DataTile(3, 1, values), DataTile.INT16_FORMAT);
+        checkHeader(buffer, DataTile.TYPE_INT16, 3, 1);
+        assertEquals(0f, buffer.getFloat(), 0f);
+        assertEquals(1f, buffer.getFloat(), 0f);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(0, buffer.getShort());
+        }
+        assertEquals((byte) 0x07, buffer.get());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testFormats() throws IOException {
+        assertTrue(DataTile.isSupportedFormat("application/x-float32"));
+        assertTrue(DataTile.isSupportedFormat("APPLICATION/X-INT16"));
+        assertFalse(DataTile.isSupportedFormat("image/png"));
+        assertFalse(DataTile.isSupportedFormat(null));
+        try {
+            new DataTile(1, 1, new float[1]).write(new ByteArrayOutputStream(), "image/png");
+            fail("Unsupported formats should not be written");
+        } catch (IllegalArgumentException e) {
+            /* Expected */
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongNumberOfValues() {
+        new DataTile(3, 2, new float[5]);
+    }
+
+    private static ByteBuffer write(DataTile tile, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tile.write(out, format);
+        return ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /*
+     * Checks the header up to (but not including) the offset and scale
+     */
+    private static void checkHeader(ByteBuffer buffer, byte type, int width, int height) {
+        assertEquals('E', buffer.get());
+        assertEquals('D', buffer.get());
+        assertEquals('A', buffer.get());
+        assertEquals('T', buffer.get());
+        assertEquals(1, buffer.get());
+        assertEquals(type, buffer.get());
+        assertEquals(0, buffer.get());
+        assertEquals(0, buffer.get());
+        assertEquals(width, buffer.getInt());
+        assertEquals(height, buffer.getInt());
+    }
+}
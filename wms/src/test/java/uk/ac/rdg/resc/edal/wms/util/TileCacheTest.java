@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2014 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.edal.wms.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for {@link TileCache}
+ * 
+ * @author Guy Griffiths
+ */
+public class TileCacheTest {
+    private static final String DATASET = "dataset";
+    private static final String OTHER_DATASET = "other";
+    /* Two of these fit into 1MB of cache, and five into 2MB */
+    private static final int TILE_SIZE = 400 * 1024;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("tilecache", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void testMemoryEviction() {
+        TileCache cache = new TileCache(null, 1, 0);
+        cache.setDatasetVersion(DATASET, "v1");
+        long generation = cache.getGeneration(DATASET);
+        cache.put(DATASET, "a", tile(1), generation);
+        cache.put(DATASET, "b", tile(2), generation);
+        /* Using a tile makes it the most recently used */
+        assertTrue(Arrays.equals(tile(1), cache.get(DATASET, "a")));
+        cache.put(DATASET, "c", tile(3), generation);
+
+        assertTrue(Arrays.equals(tile(1), cache.get(DATASET, "a")));
+        assertNull(cache.get(DATASET, "b"));
+        assertTrue(Arrays.equals(tile(3), cache.get(DATASET, "c")));
+
+        /* Tiles larger than the whole cache are not stored */
+        cache.put(DATASET, "large", new byte[2 * 1024 * 1024], generation);
+        assertNull(cache.get(DATASET, "large"));
+        assertTrue(Arrays.equals(tile(1), cache.get(DATASET, "a")));
+    }
+
+    @Test
+    public void testDiskEviction() {
+        TileCache cache = new TileCache(directory, 1, 1);
+        cache.setDatasetVersion(DATASET, "v1");
+        long generation = cache.getGeneration(DATASET);
+        cache.put(DATASET, "a", tile(1), generation);
+        cache.put(DATASET, "b", tile(2), generation);
+        cache.put(DATASET, "c", tile(3), generation);
+
+        assertNull(cache.get(DATASET, "a"));
+        assertTrue(Arrays.equals(tile(2), cache.get(DATASET, "b")));
+        assertTrue(Arrays.equals(tile(3), cache.get(DATASET, "c")));
+        assertEquals(2, countTileFiles(directory));
+    }
+
+    @Test
+    public void testDiskHoldsTilesEvictedFromMemory() {
+        TileCache cache = new TileCache(directory, 1, 2);
+        cache.setDatasetVersion(DATASET, "v1");
+        long generation = cache.getGeneration(DATASET);
+        cache.put(DATASET, "a", tile(1), generation);
+        cache.put(DATASET, "b", tile(2), generation);
+        cache.put(DATASET, "c", tile(3), generation);
+
+        assertEquals(3, countTileFiles(directory));
+        assertTrue(Arrays.equals(tile(1), cache.get(DATASET, "a")));
+        assertTrue(Arrays.equals(tile(2), cache.get(DATASET, "b")));
+        assertTrue(Arrays.equals(tile(3), cache.get(DATASET, "c")));
+
+        /* The disk limit evicts the least recently used tile from disk too */
+        cache.put(DATASET, "d", tile(4), generation);
+        cache.put(DATASET, "e", tile(5), generation);
+        cache.put(DATASET, "f", tile(6), generation);
+        assertEquals(5, countTileFiles(directory));
+        assertNull(cache.get(DATASET, "a"));
+    }
+
+    @Test
+    public void testVersionChange() {
+        TileCache cache = new TileCache(directory, 1, 2);
+        cache.setDatasetVersion(DATASET, "v1");
+        cache.setDatasetVersion(OTHER_DATASET, "v1");
+        cache.put(DATASET, "a", tile(1), cache.getGeneration(DATASET));
+        cache.put(OTHER_DATASET, "a", tile(2), cache.getGeneration(OTHER_DATASET));
+
+        /* Setting the same version keeps the tiles */
+        cache.setDatasetVersion(DATASET, "v1");
+        assertTrue(Arrays.equals(tile(1), cache.get(DATASET, "a")));
+
+        /* A new version only discards the tiles of its own dataset */
+        cache.setDatasetVersion(DATASET, "v2");
+        assertNull(cache.get(DATASET, "a"));
+        assertTrue(Arrays.equals(tile(2), cache.get(OTHER_DATASET, "a")));
+        assertEquals(1, countTileFiles(directory));
+
+        /* Datasets without a version are not cached */
+        cache.setDatasetVersion(OTHER_DATASET, null);
+        assertNull(cache.get(OTHER_DATASET, "a"));
+        assertEquals(-1L, cache.getGeneration(OTHER_DATASET));
+        cache.put(OTHER_DATASET, "a", tile(2), 0L);
+        assertNull(cache.get(OTHER_DATASET, "a"));
+        assertEquals(0, countTileFiles(directory));
+    }
+
+    @Test
+    public void testStaleGeneration() {
+        TileCache cache = new TileCache(directory, 1, 2);
+        cache.setDatasetVersion(DATASET, "v1");
+        cache.setDatasetVersion(OTHER_DATASET, "v1");
+        long generation = cache.getGeneration(DATASET);
+
+        /* The dataset changes whilst the tile is being rendered */
+        cache.setDatasetVersion(DATASET, "v2");
+        cache.put(DATASET, "a", tile(1), generation);
+        assertNull(cache.get(DATASET, "a"));
+
+        /* Invalidating any dataset stops tiles rendered before then being stored */
+        generation = cache.getGeneration(DATASET);
+        cache.removeDataset(OTHER_DATASET);
+        cache.put(DATASET, "a", tile(1), generation);
+        assertNull(cache.get(DATASET, "a"));
+        assertEquals(0, countTileFiles(directory));
+
+        cache.put(DATASET, "a", tile(1), cache.getGeneration(DATASET));
+        assertTrue(Arrays.equals(tile(1), cache.get(DATASET, "a")));
+    }
+
+    @Test
+    public void testReloadFromDisk() {
+        TileCache cache = new TileCache(directory, 1, 2);
+        cache.setDatasetVersion(DATASET, "v1");
+        cache.setDatasetVersion(OTHER_DATASET, "v1");
+        cache.put(DATASET, "a", tile(1), cache.getGeneration(DATASET));
+        cache.put(DATASET, "b", tile(2), cache.getGeneration(DATASET));
+        cache.put(OTHER_DATASET, "a", tile(3), cache.getGeneration(OTHER_DATASET));
+
+        TileCache reloaded = new TileCache(directory, 1, 2);
+        /* Nothing is served until the dataset's version is known */
+        assertNull(reloaded.get(DATASET, "a"));
+        reloaded.setDatasetVersion(DATASET, "v1");
+        assertTrue(Arrays.equals(tile(1), reloaded.get(DATASET, "a")));
+        assertTrue(Arrays.equals(tile(2), reloaded.get(DATASET, "b")));
+
+        /* A dataset which changed whilst we were stopped loses its tiles */
+        reloaded.setDatasetVersion(OTHER_DATASET, "v2");
+        assertNull(reloaded.get(OTHER_DATASET, "a"));
+        assertEquals(2, countTileFiles(directory));
+    }
+
+    @Test
+    public void testReloadEvictsToNewSize() {
+        TileCache cache = new TileCache(directory, 1, 2);
+        cache.setDatasetVersion(DATASET, "v1");
+        long generation = cache.getGeneration(DATASET);
+        cache.put(DATASET, "a", tile(1), generation);
+        cache.put(DATASET, "b", tile(2), generation);
+        cache.put(DATASET, "c", tile(3), generation);
+        assertEquals(3, countTileFiles(directory));
+
+        TileCache reloaded = new TileCache(directory, 1, 1);
+        assertEquals(2, countTileFiles(directory));
+        reloaded.setDatasetVersion(DATASET, "v1");
+        int nCached = 0;
+        for (String key : new String[] { "a", "b", "c" }) {
+            if (reloaded.get(DATASET, key) != null) {
+                nCached++;
+            }
+        }
+        assertEquals(2, nCached);
+    }
+
+    private static byte[] tile(int value) {
+        byte[] tile = new byte[TILE_SIZE];
+        Arrays.fill(tile, (byte) value);
+        return tile;
+    }
+
+    private static int countTileFiles(File dir) {
+        int count = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    count += countTileFiles(file);
+                } else if (file.getName().endsWith(".tile")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}